@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.plugin.meter.domain.external.ConsumerSubscriptionUsageRecord;
+import org.killbill.billing.plugin.meter.ingest.UsageRecordCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.joda.JodaModule;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+/**
+ * Throughput of the ingestion payload in each accepted encoding. The binary payloads are re-encoded from the JSON
+ * one, so all three carry the same records; the payload size is printed at setup for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class IngestionCodecBenchmark {
+
+    @Param({"json", "smile", "cbor"})
+    public String codec;
+
+    /** Usage records per unit in the ingestion payload. */
+    @Param({"1", "100"})
+    public int usageRecords;
+
+    private ObjectMapper jsonMapper;
+    private String contentType;
+    private byte[] payload;
+    private ConsumerSubscriptionUsageRecord record;
+
+    @Setup
+    public void setUp() throws IOException {
+        // Same configuration as JacksonBenchmark
+        jsonMapper = new ObjectMapper();
+        jsonMapper.registerModule(new JavaTimeModule());
+        jsonMapper.registerModule(new JodaModule());
+
+        final byte[] json = Payloads.usageJson(2, usageRecords);
+        record = jsonMapper.readValue(json, ConsumerSubscriptionUsageRecord.class);
+        switch (codec) {
+            case "json":
+                payload = json;
+                break;
+            case "smile":
+                contentType = UsageRecordCodec.SMILE;
+                payload = UsageRecordCodec.encode(contentType, record);
+                break;
+            case "cbor":
+                contentType = UsageRecordCodec.CBOR;
+                payload = UsageRecordCodec.encode(contentType, record);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown codec " + codec);
+        }
+        System.out.println("# " + codec + " payload: " + payload.length + " bytes");
+    }
+
+    @Benchmark
+    public ConsumerSubscriptionUsageRecord decode() throws IOException {
+        if (contentType == null) {
+            return jsonMapper.readValue(payload, ConsumerSubscriptionUsageRecord.class);
+        }
+        return UsageRecordCodec.decode(contentType, payload);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        if (contentType == null) {
+            return jsonMapper.writeValueAsBytes(record);
+        }
+        return UsageRecordCodec.encode(contentType, record);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.plugin.meter.domain.external.ConsumerSubscriptionUsageRecord;
+import org.killbill.billing.plugin.meter.dto.TierDetails;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.joda.JodaModule;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+/**
+ * Deserialization of the ingestion payload and of the invoice item details read during backfill.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class JacksonBenchmark {
+
+    /** Usage records per unit in the ingestion payload. */
+    @Param({"1", "100"})
+    public int usageRecords;
+
+    /** Tiers in the invoice item details. */
+    @Param({"1", "10"})
+    public int tiers;
+
+    private ObjectMapper objectMapper;
+    private byte[] usagePayload;
+    private String tierDetailsPayload;
+
+    @Setup
+    public void setUp() {
+        // Same modules as MeterService, plus Joda for the ingestion record dates
+        objectMapper = new ObjectMapper();
+        objectMapper.registerModule(new JavaTimeModule());
+        objectMapper.registerModule(new JodaModule());
+
+        usagePayload = Payloads.usageJson(2, usageRecords);
+        tierDetailsPayload = Payloads.tierDetailsJson(tiers);
+    }
+
+    @Benchmark
+    public ConsumerSubscriptionUsageRecord usageRecord() throws IOException {
+        return objectMapper.readValue(usagePayload, ConsumerSubscriptionUsageRecord.class);
+    }
+
+    @Benchmark
+    public TierDetails tierDetails() throws IOException {
+        return objectMapper.readValue(tierDetailsPayload, TierDetails.class);
+    }
+}
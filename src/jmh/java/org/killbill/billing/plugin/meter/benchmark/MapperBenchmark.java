@@ -0,0 +1,119 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.benchmark;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.plugin.meter.dto.AggregatedUsage;
+import org.killbill.billing.plugin.meter.dto.InvoiceTenant;
+import org.killbill.billing.plugin.meter.entity.RawUsage;
+import org.killbill.billing.plugin.meter.mapper.AggregatedUsageMapper;
+import org.killbill.billing.plugin.meter.mapper.BinaryUuids;
+import org.killbill.billing.plugin.meter.mapper.InvoiceTenantMapper;
+import org.killbill.billing.plugin.meter.mapper.RawUsageMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-row cost of the JDBI mappers. The narrow row mirrors the distinct scans, which leave most columns out and
+ * therefore take the {@code findColumn} miss path for each of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class MapperBenchmark {
+
+    private final RawUsageMapper rawUsageMapper = new RawUsageMapper();
+    private final InvoiceTenantMapper invoiceTenantMapper = new InvoiceTenantMapper();
+    private final AggregatedUsageMapper aggregatedUsageMapper = new AggregatedUsageMapper();
+
+    private ResultSet fullRawUsageRow;
+    private ResultSet narrowRawUsageRow;
+    private ResultSet invoiceTenantRow;
+    private ResultSet aggregatedUsageRow;
+
+    @Setup
+    public void setUp() {
+        final Map<String, Object> full = new HashMap<>();
+        full.put(RawUsageMapper.ID, "123456789");
+        // Tenant and aggregation ids come back as the 16 bytes MySQL stores them in
+        full.put(RawUsageMapper.TENANT_ID, BinaryUuids.toBytes(UUID.fromString("9f3a46e0-5c1b-4c36-9e0c-2f5a6c0c9d11")));
+        full.put(RawUsageMapper.SUBSCRIPTION_ID, "sub_000042_VOLUME");
+        full.put(RawUsageMapper.UNIT_TYPE, "transactions");
+        full.put(RawUsageMapper.AGGREGATED_ID, BinaryUuids.toBytes(UUID.fromString("1b4e28ba-2fa1-11d2-883f-0016d3cca427")));
+        full.put("tracking_id", "trk_0000000042");
+        full.put(RawUsageMapper.RECORD_DATE, Timestamp.valueOf("2024-03-14 10:15:30.123"));
+        full.put(RawUsageMapper.AMOUNT, "1250.50");
+        full.put(RawUsageMapper.CHARGES, "3.1262500");
+        fullRawUsageRow = SyntheticResultSet.of(full);
+
+        final Map<String, Object> narrow = new HashMap<>();
+        narrow.put(RawUsageMapper.TENANT_ID, BinaryUuids.toBytes(UUID.fromString("9f3a46e0-5c1b-4c36-9e0c-2f5a6c0c9d11")));
+        narrow.put(RawUsageMapper.SUBSCRIPTION_ID, "sub_000042_VOLUME");
+        narrow.put(RawUsageMapper.UNIT_TYPE, "transactions");
+        narrowRawUsageRow = SyntheticResultSet.of(narrow);
+
+        final Map<String, Object> invoiceTenant = new HashMap<>();
+        invoiceTenant.put("invoice_id", "4b3c27a8-7b2e-4f0a-9f4c-0f7d8c1e2a33");
+        invoiceTenant.put("tenant_id", "9f3a46e0-5c1b-4c36-9e0c-2f5a6c0c9d11");
+        invoiceTenantRow = SyntheticResultSet.of(invoiceTenant);
+
+        final Map<String, Object> aggregatedUsage = new HashMap<>();
+        aggregatedUsage.put(AggregatedUsageMapper.UNIT_TYPE, "transactions");
+        aggregatedUsage.put(AggregatedUsageMapper.TOTAL_AMOUNT, "987654.25");
+        aggregatedUsage.put(AggregatedUsageMapper.MAX_RECORD_DATE, Timestamp.valueOf("2024-03-14 10:15:30.123"));
+        aggregatedUsageRow = SyntheticResultSet.of(aggregatedUsage);
+    }
+
+    @Benchmark
+    public RawUsage rawUsageFullRow() throws SQLException {
+        return rawUsageMapper.map(0, fullRawUsageRow, null);
+    }
+
+    @Benchmark
+    public RawUsage rawUsageNarrowRow() throws SQLException {
+        return rawUsageMapper.map(0, narrowRawUsageRow, null);
+    }
+
+    @Benchmark
+    public InvoiceTenant invoiceTenant() throws SQLException {
+        return invoiceTenantMapper.map(0, invoiceTenantRow, null);
+    }
+
+    @Benchmark
+    public AggregatedUsage aggregatedUsage() throws SQLException {
+        return aggregatedUsageMapper.map(0, aggregatedUsageRow, null);
+    }
+}
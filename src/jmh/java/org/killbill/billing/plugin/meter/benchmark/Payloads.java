@@ -0,0 +1,70 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.benchmark;
+
+import java.nio.charset.StandardCharsets;
+
+final class Payloads {
+
+    static final String TENANT_ID = "9f3a46e0-5c1b-4c36-9e0c-2f5a6c0c9d11";
+
+    private Payloads() {
+    }
+
+    static byte[] usageJson(final int units, final int usageRecordsPerUnit) {
+        final StringBuilder json = new StringBuilder();
+        json.append("{\"subscriptionId\":\"sub_000042_VOLUME\",\"trackingId\":\"trk_0000000042\",\"tenantId\":\"")
+            .append(TENANT_ID)
+            .append("\",\"unitUsageRecords\":[");
+        for (int unit = 0; unit < units; unit++) {
+            if (unit > 0) {
+                json.append(',');
+            }
+            json.append("{\"unitType\":\"unit-").append(unit).append("\",\"usageRecords\":[");
+            for (int record = 0; record < usageRecordsPerUnit; record++) {
+                if (record > 0) {
+                    json.append(',');
+                }
+                json.append("{\"recordDate\":\"2024-03-14T10:")
+                    .append(String.format("%02d:%02d", (record / 60) % 60, record % 60))
+                    .append(".123Z\",\"amount\":")
+                    .append(1000 + record)
+                    .append(".25}");
+            }
+            json.append("]}");
+        }
+        json.append("]}");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static String tierDetailsJson(final int tiers) {
+        final StringBuilder json = new StringBuilder("{\"tierDetails\":[");
+        for (int tier = 1; tier <= tiers; tier++) {
+            if (tier > 1) {
+                json.append(',');
+            }
+            json.append("{\"tier\":").append(tier)
+                .append(",\"tierUnit\":\"transactions\",\"tierPrice\":").append(2.5 - tier / 100.0)
+                .append(",\"tierBlockSize\":1000,\"quantity\":").append(10000 * tier)
+                .append(",\"amount\":").append(25 * tier)
+                .append('}');
+        }
+        json.append("],\"amount\":").append(25 * tiers * (tiers + 1) / 2).append('}');
+        return json.toString();
+    }
+}
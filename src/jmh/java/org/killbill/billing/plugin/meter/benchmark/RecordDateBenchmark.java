@@ -0,0 +1,87 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.benchmark;
+
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.dto.AggregatedUsage;
+import org.killbill.billing.plugin.meter.mapper.AggregatedUsageMapper;
+import org.killbill.billing.plugin.meter.mapper.UtcTimestamps;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Record date normalization on ingestion, its JDBC binding, and the {@code max_record_date} read done for every row of
+ * {@code getUsageSumsByUnit}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class RecordDateBenchmark {
+
+    private final AggregatedUsageMapper aggregatedUsageMapper = new AggregatedUsageMapper();
+
+    private DateTime recordDate;
+    private ResultSet usageSumRow;
+    private PreparedStatement statement;
+
+    @Setup
+    public void setUp() {
+        recordDate = new DateTime(2024, 3, 14, 15, 45, 30, 123, DateTimeZone.forOffsetHoursMinutes(5, 30));
+        usageSumRow = SyntheticResultSet.of(Map.of(AggregatedUsageMapper.UNIT_TYPE, "transactions",
+                                                   AggregatedUsageMapper.TOTAL_AMOUNT, "42",
+                                                   AggregatedUsageMapper.MAX_RECORD_DATE, Timestamp.valueOf("2024-03-14 10:15:30.123")));
+        statement = (PreparedStatement) Proxy.newProxyInstance(RecordDateBenchmark.class.getClassLoader(),
+                                                               new Class<?>[]{PreparedStatement.class},
+                                                               (proxy, method, args) -> null);
+    }
+
+    @Benchmark
+    public DateTime normalizeToUtc() {
+        return recordDate.toDateTime(DateTimeZone.UTC);
+    }
+
+    @Benchmark
+    public void bindRecordDate() throws SQLException {
+        UtcTimestamps.argument(recordDate).apply(1, statement, null);
+    }
+
+    @Benchmark
+    public AggregatedUsage readMaxRecordDate() throws SQLException {
+        return aggregatedUsageMapper.map(0, usageSumRow, null);
+    }
+}
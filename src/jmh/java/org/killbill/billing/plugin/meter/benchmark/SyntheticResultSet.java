@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.benchmark;
+
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Map;
+
+/**
+ * Single-row {@link ResultSet} backed by a map, so the mappers can be measured without a driver in the way.
+ * Unknown columns fail {@code findColumn} the same way a real driver does.
+ */
+final class SyntheticResultSet {
+
+    private SyntheticResultSet() {
+    }
+
+    static ResultSet of(final Map<String, Object> row) {
+        return (ResultSet) Proxy.newProxyInstance(SyntheticResultSet.class.getClassLoader(),
+                                                  new Class<?>[]{ResultSet.class},
+                                                  (proxy, method, args) -> {
+                                                      final String name = method.getName();
+                                                      if ("wasNull".equals(name)) {
+                                                          return false;
+                                                      }
+                                                      if (args == null || args.length == 0 || !(args[0] instanceof String)) {
+                                                          throw new UnsupportedOperationException(name);
+                                                      }
+                                                      final String column = (String) args[0];
+                                                      if (!row.containsKey(column)) {
+                                                          throw new SQLException("Column '" + column + "' not found");
+                                                      }
+                                                      final Object value = row.get(column);
+                                                      switch (name) {
+                                                          case "findColumn":
+                                                              return 1;
+                                                          case "getString":
+                                                              return value == null ? null : String.valueOf(value);
+                                                          case "getBigDecimal":
+                                                              return value == null ? null : new BigDecimal(String.valueOf(value));
+                                                          case "getLong":
+                                                              return value == null ? 0L : Long.parseLong(String.valueOf(value));
+                                                          case "getInt":
+                                                              return value == null ? 0 : Integer.parseInt(String.valueOf(value));
+                                                          case "getTimestamp":
+                                                              return value == null ? null : (Timestamp) value;
+                                                          case "getObject":
+                                                              return value;
+                                                          default:
+                                                              throw new UnsupportedOperationException(name);
+                                                      }
+                                                  });
+    }
+}
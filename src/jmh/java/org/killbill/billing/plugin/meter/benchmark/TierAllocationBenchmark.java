@@ -0,0 +1,124 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.benchmark;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.plugin.meter.dto.TierDetail;
+import org.killbill.billing.plugin.meter.entity.RawUsage;
+import org.killbill.billing.plugin.meter.service.TierAllocator;
+import org.killbill.billing.plugin.meter.workset.ChargeRows;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Tier allocation of {@code MeterService.backFillCharges} for one invoice item. The allocator mutates the usages it
+ * is given, so each call allocates over a fresh copy of the rows, made inside the benchmark: a per-invocation setup
+ * would cost more than the allocation it surrounds. {@code allocateColumnar} runs the same allocation over the
+ * {@link ChargeRows} the backfill now reads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class TierAllocationBenchmark {
+
+    /** flat: one tier; graduated: four tiers; fine: one tier every ten rows. */
+    @Param({"flat", "graduated", "fine"})
+    public String tierShape;
+
+    @Param({"100", "10000"})
+    public int rows;
+
+    /** Whether each usage straddles a tier boundary instead of tiers ending on a row. */
+    @Param({"false", "true"})
+    public boolean straddling;
+
+    private List<TierDetail> tierDetails;
+    private BigDecimal[] amounts;
+
+    @Setup(Level.Trial)
+    public void setUpTiers() {
+        final BigDecimal rowAmount = BigDecimal.valueOf(10);
+        final BigDecimal total = rowAmount.multiply(BigDecimal.valueOf(rows));
+        final int tierCount;
+        switch (tierShape) {
+            case "flat":
+                tierCount = 1;
+                break;
+            case "graduated":
+                tierCount = 4;
+                break;
+            default:
+                tierCount = Math.max(1, rows / 10);
+        }
+        // Shifting the first boundary by half a row moves every boundary into the middle of a row
+        final BigDecimal shift = straddling && tierCount > 1 ? rowAmount.divide(BigDecimal.valueOf(2)) : BigDecimal.ZERO;
+        final BigDecimal perTier = total.divide(BigDecimal.valueOf(tierCount), 0, RoundingMode.DOWN);
+        tierDetails = new ArrayList<>(tierCount);
+        BigDecimal remaining = total;
+        for (int tier = 1; tier <= tierCount; tier++) {
+            final BigDecimal quantity = tier == tierCount ? remaining : (tier == 1 ? perTier.add(shift) : perTier);
+            remaining = remaining.subtract(quantity);
+            tierDetails.add(new TierDetail(tier, "transactions", BigDecimal.valueOf(250 - tier, 2),
+                                           BigDecimal.valueOf(1000), quantity, null));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpRows() {
+        amounts = new BigDecimal[rows];
+        for (int i = 0; i < rows; i++) {
+            amounts[i] = BigDecimal.valueOf(10);
+        }
+    }
+
+    @Benchmark
+    public List<RawUsage> allocate() {
+        final List<RawUsage> rawUsages = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            rawUsages.add(new RawUsage().setId((long) i).setAmount(amounts[i]));
+        }
+        return TierAllocator.allocate(tierDetails, rawUsages);
+    }
+
+    @Benchmark
+    public ChargeRows allocateColumnar() {
+        final ChargeRows chargeRows = new ChargeRows(rows);
+        for (int i = 0; i < rows; i++) {
+            chargeRows.add(i, 0, amounts[i], null);
+        }
+        return TierAllocator.allocate(tierDetails, chargeRows);
+    }
+}
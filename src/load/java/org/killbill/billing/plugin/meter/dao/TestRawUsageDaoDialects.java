@@ -0,0 +1,263 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.dao;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.dto.InvoiceTenant;
+import org.killbill.billing.plugin.meter.entity.RawUsage;
+import org.killbill.billing.plugin.meter.exception.DuplicateUsageException;
+import org.killbill.billing.plugin.meter.exception.VersionConflictException;
+import org.killbill.billing.plugin.meter.load.EmbeddedDatabase;
+import org.killbill.billing.plugin.meter.load.LoadConfig;
+import org.killbill.billing.plugin.meter.profiling.QueryProfiler;
+import org.killbill.billing.plugin.meter.tuning.MeterTuning;
+import org.killbill.billing.plugin.meter.workset.ChargeRows;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * {@link RawUsageDao} on the databases where its dialects part ways: bulk inserts and charge writes are JDBC batches on
+ * MySQL but {@code COPY} and {@code UPDATE ... FROM} on PostgreSQL, and stored UUIDs are compared with Kill Bill's
+ * textual tracking ids differently. A database is skipped unless its url is given; its tables are dropped and
+ * recreated. User and password default to {@code meter}:
+ * <pre>
+ * {@code
+ * mvn -Pload test -Dgroups=slow -Dload.mysql.jdbcUrl=jdbc:mysql://localhost/meter?rewriteBatchedStatements=true \
+ *     -Dload.postgresql.jdbcUrl=jdbc:postgresql://localhost/meter
+ * }
+ * </pre>
+ */
+public class TestRawUsageDaoDialects {
+
+    private static final String UNIT = "transactions";
+    // Small batches so that the batch path runs several of them
+    private static final MeterTuning TUNING = new MeterTuning(2, 2, 1000, 900, 4, 2, 4, 10);
+
+    private final UUID tenantId = UUID.randomUUID();
+    private final String subscriptionId = UUID.randomUUID().toString();
+
+    @DataProvider(name = "dialects")
+    public Object[][] dialects() {
+        return new Object[][]{{"mysql"}, {"postgresql"}};
+    }
+
+    @Test(groups = "slow", dataProvider = "dialects")
+    public void testInsertRawUsagesInBulk(final String dialect) throws Exception {
+        try (final EmbeddedDatabase database = open(dialect)) {
+            final RawUsageDao rawUsageDao = dao(database);
+            final DateTime recordDate = new DateTime(2024, 3, 14, 10, 15, 30, 123, DateTimeZone.UTC);
+
+            rawUsageDao.insertRawUsages(List.of(usage("t1", "1.5", recordDate), usage("t2", "2", recordDate),
+                                                usage("t3", "0.000001", recordDate)));
+
+            final RawUsage stored = rawUsageDao.getRawUsage(tenantId.toString(), subscriptionId, UNIT, "t1");
+            Assert.assertEquals(stored.getTenantId(), tenantId.toString());
+            Assert.assertEquals(stored.getAmount().compareTo(new BigDecimal("1.5")), 0);
+            Assert.assertEquals(stored.getRecordDate().getMillis(), recordDate.getMillis());
+            Assert.assertEquals(rawUsageDao.getRawUsage(tenantId.toString(), subscriptionId, UNIT, "t3").getAmount()
+                                           .compareTo(new BigDecimal("0.000001")), 0);
+            Assert.assertEquals(rawUsageDao.getUnaggregatedKeys().size(), 1);
+
+            Assert.expectThrows(DuplicateUsageException.class,
+                                () -> rawUsageDao.insertRawUsages(List.of(usage("t4", "1", recordDate), usage("t2", "1", recordDate))));
+        }
+    }
+
+    @Test(groups = "slow", dataProvider = "dialects")
+    public void testFillAggregationIdClaimsOnce(final String dialect) throws Exception {
+        try (final EmbeddedDatabase database = open(dialect)) {
+            final RawUsageDao rawUsageDao = dao(database);
+            final DateTime today = DateTime.now(DateTimeZone.UTC);
+            rawUsageDao.insertRawUsages(List.of(usage("today", "3", today), usage("yesterday", "4", today.minusDays(1))));
+            final UUID aggregationId = UUID.randomUUID();
+            final UUID previousId = UUID.randomUUID();
+
+            Assert.assertEquals(rawUsageDao.fillAggregationId(usage(null, "0", today), aggregationId, previousId), 2);
+            Assert.assertEquals(rawUsageDao.fillAggregationId(usage(null, "0", today), UUID.randomUUID(), UUID.randomUUID()), 0);
+
+            Assert.assertEquals(rawUsageDao.getRawUsage(tenantId.toString(), subscriptionId, UNIT, "today").getAggregationId(),
+                                aggregationId.toString());
+            Assert.assertEquals(rawUsageDao.getRawUsage(tenantId.toString(), subscriptionId, UNIT, "yesterday").getAggregationId(),
+                                previousId.toString());
+            Assert.assertEquals(rawUsageDao.getUsageSumsByUnit(previousId.toString()).get(0).getSum().compareTo(new BigDecimal("4")), 0);
+            Assert.assertEquals(rawUsageDao.getUnaggregatedKeys().size(), 0);
+
+            // The stored UUID reads back as the text Kill Bill keeps tracking ids in
+            try (final Handle handle = new DBI(database.getDataSource()).open()) {
+                Assert.assertEquals(handle.createQuery("SELECT " + database.getDialect().uuidText("aggregated_id") +
+                                                       " FROM raw_usage WHERE tracking_id = 'today'")
+                                          .mapTo(String.class)
+                                          .first(),
+                                    aggregationId.toString());
+            }
+        }
+    }
+
+    @Test(groups = "slow", dataProvider = "dialects")
+    public void testPersistChargesComparesVersions(final String dialect) throws Exception {
+        try (final EmbeddedDatabase database = open(dialect)) {
+            final RawUsageDao rawUsageDao = dao(database);
+            final UUID aggregationId = aggregate(rawUsageDao, 5);
+            final List<String> trackingIds = List.of(aggregationId.toString());
+
+            final ChargeRows read = rawUsageDao.inUnitOfWork(unitOfWork -> unitOfWork.getChargeRows(trackingIds, UNIT));
+            Assert.assertEquals(read.size(), 5);
+            charge(read, BigDecimal.ONE);
+            rawUsageDao.inTransaction(unitOfWork -> {
+                unitOfWork.persistCharges(tenantId.toString(), read);
+                return null;
+            });
+
+            final ChargeRows charged = rawUsageDao.inUnitOfWork(unitOfWork -> unitOfWork.getChargeRows(trackingIds, UNIT));
+            for (int row = 0; row < charged.size(); row++) {
+                Assert.assertEquals(charged.charges(row).compareTo(BigDecimal.ONE), 0, "row " + row);
+                Assert.assertEquals(charged.tier(row), 1, "row " + row);
+                Assert.assertEquals(charged.version(row), read.version(row) + 1, "row " + row);
+            }
+
+            // Written again from the versions read before the first write: every row conflicts and nothing is written
+            charge(read, BigDecimal.TEN);
+            final VersionConflictException e = Assert.expectThrows(VersionConflictException.class, () -> rawUsageDao.inTransaction(unitOfWork -> {
+                unitOfWork.persistCharges(tenantId.toString(), read);
+                return null;
+            }));
+            Assert.assertEquals(e.getConflictingIds().size(), 5);
+            final ChargeRows unchanged = rawUsageDao.inUnitOfWork(unitOfWork -> unitOfWork.getChargeRows(trackingIds, UNIT));
+            for (int row = 0; row < unchanged.size(); row++) {
+                Assert.assertEquals(unchanged.charges(row).compareTo(BigDecimal.ONE), 0, "row " + row);
+            }
+        }
+    }
+
+    @Test(groups = "slow", dataProvider = "dialects")
+    public void testAggregationIdsJoinTrackingIds(final String dialect) throws Exception {
+        try (final EmbeddedDatabase database = open(dialect)) {
+            final RawUsageDao rawUsageDao = dao(database);
+            final long tenantRecordId = database.createTenant(tenantId.toString());
+            final UUID aggregationId = aggregate(rawUsageDao, 2);
+            final String invoiceId = UUID.randomUUID().toString();
+            // Kill Bill also tracks usage of other sources, whose tracking ids are not UUIDs
+            track(database, tenantRecordId, invoiceId, aggregationId.toString());
+            track(database, tenantRecordId, UUID.randomUUID().toString(), "external-usage-1");
+
+            Assert.assertEquals(invoiceIds(rawUsageDao.getNonBackfilledInvoices()), List.of(invoiceId));
+            Assert.assertTrue(rawUsageDao.getChargedInvoices(tenantId.toString(), List.of(), null, null, null, 10).isEmpty());
+
+            final ChargeRows rows = rawUsageDao.inUnitOfWork(unitOfWork -> unitOfWork.getChargeRows(List.of(aggregationId.toString(), "external-usage-1"), UNIT));
+            Assert.assertEquals(rows.size(), 2);
+            charge(rows, BigDecimal.ONE);
+            rawUsageDao.inTransaction(unitOfWork -> {
+                unitOfWork.persistCharges(tenantId.toString(), rows);
+                return null;
+            });
+
+            Assert.assertTrue(rawUsageDao.getNonBackfilledInvoices().isEmpty());
+            Assert.assertEquals(invoiceIds(rawUsageDao.getChargedInvoices(tenantId.toString(), List.of(), null, null, null, 10)), List.of(invoiceId));
+            Assert.assertEquals(invoiceIds(rawUsageDao.getChargedInvoices(tenantId.toString(), List.of(subscriptionId), null, null, null, 10)),
+                                List.of(invoiceId));
+            Assert.assertTrue(rawUsageDao.getChargedInvoices(tenantId.toString(), List.of(), null, null, invoiceId, 10).isEmpty());
+        }
+    }
+
+    private EmbeddedDatabase open(final String dialect) throws Exception {
+        final String prefix = "load." + dialect + ".";
+        final String url = System.getProperty(prefix + "jdbcUrl");
+        if (url == null || url.isEmpty()) {
+            throw new SkipException("No " + prefix + "jdbcUrl given");
+        }
+        final LoadConfig config = new LoadConfig();
+        config.setJdbcUrl(url);
+        config.setJdbcUser(System.getProperty(prefix + "jdbcUser", "meter"));
+        config.setJdbcPassword(System.getProperty(prefix + "jdbcPassword", "meter"));
+        config.setDialect(dialect);
+        config.setMaxConnections(4);
+        return new EmbeddedDatabase(config);
+    }
+
+    private static RawUsageDao dao(final EmbeddedDatabase database) {
+        return new RawUsageDao(database.getDataSource(), new QueryProfiler(), ReplicaRouter.disabled(), database.getDialect(),
+                               tenantId -> TUNING);
+    }
+
+    /**
+     * Stores {@code count} rows of yesterday and rolls them up under the returned aggregation id.
+     */
+    private UUID aggregate(final RawUsageDao rawUsageDao, final int count) {
+        final DateTime yesterday = DateTime.now(DateTimeZone.UTC).minusDays(1);
+        final List<RawUsage> rawUsages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            rawUsages.add(usage("t" + i, "1", yesterday.plusSeconds(i)));
+        }
+        rawUsageDao.insertRawUsages(rawUsages);
+        final UUID aggregationId = UUID.randomUUID();
+        Assert.assertEquals(rawUsageDao.fillAggregationId(usage(null, "0", yesterday), UUID.randomUUID(), aggregationId), count);
+        return aggregationId;
+    }
+
+    private RawUsage usage(final String trackingId, final String amount, final DateTime recordDate) {
+        return new RawUsage().setTenantId(tenantId.toString())
+                             .setSubscriptionId(subscriptionId)
+                             .setUnitType(UNIT)
+                             .setTrackingId(trackingId)
+                             .setRecordDate(recordDate)
+                             .setAmount(new BigDecimal(amount));
+    }
+
+    private static void charge(final ChargeRows rows, final BigDecimal charges) {
+        rows.clearCharges();
+        for (int row = 0; row < rows.size(); row++) {
+            rows.addCharges(row, charges);
+            rows.setTier(row, 1);
+        }
+    }
+
+    private static void track(final EmbeddedDatabase database, final long tenantRecordId, final String invoiceId,
+                              final String trackingId) throws Exception {
+        try (final Connection connection = database.getDataSource().getConnection();
+             final PreparedStatement statement = connection.prepareStatement(
+                     "insert into invoice_tracking_ids (id, tracking_id, invoice_id, unit_type, record_date, tenant_record_id) " +
+                     "values (?, ?, ?, ?, current_date, ?)")) {
+            statement.setString(1, UUID.randomUUID().toString());
+            statement.setString(2, trackingId);
+            statement.setString(3, invoiceId);
+            statement.setString(4, UNIT);
+            statement.setLong(5, tenantRecordId);
+            statement.executeUpdate();
+        }
+    }
+
+    private static List<String> invoiceIds(final List<InvoiceTenant> invoices) {
+        final List<String> invoiceIds = new ArrayList<>();
+        for (final InvoiceTenant invoice : invoices) {
+            invoiceIds.add(invoice.getInvoiceId());
+        }
+        return invoiceIds;
+    }
+}
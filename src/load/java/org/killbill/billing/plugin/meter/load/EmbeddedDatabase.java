@@ -0,0 +1,129 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.killbill.billing.plugin.meter.dao.SqlDialect;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Pooled database carrying the plugin schema and the Kill Bill tables the plugin joins against: in-memory H2 in MySQL
+ * mode by default, or a local MySQL or PostgreSQL given {@code load.jdbcUrl}, whose tables are dropped and recreated.
+ */
+public class EmbeddedDatabase implements AutoCloseable {
+
+    private static final Pattern COMMENTS = Pattern.compile("(?s)/\\*.*?\\*/|--[^\\n]*");
+    private static final Pattern CREATE_TABLE = Pattern.compile("(?i)create table (\\w+)");
+    private static final String KILLBILL_TABLES = "/killbill-tables.sql";
+
+    private final HikariDataSource pool;
+    private final SqlDialect dialect;
+
+    public EmbeddedDatabase(final LoadConfig config) throws IOException, SQLException {
+        final HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setPoolName("meter-load");
+        hikariConfig.setJdbcUrl(config.getJdbcUrl());
+        hikariConfig.setUsername(config.getJdbcUser());
+        hikariConfig.setPassword(config.getJdbcPassword());
+        hikariConfig.setMaximumPoolSize(config.getMaxConnections());
+        this.pool = new HikariDataSource(hikariConfig);
+        this.dialect = SqlDialect.fromName(config.getDialect(), pool);
+
+        final String ddl = readScript(dialect.getDdlResource());
+        final String killbillTables = readScript(KILLBILL_TABLES);
+        dropTables(ddl + killbillTables);
+        runScript(ddl);
+        runScript(killbillTables);
+    }
+
+    public DataSource getDataSource() {
+        return pool;
+    }
+
+    public SqlDialect getDialect() {
+        return dialect;
+    }
+
+    public long createTenant(final String tenantId) throws SQLException {
+        try (final Connection connection = pool.getConnection();
+             final Statement statement = connection.createStatement()) {
+            statement.executeUpdate("insert into tenants (id, external_key) values ('" + tenantId + "', '" + tenantId + "')",
+                                    new String[]{"record_id"});
+            try (final ResultSet keys = statement.getGeneratedKeys()) {
+                keys.next();
+                return keys.getLong(1);
+            }
+        }
+    }
+
+    private static String readScript(final String resource) throws IOException {
+        try (final InputStream in = EmbeddedDatabase.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IOException("Missing " + resource + " on the classpath");
+            }
+            return COMMENTS.matcher(new String(in.readAllBytes(), StandardCharsets.UTF_8)).replaceAll("");
+        }
+    }
+
+    private void dropTables(final String script) throws SQLException {
+        final List<String> tables = new ArrayList<>();
+        final Matcher matcher = CREATE_TABLE.matcher(script);
+        while (matcher.find()) {
+            tables.add(matcher.group(1));
+        }
+        Collections.reverse(tables);
+        try (final Connection connection = pool.getConnection();
+             final Statement statement = connection.createStatement()) {
+            for (final String table : tables) {
+                statement.execute("drop table if exists " + table);
+            }
+        }
+    }
+
+    private void runScript(final String script) throws SQLException {
+        try (final Connection connection = pool.getConnection();
+             final Statement statement = connection.createStatement()) {
+            for (final String sql : script.split(";")) {
+                if (!sql.isBlank()) {
+                    statement.execute(sql);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+}
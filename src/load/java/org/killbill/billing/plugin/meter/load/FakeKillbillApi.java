@@ -0,0 +1,301 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.load;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import org.joda.time.LocalDate;
+import org.killbill.billing.entitlement.api.Subscription;
+import org.killbill.billing.entitlement.api.SubscriptionApi;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceUserApi;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.usage.api.SubscriptionUsageRecord;
+import org.killbill.billing.usage.api.UnitUsageRecord;
+import org.killbill.billing.usage.api.UsageRecord;
+import org.killbill.billing.usage.api.UsageUserApi;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.osgi.framework.BundleContext;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Kill Bill stand-in for the three APIs the meter pipeline calls. Subscriptions are derived from their external
+ * key, rolled up usage is held per account until an invoice is triggered, and invoices are written to
+ * {@code invoice_tracking_ids} with graduated {@link SyntheticTiers} item details, like Kill Bill would.
+ */
+public class FakeKillbillApi extends OSGIKillbillAPI {
+
+    private final LoadConfig config;
+    private final DataSource dataSource;
+    private final SyntheticTiers tiers;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final ConcurrentMap<UUID, Long> tenantRecordIds = new ConcurrentHashMap<>();
+    private final ConcurrentMap<UUID, UUID> accountBySubscription = new ConcurrentHashMap<>();
+    private final ConcurrentMap<UUID, List<Rollup>> pendingByAccount = new ConcurrentHashMap<>();
+    private final ConcurrentMap<UUID, Invoice> invoices = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> calls = new ConcurrentHashMap<>();
+
+    private final SubscriptionApi subscriptionApi;
+    private final UsageUserApi usageUserApi;
+    private final InvoiceUserApi invoiceUserApi;
+
+    public FakeKillbillApi(final LoadConfig config, final DataSource dataSource) {
+        super(stub(BundleContext.class, (proxy, method, args) -> defaultValue(method)));
+        this.config = config;
+        this.dataSource = dataSource;
+        this.tiers = new SyntheticTiers(config.getTierBoundaries());
+        this.subscriptionApi = stub(SubscriptionApi.class, this::handleSubscriptionApi);
+        this.usageUserApi = stub(UsageUserApi.class, this::handleUsageUserApi);
+        this.invoiceUserApi = stub(InvoiceUserApi.class, this::handleInvoiceUserApi);
+    }
+
+    public void registerTenant(final UUID tenantId, final long recordId) {
+        tenantRecordIds.put(tenantId, recordId);
+    }
+
+    public Map<String, Long> getCalls() {
+        final Map<String, Long> snapshot = new LinkedHashMap<>();
+        calls.forEach((name, count) -> snapshot.put(name, count.sum()));
+        return snapshot;
+    }
+
+    @Override
+    public SubscriptionApi getSubscriptionApi() {
+        return subscriptionApi;
+    }
+
+    @Override
+    public UsageUserApi getUsageUserApi() {
+        return usageUserApi;
+    }
+
+    @Override
+    public InvoiceUserApi getInvoiceUserApi() {
+        return invoiceUserApi;
+    }
+
+    private Object handleSubscriptionApi(final Object proxy, final Method method, final Object[] args) throws InterruptedException {
+        if (!"getSubscriptionForExternalKey".equals(method.getName())) {
+            return unsupported(method);
+        }
+        called(method, config.getSubscriptionApiLatencyMillis());
+        final String externalKey = (String) args[0];
+        final UUID subscriptionId = UUID.nameUUIDFromBytes(("subscription:" + externalKey).getBytes(StandardCharsets.UTF_8));
+        final UUID accountId = UUID.nameUUIDFromBytes(("account:" + externalKey).getBytes(StandardCharsets.UTF_8));
+        accountBySubscription.putIfAbsent(subscriptionId, accountId);
+        return stub(Subscription.class, (p, m, a) -> {
+            switch (m.getName()) {
+                case "getId":
+                    return subscriptionId;
+                case "getAccountId":
+                    return accountId;
+                case "getExternalKey":
+                    return externalKey;
+                default:
+                    return defaultValue(m);
+            }
+        });
+    }
+
+    private Object handleUsageUserApi(final Object proxy, final Method method, final Object[] args) throws InterruptedException {
+        if (!"recordRolledUpUsage".equals(method.getName())) {
+            return unsupported(method);
+        }
+        called(method, config.getUsageApiLatencyMillis());
+        final SubscriptionUsageRecord record = (SubscriptionUsageRecord) args[0];
+        final UUID tenantId = ((CallContext) args[1]).getTenantId();
+        final UUID accountId = accountBySubscription.get(record.getSubscriptionId());
+        final List<Rollup> pending = pendingByAccount.computeIfAbsent(accountId, key -> new ArrayList<>());
+        synchronized (pending) {
+            for (final UnitUsageRecord unitUsageRecord : record.getUnitUsageRecord()) {
+                for (final UsageRecord usageRecord : unitUsageRecord.getDailyAmount()) {
+                    pending.add(new Rollup(tenantId, record.getSubscriptionId(), record.getTrackingId(),
+                                           unitUsageRecord.getUnitType(), usageRecord.getAmount()));
+                }
+            }
+        }
+        return null;
+    }
+
+    private Object handleInvoiceUserApi(final Object proxy, final Method method, final Object[] args) throws Exception {
+        switch (method.getName()) {
+            case "triggerInvoiceGeneration":
+                called(method, config.getInvoiceApiLatencyMillis());
+                return generateInvoice((UUID) args[0], (LocalDate) args[1]);
+            case "getInvoice":
+                called(method, config.getInvoiceApiLatencyMillis());
+                return invoices.get((UUID) args[0]);
+            default:
+                return unsupported(method);
+        }
+    }
+
+    private Invoice generateInvoice(final UUID accountId, final LocalDate targetDate) throws SQLException, JsonProcessingException {
+        final List<Rollup> pending = pendingByAccount.get(accountId);
+        final List<Rollup> rollups;
+        if (pending == null) {
+            return null;
+        }
+        synchronized (pending) {
+            rollups = new ArrayList<>(pending);
+            pending.clear();
+        }
+        if (rollups.isEmpty()) {
+            // Kill Bill answers with "nothing to invoice" here, which the plugin only logs
+            return null;
+        }
+
+        final UUID invoiceId = UUID.randomUUID();
+        final Map<String, BigDecimal> quantityByUnit = new LinkedHashMap<>();
+        final List<String> trackingIds = new ArrayList<>();
+        try (final Connection connection = dataSource.getConnection();
+             final PreparedStatement statement = connection.prepareStatement(
+                     "insert into invoice_tracking_ids (id, tracking_id, invoice_id, subscription_id, unit_type, record_date, tenant_record_id) " +
+                     "values (?, ?, ?, ?, ?, ?, ?)")) {
+            for (final Rollup rollup : rollups) {
+                quantityByUnit.merge(rollup.unitType, rollup.amount, BigDecimal::add);
+                if (!trackingIds.contains(rollup.trackingId)) {
+                    trackingIds.add(rollup.trackingId);
+                }
+                statement.setString(1, UUID.randomUUID().toString());
+                statement.setString(2, rollup.trackingId);
+                statement.setString(3, invoiceId.toString());
+                statement.setString(4, rollup.subscriptionId.toString());
+                statement.setString(5, rollup.unitType);
+                statement.setDate(6, java.sql.Date.valueOf(targetDate.toString()));
+                statement.setLong(7, tenantRecordIds.getOrDefault(rollup.tenantId, 0L));
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+
+        final List<InvoiceItem> items = new ArrayList<>();
+        for (final Map.Entry<String, BigDecimal> entry : quantityByUnit.entrySet()) {
+            final String itemDetails = objectMapper.writeValueAsString(tiers.detailsFor(entry.getKey(), entry.getValue()));
+            items.add(stub(InvoiceItem.class, (p, m, a) -> "getItemDetails".equals(m.getName()) ? itemDetails : defaultValue(m)));
+        }
+        final Invoice invoice = stub(Invoice.class, (p, m, a) -> {
+            switch (m.getName()) {
+                case "getId":
+                    return invoiceId;
+                case "getAccountId":
+                    return accountId;
+                case "getTrackingIds":
+                    return trackingIds;
+                case "getInvoiceItems":
+                    return items;
+                default:
+                    return defaultValue(m);
+            }
+        });
+        invoices.put(invoiceId, invoice);
+        return invoice;
+    }
+
+    private void called(final Method method, final long latencyMillis) throws InterruptedException {
+        calls.computeIfAbsent(method.getName(), key -> new LongAdder()).increment();
+        if (latencyMillis > 0) {
+            Thread.sleep(latencyMillis);
+        }
+    }
+
+    private static Object unsupported(final Method method) {
+        throw new UnsupportedOperationException(method.getDeclaringClass().getSimpleName() + "." + method.getName());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(final Class<T> type, final InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(FakeKillbillApi.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        return type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                }
+            }
+            return handler.invoke(proxy, method, args);
+        });
+    }
+
+    private static Object defaultValue(final Method method) {
+        final Class<?> type = method.getReturnType();
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == char.class) {
+            return '\0';
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == float.class) {
+            return 0f;
+        }
+        if (type == double.class) {
+            return 0d;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        return type == short.class ? (short) 0 : (byte) 0;
+    }
+
+    private static final class Rollup {
+
+        private final UUID tenantId;
+        private final UUID subscriptionId;
+        private final String trackingId;
+        private final String unitType;
+        private final BigDecimal amount;
+
+        private Rollup(final UUID tenantId, final UUID subscriptionId, final String trackingId, final String unitType, final BigDecimal amount) {
+            this.tenantId = tenantId;
+            this.subscriptionId = subscriptionId;
+            this.trackingId = trackingId;
+            this.unitType = unitType;
+            this.amount = amount;
+        }
+    }
+}
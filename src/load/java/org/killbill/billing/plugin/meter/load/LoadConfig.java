@@ -0,0 +1,52 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.load;
+
+import lombok.Data;
+
+/**
+ * Harness knobs, read from {@code load.*} system properties so they can be passed straight to Maven.
+ */
+@Data
+public class LoadConfig {
+
+    private int tenants = Integer.getInteger("load.tenants", 4);
+    private int subscriptionsPerTenant = Integer.getInteger("load.subscriptions", 250);
+    private int unitsPerSubscription = Integer.getInteger("load.units", 2);
+    private long rows = Long.getLong("load.rows", 1_000_000L);
+    /** Record dates are spread over this many days, ending today. */
+    private int days = Integer.getInteger("load.days", 2);
+    /** Usage records carried by each ingestion request. */
+    private int recordsPerRequest = Integer.getInteger("load.recordsPerRequest", 1);
+    private int producers = Integer.getInteger("load.producers", 8);
+    /** {@code service} drives MeterService.addRawUsage, {@code bulk} seeds the table through RawUsageDao.insertRawUsages. */
+    private String ingestion = System.getProperty("load.ingestion", "service");
+    private long subscriptionApiLatencyMillis = Long.getLong("load.latency.subscription", 2);
+    private long usageApiLatencyMillis = Long.getLong("load.latency.usage", 5);
+    private long invoiceApiLatencyMillis = Long.getLong("load.latency.invoice", 20);
+    /** Usage quantity at which each tier ends, the last tier being unbounded. */
+    private String tierBoundaries = System.getProperty("load.tiers", "10000,100000,1000000");
+    /** In-memory H2 by default; point it at a local MySQL or PostgreSQL to run the same cycle there. */
+    private String jdbcUrl = System.getProperty("load.jdbcUrl", "jdbc:h2:mem:meter;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1");
+    private String jdbcUser = System.getProperty("load.jdbcUser", "sa");
+    private String jdbcPassword = System.getProperty("load.jdbcPassword", "");
+    /** {@code mysql}, {@code h2} or {@code postgresql}, detected from the connection when not set. */
+    private String dialect = System.getProperty("load.dialect");
+    private int maxConnections = Integer.getInteger("load.maxConnections", 32);
+    private long seed = Long.getLong("load.seed", 42L);
+}
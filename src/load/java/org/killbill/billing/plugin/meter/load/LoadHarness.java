@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.load;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.billing.plugin.meter.dao.RawUsageDao;
+import org.killbill.billing.plugin.meter.dao.ReplicaRouter;
+import org.killbill.billing.plugin.meter.profiling.QueryProfile;
+import org.killbill.billing.plugin.meter.profiling.QueryProfiler;
+import org.killbill.billing.plugin.meter.profiling.StatementStats;
+import org.killbill.billing.plugin.meter.service.MeterService;
+
+/**
+ * Boots {@link MeterService} and {@link RawUsageDao} against {@link EmbeddedDatabase} and {@link FakeKillbillApi},
+ * ingests generated usage with concurrent producers and runs one full {@code chargeUsage} cycle, reporting
+ * ingestion throughput, stage timings, Kill Bill API calls and the costliest statements.
+ * <pre>
+ * {@code
+ * mvn -Pload verify -Dload.rows=5000000 -Dload.tenants=10 -Dload.producers=16 -Dload.latency.invoice=50
+ * mvn -Pload verify -Dload.jdbcUrl=jdbc:postgresql://localhost/meter -Dload.jdbcUser=meter -Dload.jdbcPassword=meter
+ * }
+ * </pre>
+ */
+public class LoadHarness {
+
+    private static final int CHUNK = 1000;
+
+    public static void main(final String[] args) throws Exception {
+        if (System.getProperty("org.slf4j.simpleLogger.defaultLogLevel") == null) {
+            System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+        }
+        final LoadConfig config = new LoadConfig();
+        System.out.println("Load configuration :: " + config);
+
+        try (final EmbeddedDatabase database = new EmbeddedDatabase(config)) {
+            final FakeKillbillApi killbillApi = new FakeKillbillApi(config, database.getDataSource());
+            for (int tenant = 0; tenant < config.getTenants(); tenant++) {
+                final UUID tenantId = UsageGenerator.tenantId(tenant);
+                killbillApi.registerTenant(tenantId, database.createTenant(tenantId.toString()));
+            }
+
+            final QueryProfiler queryProfiler = new QueryProfiler();
+            final RawUsageDao rawUsageDao = new RawUsageDao(database.getDataSource(), queryProfiler, ReplicaRouter.disabled(),
+                                                            database.getDialect());
+            final MeterService meterService = new MeterService(rawUsageDao, killbillApi);
+            final UsageGenerator generator = new UsageGenerator(config);
+
+            final long ingestionMillis = ingest(config, generator, meterService, rawUsageDao);
+            final long rows = count(database, "select count(*) from raw_usage");
+            System.out.printf("Ingestion :: %d rows in %d ms :: %.0f rows/s (%s, %d producers, %s)%n",
+                              rows, ingestionMillis, rows * 1000.0 / Math.max(1, ingestionMillis),
+                              config.getIngestion(), config.getProducers(), database.getDialect());
+
+            queryProfiler.reset();
+            final Map<String, Long> stages = meterService.chargeUsage();
+            System.out.println("chargeUsage stages (ms) :: " + stages);
+            System.out.println("Kill Bill API calls :: " + killbillApi.getCalls());
+            System.out.printf("Charged rows :: %d of %d%n", count(database, "select count(*) from raw_usage where charges is not null"), rows);
+
+            final QueryProfile profile = queryProfiler.snapshot();
+            System.out.printf("Connection checkouts :: %d, %d ms total%n", profile.getCheckouts(), profile.getCheckoutTotalMillis());
+            profile.getStatements().stream().limit(10).forEach(LoadHarness::printStatement);
+        }
+    }
+
+    private static long ingest(final LoadConfig config, final UsageGenerator generator, final MeterService meterService,
+                               final RawUsageDao rawUsageDao) throws Exception {
+        final long requests = generator.requests();
+        final AtomicLong nextChunk = new AtomicLong();
+        final boolean bulk = "bulk".equalsIgnoreCase(config.getIngestion());
+        final ExecutorService producers = Executors.newFixedThreadPool(config.getProducers());
+        final long start = System.nanoTime();
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < config.getProducers(); i++) {
+                futures.add(producers.submit(() -> {
+                    long from;
+                    while ((from = nextChunk.getAndAdd(CHUNK)) < requests) {
+                        final long to = Math.min(requests, from + CHUNK);
+                        if (bulk) {
+                            generator.bulkInsert(rawUsageDao, from, to);
+                        } else {
+                            for (long n = from; n < to; n++) {
+                                meterService.addRawUsage(generator.request(n));
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            producers.shutdown();
+            producers.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static long count(final EmbeddedDatabase database, final String sql) throws Exception {
+        try (final Connection connection = database.getDataSource().getConnection();
+             final Statement statement = connection.createStatement();
+             final ResultSet resultSet = statement.executeQuery(sql)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    private static void printStatement(final StatementStats.Snapshot statement) {
+        System.out.printf("  %8d ms  %8d x  avg %6d us  max %8d us  %8d rows  %s%n",
+                          statement.getTotalMillis(), statement.getExecutions(), statement.getAvgMicros(),
+                          statement.getMaxMicros(), statement.getRows(), statement.getSql());
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.load;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.killbill.billing.plugin.meter.dto.TierDetail;
+import org.killbill.billing.plugin.meter.dto.TierDetails;
+
+/**
+ * Graduated tier schedule used to fake the item details Kill Bill attaches to usage invoice items.
+ */
+public class SyntheticTiers {
+
+    private static final BigDecimal BLOCK_SIZE = BigDecimal.valueOf(1000);
+
+    private final BigDecimal[] boundaries;
+
+    public SyntheticTiers(final String boundaries) {
+        this.boundaries = Arrays.stream(boundaries.split(","))
+                                .map(String::trim)
+                                .map(BigDecimal::new)
+                                .toArray(BigDecimal[]::new);
+    }
+
+    public TierDetails detailsFor(final String unitType, final BigDecimal quantity) {
+        final List<TierDetail> tiers = new ArrayList<>();
+        BigDecimal lower = BigDecimal.ZERO;
+        BigDecimal remaining = quantity;
+        for (int tier = 1; remaining.signum() > 0; tier++) {
+            final BigDecimal upper = tier <= boundaries.length ? boundaries[tier - 1] : null;
+            final BigDecimal inTier = upper == null ? remaining : remaining.min(upper.subtract(lower));
+            final BigDecimal price = BigDecimal.valueOf(Math.max(1, 30 - 5 * tier), 1);
+            tiers.add(new TierDetail(tier, unitType, price, BLOCK_SIZE, inTier, inTier.multiply(price).divide(BLOCK_SIZE)));
+            remaining = remaining.subtract(inTier);
+            if (upper != null) {
+                lower = upper;
+            }
+        }
+        final BigDecimal amount = tiers.stream().map(TierDetail::getAmount).reduce(BigDecimal.ZERO, BigDecimal::add);
+        return new TierDetails(tiers, amount);
+    }
+}
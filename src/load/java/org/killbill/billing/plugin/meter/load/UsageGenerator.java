@@ -0,0 +1,127 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.load;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.dao.RawUsageDao;
+import org.killbill.billing.plugin.meter.domain.external.ConsumerSubscriptionUsageRecord;
+import org.killbill.billing.plugin.meter.domain.external.ConsumerUnitUsageRecord;
+import org.killbill.billing.plugin.meter.domain.external.ConsumerUsageRecord;
+import org.killbill.billing.plugin.meter.entity.RawUsage;
+
+/**
+ * Deterministic usage traffic: request {@code n} always maps to the same tenant, subscription, unit, tracking id and
+ * amounts, so runs with the same configuration and seed are comparable.
+ */
+public class UsageGenerator {
+
+    private final LoadConfig config;
+    private final DateTime today;
+
+    public UsageGenerator(final LoadConfig config) {
+        this.config = config;
+        this.today = new DateTime(DateTimeZone.UTC).withTimeAtStartOfDay();
+    }
+
+    public static UUID tenantId(final int tenant) {
+        return UUID.nameUUIDFromBytes(("tenant:" + tenant).getBytes(StandardCharsets.UTF_8));
+    }
+
+    public long requests() {
+        return (config.getRows() + config.getRecordsPerRequest() - 1) / config.getRecordsPerRequest();
+    }
+
+    public ConsumerSubscriptionUsageRecord request(final long n) {
+        final SplittableRandom random = new SplittableRandom(config.getSeed() ^ n);
+        final int tenant = (int) (n % config.getTenants());
+        final long subscription = (n / config.getTenants()) % config.getSubscriptionsPerTenant();
+        final int unit = random.nextInt(config.getUnitsPerSubscription());
+
+        final List<ConsumerUsageRecord> usageRecords = new ArrayList<>(config.getRecordsPerRequest());
+        for (int i = 0; i < config.getRecordsPerRequest(); i++) {
+            final ConsumerUsageRecord usageRecord = new ConsumerUsageRecord();
+            usageRecord.setRecordDate(recordDate(random));
+            usageRecord.setAmount(amount(random));
+            usageRecords.add(usageRecord);
+        }
+        final ConsumerUnitUsageRecord unitUsageRecord = new ConsumerUnitUsageRecord();
+        unitUsageRecord.setUnitType(unitType(unit));
+        unitUsageRecord.setUsageRecords(usageRecords);
+
+        return new ConsumerSubscriptionUsageRecord(subscriptionKey(tenant, subscription), "trk-" + n, tenantId(tenant), List.of(unitUsageRecord));
+    }
+
+    /**
+     * Seeds {@code raw_usage} through {@link RawUsageDao#insertRawUsages}, bypassing the service, for volumes where only
+     * the pipeline stages and the dialect's bulk insert path are of interest.
+     */
+    public void bulkInsert(final RawUsageDao rawUsageDao, final long fromRequest, final long toRequest) {
+        final List<RawUsage> rawUsages = new ArrayList<>();
+        for (long n = fromRequest; n < toRequest; n++) {
+            final ConsumerSubscriptionUsageRecord request = request(n);
+            // One row per unit and tracking id, as the service stores them
+            for (final ConsumerUnitUsageRecord unitUsageRecord : request.getUnitUsageRecords()) {
+                BigDecimal amount = BigDecimal.ZERO;
+                DateTime recordDate = null;
+                for (final ConsumerUsageRecord usageRecord : unitUsageRecord.getUsageRecords()) {
+                    amount = amount.add(usageRecord.getAmount());
+                    if (recordDate == null || usageRecord.getRecordDate().isAfter(recordDate)) {
+                        recordDate = usageRecord.getRecordDate();
+                    }
+                }
+                rawUsages.add(new RawUsage().setTenantId(request.getTenantId().toString())
+                                            .setSubscriptionId(request.getSubscriptionId())
+                                            .setTrackingId(request.getTrackingId())
+                                            .setUnitType(unitUsageRecord.getUnitType())
+                                            .setRecordDate(recordDate)
+                                            .setAmount(amount));
+            }
+        }
+        rawUsageDao.insertRawUsages(rawUsages);
+    }
+
+    private DateTime recordDate(final SplittableRandom random) {
+        return today.minusDays(random.nextInt(config.getDays()))
+                    .plusSeconds(random.nextInt(secondsIntoToday()))
+                    .plusMillis(random.nextInt(1000));
+    }
+
+    private int secondsIntoToday() {
+        return Math.max(1, (int) ((System.currentTimeMillis() - today.getMillis()) / 1000));
+    }
+
+    private static BigDecimal amount(final SplittableRandom random) {
+        return BigDecimal.valueOf(1 + random.nextInt(50_000), 2);
+    }
+
+    private static String subscriptionKey(final int tenant, final long subscription) {
+        return "sub-" + tenant + "-" + subscription;
+    }
+
+    private static String unitType(final int unit) {
+        return "unit-" + unit;
+    }
+}
@@ -0,0 +1,27 @@
+-- Subset of the Kill Bill core tables the plugin reads, shaped like the upstream schema
+
+create table tenants (
+  record_id serial
+, id varchar(36) not null
+, external_key varchar(255) null
+, api_key varchar(128) null
+, created_date timestamp not null default current_timestamp
+, primary key(record_id)
+);
+create unique index tenants_id on tenants(id);
+
+create table invoice_tracking_ids (
+  record_id serial
+, id varchar(36) not null
+, tracking_id varchar(128) not null
+, invoice_id varchar(36) not null
+, subscription_id varchar(36)
+, unit_type varchar(255) not null
+, record_date date not null
+, is_active boolean default true
+, created_date timestamp not null default current_timestamp
+, tenant_record_id bigint not null default 0
+, primary key(record_id)
+);
+create index invoice_tracking_tenant_id_tracking_id on invoice_tracking_ids(tracking_id, tenant_record_id);
+create index invoice_tracking_invoice_id_idx on invoice_tracking_ids(invoice_id);
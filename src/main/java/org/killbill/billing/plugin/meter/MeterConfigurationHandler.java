@@ -17,10 +17,22 @@
 
 package org.killbill.billing.plugin.meter;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.plugin.api.notification.PluginTenantConfigurableConfigurationHandler;
+import org.killbill.billing.plugin.meter.ingest.IngestionQuota;
+import org.killbill.billing.plugin.meter.service.TenantShare;
+import org.killbill.billing.plugin.meter.tuning.MeterTuning;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,9 +55,91 @@ import org.slf4j.LoggerFactory;
  */
 public class MeterConfigurationHandler extends PluginTenantConfigurableConfigurationHandler<Properties> {
 
+    public static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.meter.";
+    /** Comma separated unit types whose usage is summed in memory instead of stored per transaction. */
+    public static final String PRE_AGGREGATED_UNITS = PROPERTY_PREFIX + "preAggregatedUnits";
+    /** Seconds between flushes of pre-aggregated usage, i.e. the most usage a crash can lose (plugin-wide). */
+    public static final String PRE_AGGREGATION_FLUSH_SECONDS = PROPERTY_PREFIX + "preAggregation.flushIntervalSeconds";
+    /** Tenant's weight when billing workers are shared between tenants with pending work. */
+    public static final String SCHEDULING_WEIGHT = PROPERTY_PREFIX + "scheduling.weight";
+    /** Most of a tenant's billing work items running at the same time. */
+    public static final String SCHEDULING_MAX_CONCURRENCY = PROPERTY_PREFIX + "scheduling.maxConcurrency";
+    /** Most of a tenant's usage requests inserting at the same time, 0 for no limit. */
+    public static final String INGESTION_MAX_IN_FLIGHT = PROPERTY_PREFIX + "ingestion.maxInFlight";
+    /** Usage records per second a tenant may submit, 0 for no limit. */
+    public static final String INGESTION_RECORDS_PER_SECOND = PROPERTY_PREFIX + "ingestion.recordsPerSecond";
+    /** Usage requests inserting at the same time across tenants (plugin-wide). */
+    public static final String INGESTION_GLOBAL_MAX_IN_FLIGHT = PROPERTY_PREFIX + "ingestion.globalMaxInFlight";
+    /** Request latency above which the adaptive ingestion limit backs off (plugin-wide). */
+    public static final String INGESTION_LATENCY_TARGET_MILLIS = PROPERTY_PREFIX + "ingestion.latencyTargetMillis";
+    /** Directory of the usage history segments (plugin-wide); history is disabled when unset. */
+    public static final String HISTORY_DIRECTORY = PROPERTY_PREFIX + "history.directory";
+    /** Age in days before a day's charged usage is compacted into history (plugin-wide). */
+    public static final String HISTORY_SETTLE_DAYS = PROPERTY_PREFIX + "history.settleDays";
+    /** Days the first history compaction reaches back (plugin-wide). */
+    public static final String HISTORY_INITIAL_DAYS = PROPERTY_PREFIX + "history.initialDays";
+    /** Age in days after which history is no longer compacted again for late charges (plugin-wide). */
+    public static final String HISTORY_RECOMPACT_DAYS = PROPERTY_PREFIX + "history.recompactDays";
+    /** Minutes between history compaction runs (plugin-wide). */
+    public static final String HISTORY_COMPACTION_MINUTES = PROPERTY_PREFIX + "history.compactionIntervalMinutes";
+    /** Seconds the backfill worker waits for new invoice events before polling its queue again (plugin-wide). */
+    public static final String BACKFILL_POLL_SECONDS = PROPERTY_PREFIX + "backfill.pollIntervalSeconds";
+    /** Failed attempts to backfill an invoice before it becomes a dead letter (plugin-wide). */
+    public static final String BACKFILL_MAX_ATTEMPTS = PROPERTY_PREFIX + "backfill.maxAttempts";
+    /** Failed pushes of a rollup before it becomes a dead letter (plugin-wide). */
+    public static final String RETRY_MAX_ATTEMPTS = PROPERTY_PREFIX + "retry.maxAttempts";
+    /** Delay before the first retry of a failed push, doubled on every further failure (plugin-wide). */
+    public static final String RETRY_INITIAL_BACKOFF_SECONDS = PROPERTY_PREFIX + "retry.initialBackoffSeconds";
+    /** Longest delay between retries of a failed push (plugin-wide). */
+    public static final String RETRY_MAX_BACKOFF_SECONDS = PROPERTY_PREFIX + "retry.maxBackoffSeconds";
+    /**
+     * Prefix of the per Kill Bill API limits (plugin-wide), e.g. {@code resilience.invoice.generate.timeoutMillis};
+     * see {@code ResiliencePolicy} for the fields.
+     */
+    public static final String RESILIENCE_PREFIX = PROPERTY_PREFIX + "resilience.";
+    /**
+     * Prefix of the optional read replica (plugin-wide): {@code replica.url}, {@code user}, {@code password},
+     * {@code maxPoolSize}, {@code heartbeatMillis} and per query class {@code replica.scan.maxLagMillis}; see
+     * {@code ReplicaRouter}.
+     */
+    public static final String REPLICA_PREFIX = PROPERTY_PREFIX + "replica.";
+    /**
+     * SQL dialect of the Kill Bill database, {@code mysql}, {@code h2} or {@code postgresql} (plugin-wide); detected from the
+     * connection when not set, see {@code SqlDialect}.
+     */
+    public static final String DIALECT = PROPERTY_PREFIX + "dialect";
+    /** Answer charge lookups of usage not charged yet with provisional charges (plugin-wide). */
+    public static final String ESTIMATION_ENABLED = PROPERTY_PREFIX + "estimation.enabled";
+    /** Period over which tier usage is counted for estimates, {@code MONTH} or {@code DAY} (plugin-wide). */
+    public static final String ESTIMATION_PERIOD = PROPERTY_PREFIX + "estimation.period";
+    /** Seconds a subscription unit's tier schedule is cached for estimates. */
+    public static final String ESTIMATION_SCHEDULE_TTL_SECONDS = PROPERTY_PREFIX + "estimation.scheduleTtlSeconds";
+    /** Transactions whose provisional charge is kept at most (plugin-wide). */
+    public static final String ESTIMATION_MAX_ENTRIES = PROPERTY_PREFIX + "estimation.maxEntries";
+    /** Tracking keys the duplicate filter is sized for before it starts a new generation (plugin-wide). */
+    public static final String DEDUP_EXPECTED_KEYS = PROPERTY_PREFIX + "dedup.expectedKeys";
+    /** Most recent tracking keys remembered exactly, which also covers pre-aggregated units (plugin-wide). */
+    public static final String DEDUP_CACHE_SIZE = PROPERTY_PREFIX + "dedup.cacheSize";
+    /** Rows per JDBC batch when inserting usage. */
+    public static final String TUNING_INSERT_BATCH_SIZE = PROPERTY_PREFIX + "tuning.insertBatchSize";
+    /** Rows per JDBC batch when writing charges. */
+    public static final String TUNING_CHARGE_BATCH_SIZE = PROPERTY_PREFIX + "tuning.chargeBatchSize";
+    /** Rows fetched per round trip on the pipeline scans, 0 for the driver's default (plugin-wide). */
+    public static final String TUNING_FETCH_SIZE = PROPERTY_PREFIX + "tuning.fetchSize";
+    /** Pipeline jobs (aggregate, bill, invoice, back-fill, charge-usage) running at the same time (plugin-wide). */
+    public static final String JOBS_WORKERS = PROPERTY_PREFIX + "jobs.workers";
+    /** Invoices re-rated at the same time (plugin-wide). */
+    public static final String RERATE_PARALLELISM = PROPERTY_PREFIX + "rerate.parallelism";
+    /** Billing worker threads shared by all tenants (plugin-wide). */
+    public static final String SCHEDULING_WORKERS = PROPERTY_PREFIX + "scheduling.workers";
+
     private static final Logger logger = LoggerFactory.getLogger(MeterConfigurationHandler.class);
 
     private final String region;
+    private final List<Consumer<MeterTuning>> tuningListeners = new CopyOnWriteArrayList<>();
+    private final Map<UUID, TenantTuning> tenantTunings = new ConcurrentHashMap<>();
+    private volatile Properties pluginProperties;
+    private volatile MeterTuning pluginTuning = MeterTuning.DEFAULT;
 
     public MeterConfigurationHandler(final String region,
                                      final String pluginName,
@@ -57,6 +151,118 @@ public class MeterConfigurationHandler extends PluginTenantConfigurableConfigura
     @Override
     protected Properties createConfigurable(final Properties properties) {
         logger.info("New properties for region {}: {}", region, properties);
+        try {
+            pluginTuning.withTenantProperties(properties);
+        } catch (final IllegalArgumentException e) {
+            logger.error("Error :: tuning ignored :: {}", e.getMessage());
+        }
         return properties;
     }
-}
\ No newline at end of file
+
+    /**
+     * Sets the plugin-wide tuning from the plugin configuration, before anything listens to it.
+     *
+     * @throws IllegalArgumentException when a tuning setting is invalid
+     */
+    public void initTuning(final Properties properties) {
+        pluginTuning = MeterTuning.DEFAULT.withPluginProperties(properties);
+        pluginProperties = properties;
+    }
+
+    /**
+     * Applies tuning settings over the plugin-wide tuning and hands the result to the listeners, which resize their
+     * executors in place. Tenants' own settings still take precedence. Not persisted: a restart goes back to the plugin
+     * configuration.
+     *
+     * @throws IllegalArgumentException when a setting is invalid, in which case nothing is changed
+     */
+    public synchronized MeterTuning updatePluginTuning(final Properties properties) {
+        final MeterTuning tuning = pluginTuning.withPluginProperties(properties);
+        pluginTuning = tuning;
+        logger.info("New tuning for region {}: {}", region, tuning);
+        for (final Consumer<MeterTuning> listener : tuningListeners) {
+            listener.accept(tuning);
+        }
+        return tuning;
+    }
+
+    public void addTuningListener(final Consumer<MeterTuning> listener) {
+        tuningListeners.add(listener);
+    }
+
+    public MeterTuning getPluginTuning() {
+        return pluginTuning;
+    }
+
+    /**
+     * The tuning of a tenant's work, resolved once per change of either the tenant's config or the plugin-wide tuning.
+     * A tenant config with an invalid setting falls back to the plugin-wide tuning.
+     */
+    public MeterTuning getTuning(final UUID kbTenantId) {
+        final MeterTuning base = pluginTuning;
+        final Properties properties = getConfigurable(kbTenantId);
+        if (properties == null || properties == pluginProperties) {
+            return base;
+        }
+        final TenantTuning cached = tenantTunings.get(kbTenantId);
+        if (cached != null && cached.properties == properties && cached.base == base) {
+            return cached.tuning;
+        }
+        MeterTuning tuning;
+        try {
+            tuning = base.withTenantProperties(properties);
+        } catch (final IllegalArgumentException e) {
+            logger.error("Error :: tenant {} tuning ignored :: {}", kbTenantId, e.getMessage());
+            tuning = base;
+        }
+        tenantTunings.put(kbTenantId, new TenantTuning(properties, base, tuning));
+        return tuning;
+    }
+
+    public MeterTuning getTuning(final String kbTenantId) {
+        return kbTenantId == null ? pluginTuning : getTuning(UUID.fromString(kbTenantId));
+    }
+
+    public Set<String> getPreAggregatedUnits(final UUID kbTenantId) {
+        final Properties properties = getConfigurable(kbTenantId);
+        final String units = properties == null ? null : properties.getProperty(PRE_AGGREGATED_UNITS);
+        if (units == null || units.isBlank()) {
+            return Set.of();
+        }
+        return Arrays.stream(units.split(","))
+                     .map(String::trim)
+                     .filter(unit -> !unit.isEmpty())
+                     .collect(Collectors.toUnmodifiableSet());
+    }
+
+    public TenantShare getTenantShare(final String kbTenantId) {
+        final Properties properties = getConfigurable(UUID.fromString(kbTenantId));
+        if (properties == null) {
+            return TenantShare.DEFAULT;
+        }
+        return new TenantShare(Double.parseDouble(properties.getProperty(SCHEDULING_WEIGHT, String.valueOf(TenantShare.DEFAULT.getWeight()))),
+                               Integer.parseInt(properties.getProperty(SCHEDULING_MAX_CONCURRENCY, String.valueOf(TenantShare.DEFAULT.getMaxConcurrency()))));
+    }
+
+    public IngestionQuota getIngestionQuota(final UUID kbTenantId) {
+        final Properties properties = getConfigurable(kbTenantId);
+        if (properties == null) {
+            return IngestionQuota.UNLIMITED;
+        }
+        return new IngestionQuota(Integer.parseInt(properties.getProperty(INGESTION_MAX_IN_FLIGHT, "0")),
+                                  Double.parseDouble(properties.getProperty(INGESTION_RECORDS_PER_SECOND, "0")));
+    }
+
+    private static final class TenantTuning {
+
+        private final Properties properties;
+        private final MeterTuning base;
+        private final MeterTuning tuning;
+
+        private TenantTuning(final Properties properties, final MeterTuning base, final MeterTuning tuning) {
+            this.properties = properties;
+            this.base = base;
+            this.tuning = tuning;
+        }
+    }
+}
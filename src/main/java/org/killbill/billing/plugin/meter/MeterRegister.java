@@ -17,6 +17,7 @@
 
 package org.killbill.billing.plugin.meter;
 
+import java.nio.file.Paths;
 import java.util.Hashtable;
 import java.util.Properties;
 
@@ -32,9 +33,29 @@ import org.killbill.billing.plugin.api.notification.PluginConfigurationEventHand
 import org.killbill.billing.plugin.core.config.PluginEnvironmentConfig;
 import org.killbill.billing.plugin.core.resources.jooby.PluginApp;
 import org.killbill.billing.plugin.core.resources.jooby.PluginAppBuilder;
+import org.killbill.billing.plugin.meter.backfill.BackfillWorker;
+import org.killbill.billing.plugin.meter.backfill.InvoiceCreationHandler;
 import org.killbill.billing.plugin.meter.contoller.MeterController;
+import org.killbill.billing.plugin.meter.dao.BackfillQueueDao;
 import org.killbill.billing.plugin.meter.dao.RawUsageDao;
+import org.killbill.billing.plugin.meter.dao.ReplicaRouter;
+import org.killbill.billing.plugin.meter.dao.SqlDialect;
+import org.killbill.billing.plugin.meter.dao.UsagePushRetryDao;
+import org.killbill.billing.plugin.meter.estimate.ChargeEstimator;
+import org.killbill.billing.plugin.meter.estimate.EstimationPeriod;
+import org.killbill.billing.plugin.meter.history.HistoryCompactor;
+import org.killbill.billing.plugin.meter.history.UsageHistory;
+import org.killbill.billing.plugin.meter.ingest.AdmissionController;
+import org.killbill.billing.plugin.meter.ingest.IngestionDeduplicator;
+import org.killbill.billing.plugin.meter.ingest.PreAggregator;
+import org.killbill.billing.plugin.meter.job.JobManager;
+import org.killbill.billing.plugin.meter.profiling.QueryProfiler;
+import org.killbill.billing.plugin.meter.rerate.RerateEngine;
+import org.killbill.billing.plugin.meter.resilience.ResilientKillbill;
 import org.killbill.billing.plugin.meter.service.MeterService;
+import org.killbill.billing.plugin.meter.service.TenantFairScheduler;
+import org.killbill.billing.plugin.meter.service.UsagePushRetries;
+import org.killbill.billing.plugin.meter.tuning.MeterTuning;
 import org.osgi.framework.BundleContext;
 import org.osgi.util.tracker.ServiceTracker;
 
@@ -52,6 +73,15 @@ public class MeterRegister extends KillbillActivatorBase
     private ServiceTracker<InvoiceFormatterFactory, InvoiceFormatterFactory> invoiceFormatterTracker;
 
     private MeterService meterService;
+    private PreAggregator preAggregator;
+    private TenantFairScheduler tenantFairScheduler;
+    private HistoryCompactor historyCompactor;
+    private BackfillWorker backfillWorker;
+    private ResilientKillbill resilientKillbill;
+    private ReplicaRouter replicaRouter;
+    private JobManager jobManager;
+    private RerateEngine rerateEngine;
+    private ChargeEstimator chargeEstimator;
 
 
     @Override
@@ -65,14 +95,86 @@ public class MeterRegister extends KillbillActivatorBase
         final Properties globalConfiguration = meterConfigurationHandler
                 .createConfigurable(configProperties.getProperties());
         meterConfigurationHandler.setDefaultConfigurable(globalConfiguration);
+        meterConfigurationHandler.initTuning(globalConfiguration);
+        final MeterTuning tuning = meterConfigurationHandler.getPluginTuning();
 
         // create a service tracker for a custom InvoiceFormatter service
         invoiceFormatterTracker = new ServiceTracker<>(context, InvoiceFormatterFactory.class, null);
         invoiceFormatterTracker.open();
 
-        final RawUsageDao rawUsageDao=new RawUsageDao(dataSource.getDataSource());
-
-        meterService = new MeterService(rawUsageDao, killbillAPI);
+        final QueryProfiler queryProfiler = new QueryProfiler();
+        // Scans and charge lookups may be served by a read replica, keeping them off the primary Kill Bill uses
+        replicaRouter = ReplicaRouter.fromProperties(configProperties.getProperties(), MeterConfigurationHandler.REPLICA_PREFIX,
+                                                     dataSource.getDataSource());
+        replicaRouter.registerMetrics(metricRegistry);
+        replicaRouter.start();
+        final SqlDialect dialect = SqlDialect.fromName(configProperties.getProperties().getProperty(MeterConfigurationHandler.DIALECT),
+                                                       dataSource.getDataSource());
+        final RawUsageDao rawUsageDao=new RawUsageDao(dataSource.getDataSource(), queryProfiler, replicaRouter, dialect,
+                                                      meterConfigurationHandler::getTuning);
+
+        preAggregator = new PreAggregator(rawUsageDao, meterConfigurationHandler);
+        preAggregator.start(tuning.getPreAggregationFlushSeconds());
+
+        tenantFairScheduler = new TenantFairScheduler(meterConfigurationHandler::getTenantShare, tuning.getSchedulingWorkers());
+
+        final UsagePushRetries usagePushRetries = new UsagePushRetries(
+                new UsagePushRetryDao(dataSource.getDataSource(), queryProfiler),
+                Integer.parseInt(configProperties.getProperties().getProperty(MeterConfigurationHandler.RETRY_MAX_ATTEMPTS, "8")),
+                Long.parseLong(configProperties.getProperties().getProperty(MeterConfigurationHandler.RETRY_INITIAL_BACKOFF_SECONDS, "60")),
+                Long.parseLong(configProperties.getProperties().getProperty(MeterConfigurationHandler.RETRY_MAX_BACKOFF_SECONDS, "21600")));
+
+        resilientKillbill = new ResilientKillbill(killbillAPI, configProperties.getProperties(), MeterConfigurationHandler.RESILIENCE_PREFIX);
+        resilientKillbill.registerMetrics(metricRegistry);
+
+        final Properties properties = configProperties.getProperties();
+        // Charge lookups may be answered with provisional charges until back-fill writes the real ones
+        if (Boolean.parseBoolean(properties.getProperty(MeterConfigurationHandler.ESTIMATION_ENABLED, "false"))) {
+            chargeEstimator = new ChargeEstimator(rawUsageDao, resilientKillbill,
+                                                  EstimationPeriod.valueOf(properties.getProperty(MeterConfigurationHandler.ESTIMATION_PERIOD, "MONTH")),
+                                                  meterConfigurationHandler::getTuning,
+                                                  Integer.parseInt(properties.getProperty(MeterConfigurationHandler.ESTIMATION_MAX_ENTRIES, "200000")));
+        }
+
+        final IngestionDeduplicator deduplicator =
+                new IngestionDeduplicator(Integer.parseInt(properties.getProperty(MeterConfigurationHandler.DEDUP_EXPECTED_KEYS, "1000000")),
+                                          Integer.parseInt(properties.getProperty(MeterConfigurationHandler.DEDUP_CACHE_SIZE, "100000")));
+        meterService = new MeterService(rawUsageDao, resilientKillbill, preAggregator, tenantFairScheduler, usagePushRetries,
+                                        chargeEstimator, deduplicator);
+
+        // Ingestion shares Kill Bill's connection pool, so it is capped well below the pool size by default
+        final AdmissionController admissionController = new AdmissionController(
+                Integer.parseInt(configProperties.getProperties().getProperty(MeterConfigurationHandler.INGESTION_GLOBAL_MAX_IN_FLIGHT, "16")),
+                Long.parseLong(configProperties.getProperties().getProperty(MeterConfigurationHandler.INGESTION_LATENCY_TARGET_MILLIS, "100")),
+                meterConfigurationHandler::getIngestionQuota);
+
+        final String historyDirectory = properties.getProperty(MeterConfigurationHandler.HISTORY_DIRECTORY);
+        final UsageHistory usageHistory = new UsageHistory(historyDirectory == null ? null : Paths.get(historyDirectory));
+        historyCompactor = new HistoryCompactor(rawUsageDao, usageHistory,
+                                                Integer.parseInt(properties.getProperty(MeterConfigurationHandler.HISTORY_SETTLE_DAYS, "3")),
+                                                Integer.parseInt(properties.getProperty(MeterConfigurationHandler.HISTORY_INITIAL_DAYS, "90")),
+                                                Integer.parseInt(properties.getProperty(MeterConfigurationHandler.HISTORY_RECOMPACT_DAYS, "62")));
+        historyCompactor.start(Long.parseLong(properties.getProperty(MeterConfigurationHandler.HISTORY_COMPACTION_MINUTES, "60")));
+
+        // Invoices are queued for backfill as Kill Bill creates them
+        final BackfillQueueDao backfillQueueDao = new BackfillQueueDao(dataSource.getDataSource(), queryProfiler);
+        backfillWorker = new BackfillWorker(backfillQueueDao, meterService, tenantFairScheduler,
+                                            Long.parseLong(properties.getProperty(MeterConfigurationHandler.BACKFILL_POLL_SECONDS, "60")),
+                                            Integer.parseInt(properties.getProperty(MeterConfigurationHandler.BACKFILL_MAX_ATTEMPTS, "10")));
+        backfillWorker.start();
+        killbillEventHandler = new InvoiceCreationHandler(backfillQueueDao, backfillWorker);
+
+        // Pipeline endpoints return a job id and run in the background
+        jobManager = new JobManager(tuning.getJobWorkers());
+        rerateEngine = new RerateEngine(rawUsageDao, resilientKillbill, tuning.getRerateParallelism());
+
+        // Plugin-wide tuning changes resize the shared executors in place
+        meterConfigurationHandler.addTuningListener(updated -> {
+            tenantFairScheduler.setWorkers(updated.getSchedulingWorkers());
+            jobManager.setWorkers(updated.getJobWorkers());
+            rerateEngine.setParallelism(updated.getRerateParallelism());
+            preAggregator.setFlushInterval(updated.getPreAggregationFlushSeconds());
+        });
 
 
         // Register a servlet (optional)
@@ -80,6 +182,14 @@ public class MeterRegister extends KillbillActivatorBase
                                                          configProperties)
                 .withRouteClass(MeterController.class)
                 .withService(meterService)
+                .withService(queryProfiler)
+                .withService(admissionController)
+                .withService(usageHistory)
+                .withService(replicaRouter)
+                .withService(jobManager)
+                .withService(rerateEngine)
+                .withService(meterConfigurationHandler)
+                .withService(backfillWorker)
                 .build();
         final HttpServlet httpServlet = PluginApp.createServlet(pluginApp);
         registerServlet(context, httpServlet);
@@ -89,6 +199,34 @@ public class MeterRegister extends KillbillActivatorBase
 
     @Override
     public void stop(final BundleContext context) throws Exception {
+        // Write out pending pre-aggregated usage while the data source is still up
+        if (preAggregator != null) {
+            preAggregator.stop();
+        }
+        if (backfillWorker != null) {
+            backfillWorker.stop();
+        }
+        if (jobManager != null) {
+            jobManager.shutdown();
+        }
+        if (rerateEngine != null) {
+            rerateEngine.shutdown();
+        }
+        if (historyCompactor != null) {
+            historyCompactor.stop();
+        }
+        if (tenantFairScheduler != null) {
+            tenantFairScheduler.shutdown();
+        }
+        if (chargeEstimator != null) {
+            chargeEstimator.shutdown();
+        }
+        if (resilientKillbill != null) {
+            resilientKillbill.shutdown();
+        }
+        if (replicaRouter != null) {
+            replicaRouter.stop();
+        }
         super.stop(context);
     }
 
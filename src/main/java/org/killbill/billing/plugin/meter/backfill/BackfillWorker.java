@@ -0,0 +1,183 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.backfill;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.dao.BackfillQueueDao;
+import org.killbill.billing.plugin.meter.entity.BackfillTask;
+import org.killbill.billing.plugin.meter.exception.ResourceNotFoundException;
+import org.killbill.billing.plugin.meter.service.MeterService;
+import org.killbill.billing.plugin.meter.service.TenantFairScheduler;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Drains backfill_queue as invoices arrive: woken by {@link #signal()} when an invoice is queued and otherwise
+ * polling every poll interval, it claims due tasks and charges them through the tenant-fair scheduler. A task that
+ * fails is handed back with exponential backoff; after {@code maxAttempts} it becomes a dead letter that only an admin
+ * requeue brings back. A claim abandoned on its last attempt, e.g. by a node that crashed on the invoice, counts as a
+ * failure too.
+ */
+@Slf4j
+public class BackfillWorker {
+
+    static final int BATCH_SIZE = 100;
+    static final long CLAIM_TIMEOUT_MINUTES = 10;
+    static final long INITIAL_BACKOFF_SECONDS = 30;
+    static final long MAX_BACKOFF_SECONDS = TimeUnit.HOURS.toSeconds(1);
+    static final int MAX_ERROR_LENGTH = 1024;
+
+    private final BackfillQueueDao backfillQueueDao;
+    private final MeterService meterService;
+    private final TenantFairScheduler scheduler;
+    private final long pollIntervalMillis;
+    private final int maxAttempts;
+    private final Object wakeUp = new Object();
+
+    private volatile boolean running;
+    private boolean signalled;
+    private Thread thread;
+
+    public BackfillWorker(final BackfillQueueDao backfillQueueDao, final MeterService meterService,
+                          final TenantFairScheduler scheduler, final long pollIntervalSeconds, final int maxAttempts) {
+        this.backfillQueueDao = backfillQueueDao;
+        this.meterService = meterService;
+        this.scheduler = scheduler;
+        this.pollIntervalMillis = TimeUnit.SECONDS.toMillis(pollIntervalSeconds);
+        this.maxAttempts = maxAttempts;
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::loop, "meter-backfill-worker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        thread.interrupt();
+        thread.join(TimeUnit.SECONDS.toMillis(30));
+        thread = null;
+    }
+
+    /**
+     * Tells the worker new tasks are queued, so it does not wait out its poll interval.
+     */
+    public void signal() {
+        synchronized (wakeUp) {
+            signalled = true;
+            wakeUp.notifyAll();
+        }
+    }
+
+    public List<BackfillTask> getDeadLetters() {
+        return backfillQueueDao.getDeadLetters();
+    }
+
+    public void requeue(final long id) {
+        if (!backfillQueueDao.requeue(id, DateTime.now(DateTimeZone.UTC))) {
+            throw new ResourceNotFoundException("Dead letter not found");
+        }
+        signal();
+    }
+
+    private void loop() {
+        while (running) {
+            try {
+                final DateTime now = DateTime.now(DateTimeZone.UTC);
+                final List<BackfillTask> tasks = backfillQueueDao.claim(BATCH_SIZE, now, now.minusMinutes((int) CLAIM_TIMEOUT_MINUTES));
+                if (tasks.isEmpty()) {
+                    awaitWork();
+                } else {
+                    scheduler.run("backFillQueue", tasks, BackfillTask::getTenantId, this::process);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (final RuntimeException e) {
+                log.error("Error :: {}", e.getMessage());
+                sleepQuietly();
+            }
+        }
+    }
+
+    void process(final BackfillTask task) {
+        if (task.getAttempts() > maxAttempts) {
+            // Taken over from a claim that never finished its last attempt
+            fail(task, "Claim abandoned on attempt " + (task.getAttempts() - 1));
+            return;
+        }
+        String error = null;
+        try {
+            if (!meterService.backFillInvoice(task.getTenantId(), task.getInvoiceId())) {
+                error = "Charge conflicts persisted";
+            }
+        } catch (final RuntimeException e) {
+            error = e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+        if (error == null) {
+            backfillQueueDao.complete(task);
+        } else {
+            fail(task, error);
+        }
+    }
+
+    private void fail(final BackfillTask task, final String failure) {
+        final String error = failure.length() > MAX_ERROR_LENGTH ? failure.substring(0, MAX_ERROR_LENGTH) : failure;
+        final boolean dead = task.getAttempts() >= maxAttempts;
+        log.error("BackfillWorker :: invoice {} :: attempt {} :: {}{}", task.getInvoiceId(), task.getAttempts(), error, dead ? " :: dead letter" : "");
+        if (dead) {
+            backfillQueueDao.bury(task, error);
+        } else {
+            backfillQueueDao.release(task, DateTime.now(DateTimeZone.UTC).plusSeconds((int) backoffSeconds(task.getAttempts())), error);
+        }
+    }
+
+    static long backoffSeconds(final int attempts) {
+        final int doublings = Math.min(Math.max(attempts - 1, 0), 20);
+        return Math.min(MAX_BACKOFF_SECONDS, INITIAL_BACKOFF_SECONDS << doublings);
+    }
+
+    private void awaitWork() throws InterruptedException {
+        synchronized (wakeUp) {
+            if (!signalled) {
+                wakeUp.wait(pollIntervalMillis);
+            }
+            signalled = false;
+        }
+    }
+
+    private void sleepQuietly() {
+        try {
+            Thread.sleep(pollIntervalMillis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
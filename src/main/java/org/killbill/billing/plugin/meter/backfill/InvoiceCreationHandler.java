@@ -0,0 +1,61 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.backfill;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillEventDispatcher.OSGIKillbillEventHandler;
+import org.killbill.billing.plugin.meter.dao.BackfillQueueDao;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Queues every invoice Kill Bill creates for backfill, so its usage is charged minutes after invoicing instead of on
+ * the next batch cycle. The polling backfill keeps running as reconciliation for events missed while the plugin was
+ * down.
+ */
+@Slf4j
+public class InvoiceCreationHandler implements OSGIKillbillEventHandler {
+
+    private final BackfillQueueDao backfillQueueDao;
+    private final BackfillWorker backfillWorker;
+
+    public InvoiceCreationHandler(final BackfillQueueDao backfillQueueDao, final BackfillWorker backfillWorker) {
+        this.backfillQueueDao = backfillQueueDao;
+        this.backfillWorker = backfillWorker;
+    }
+
+    @Override
+    public void handleKillbillEvent(final ExtBusEvent killbillEvent) {
+        if (killbillEvent.getEventType() != ExtBusEventType.INVOICE_CREATION || killbillEvent.getObjectId() == null) {
+            return;
+        }
+        try {
+            if (backfillQueueDao.enqueue(String.valueOf(killbillEvent.getTenantId()), String.valueOf(killbillEvent.getObjectId()),
+                                         DateTime.now(DateTimeZone.UTC))) {
+                backfillWorker.signal();
+            }
+        } catch (final Exception e) {
+            // Thrown back so the bus redelivers the event
+            log.error("Error :: {}", e.getMessage());
+            throw e;
+        }
+    }
+}
@@ -17,22 +17,55 @@
 
 package org.killbill.billing.plugin.meter.contoller;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Response;
-import javax.ws.rs.core.Response.Status;
 
+import org.joda.time.LocalDate;
+import org.jooby.Request;
+import org.jooby.Result;
+import org.jooby.Results;
+import org.jooby.Status;
 import org.jooby.mvc.Body;
+import org.jooby.mvc.Consumes;
 import org.jooby.mvc.GET;
 import org.jooby.mvc.POST;
 import org.jooby.mvc.Path;
+import org.killbill.billing.plugin.meter.MeterConfigurationHandler;
+import org.killbill.billing.plugin.meter.backfill.BackfillWorker;
 import org.killbill.billing.plugin.meter.domain.external.ChargeDetails;
+import org.killbill.billing.plugin.meter.dao.ReplicaRouter;
+import org.killbill.billing.plugin.meter.dao.ReplicaStats;
 import org.killbill.billing.plugin.meter.domain.external.ConsumerSubscriptionUsageRecord;
+import org.killbill.billing.plugin.meter.dto.DailyUsage;
+import org.killbill.billing.plugin.meter.entity.BackfillTask;
+import org.killbill.billing.plugin.meter.entity.UsagePushRetry;
 import org.killbill.billing.plugin.meter.exception.RequestTooEarly;
 import org.killbill.billing.plugin.meter.exception.ResourceNotFoundException;
+import org.killbill.billing.plugin.meter.history.UsageHistory;
+import org.killbill.billing.plugin.meter.ingest.AdmissionController;
+import org.killbill.billing.plugin.meter.ingest.AdmissionController.Admission;
+import org.killbill.billing.plugin.meter.ingest.AdmissionStats;
+import org.killbill.billing.plugin.meter.ingest.DeduplicationStats;
+import org.killbill.billing.plugin.meter.ingest.UsageRecordCodec;
+import org.killbill.billing.plugin.meter.job.JobManager;
+import org.killbill.billing.plugin.meter.job.JobStatus;
+import org.killbill.billing.plugin.meter.profiling.QueryProfile;
+import org.killbill.billing.plugin.meter.rerate.RerateEngine;
+import org.killbill.billing.plugin.meter.rerate.RerateRequest;
+import org.killbill.billing.plugin.meter.resilience.ApiGuardStats;
+import org.killbill.billing.plugin.meter.profiling.QueryProfiler;
+import org.killbill.billing.plugin.meter.service.ConcurrencyStats;
 import org.killbill.billing.plugin.meter.service.MeterService;
+import org.killbill.billing.plugin.meter.tuning.MeterTuning;
 import lombok.extern.slf4j.Slf4j;
 
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
@@ -43,46 +76,138 @@ import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 public class MeterController {
 
     private final MeterService meterService;
+    private final QueryProfiler queryProfiler;
+    private final AdmissionController admissionController;
+    private final UsageHistory usageHistory;
+    private final ReplicaRouter replicaRouter;
+    private final JobManager jobManager;
+    private final RerateEngine rerateEngine;
+    private final MeterConfigurationHandler configurationHandler;
+    private final BackfillWorker backfillWorker;
 
     @Inject
-    public MeterController(final MeterService meterService) {
+    public MeterController(final MeterService meterService, final QueryProfiler queryProfiler,
+                           final AdmissionController admissionController, final UsageHistory usageHistory,
+                           final ReplicaRouter replicaRouter, final JobManager jobManager, final RerateEngine rerateEngine,
+                           final MeterConfigurationHandler configurationHandler, final BackfillWorker backfillWorker) {
         log.info("MeterController :: {}",meterService);
         this.meterService = meterService;
+        this.queryProfiler = queryProfiler;
+        this.admissionController = admissionController;
+        this.usageHistory = usageHistory;
+        this.replicaRouter = replicaRouter;
+        this.jobManager = jobManager;
+        this.rerateEngine = rerateEngine;
+        this.configurationHandler = configurationHandler;
+        this.backfillWorker = backfillWorker;
+    }
+
+    // Declared ahead of the JSON route so that Jooby matches the binary media types first
+    @POST
+    @Consumes({UsageRecordCodec.SMILE, UsageRecordCodec.CBOR})
+    public Result addRawUsage(final Request request) throws Exception {
+        final String contentType = request.type().name();
+        final ConsumerSubscriptionUsageRecord record;
+        try {
+            record = UsageRecordCodec.decode(contentType, request.body().to(byte[].class));
+        } catch (final IOException e) {
+            log.error("Error :: {}", e.getMessage());
+            return Results.with(Status.BAD_REQUEST);
+        }
+        return admit(record);
     }
 
     @POST
-    public void addRawUsage(@Body final ConsumerSubscriptionUsageRecord request){
-        meterService.addRawUsage(request);
+    public Result addRawUsage(@Body final ConsumerSubscriptionUsageRecord request){
+        return admit(request);
+    }
+
+    private Result admit(final ConsumerSubscriptionUsageRecord request) {
+        final int records = request.getUnitUsageRecords().stream()
+                                   .mapToInt(unitUsageRecord -> unitUsageRecord.getUsageRecords().size())
+                                   .sum();
+        try (final Admission admission = admissionController.tryAcquire(request.getTenantId(), records)) {
+            if (!admission.isAdmitted()) {
+                return Results.with(Status.TOO_MANY_REQUESTS)
+                              .header("Retry-After", admission.getRetryAfterSeconds());
+            }
+            final boolean stored;
+            try {
+                stored = meterService.addRawUsage(request);
+            } catch (final RuntimeException e) {
+                admission.failed();
+                throw e;
+            }
+            // A retry of a request already stored is acknowledged like the original, flagged for the producer's logs
+            return stored ? Results.ok() : Results.ok().header("Idempotent-Replayed", "true");
+        }
     }
 
     @POST
+    @Produces(APPLICATION_JSON)
     @Path("/aggregate")
-    public void aggregateUsages(){
-        meterService.aggregateUsages();
+    public Result aggregateUsages(){
+        return accepted(jobManager.submit("aggregate", meterService::aggregateUsages));
     }
 
     @POST
+    @Produces(APPLICATION_JSON)
     @Path("/bill")
-    public void bill(){
-        meterService.bill();
+    public Result bill(){
+        return accepted(jobManager.submit("bill", meterService::bill));
     }
 
     @POST
+    @Produces(APPLICATION_JSON)
     @Path("/invoice")
-    public void invoice(){
-        meterService.invoice();
+    public Result invoice(){
+        return accepted(jobManager.submit("invoice", meterService::invoice));
     }
 
     @POST
+    @Produces(APPLICATION_JSON)
     @Path("/back-fill")
-    public void backFill(){
-        meterService.backFill();
+    public Result backFill(){
+        return accepted(jobManager.submit("back-fill", meterService::backFill));
     }
 
     @POST
+    @Produces(APPLICATION_JSON)
     @Path("/charge-usage")
-    public void chargeUsage(){
-        meterService.chargeUsage();
+    public Result chargeUsage(){
+        return accepted(jobManager.submit("charge-usage", meterService::chargeUsage));
+    }
+
+    /**
+     * Recomputes the charges of already charged usage; the job result is the re-rating report.
+     */
+    @POST
+    @Produces(APPLICATION_JSON)
+    @Path("/rerate")
+    public Result rerate(@Body final RerateRequest request){
+        if (request.getTenantId() == null) {
+            return Results.with(Status.BAD_REQUEST);
+        }
+        return accepted(jobManager.submitForResult("rerate", "rerate " + request, progress -> rerateEngine.rerate(request, progress)));
+    }
+
+    @GET
+    @Produces(APPLICATION_JSON)
+    @Path("/jobs")
+    public List<JobStatus> getJobs() {
+        return jobManager.getJobs();
+    }
+
+    @GET
+    @Produces(APPLICATION_JSON)
+    @Path("/jobs/{jobId}")
+    public JobStatus getJob(@PathParam("jobId") final String jobId) {
+        return jobManager.getStatus(jobId);
+    }
+
+    private static Result accepted(final JobStatus job) {
+        return Results.with(job, Status.ACCEPTED)
+                      .header("Location", "jobs/" + job.getId());
     }
 
     @GET
@@ -114,4 +239,130 @@ public class MeterController {
             return new ChargeDetails().setReason(e.getMessage());
         }
     }
+
+    @GET
+    @Produces(APPLICATION_JSON)
+    @Path("history/tenant/{tenantId}/from/{from}/to/{to}")
+    public List<DailyUsage> getTenantHistory(
+            @PathParam("tenantId") final String tenantId,
+            @PathParam("from") final String from,
+            @PathParam("to") final String to) {
+        return usageHistory.query(tenantId, null, null, LocalDate.parse(from), LocalDate.parse(to));
+    }
+
+    @GET
+    @Produces(APPLICATION_JSON)
+    @Path("history/tenant/{tenantId}/subscription/{subscriptionId}/from/{from}/to/{to}")
+    public List<DailyUsage> getSubscriptionHistory(
+            @PathParam("tenantId") final String tenantId,
+            @PathParam("subscriptionId") final String subscriptionId,
+            @PathParam("from") final String from,
+            @PathParam("to") final String to) {
+        return usageHistory.query(tenantId, subscriptionId, null, LocalDate.parse(from), LocalDate.parse(to));
+    }
+
+    @GET
+    @Produces(APPLICATION_JSON)
+    @Path("/admin/queries")
+    public QueryProfile getQueryProfile() {
+        return queryProfiler.snapshot();
+    }
+
+    @POST
+    @Path("/admin/queries/reset")
+    public void resetQueryProfile() {
+        queryProfiler.reset();
+    }
+
+    @GET
+    @Produces(APPLICATION_JSON)
+    @Path("/admin/concurrency")
+    public ConcurrencyStats getConcurrencyStats() {
+        return meterService.getConcurrencyStats();
+    }
+
+    @GET
+    @Produces(APPLICATION_JSON)
+    @Path("/admin/tuning")
+    public MeterTuning getPluginTuning() {
+        return configurationHandler.getPluginTuning();
+    }
+
+    @GET
+    @Produces(APPLICATION_JSON)
+    @Path("/admin/tuning/tenant/{tenantId}")
+    public MeterTuning getTenantTuning(@PathParam("tenantId") final String tenantId) {
+        return configurationHandler.getTuning(UUID.fromString(tenantId));
+    }
+
+    /**
+     * Applies tuning properties, keyed by their full names, over the plugin-wide tuning until the next restart.
+     */
+    @POST
+    @Produces(APPLICATION_JSON)
+    @Path("/admin/tuning")
+    public Result updatePluginTuning(@Body final Map<String, String> settings) {
+        final Properties properties = new Properties();
+        properties.putAll(settings);
+        try {
+            return Results.with(configurationHandler.updatePluginTuning(properties));
+        } catch (final IllegalArgumentException e) {
+            log.error("Error :: {}", e.getMessage());
+            return Results.with(e.getMessage(), Status.BAD_REQUEST);
+        }
+    }
+
+    @GET
+    @Produces(APPLICATION_JSON)
+    @Path("/admin/dedup")
+    public DeduplicationStats getDeduplicationStats() {
+        return meterService.getDeduplicationStats();
+    }
+
+    @GET
+    @Produces(APPLICATION_JSON)
+    @Path("/admin/dead-letters")
+    public List<UsagePushRetry> getDeadLetters() {
+        return meterService.getDeadLetters();
+    }
+
+    @POST
+    @Path("/admin/dead-letters/{id}/requeue")
+    public void requeueDeadLetter(@PathParam("id") final long id) {
+        meterService.requeueDeadLetter(id);
+    }
+
+    @GET
+    @Produces(APPLICATION_JSON)
+    @Path("/admin/backfill/dead-letters")
+    public List<BackfillTask> getBackfillDeadLetters() {
+        return backfillWorker.getDeadLetters();
+    }
+
+    @POST
+    @Path("/admin/backfill/dead-letters/{id}/requeue")
+    public void requeueBackfillDeadLetter(@PathParam("id") final long id) {
+        backfillWorker.requeue(id);
+    }
+
+    @GET
+    @Produces(APPLICATION_JSON)
+    @Path("/admin/killbill-apis")
+    public List<ApiGuardStats> getKillbillApiStats() {
+        return meterService.getKillbillApiStats();
+    }
+
+    @GET
+    @Produces(APPLICATION_JSON)
+    @Path("/admin/admission")
+    public AdmissionStats getAdmissionStats() {
+        return admissionController.getStats();
+    }
+
+    @GET
+    @Produces(APPLICATION_JSON)
+    @Path("/admin/replica")
+    public ReplicaStats getReplicaStats() {
+        return replicaRouter.getStats();
+    }
 }
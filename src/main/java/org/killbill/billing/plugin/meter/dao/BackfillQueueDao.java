@@ -0,0 +1,226 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.dao;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.meter.entity.BackfillTask;
+import org.killbill.billing.plugin.meter.mapper.BackfillTaskMapper;
+import org.killbill.billing.plugin.meter.mapper.UtcTimestamps;
+import org.killbill.billing.plugin.meter.profiling.QueryProfiler;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.Update;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Durable queue of invoices to backfill. Rows are claimed with a version check, so several workers (or nodes) can
+ * poll the same table without charging an invoice twice at the same time; a claim older than the claim timeout is
+ * considered abandoned and can be taken over. Tasks that ran out of attempts stay as dead letters until requeued.
+ */
+@Slf4j
+public class BackfillQueueDao {
+
+    private static final String COLUMNS = "id, tenant_id, invoice_id, status, attempts, last_error, available_at, claimed_at, version";
+
+    private final DBI dbi;
+    private final QueryProfiler queryProfiler;
+
+    public BackfillQueueDao(final DataSource dataSource, final QueryProfiler queryProfiler) {
+        this.dbi = new DBI(dataSource);
+        this.queryProfiler = queryProfiler;
+        dbi.setTimingCollector(queryProfiler);
+    }
+
+    /**
+     * Queues an invoice unless it is queued already.
+     *
+     * @return whether a new entry was created
+     */
+    public boolean enqueue(final String tenantId, final String invoiceId, final DateTime now) {
+        final String sql = "INSERT INTO backfill_queue (tenant_id, invoice_id, status, attempts, available_at, version) " +
+                           "VALUES (:tenantId, :invoiceId, '" + BackfillTask.PENDING + "', 0, :now, 0)";
+        try (final Handle handle = open()) {
+            return execute(handle.createStatement(sql)
+                                 .bind("tenantId", tenantId)
+                                 .bind("invoiceId", invoiceId)
+                                 .bind("now", UtcTimestamps.argument(now))) == 1;
+        } catch (final UnableToExecuteStatementException e) {
+            if (isDuplicateKey(e)) {
+                // Kill Bill redelivered the event or reconciliation got there first
+                return false;
+            }
+            log.error("Error :: {}", e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * Claims up to {@code limit} tasks that are due, or whose claim is older than {@code staleBefore}. Tasks another
+     * worker claimed in between are skipped.
+     */
+    public List<BackfillTask> claim(final int limit, final DateTime now, final DateTime staleBefore) {
+        final String select = "SELECT " + COLUMNS + " FROM backfill_queue " +
+                              "WHERE (status = '" + BackfillTask.PENDING + "' AND available_at <= :now) " +
+                              "OR (status = '" + BackfillTask.CLAIMED + "' AND claimed_at < :staleBefore) " +
+                              "ORDER BY available_at " +
+                              "LIMIT " + limit;
+        final String update = "UPDATE backfill_queue " +
+                              "SET status = '" + BackfillTask.CLAIMED + "', claimed_at = :now, attempts = attempts + 1, " +
+                              "version = version + 1, updated_on = CURRENT_TIMESTAMP " +
+                              "WHERE id = :id AND version = :version";
+        try (final Handle handle = open()) {
+            final List<BackfillTask> claimed = new ArrayList<>();
+            for (final BackfillTask task : list(handle.createQuery(select)
+                                                      .bind("now", UtcTimestamps.argument(now))
+                                                      .bind("staleBefore", UtcTimestamps.argument(staleBefore))
+                                                      .map(new BackfillTaskMapper()))) {
+                if (execute(handle.createStatement(update)
+                                  .bind("now", UtcTimestamps.argument(now))
+                                  .bind("id", task.getId())
+                                  .bind("version", task.getVersion())) == 1) {
+                    claimed.add(task.setStatus(BackfillTask.CLAIMED)
+                                    .setClaimedAt(now)
+                                    .setAttempts(task.getAttempts() + 1)
+                                    .setVersion(task.getVersion() + 1));
+                }
+            }
+            return claimed;
+        } catch (final Exception e) {
+            log.error("Error :: {}", e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * Removes a task its worker finished, as long as the claim was not taken over meanwhile.
+     */
+    public boolean complete(final BackfillTask task) {
+        try (final Handle handle = open()) {
+            return execute(handle.createStatement("DELETE FROM backfill_queue WHERE id = :id AND version = :version")
+                                 .bind("id", task.getId())
+                                 .bind("version", task.getVersion())) == 1;
+        } catch (final Exception e) {
+            log.error("Error :: {}", e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * Hands a failed task back to the queue, due again at {@code availableAt}.
+     */
+    public boolean release(final BackfillTask task, final DateTime availableAt, final String error) {
+        final String sql = "UPDATE backfill_queue " +
+                           "SET status = '" + BackfillTask.PENDING + "', available_at = :availableAt, claimed_at = NULL, " +
+                           "last_error = :lastError, version = version + 1, updated_on = CURRENT_TIMESTAMP " +
+                           "WHERE id = :id AND version = :version";
+        try (final Handle handle = open()) {
+            return execute(handle.createStatement(sql)
+                                 .bind("availableAt", UtcTimestamps.argument(availableAt))
+                                 .bind("lastError", error)
+                                 .bind("id", task.getId())
+                                 .bind("version", task.getVersion())) == 1;
+        } catch (final Exception e) {
+            log.error("Error :: {}", e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * Turns a task that ran out of attempts into a dead letter, which is no longer claimed.
+     */
+    public boolean bury(final BackfillTask task, final String error) {
+        final String sql = "UPDATE backfill_queue " +
+                           "SET status = '" + BackfillTask.DEAD + "', claimed_at = NULL, last_error = :lastError, " +
+                           "version = version + 1, updated_on = CURRENT_TIMESTAMP " +
+                           "WHERE id = :id AND version = :version";
+        try (final Handle handle = open()) {
+            return execute(handle.createStatement(sql)
+                                 .bind("lastError", error)
+                                 .bind("id", task.getId())
+                                 .bind("version", task.getVersion())) == 1;
+        } catch (final Exception e) {
+            log.error("Error :: {}", e.getMessage());
+            throw e;
+        }
+    }
+
+    public List<BackfillTask> getDeadLetters() {
+        try (final Handle handle = open()) {
+            return list(handle.createQuery("SELECT " + COLUMNS + " FROM backfill_queue WHERE status = '" + BackfillTask.DEAD + "' ORDER BY id")
+                              .map(new BackfillTaskMapper()));
+        } catch (final Exception e) {
+            log.error("Error :: {}", e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * Makes a dead letter due again with a fresh attempt budget.
+     *
+     * @return false when there is no dead letter with that id
+     */
+    public boolean requeue(final long id, final DateTime now) {
+        final String sql = "UPDATE backfill_queue " +
+                           "SET status = '" + BackfillTask.PENDING + "', attempts = 0, available_at = :now, " +
+                           "version = version + 1, updated_on = CURRENT_TIMESTAMP " +
+                           "WHERE id = :id AND status = '" + BackfillTask.DEAD + "'";
+        try (final Handle handle = open()) {
+            return execute(handle.createStatement(sql)
+                                 .bind("now", UtcTimestamps.argument(now))
+                                 .bind("id", id)) == 1;
+        } catch (final Exception e) {
+            log.error("Error :: {}", e.getMessage());
+            throw e;
+        }
+    }
+
+    private static boolean isDuplicateKey(final UnableToExecuteStatementException e) {
+        // SQLSTATE class 23 is an integrity constraint violation on MySQL, H2 and PostgreSQL alike
+        return e.getCause() instanceof SQLException
+               && ((SQLException) e.getCause()).getSQLState() != null
+               && ((SQLException) e.getCause()).getSQLState().startsWith("23");
+    }
+
+    private Handle open() {
+        final long start = System.nanoTime();
+        final Handle handle = dbi.open();
+        queryProfiler.recordCheckout(System.nanoTime() - start);
+        return handle;
+    }
+
+    private <T> List<T> list(final Query<T> query) {
+        final List<T> result = query.list();
+        queryProfiler.recordRows(result.size());
+        return result;
+    }
+
+    private int execute(final Update update) {
+        final int rows = update.execute();
+        queryProfiler.recordRows(rows);
+        return rows;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.dao;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+
+/**
+ * Integer surrogates of the subscription ids and unit types stored in {@code raw_usage}, kept in {@code raw_usage_key}.
+ * The same few units and one id per subscription repeat on every row, so rows and their indexes carry a 4-byte key
+ * instead of up to 255 characters. Queries join the table back to return the values; writes and filters look the
+ * surrogates up here, where the most recently used ones are cached per kind.
+ */
+class KeyDictionary {
+
+    static final int CACHE_SIZE = 100_000;
+
+    enum Kind {
+        SUBSCRIPTION(1),
+        UNIT(2);
+
+        private final int code;
+
+        Kind(final int code) {
+            this.code = code;
+        }
+    }
+
+    private static final String FIND = "SELECT id FROM raw_usage_key WHERE kind = :kind AND key_value = :value";
+
+    private final DBI dbi;
+    private final Map<Kind, Map<String, Integer>> caches = new EnumMap<>(Kind.class);
+
+    KeyDictionary(final DBI dbi) {
+        this.dbi = dbi;
+        for (final Kind kind : Kind.values()) {
+            caches.put(kind, Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, Integer> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            }));
+        }
+    }
+
+    /**
+     * The surrogate of a value, null when it was never stored, in which case no row can match it.
+     */
+    Integer find(final Handle handle, final Kind kind, final String value) {
+        final Map<String, Integer> cache = caches.get(kind);
+        final Integer cached = cache.get(value);
+        if (cached != null) {
+            return cached;
+        }
+        final Integer id = select(handle, kind, value);
+        if (id != null) {
+            cache.put(value, id);
+        }
+        return id;
+    }
+
+    /**
+     * The surrogate of a value, added when new. New values are added on a connection of their own and committed right
+     * away: a caller's transaction that rolls back must not take away a surrogate that is already cached.
+     */
+    int resolve(final Kind kind, final String value) {
+        final Map<String, Integer> cache = caches.get(kind);
+        final Integer cached = cache.get(value);
+        if (cached != null) {
+            return cached;
+        }
+        try (final Handle handle = dbi.open()) {
+            Integer id = select(handle, kind, value);
+            if (id == null) {
+                try {
+                    handle.createStatement("INSERT INTO raw_usage_key (kind, key_value) VALUES (:kind, :value)")
+                          .bind("kind", kind.code)
+                          .bind("value", value)
+                          .execute();
+                } catch (final UnableToExecuteStatementException e) {
+                    // Added by another node or thread in the meantime
+                    if (!RawUsageDao.isIntegrityViolation(e)) {
+                        throw e;
+                    }
+                }
+                id = select(handle, kind, value);
+            }
+            cache.put(value, id);
+            return id;
+        }
+    }
+
+    private static Integer select(final Handle handle, final Kind kind, final String value) {
+        return handle.createQuery(FIND)
+                     .bind("kind", kind.code)
+                     .bind("value", value)
+                     .mapTo(Integer.class)
+                     .first();
+    }
+}
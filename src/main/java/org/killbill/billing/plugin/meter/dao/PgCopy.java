@@ -0,0 +1,135 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.dao;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Rows for a PostgreSQL {@code COPY ... FROM STDIN WITH (FORMAT csv)}, written as CSV and streamed in one round trip.
+ * Text is always quoted so that an unquoted empty field can stand for NULL.
+ * <p>
+ * The driver's {@code CopyManager} is reached reflectively through the unwrapped connection, so the plugin neither
+ * depends on nor imports the PostgreSQL driver and runs unchanged on MySQL.
+ */
+final class PgCopy {
+
+    private static final String PG_CONNECTION = "org.postgresql.PGConnection";
+    // Record dates are UTC wall-clock timestamps without time zone, see UtcTimestamps
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss.SSS").withZoneUTC();
+
+    private final StringBuilder data = new StringBuilder();
+    private boolean firstField = true;
+    private int rows;
+
+    PgCopy text(final String value) {
+        separate();
+        if (value != null) {
+            data.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                if (c == '"') {
+                    data.append('"');
+                }
+                data.append(c);
+            }
+            data.append('"');
+        }
+        return this;
+    }
+
+    PgCopy number(final Object value) {
+        separate();
+        if (value instanceof BigDecimal) {
+            data.append(((BigDecimal) value).toPlainString());
+        } else if (value != null) {
+            data.append(value);
+        }
+        return this;
+    }
+
+    PgCopy timestamp(final DateTime value) {
+        separate();
+        if (value != null) {
+            TIMESTAMP.printTo(data, value);
+        }
+        return this;
+    }
+
+    PgCopy endRow() {
+        data.append('\n');
+        firstField = true;
+        rows++;
+        return this;
+    }
+
+    int rows() {
+        return rows;
+    }
+
+    /**
+     * Streams the rows with {@code copySql}, which must read CSV from STDIN.
+     *
+     * @return rows copied
+     */
+    long copyIn(final Connection connection, final String copySql) throws SQLException {
+        return copyIn(connection, copySql, new StringReader(data.toString()));
+    }
+
+    private void separate() {
+        if (!firstField) {
+            data.append(',');
+        }
+        firstField = false;
+    }
+
+    private static long copyIn(final Connection connection, final String copySql, final Reader reader) throws SQLException {
+        // Pools hand out proxies: the driver connection, and the driver classes with it, sit behind them
+        final Connection driverConnection = connection.unwrap(Connection.class);
+        final Object copyManager;
+        try {
+            final Class<?> pgConnection = Class.forName(PG_CONNECTION, false, driverConnection.getClass().getClassLoader());
+            copyManager = pgConnection.getMethod("getCopyAPI").invoke(connection.unwrap(pgConnection));
+        } catch (final ReflectiveOperationException e) {
+            throw new SQLFeatureNotSupportedException("COPY needs a PostgreSQL driver connection", e);
+        }
+        try {
+            return (Long) copyManager.getClass().getMethod("copyIn", String.class, Reader.class).invoke(copyManager, copySql, reader);
+        } catch (final InvocationTargetException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            if (e.getCause() instanceof IOException) {
+                throw new SQLException("COPY failed", e.getCause());
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (final ReflectiveOperationException e) {
+            throw new SQLFeatureNotSupportedException("COPY needs a PostgreSQL driver connection", e);
+        }
+    }
+}
@@ -17,165 +17,507 @@
 
 package org.killbill.billing.plugin.meter.dao;
 
+import java.math.BigDecimal;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.IntToLongFunction;
 import java.util.stream.Collectors;
 
 import javax.sql.DataSource;
 
 import org.joda.time.DateTime;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.dao.KeyDictionary.Kind;
 import org.killbill.billing.plugin.meter.dto.AggregatedUsage;
+import org.killbill.billing.plugin.meter.dto.DailyUsage;
 import org.killbill.billing.plugin.meter.dto.InvoiceTenant;
 import org.killbill.billing.plugin.meter.entity.RawUsage;
+import org.killbill.billing.plugin.meter.exception.DuplicateUsageException;
 import org.killbill.billing.plugin.meter.exception.ResourceNotFoundException;
+import org.killbill.billing.plugin.meter.exception.VersionConflictException;
+import org.killbill.billing.plugin.meter.mapper.AggregatedUsageMapper;
+import org.killbill.billing.plugin.meter.mapper.BinaryUuids;
+import org.killbill.billing.plugin.meter.mapper.DailyUsageMapper;
 import org.killbill.billing.plugin.meter.mapper.InvoiceTenantMapper;
 import org.killbill.billing.plugin.meter.mapper.RawUsageMapper;
+import org.killbill.billing.plugin.meter.mapper.UtcTimestamps;
+import org.killbill.billing.plugin.meter.profiling.QueryProfiler;
+import org.killbill.billing.plugin.meter.tuning.MeterTuning;
+import org.killbill.billing.plugin.meter.workset.ChargeRows;
+import org.killbill.billing.plugin.meter.workset.UsageKeys;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.PreparedBatch;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.Update;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
 
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class RawUsageDao {
 
+     private static final String INSERT_RAW_USAGE = "INSERT INTO raw_usage (tenant_id, subscription_key, tracking_id, unit_key, " +
+                                                    "record_date, amount, charges, version) " +
+                                                    "VALUES (:tenantId, :subscriptionKey, :trackingId, :unitKey, " +
+                                                    ":recordDate, :amount, :charges, :version)";
+     private static final String COPY_RAW_USAGE = "COPY raw_usage (tenant_id, subscription_key, tracking_id, unit_key, " +
+                                                  "record_date, amount, charges, version) FROM STDIN WITH (FORMAT csv)";
+     // Row columns under their external names, the subscription id and unit type joined back from their surrogates
+     private static final String RAW_USAGE_COLUMNS = "raw_usage.id, raw_usage.tenant_id, subscriptions.key_value AS subscription_id, " +
+                                                     "raw_usage.aggregated_id, raw_usage.tracking_id, units.key_value AS unit_type, " +
+                                                     "raw_usage.record_date, raw_usage.amount, raw_usage.charges, raw_usage.tier, " +
+                                                     "raw_usage.version";
+     private static final String JOIN_KEYS = "JOIN raw_usage_key subscriptions ON subscriptions.id = raw_usage.subscription_key " +
+                                             "JOIN raw_usage_key units ON units.id = raw_usage.unit_key ";
+     // Keys are made distinct before the join, on the narrow columns
+     private static final String UNAGGREGATED_KEYS = "SELECT raw_usage.tenant_id, subscriptions.key_value AS subscription_id, " +
+                                                     "units.key_value AS unit_type FROM (" +
+                                                     "SELECT DISTINCT tenant_id, subscription_key, unit_key FROM raw_usage " +
+                                                     "WHERE charges IS NULL AND aggregated_id IS NULL) raw_usage " + JOIN_KEYS;
+     // Session-local, so concurrent work items each stage into their own
+     private static final String CREATE_CHARGES_STAGING = "CREATE TEMPORARY TABLE IF NOT EXISTS raw_usage_charges_staging " +
+                                                          "(id bigint, version bigint, charges numeric(24, 12), tier int) " +
+                                                          "ON COMMIT DELETE ROWS";
+     private static final String COPY_CHARGES_STAGING = "COPY raw_usage_charges_staging (id, version, charges, tier) " +
+                                                        "FROM STDIN WITH (FORMAT csv)";
+     private static final String UPDATE_FROM_CHARGES_STAGING = "UPDATE raw_usage " +
+                                                               "SET charges = s.charges, tier = s.tier, version = raw_usage.version + 1 " +
+                                                               "FROM raw_usage_charges_staging s " +
+                                                               "WHERE raw_usage.id = s.id AND raw_usage.version = s.version " +
+                                                               "RETURNING raw_usage.id";
+
      private final DBI dbi;
+     private final QueryProfiler queryProfiler;
+     private final ReplicaRouter replicaRouter;
+     private final DBI replicaDbi;
+     private final SqlDialect dialect;
+     private final Function<String, MeterTuning> tunings;
+     private final KeyDictionary keys;
+
      public RawUsageDao(DataSource dataSource){
-          dbi=new DBI(dataSource);
+          this(dataSource, new QueryProfiler());
+     }
+
+     public RawUsageDao(final DataSource dataSource, final QueryProfiler queryProfiler){
+          this(dataSource, queryProfiler, ReplicaRouter.disabled());
+     }
+
+     /**
+      * @param replicaRouter which of the read-only scans and lookups go to its replica, see {@link ReadRoute}
+      */
+     public RawUsageDao(final DataSource dataSource, final QueryProfiler queryProfiler, final ReplicaRouter replicaRouter){
+          this(dataSource, queryProfiler, replicaRouter, SqlDialect.detect(dataSource));
+     }
+
+     /**
+      * @param dialect how days are truncated, UUIDs bound and rows written in bulk on this database
+      */
+     public RawUsageDao(final DataSource dataSource, final QueryProfiler queryProfiler, final ReplicaRouter replicaRouter,
+                        final SqlDialect dialect){
+          this(dataSource, queryProfiler, replicaRouter, dialect, tenantId -> MeterTuning.DEFAULT);
      }
+
+     /**
+      * @param tunings batch sizes per tenant id, the plugin-wide tuning for a null tenant id, which also gives the fetch
+      *                size of the scans; looked up on every call so that changes apply to the next batch
+      */
+     public RawUsageDao(final DataSource dataSource, final QueryProfiler queryProfiler, final ReplicaRouter replicaRouter,
+                        final SqlDialect dialect, final Function<String, MeterTuning> tunings){
+          this.dbi = new DBI(dataSource);
+          this.queryProfiler = queryProfiler;
+          this.replicaRouter = replicaRouter;
+          this.dialect = dialect;
+          this.tunings = tunings;
+          this.keys = new KeyDictionary(dbi);
+          dbi.setTimingCollector(queryProfiler);
+          if (replicaRouter.isConfigured()) {
+               this.replicaDbi = new DBI(replicaRouter.getReplicaDataSource());
+               replicaDbi.setTimingCollector(queryProfiler);
+          } else {
+               this.replicaDbi = null;
+          }
+     }
+
      public void insertRawUsage(RawUsage rawUsage){
-         try (final Handle h = dbi.open()) {
-             h.createStatement("INSERT INTO `raw_usage` (\n" +
-                               "  `tenant_id`, \n" +
-                               "  `subscription_id`, \n" +
-                               "  `tracking_id`, \n" +
-                               "  `unit_type`, \n" +
-                               "  `record_date`, \n" +
-                               "  `amount`, \n" +
-                               "  `charges`, \n" +
-                               "  `version` \n" +
-                               ") VALUES (\n" +
-                               "  :tenantId, \n" +
-                               "  :subscriptionId, \n" +
-                               "  :trackingId, \n" +
-                               "  :unitType, \n" +
-                               "  :recordDate, \n" +
-                               "  :amount, \n" +
-                               "  :charges, \n" +
-                               "  :version \n"+
-                               ")")
-              .bind("tenantId", rawUsage.getTenantId())
-              .bind("subscriptionId", rawUsage.getSubscriptionId())
-              .bind("trackingId", rawUsage.getTrackingId())
-              .bind("unitType", rawUsage.getUnitType())
-              .bind("recordDate", rawUsage.getRecordDate())
-              .bind("amount", rawUsage.getAmount())
-              .bind("charges", rawUsage.getCharges())
-              .bind("version", 0)
-              .execute();
+         try (final Handle h = open()) {
+             insertRawUsage(h, rawUsage);
          } catch (final Exception e) {
              log.error("Error :: {}", e.getMessage());
              throw e;
          }
      }
 
+     /**
+      * @throws DuplicateUsageException when the (tenant, subscription, unit, tracking id) is stored already
+      */
+     void insertRawUsage(final Handle h, final RawUsage rawUsage){
+         try {
+             execute(h.createStatement(INSERT_RAW_USAGE)
+                      .bind("tenantId", dialect.uuid(rawUsage.getTenantId()))
+                      .bind("subscriptionKey", keys.resolve(Kind.SUBSCRIPTION, rawUsage.getSubscriptionId()))
+                      .bind("trackingId", rawUsage.getTrackingId())
+                      .bind("unitKey", keys.resolve(Kind.UNIT, rawUsage.getUnitType()))
+                      .bind("recordDate", UtcTimestamps.argument(rawUsage.getRecordDate()))
+                      .bind("amount", rawUsage.getAmount())
+                      .bind("charges", rawUsage.getCharges())
+                      .bind("version", 0));
+         } catch (final UnableToExecuteStatementException e) {
+             throw duplicateOr(e);
+         }
+     }
+
+     public void insertRawUsages(final List<RawUsage> rawUsages){
+         try (final Handle h = open()) {
+             insertRawUsages(h, rawUsages);
+         } catch (final Exception e) {
+             log.error("Error :: {}", e.getMessage());
+             throw e;
+         }
+     }
+
+    /**
+     * Inserts rows in bulk: one {@code COPY} on PostgreSQL, JDBC batches of the tenant's insert batch size elsewhere,
+     * which the MySQL driver turns into multi-row inserts when {@code rewriteBatchedStatements} is on.
+     *
+     * @throws DuplicateUsageException when one of the rows is stored already; nothing is inserted inside a
+     *                                 transaction, which the caller has to roll back
+     */
+    void insertRawUsages(final Handle h, final List<RawUsage> rawUsages){
+        try {
+            insertRawUsagesInBulk(h, rawUsages);
+        } catch (final UnableToExecuteStatementException e) {
+            throw duplicateOr(e);
+        }
+    }
+
+    private void insertRawUsagesInBulk(final Handle h, final List<RawUsage> rawUsages){
+        if (rawUsages.size() == 1) {
+            insertRawUsage(h, rawUsages.get(0));
+            return;
+        }
+        if (rawUsages.isEmpty()) {
+            return;
+        }
+
+        if (dialect.supportsCopy()) {
+            final PgCopy copy = new PgCopy();
+            for (final RawUsage rawUsage : rawUsages) {
+                copy.text(rawUsage.getTenantId())
+                    .number(keys.resolve(Kind.SUBSCRIPTION, rawUsage.getSubscriptionId()))
+                    .text(rawUsage.getTrackingId())
+                    .number(keys.resolve(Kind.UNIT, rawUsage.getUnitType()))
+                    .timestamp(rawUsage.getRecordDate())
+                    .number(rawUsage.getAmount())
+                    .number(rawUsage.getCharges())
+                    .number(0)
+                    .endRow();
+            }
+            copyIn(h, copy, COPY_RAW_USAGE);
+            return;
+        }
+
+        final int batchSize = tunings.apply(rawUsages.get(0).getTenantId()).getInsertBatchSize();
+        PreparedBatch batch = h.prepareBatch(INSERT_RAW_USAGE);
+        int batched = 0;
+        for (final RawUsage rawUsage : rawUsages) {
+            batch.bind("tenantId", dialect.uuid(rawUsage.getTenantId()))
+                 .bind("subscriptionKey", keys.resolve(Kind.SUBSCRIPTION, rawUsage.getSubscriptionId()))
+                 .bind("trackingId", rawUsage.getTrackingId())
+                 .bind("unitKey", keys.resolve(Kind.UNIT, rawUsage.getUnitType()))
+                 .bind("recordDate", UtcTimestamps.argument(rawUsage.getRecordDate()))
+                 .bind("amount", rawUsage.getAmount())
+                 .bind("charges", rawUsage.getCharges())
+                 .bind("version", 0)
+                 .add();
+            if (++batched == batchSize) {
+                queryProfiler.recordRows(batch.execute().length);
+                batch = h.prepareBatch(INSERT_RAW_USAGE);
+                batched = 0;
+            }
+        }
+        if (batched > 0) {
+            queryProfiler.recordRows(batch.execute().length);
+        }
+    }
+
+    /**
+     * Adds a pre-aggregated amount to the open (not yet aggregated) row of its bucket, creating the row when there is
+     * none. Buckets are identified by their tracking id; once aggregation claims a row, the next flush opens a new one
+     * whose tracking id gets the number of the bucket's row as a suffix, keeping tracking ids unique.
+     */
+    void addPreAggregatedUsage(final Handle handle, final RawUsage rawUsage) {
+        final String sql = "UPDATE raw_usage " +
+                           "SET amount = amount + :amount, " +
+                           "record_date = GREATEST(record_date, :recordDate), " +
+                           "version = version + 1 " +
+                           "WHERE tenant_id = :tenantId " +
+                           "AND subscription_key = :subscriptionKey " +
+                           "AND unit_key = :unitKey " +
+                           "AND tracking_id LIKE :trackingIdPrefix " +
+                           "AND aggregated_id IS NULL";
+        final int subscriptionKey = keys.resolve(Kind.SUBSCRIPTION, rawUsage.getSubscriptionId());
+        final int unitKey = keys.resolve(Kind.UNIT, rawUsage.getUnitType());
+        final int updated = execute(handle.createStatement(sql)
+                                          .bind("amount", rawUsage.getAmount())
+                                          .bind("recordDate", UtcTimestamps.argument(rawUsage.getRecordDate()))
+                                          .bind("tenantId", dialect.uuid(rawUsage.getTenantId()))
+                                          .bind("trackingIdPrefix", rawUsage.getTrackingId() + "%")
+                                          .bind("subscriptionKey", subscriptionKey)
+                                          .bind("unitKey", unitKey));
+        if (updated == 0) {
+            final Integer rows = handle.createQuery("SELECT COUNT(*) FROM raw_usage " +
+                                                    "WHERE tenant_id = :tenantId AND subscription_key = :subscriptionKey " +
+                                                    "AND unit_key = :unitKey AND tracking_id LIKE :trackingIdPrefix")
+                                       .bind("tenantId", dialect.uuid(rawUsage.getTenantId()))
+                                       .bind("subscriptionKey", subscriptionKey)
+                                       .bind("unitKey", unitKey)
+                                       .bind("trackingIdPrefix", rawUsage.getTrackingId() + "%")
+                                       .mapTo(Integer.class)
+                                       .first();
+            queryProfiler.recordRows(1);
+            insertRawUsage(handle, rows == null || rows == 0 ? rawUsage
+                                                             : copyOf(rawUsage).setTrackingId(rawUsage.getTrackingId() + "-" + (rows + 1)));
+        }
+    }
+
+    /**
+     * Units already stored under a tracking id, to tell which usage of a retried request is new.
+     */
+    Set<String> getStoredUnitTypes(final Handle handle, final String tenantId, final String subscriptionId, final String trackingId) {
+        final Integer subscriptionKey = keys.find(handle, Kind.SUBSCRIPTION, subscriptionId);
+        if (subscriptionKey == null) {
+            return new HashSet<>();
+        }
+        return new HashSet<>(list(handle.createQuery("SELECT units.key_value FROM raw_usage " +
+                                                     "JOIN raw_usage_key units ON units.id = raw_usage.unit_key " +
+                                                     "WHERE raw_usage.tenant_id = :tenantId AND raw_usage.tracking_id = :trackingId " +
+                                                     "AND raw_usage.subscription_key = :subscriptionKey")
+                                        .bind("tenantId", dialect.uuid(tenantId))
+                                        .bind("trackingId", trackingId)
+                                        .bind("subscriptionKey", subscriptionKey)
+                                        .mapTo(String.class)));
+    }
+
     public List<RawUsage> getUniqueUnAggregatedUsage() {
-        try (final Handle handle = dbi.open()) {
-            return handle.createQuery("select distinct `tenant_id`, `subscription_id`, `unit_type` from `raw_usage` " +
-                                      "where `charges` is NULL and `aggregated_id` is NULL")
-                         .map(new RawUsageMapper())
-                         .list();
+        try (final Handle handle = open(ReadRoute.SCAN)) {
+            return getUniqueUnAggregatedUsage(handle);
         } catch (final Exception e) {
             log.error("Error :: {}", e.getMessage());
             throw e;
         }
     }
 
-    public void fillAggregationId(final RawUsage rawUsage, final UUID uuid,final UUID prev) {
-        try (final Handle handle = dbi.open()) {
-            final String sql = "UPDATE raw_usage " +
-                               "SET aggregated_id = CASE " +
-                               "WHEN DATE(record_date) = CURDATE() THEN :aggregationId " +
-                               "ELSE :prevId " +
-                               "END " +
-                               "WHERE tenant_id = :tenantId " +
-                               "AND subscription_id = :subscriptionId " +
-                               "AND unit_type = :unitType " +
-                               "AND aggregated_id IS NULL";
-
-            handle.createStatement(sql)
-                  .bind("aggregationId", String.valueOf(uuid))
-                  .bind("tenantId", rawUsage.getTenantId())
-                  .bind("subscriptionId", rawUsage.getSubscriptionId())
-                  .bind("unitType", rawUsage.getUnitType())
-                  .bind("prevId", String.valueOf(prev))
-                  .execute();
+    List<RawUsage> getUniqueUnAggregatedUsage(final Handle handle) {
+        return list(scan(handle.createQuery(UNAGGREGATED_KEYS))
+                          .map(new RawUsageMapper()));
+    }
+
+    public UsageKeys getUnaggregatedKeys() {
+        try (final Handle handle = open(ReadRoute.SCAN)) {
+            return getUnaggregatedKeys(handle);
         } catch (final Exception e) {
             log.error("Error :: {}", e.getMessage());
             throw e;
         }
     }
 
+    /**
+     * Same keys as {@link #getUniqueUnAggregatedUsage(Handle)}, folded straight from the result set into a compact
+     * {@link UsageKeys} without a row object per key.
+     */
+    UsageKeys getUnaggregatedKeys(final Handle handle) {
+        final UsageKeys usageKeys = scan(handle.createQuery(UNAGGREGATED_KEYS))
+                                          .fold(new UsageKeys(), (folded, r, ctx) -> {
+                                              folded.add(BinaryUuids.read(r, RawUsageMapper.TENANT_ID),
+                                                         r.getString(RawUsageMapper.SUBSCRIPTION_ID),
+                                                         r.getString(RawUsageMapper.UNIT_TYPE));
+                                              return folded;
+                                          });
+        queryProfiler.recordRows(usageKeys.size());
+        return usageKeys;
+    }
+
+    public int fillAggregationId(final RawUsage rawUsage, final UUID uuid,final UUID prev) {
+        try (final Handle handle = open()) {
+            return fillAggregationId(handle, rawUsage, uuid, prev);
+        } catch (final Exception e) {
+            log.error("Error :: {}", e.getMessage());
+            throw e;
+        } finally {
+            replicaRouter.pipelineWritten();
+        }
+    }
+
+    /**
+     * Claims the not yet aggregated rows of a (tenant, subscription, unit). The {@code aggregated_id IS NULL} guard is
+     * the compare-and-set: a worker that lost the race updates nothing, which the returned row count tells apart.
+     */
+    int fillAggregationId(final Handle handle, final RawUsage rawUsage, final UUID uuid,final UUID prev) {
+        return fillAggregationId(handle, rawUsage.getTenantId(), rawUsage.getSubscriptionId(), rawUsage.getUnitType(), uuid, prev);
+    }
+
+    int fillAggregationId(final Handle handle, final String tenantId, final String subscriptionId, final String unitType,
+                          final UUID uuid, final UUID prev) {
+        // "Today" is the UTC day, like the stored record dates
+        final DateTime startOfToday = new DateTime(DateTimeZone.UTC).withTimeAtStartOfDay();
+        final String sql = "UPDATE raw_usage " +
+                           "SET aggregated_id = CASE " +
+                           "WHEN record_date >= :startOfToday AND record_date < :startOfTomorrow THEN :aggregationId " +
+                           "ELSE :prevId " +
+                           "END, " +
+                           "version = version + 1 " +
+                           "WHERE tenant_id = :tenantId " +
+                           "AND subscription_key = :subscriptionKey " +
+                           "AND unit_key = :unitKey " +
+                           "AND aggregated_id IS NULL";
+        final Integer subscriptionKey = keys.find(handle, Kind.SUBSCRIPTION, subscriptionId);
+        final Integer unitKey = keys.find(handle, Kind.UNIT, unitType);
+        if (subscriptionKey == null || unitKey == null) {
+            return 0;
+        }
+
+        return execute(handle.createStatement(sql)
+                      .bind("aggregationId", dialect.uuid(String.valueOf(uuid)))
+                      .bind("tenantId", dialect.uuid(tenantId))
+                      .bind("subscriptionKey", subscriptionKey)
+                      .bind("unitKey", unitKey)
+                      .bind("prevId", dialect.uuid(String.valueOf(prev)))
+                      .bind("startOfToday", UtcTimestamps.argument(startOfToday))
+                      .bind("startOfTomorrow", UtcTimestamps.argument(startOfToday.plusDays(1))));
+    }
+
     public List<RawUsage> getUnbilledAggregationIds() {
-        try (final Handle handle = dbi.open()) {
-            final String sql = "select distinct `aggregated_id`, `subscription_id` , `tenant_id`, `unit_type` from `raw_usage`" +
-                               "where `charges` is NULL and `aggregated_id` is NOT NULL";
+        try (final Handle handle = open(ReadRoute.SCAN)) {
+            return getUnbilledAggregationIds(handle);
+        } catch (final Exception e) {
+            log.error("Error :: {}", e.getMessage());
+            throw e;
+        }
+    }
 
-            return handle.createQuery(sql)
-                         .map(new RawUsageMapper())
-                         .list();
+    List<RawUsage> getUnbilledAggregationIds(final Handle handle) {
+        // One row per rollup: the units of a subscription share its aggregation ids and are pushed together
+        final String sql = "SELECT raw_usage.aggregated_id, subscriptions.key_value AS subscription_id, raw_usage.tenant_id FROM (" +
+                           "SELECT DISTINCT aggregated_id, subscription_key, tenant_id FROM raw_usage " +
+                           "WHERE charges IS NULL AND aggregated_id IS NOT NULL) raw_usage " +
+                           "JOIN raw_usage_key subscriptions ON subscriptions.id = raw_usage.subscription_key";
+
+        return list(scan(handle.createQuery(sql))
+                          .map(new RawUsageMapper()));
+    }
+
+    public List<AggregatedUsage> getUsageSumsByUnit(final String aggregationId) {
+        try (final Handle handle = open()) {
+            return getUsageSumsByUnit(handle, aggregationId);
         } catch (final Exception e) {
             log.error("Error :: {}", e.getMessage());
             throw e;
         }
     }
 
-    public AggregatedUsage getUsageSum(final RawUsage subscriptionUsage) {
-            try (final Handle handle = dbi.open()) {
-                final String sql = "SELECT SUM(amount) AS total_amount, MAX(record_date) AS max_record_date FROM raw_usage WHERE aggregated_id = :aggregationId ";
-
-                return handle.createQuery(sql)
-                             .bind("aggregationId", subscriptionUsage.getAggregationId())
-                             .map((index, r, ctx) -> {
-                                 // Check if the column "total_amount" is present
-                                 final AggregatedUsage aggregatedUsage=new AggregatedUsage();
-                                 try {
-                                     r.findColumn("total_amount");
-                                     aggregatedUsage.setSum(r.getBigDecimal("total_amount"));
-                                     r.findColumn("max_record_date");
-                                     final DateTimeFormatter formatter = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss");
-                                     final DateTime dateTime = DateTime.parse(r.getString("max_record_date"), formatter);
-                                     aggregatedUsage.setMaxRecordDate(dateTime);
-                                     return aggregatedUsage;
-                                 } catch (final SQLException e) {
-                                     // Column "total_amount" is not present, return 0.0
-                                     log.error("Error :: {}",e.getMessage());
-                                     throw e;
-                                 }
-                             })
-                             .first(); // We expect a single result
-            } catch (final Exception e) {
-                log.error("Error :: {}", e.getMessage());
-                throw new RuntimeException(e);
-            }
+    /**
+     * Sum and latest record date of every unit rolled up under one aggregation id, in a single grouped query.
+     */
+    List<AggregatedUsage> getUsageSumsByUnit(final Handle handle, final String aggregationId) {
+        final String sql = "SELECT units.key_value AS unit_type, sums.total_amount, sums.max_record_date FROM (" +
+                           "SELECT unit_key, SUM(amount) AS total_amount, MAX(record_date) AS max_record_date " +
+                           "FROM raw_usage WHERE aggregated_id = :aggregationId GROUP BY unit_key) sums " +
+                           "JOIN raw_usage_key units ON units.id = sums.unit_key";
+        return list(handle.createQuery(sql)
+                          .bind("aggregationId", dialect.uuid(aggregationId))
+                          .map(new AggregatedUsageMapper()));
     }
 
     public List<InvoiceTenant> getNonBackfilledInvoices() {
+        try (final Handle handle = open(ReadRoute.SCAN)) {
+            return getNonBackfilledInvoices(handle);
+        } catch (final Exception e) {
+            log.error("Error :: {}", e.getMessage());
+            throw e;
+        }
+    }
+
+    List<InvoiceTenant> getNonBackfilledInvoices(final Handle handle) {
         final String sql = "SELECT invoice_tracking_ids.invoice_id as invoice_id, tenants.id as tenant_id\n" +
                            "FROM invoice_tracking_ids \n" +
                            "JOIN tenants ON tenants.record_id = invoice_tracking_ids.tenant_record_id \n" +
                            "WHERE invoice_tracking_ids.tracking_id IN (\n" +
-                           "    SELECT DISTINCT aggregated_id \n" +
+                           "    SELECT DISTINCT " + dialect.uuidText("aggregated_id") + " \n" +
                            "    FROM raw_usage \n" +
                            "    WHERE aggregated_id IS NOT NULL AND charges IS NULL\n" +
                            ");";
-        try (final Handle handle = dbi.open()) {
-            return handle.createQuery(sql)
-                         .map(new InvoiceTenantMapper())
-                         .list();
+        return list(scan(handle.createQuery(sql))
+                          .map(new InvoiceTenantMapper()));
+    }
+
+    /**
+     * One page, in invoice id order, of the active invoices of a tenant that charged usage matching the filters.
+     *
+     * @param subscriptionIds only usage of these subscriptions, all when empty
+     * @param from            only usage recorded at or after, unbounded when null
+     * @param to              only usage recorded before, unbounded when null
+     * @param afterInvoiceId  last invoice id of the previous page, null for the first one
+     */
+    public List<InvoiceTenant> getChargedInvoices(final String tenantId, final List<String> subscriptionIds, final DateTime from,
+                                                  final DateTime to, final String afterInvoiceId, final int limit) {
+        if (!BinaryUuids.isUuid(tenantId)) {
+            return new ArrayList<>();
+        }
+        try (final Handle handle = open(ReadRoute.SCAN)) {
+            final List<Integer> subscriptionKeys = findAll(handle, Kind.SUBSCRIPTION, subscriptionIds);
+            if (!subscriptionIds.isEmpty() && subscriptionKeys.isEmpty()) {
+                return new ArrayList<>();
+            }
+            // Kill Bill keeps tracking ids as text; they are converted rather than aggregated_id so its index is used
+            final StringBuilder sql = new StringBuilder("SELECT DISTINCT invoice_tracking_ids.invoice_id as invoice_id, tenants.id as tenant_id\n" +
+                                                        "FROM invoice_tracking_ids \n" +
+                                                        "JOIN tenants ON tenants.record_id = invoice_tracking_ids.tenant_record_id \n" +
+                                                        "JOIN raw_usage ON raw_usage.aggregated_id = " +
+                                                        dialect.uuidFromText("invoice_tracking_ids.tracking_id") + " \n" +
+                                                        "WHERE tenants.id = :tenantId \n" +
+                                                        "AND invoice_tracking_ids.is_active = TRUE \n" +
+                                                        "AND raw_usage.tenant_id = :tenantUuid \n" +
+                                                        "AND raw_usage.charges IS NOT NULL \n");
+            if (!subscriptionKeys.isEmpty()) {
+                sql.append("AND raw_usage.subscription_key IN (").append(placeholders("subscriptionKey", subscriptionKeys.size())).append(") \n");
+            }
+            if (from != null) {
+                sql.append("AND raw_usage.record_date >= :from \n");
+            }
+            if (to != null) {
+                sql.append("AND raw_usage.record_date < :to \n");
+            }
+            if (afterInvoiceId != null) {
+                sql.append("AND invoice_tracking_ids.invoice_id > :afterInvoiceId \n");
+            }
+            sql.append("ORDER BY invoice_tracking_ids.invoice_id \n")
+               .append("LIMIT ").append(limit);
+
+            final Query<Map<String, Object>> query = handle.createQuery(sql.toString())
+                                                           .bind("tenantId", tenantId)
+                                                           .bind("tenantUuid", dialect.uuid(tenantId));
+            for (int i = 0; i < subscriptionKeys.size(); i++) {
+                query.bind("subscriptionKey" + i, subscriptionKeys.get(i));
+            }
+            if (from != null) {
+                query.bind("from", UtcTimestamps.argument(from));
+            }
+            if (to != null) {
+                query.bind("to", UtcTimestamps.argument(to));
+            }
+            if (afterInvoiceId != null) {
+                query.bind("afterInvoiceId", afterInvoiceId);
+            }
+            return list(query.map(new InvoiceTenantMapper()));
         } catch (final Exception e) {
             log.error("Error :: {}", e.getMessage());
             throw e;
@@ -183,108 +525,317 @@ public class RawUsageDao {
     }
 
     public List<RawUsage> getRawUsage(final List<String> trackingIds, final String unitType) {
-        try (final Handle handle = dbi.open()) {
-            String SQL = "SELECT id, amount, subscription_id , tracking_id , record_date FROM `raw_usage` " +
-                         "WHERE aggregated_id IN (<trackingIds>) AND unit_type = :unitType";
+        try (final Handle handle = open()) {
+            return getRawUsage(handle, trackingIds, unitType);
+        } catch (final Exception e) {
+            log.error("Error :: {}", e.getMessage());
+            throw e;
+        }
+    }
+
+    List<RawUsage> getRawUsage(final Handle handle, final List<String> trackingIds, final String unitType) {
+        final List<String> aggregationIds = aggregationIdsOf(trackingIds);
+        final Integer unitKey = keys.find(handle, Kind.UNIT, unitType);
+        if (aggregationIds.isEmpty() || unitKey == null) {
+            return new ArrayList<>();
+        }
+        final String sql = "SELECT raw_usage.id, raw_usage.amount, raw_usage.charges, raw_usage.version, " +
+                           "subscriptions.key_value AS subscription_id, raw_usage.tracking_id, raw_usage.record_date FROM raw_usage " +
+                           "JOIN raw_usage_key subscriptions ON subscriptions.id = raw_usage.subscription_key " +
+                           "WHERE raw_usage.aggregated_id IN (" + placeholders("aggregationId", aggregationIds.size()) + ") " +
+                           "AND raw_usage.unit_key = :unitKey";
 
-            final String trackingIdsStr = trackingIds.stream()
-                                               .map(id -> "'" + id + "'")
-                                               .collect(Collectors.joining(", "));
+        return list(bindAggregationIds(handle.createQuery(sql), aggregationIds)
+                          .bind("unitKey", unitKey)
+                          .map(new RawUsageMapper()));
+    }
+
+    /**
+     * The rows of {@link #getRawUsage(Handle, List, String)} reduced to what charging needs, folded into primitive
+     * columns, in record date order.
+     */
+    ChargeRows getChargeRows(final Handle handle, final List<String> trackingIds, final String unitType) {
+        final List<String> aggregationIds = aggregationIdsOf(trackingIds);
+        final Integer unitKey = keys.find(handle, Kind.UNIT, unitType);
+        if (aggregationIds.isEmpty() || unitKey == null) {
+            return new ChargeRows();
+        }
+        final String sql = "SELECT id, amount, charges, tier, version FROM raw_usage " +
+                           "WHERE aggregated_id IN (" + placeholders("aggregationId", aggregationIds.size()) + ") " +
+                           "AND unit_key = :unitKey " +
+                           // Tiers are allocated in this order, so it follows the usage through time
+                           "ORDER BY record_date, id";
 
-            SQL = SQL.replace("<trackingIds>", trackingIdsStr);
+        final ChargeRows rows = scan(bindAggregationIds(handle.createQuery(sql), aggregationIds))
+                                      .bind("unitKey", unitKey)
+                                      .fold(new ChargeRows(), (chargeRows, r, ctx) -> {
+                                          chargeRows.add(r.getLong(RawUsageMapper.ID), r.getLong(RawUsageMapper.VERSION),
+                                                         r.getBigDecimal(RawUsageMapper.AMOUNT), r.getBigDecimal(RawUsageMapper.CHARGES),
+                                                         r.getInt(RawUsageMapper.TIER));
+                                          return chargeRows;
+                                      });
+        queryProfiler.recordRows(rows.size());
+        return rows;
+    }
 
-            return handle.createQuery(SQL)
-                         .bind("unitType", unitType)
-                         .map(new RawUsageMapper())
-                         .list();
+    public void persistRawUsageCharges(final Iterable<RawUsage> rawUsages) {
+        try (final Handle handle = open()) {
+            persistRawUsageCharges(handle, rawUsages);
         } catch (final Exception e) {
             log.error("Error :: {}", e.getMessage());
             throw e;
+        } finally {
+            replicaRouter.pipelineWritten();
         }
     }
 
-    public void persistRawUsageCharges(final Iterable<RawUsage> rawUsages) {
-        try (final Handle handle = dbi.open()) {
+    /**
+     * Writes charges with a compare-and-set on {@code version}, bumping it for every row written. Rows whose version
+     * moved since they were read are not overwritten and fail the call with a {@link VersionConflictException}.
+     * Opens its own transaction unless the handle already is in one, in which case the caller's commit covers it; the
+     * own transaction is rolled back on conflict so no partial charges of a work item are left behind.
+     */
+    void persistRawUsageCharges(final Handle handle, final Iterable<RawUsage> rawUsages) {
+        final boolean ownTransaction = !handle.isInTransaction();
+        if (ownTransaction) {
             handle.begin();
+        }
 
-            final String sql = "UPDATE raw_usage " +
-                               "SET charges = :charges, " +
-                               "tier = :tier " +
-                               "WHERE id = :id ";
+        final String sql = "UPDATE raw_usage " +
+                           "SET charges = :charges, " +
+                           "tier = :tier, " +
+                           "version = version + 1 " +
+                           "WHERE id = :id " +
+                           "AND version = :version";
 
-            PreparedBatch batch = handle.prepareBatch(sql);
-            int batchSize = 0;
+        PreparedBatch batch = handle.prepareBatch(sql);
+        final List<RawUsage> batched = new ArrayList<>();
+        final List<Long> conflicts = new ArrayList<>();
+        int batchSize = 0;
 
-            for (final RawUsage rawUsage : rawUsages) {
-                batch.bind("id", String.valueOf(rawUsage.getId()))
-                     .bind("charges", rawUsage.getCharges())
-                     .bind("tier", rawUsage.getTier())
-                     .add();
+        for (final RawUsage rawUsage : rawUsages) {
+            if (batchSize == 0) {
+                batchSize = tunings.apply(rawUsage.getTenantId()).getChargeBatchSize();
+            }
+            batch.bind("id", rawUsage.getId())
+                 .bind("charges", rawUsage.getCharges())
+                 .bind("tier", rawUsage.getTier())
+                 .bind("version", rawUsage.getVersion())
+                 .add();
+            batched.add(rawUsage);
 
-                batchSize++;
+            if (batched.size() == batchSize) {
+                conflicts.addAll(executeVersionedBatch(handle, batch, batched));
+                batch = handle.prepareBatch(sql);
+                batched.clear();
+            }
+        }
 
-                if (batchSize == 1000) {
-                    batch.execute();
-                    batch = handle.prepareBatch(sql);
-                    batchSize = 0;
-                }
+        if (!batched.isEmpty()) {
+            conflicts.addAll(executeVersionedBatch(handle, batch, batched));
+        }
+
+        if (!conflicts.isEmpty()) {
+            if (ownTransaction) {
+                handle.rollback();
             }
+            throw new VersionConflictException(conflicts);
+        }
 
-            if (batchSize > 0) {
-                batch.execute();
+        if (ownTransaction) {
+            handle.commit();
+        }
+    }
+
+    /**
+     * {@link #persistRawUsageCharges(Handle, Iterable)} for columnar rows, with the same compare-and-set on version.
+     * Rows whose charges and tier came out as they were read are not written.
+     *
+     * @param tenantId whose charge batch size applies
+     */
+    void persistCharges(final Handle handle, final String tenantId, final ChargeRows rows) {
+        final boolean ownTransaction = !handle.isInTransaction();
+        if (ownTransaction) {
+            handle.begin();
+        }
+
+        final List<Long> conflicts = dialect.supportsCopy() ? copyCharges(handle, rows)
+                                                            : batchCharges(handle, rows, tunings.apply(tenantId).getChargeBatchSize());
+
+        if (!conflicts.isEmpty()) {
+            if (ownTransaction) {
+                handle.rollback();
             }
+            throw new VersionConflictException(conflicts);
+        }
 
+        if (ownTransaction) {
             handle.commit();
-        } catch (final Exception e) {
-            log.error("Error :: {}", e.getMessage());
-            throw e;
         }
     }
 
-    public RawUsage getRawUsage(final String tenantId, final String subscriptionId, final String unit, final String trackingId){
-         final String sql = "SELECT * FROM `raw_usage`\n" +
-                            "WHERE tenant_id = :tenantId \n" +
-                            "and subscription_id = :subscriptionId \n" +
-                            "and tracking_id= :trackingId \n" +
-                            "AND unit_type= :unitType;";
-        List<RawUsage> rawUsages = null;
-        try (final Handle handle = dbi.open()) {
-            rawUsages= handle.createQuery(sql)
-                    .bind("tenantId",tenantId)
-                    .bind("subscriptionId",subscriptionId)
-                    .bind("trackingId",trackingId)
-                    .bind("unitType",unit)
-                    .map(new RawUsageMapper()).list();
-            if(rawUsages.size() == 1){
-                return rawUsages.get(0);
+    private List<Long> batchCharges(final Handle handle, final ChargeRows rows, final int batchSize) {
+        final String sql = "UPDATE raw_usage " +
+                           "SET charges = :charges, " +
+                           "tier = :tier, " +
+                           "version = version + 1 " +
+                           "WHERE id = :id " +
+                           "AND version = :version";
+
+        final List<Long> conflicts = new ArrayList<>();
+        final int[] batched = new int[batchSize];
+        int count = 0;
+        PreparedBatch batch = handle.prepareBatch(sql);
+        for (int row = 0; row < rows.size(); row++) {
+            if (!rows.isChanged(row)) {
+                continue;
+            }
+            batch.bind("id", rows.id(row))
+                 .bind("charges", rows.charges(row))
+                 .bind("tier", rows.tier(row))
+                 .bind("version", rows.version(row))
+                 .add();
+            batched[count++] = row;
+
+            if (count == batchSize) {
+                conflicts.addAll(executeVersionedBatch(handle, batch, i -> rows.id(batched[i]), i -> rows.version(batched[i])));
+                batch = handle.prepareBatch(sql);
+                count = 0;
             }
         }
-        catch (final Exception ignored){
 
+        if (count > 0) {
+            conflicts.addAll(executeVersionedBatch(handle, batch, i -> rows.id(batched[i]), i -> rows.version(batched[i])));
         }
-        throw new ResourceNotFoundException("Raw usage not found");
+        return conflicts;
+    }
+
+    /**
+     * Streams the changed rows into a staging table and applies them all with one {@code UPDATE ... FROM}. The version
+     * compare-and-set is part of the join: the staged ids it did not return are the conflicts.
+     */
+    private List<Long> copyCharges(final Handle handle, final ChargeRows rows) {
+        final PgCopy copy = new PgCopy();
+        final List<Long> staged = new ArrayList<>();
+        for (int row = 0; row < rows.size(); row++) {
+            if (!rows.isChanged(row)) {
+                continue;
+            }
+            copy.number(rows.id(row))
+                .number(rows.version(row))
+                .number(rows.charges(row))
+                .number(rows.tier(row))
+                .endRow();
+            staged.add(rows.id(row));
+        }
+        if (staged.isEmpty()) {
+            return staged;
+        }
+
+        execute(handle.createStatement(CREATE_CHARGES_STAGING));
+        copyIn(handle, copy, COPY_CHARGES_STAGING);
+        final Set<Long> updated = new HashSet<>(list(handle.createQuery(UPDATE_FROM_CHARGES_STAGING).mapTo(Long.class)));
+        // Emptied on commit too, but the caller's transaction may stage again before that
+        execute(handle.createStatement("DELETE FROM raw_usage_charges_staging"));
+
+        final List<Long> conflicts = new ArrayList<>();
+        for (final Long id : staged) {
+            if (!updated.contains(id)) {
+                conflicts.add(id);
+            }
+        }
+        return conflicts;
+    }
+
+    private List<Long> executeVersionedBatch(final Handle handle, final PreparedBatch batch, final List<RawUsage> batched) {
+        return executeVersionedBatch(handle, batch, row -> batched.get(row).getId(), row -> batched.get(row).getVersion());
+    }
+
+    /**
+     * @param idOf      id of the n-th statement of the batch
+     * @param versionOf version the n-th statement expects
+     */
+    private List<Long> executeVersionedBatch(final Handle handle, final PreparedBatch batch,
+                                             final IntToLongFunction idOf, final IntToLongFunction versionOf) {
+        final int[] rows = batch.execute();
+        final List<Long> conflicts = new ArrayList<>();
+        final List<Integer> unknown = new ArrayList<>();
+        long updated = 0;
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i] == 0) {
+                conflicts.add(idOf.applyAsLong(i));
+            } else if (rows[i] == Statement.SUCCESS_NO_INFO) {
+                unknown.add(i);
+            } else {
+                updated += rows[i];
+            }
+        }
+        queryProfiler.recordRows(updated);
+
+        // Drivers rewriting batches may not report per-row counts: check the versions we should have produced
+        if (!unknown.isEmpty()) {
+            final Map<Long, Long> versions = new HashMap<>();
+            final String ids = unknown.stream().map(i -> String.valueOf(idOf.applyAsLong(i))).collect(Collectors.joining(", "));
+            for (final RawUsage current : list(handle.createQuery("SELECT id, version FROM raw_usage WHERE id IN (" + ids + ")")
+                                                     .map(new RawUsageMapper()))) {
+                versions.put(current.getId(), current.getVersion());
+            }
+            for (final int i : unknown) {
+                if (!Long.valueOf(versionOf.applyAsLong(i) + 1).equals(versions.get(idOf.applyAsLong(i)))) {
+                    conflicts.add(idOf.applyAsLong(i));
+                }
+            }
+        }
+        return conflicts;
+    }
+
+    public RawUsage getRawUsage(final String tenantId, final String subscriptionId, final String unit, final String trackingId){
+        return getRawUsage(tenantId, List.of(subscriptionId), unit, trackingId);
     }
 
     public RawUsage getRawUsage(final String tenantId, final List<String> subscriptionIds, final String unit, final String trackingId){
-        String sql = "SELECT * FROM `raw_usage`\n" +
-                           "WHERE tenant_id = :tenantId \n" +
-                           "and subscription_id IN (<subscriptionId>) \n" +
-                           "and tracking_id= :trackingId \n" +
-                           "AND unit_type= :unitType;";
-
-        final String trackingIdsStr = subscriptionIds.stream()
-                                                 .map(id -> "'" + id + "'")
-                                                 .collect(Collectors.joining(", "));
-
-        sql = sql.replace("<subscriptionId>", trackingIdsStr);
-        List<RawUsage> rawUsages = null;
-        try (final Handle handle = dbi.open()) {
-            rawUsages= handle.createQuery(sql)
-                             .bind("tenantId",tenantId)
-                             .bind("subscriptionId",subscriptionIds)
-                             .bind("trackingId",trackingId)
-                             .bind("unitType",unit)
-                             .map(new RawUsageMapper()).list();
+        return lookup(handle -> {
+            final List<Integer> subscriptionKeys = findAll(handle, Kind.SUBSCRIPTION, subscriptionIds);
+            final Integer unitKey = keys.find(handle, Kind.UNIT, unit);
+            if (subscriptionKeys.isEmpty() || unitKey == null) {
+                return new ArrayList<>();
+            }
+            final String sql = "SELECT " + RAW_USAGE_COLUMNS + " FROM raw_usage\n" +
+                               JOIN_KEYS + "\n" +
+                               "WHERE raw_usage.tenant_id = :tenantId \n" +
+                               "and raw_usage.subscription_key IN (" + placeholders("subscriptionKey", subscriptionKeys.size()) + ") \n" +
+                               "and raw_usage.tracking_id= :trackingId \n" +
+                               "AND raw_usage.unit_key= :unitKey";
+            final Query<Map<String, Object>> query = handle.createQuery(sql)
+                                                           .bind("tenantId", dialect.uuid(tenantId))
+                                                           .bind("trackingId", trackingId)
+                                                           .bind("unitKey", unitKey);
+            for (int i = 0; i < subscriptionKeys.size(); i++) {
+                query.bind("subscriptionKey" + i, subscriptionKeys.get(i));
+            }
+            return list(query.map(new RawUsageMapper()));
+        });
+    }
+
+    /**
+     * Runs a charge lookup on the replica when it is fresh enough, re-reading from the primary when the row or its
+     * charges have not been replicated yet.
+     */
+    private RawUsage lookup(final Function<Handle, List<RawUsage>> query) {
+        final Handle replica = openReplica(ReadRoute.LOOKUP);
+        if (replica != null) {
+            try (final Handle handle = replica) {
+                final List<RawUsage> rawUsages = query.apply(handle);
+                if (rawUsages.size() == 1 && rawUsages.get(0).getCharges() != null) {
+                    return rawUsages.get(0);
+                }
+            } catch (final Exception ignored) {
+
+            }
+            replicaRouter.fellBack(ReadRoute.LOOKUP);
+        }
+        try (final Handle handle = open()) {
+            final List<RawUsage> rawUsages = query.apply(handle);
             if(rawUsages.size() == 1){
                 return rawUsages.get(0);
             }
@@ -294,4 +845,248 @@ public class RawUsageDao {
         }
         throw new ResourceNotFoundException("Raw usage not found");
     }
+
+    /**
+     * Usage of a (tenant, subscription, unit) with a record date in [from, to), zero when there is none.
+     */
+    public BigDecimal getUsageTotal(final String tenantId, final String subscriptionId, final String unitType,
+                                    final DateTime from, final DateTime to) {
+        final String sql = "SELECT SUM(amount) FROM raw_usage " +
+                           "WHERE tenant_id = :tenantId AND subscription_key = :subscriptionKey AND unit_key = :unitKey " +
+                           "AND record_date >= :from AND record_date < :to";
+        try (final Handle handle = open()) {
+            final Integer subscriptionKey = keys.find(handle, Kind.SUBSCRIPTION, subscriptionId);
+            final Integer unitKey = keys.find(handle, Kind.UNIT, unitType);
+            if (subscriptionKey == null || unitKey == null) {
+                return BigDecimal.ZERO;
+            }
+            final BigDecimal total = handle.createQuery(sql)
+                                           .bind("tenantId", dialect.uuid(tenantId))
+                                           .bind("subscriptionKey", subscriptionKey)
+                                           .bind("unitKey", unitKey)
+                                           .bind("from", UtcTimestamps.argument(from))
+                                           .bind("to", UtcTimestamps.argument(to))
+                                           .mapTo(BigDecimal.class)
+                                           .first();
+            queryProfiler.recordRows(1);
+            return total == null ? BigDecimal.ZERO : total;
+        } catch (final Exception e) {
+            log.error("Error :: {}", e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * Charged usage with a record date in [from, to), summed per tenant, subscription, unit and UTC day.
+     */
+    public List<DailyUsage> getDailyChargedUsage(final DateTime from, final DateTime to) {
+        final String usageDay = dialect.toDate("record_date");
+        final String sql = "SELECT daily.tenant_id, subscriptions.key_value AS subscription_id, units.key_value AS unit_type, " +
+                           "daily.usage_day, daily.total_amount, daily.total_charges, daily.records FROM (" +
+                           "SELECT tenant_id, subscription_key, unit_key, " + usageDay + " AS usage_day, " +
+                           "SUM(amount) AS total_amount, SUM(charges) AS total_charges, COUNT(*) AS records " +
+                           "FROM raw_usage " +
+                           "WHERE record_date >= :from AND record_date < :to AND charges IS NOT NULL " +
+                           "GROUP BY tenant_id, subscription_key, unit_key, " + usageDay + ") daily " +
+                           "JOIN raw_usage_key subscriptions ON subscriptions.id = daily.subscription_key " +
+                           "JOIN raw_usage_key units ON units.id = daily.unit_key";
+        try (final Handle handle = open(ReadRoute.REPORT)) {
+            return list(handle.createQuery(sql)
+                              .bind("from", UtcTimestamps.argument(from))
+                              .bind("to", UtcTimestamps.argument(to))
+                              .map(new DailyUsageMapper()));
+        }
+    }
+
+    /**
+     * Revision of the charges of usage with a record date in [from, to). Every charge write bumps the row's version,
+     * so the revision grows whenever one of these rows is charged or re-charged.
+     */
+    public long getChargeRevision(final DateTime from, final DateTime to) {
+        final String sql = "SELECT COALESCE(SUM(version + 1), 0) FROM raw_usage " +
+                           "WHERE record_date >= :from AND record_date < :to AND charges IS NOT NULL";
+        try (final Handle handle = open(ReadRoute.REPORT)) {
+            return handle.createQuery(sql)
+                         .bind("from", UtcTimestamps.argument(from))
+                         .bind("to", UtcTimestamps.argument(to))
+                         .mapTo(Long.class)
+                         .first();
+        }
+    }
+
+    /**
+     * Runs a work item on a single handle in auto-commit mode, so its statements share one pooled connection.
+     */
+    public <T> T inUnitOfWork(final UnitOfWork.Work<T> work) {
+        UnitOfWork unitOfWork = null;
+        try (final Handle handle = open()) {
+            unitOfWork = new UnitOfWork(this, handle);
+            return work.run(unitOfWork);
+        } catch (final Exception e) {
+            log.error("Error :: {}", e.getMessage());
+            throw e;
+        } finally {
+            if (unitOfWork != null && unitOfWork.hasPipelineWrites()) {
+                replicaRouter.pipelineWritten();
+            }
+        }
+    }
+
+    /**
+     * Runs a work item on a single handle inside one transaction: committed when the work returns, rolled back when
+     * it throws.
+     */
+    public <T> T inTransaction(final UnitOfWork.Work<T> work) {
+        UnitOfWork unitOfWork = null;
+        try (final Handle handle = open()) {
+            handle.begin();
+            try {
+                unitOfWork = new UnitOfWork(this, handle);
+                final T result = work.run(unitOfWork);
+                handle.commit();
+                return result;
+            } catch (final RuntimeException e) {
+                handle.rollback();
+                throw e;
+            }
+        } catch (final Exception e) {
+            log.error("Error :: {}", e.getMessage());
+            throw e;
+        } finally {
+            if (unitOfWork != null && unitOfWork.hasPipelineWrites()) {
+                replicaRouter.pipelineWritten();
+            }
+        }
+    }
+
+    public QueryProfiler getQueryProfiler() {
+        return queryProfiler;
+    }
+
+    private Handle open() {
+        final long start = System.nanoTime();
+        final Handle handle = dbi.open();
+        queryProfiler.recordCheckout(System.nanoTime() - start);
+        return handle;
+    }
+
+    /**
+     * A replica handle when {@code route} goes to the replica, else a primary one.
+     */
+    private Handle open(final ReadRoute route) {
+        final Handle replica = openReplica(route);
+        return replica != null ? replica : open();
+    }
+
+    private Handle openReplica(final ReadRoute route) {
+        if (!replicaRouter.useReplica(route)) {
+            return null;
+        }
+        final long start = System.nanoTime();
+        try {
+            final Handle handle = replicaDbi.open();
+            queryProfiler.recordCheckout(System.nanoTime() - start);
+            return handle;
+        } catch (final RuntimeException e) {
+            log.warn("Replica unavailable, reading {} from the primary :: {}", route, e.getMessage());
+            replicaRouter.fellBack(route);
+            return null;
+        }
+    }
+
+    /**
+     * The surrogates of the values that were ever stored, the others matching no row.
+     */
+    private List<Integer> findAll(final Handle handle, final Kind kind, final List<String> values) {
+        final List<Integer> found = new ArrayList<>(values.size());
+        for (final String value : values) {
+            final Integer key = keys.find(handle, kind, value);
+            if (key != null) {
+                found.add(key);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * The tracking ids that can be aggregation ids: Kill Bill also carries tracking ids of other sources, which are not
+     * UUIDs and cannot match a row.
+     */
+    private static List<String> aggregationIdsOf(final List<String> trackingIds) {
+        return trackingIds.stream()
+                          .filter(BinaryUuids::isUuid)
+                          .distinct()
+                          .collect(Collectors.toList());
+    }
+
+    private <T> Query<T> bindAggregationIds(final Query<T> query, final List<String> aggregationIds) {
+        for (int i = 0; i < aggregationIds.size(); i++) {
+            query.bind("aggregationId" + i, dialect.uuid(aggregationIds.get(i)));
+        }
+        return query;
+    }
+
+    private static String placeholders(final String name, final int count) {
+        final StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            placeholders.append(i == 0 ? ":" : ", :").append(name).append(i);
+        }
+        return placeholders.toString();
+    }
+
+    private static RawUsage copyOf(final RawUsage rawUsage) {
+        return new RawUsage().setTenantId(rawUsage.getTenantId())
+                             .setSubscriptionId(rawUsage.getSubscriptionId())
+                             .setTrackingId(rawUsage.getTrackingId())
+                             .setUnitType(rawUsage.getUnitType())
+                             .setRecordDate(rawUsage.getRecordDate())
+                             .setAmount(rawUsage.getAmount())
+                             .setCharges(rawUsage.getCharges());
+    }
+
+    private static RuntimeException duplicateOr(final UnableToExecuteStatementException e) {
+        return isIntegrityViolation(e) ? new DuplicateUsageException(e) : e;
+    }
+
+    static boolean isIntegrityViolation(final UnableToExecuteStatementException e) {
+        // SQLSTATE class 23 is an integrity constraint violation on MySQL, H2 and PostgreSQL alike
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException && ((SQLException) cause).getSQLState() != null
+                && ((SQLException) cause).getSQLState().startsWith("23")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void copyIn(final Handle handle, final PgCopy copy, final String copySql) {
+        final long start = System.nanoTime();
+        try {
+            final long rows = copy.copyIn(handle.getConnection(), copySql);
+            queryProfiler.collect(System.nanoTime() - start, copySql);
+            queryProfiler.recordRows(rows);
+        } catch (final SQLException e) {
+            throw new UnableToExecuteStatementException(e, null);
+        }
+    }
+
+    /**
+     * Applies the plugin-wide fetch size to a query that may return many rows, so the driver does not hold them all.
+     */
+    private <T> Query<T> scan(final Query<T> query) {
+        final int fetchSize = tunings.apply(null).getFetchSize();
+        return fetchSize > 0 ? query.setFetchSize(fetchSize) : query;
+    }
+
+    private <T> List<T> list(final Query<T> query) {
+        final List<T> result = query.list();
+        queryProfiler.recordRows(result.size());
+        return result;
+    }
+
+    private int execute(final Update update) {
+        final int rows = update.execute();
+        queryProfiler.recordRows(rows);
+        return rows;
+    }
 }
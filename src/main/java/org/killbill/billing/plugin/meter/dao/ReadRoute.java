@@ -0,0 +1,56 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.dao;
+
+/**
+ * Classes of read-only {@link RawUsageDao} queries that {@link ReplicaRouter} may send to the replica, each with the
+ * replication lag it tolerates by default.
+ */
+public enum ReadRoute {
+
+    /** Pipeline scans for work (unaggregated usage, unbilled rollups, invoices to backfill). */
+    SCAN(30_000, true),
+    /** Charge lookups by tracking id, answered while the caller waits. */
+    LOOKUP(5_000, true),
+    /** Reporting over settled days, where lag only delays late charges to a later history compaction. */
+    REPORT(300_000, false);
+
+    private final long defaultMaxLagMillis;
+    private final boolean readsPipelineWrites;
+
+    ReadRoute(final long defaultMaxLagMillis, final boolean readsPipelineWrites) {
+        this.defaultMaxLagMillis = defaultMaxLagMillis;
+        this.readsPipelineWrites = readsPipelineWrites;
+    }
+
+    public long getDefaultMaxLagMillis() {
+        return defaultMaxLagMillis;
+    }
+
+    /**
+     * Whether the query must see the aggregation ids and charges written by the pipeline, in which case the replica is
+     * only used once it has replicated past the last of these writes, see {@link ReplicaRouter}.
+     */
+    public boolean readsPipelineWrites() {
+        return readsPipelineWrites;
+    }
+
+    public String propertyName() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.dao;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import javax.sql.DataSource;
+
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Decides which {@link ReadRoute}s are served by an optional read-only replica. Replication lag is measured with a
+ * heartbeat: this node stamps its row of replica_heartbeat on the primary and reads it back from the replica, so the
+ * newest stamp seen there is a point in time the replica is known to have caught up to, from a single clock.
+ * <p>
+ * A route goes to the replica while that point is within the route's lag budget and, for routes reading pipeline
+ * writes, the replica has every aggregation and charge write; otherwise it falls back to the primary. Writes of this
+ * node are checked against its own stamps. Writes of other nodes are checked against a database watermark: each node
+ * publishes a count of its pipeline writes with its heartbeat, and the replica must have caught up with the counts of
+ * every node as last read from the primary. Another node's write is thus seen up to two heartbeats late; the guards of
+ * the aggregation id and charge updates turn a scan that misses it into a no-op or a conflict, not a second write.
+ */
+@Slf4j
+public class ReplicaRouter {
+
+    private static final String UPDATE_HEARTBEAT = "UPDATE replica_heartbeat SET beat_millis = :beatMillis, pipeline_writes = :pipelineWrites WHERE node_id = :nodeId";
+    private static final String INSERT_HEARTBEAT = "INSERT INTO replica_heartbeat (node_id, beat_millis, pipeline_writes) VALUES (:nodeId, :beatMillis, :pipelineWrites)";
+    private static final String SELECT_PIPELINE_WRITES = "SELECT node_id, pipeline_writes FROM replica_heartbeat";
+
+    private final DBI primary;
+    private final HikariDataSource replicaDataSource;
+    private final DBI replica;
+    private final Map<ReadRoute, Long> maxLagMillis;
+    private final long heartbeatMillis;
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private final AtomicLong lastPipelineWrite = new AtomicLong();
+    private final AtomicLong pipelineWrites = new AtomicLong();
+    private volatile long replicaCaughtUpTo;
+    private volatile boolean replicaHasOtherWrites;
+
+    private final Map<ReadRoute, LongAdder> replicaReads = new EnumMap<>(ReadRoute.class);
+    private final Map<ReadRoute, LongAdder> primaryReads = new EnumMap<>(ReadRoute.class);
+    private final Map<ReadRoute, LongAdder> fallbacks = new EnumMap<>(ReadRoute.class);
+
+    private ScheduledExecutorService scheduler;
+
+    ReplicaRouter(final DataSource primaryDataSource, final HikariDataSource replicaDataSource,
+                  final Map<ReadRoute, Long> maxLagMillis, final long heartbeatMillis) {
+        this(primaryDataSource == null ? null : new DBI(primaryDataSource), replicaDataSource,
+             replicaDataSource == null ? null : new DBI(replicaDataSource), maxLagMillis, heartbeatMillis);
+    }
+
+    ReplicaRouter(final DBI primary, final HikariDataSource replicaDataSource, final DBI replica,
+                  final Map<ReadRoute, Long> maxLagMillis, final long heartbeatMillis) {
+        this.primary = primary;
+        this.replicaDataSource = replicaDataSource;
+        this.replica = replica;
+        this.maxLagMillis = maxLagMillis;
+        this.heartbeatMillis = heartbeatMillis;
+        for (final ReadRoute route : ReadRoute.values()) {
+            replicaReads.put(route, new LongAdder());
+            primaryReads.put(route, new LongAdder());
+            fallbacks.put(route, new LongAdder());
+        }
+    }
+
+    /**
+     * Every read goes to the primary.
+     */
+    public static ReplicaRouter disabled() {
+        return new ReplicaRouter(null, null, new EnumMap<>(ReadRoute.class), 0);
+    }
+
+    /**
+     * Reads {@code <prefix>url}, {@code user}, {@code password}, {@code maxPoolSize}, {@code heartbeatMillis} and the
+     * per route {@code <route>.maxLagMillis} (a negative budget keeps the route on the primary). Without a url there
+     * is no replica and every read goes to the primary.
+     */
+    public static ReplicaRouter fromProperties(final Properties properties, final String prefix, final DataSource primaryDataSource) {
+        final String url = properties.getProperty(prefix + "url");
+        if (url == null || url.isEmpty()) {
+            return disabled();
+        }
+
+        final HikariConfig config = new HikariConfig();
+        config.setPoolName("meter-replica");
+        config.setJdbcUrl(url);
+        config.setUsername(properties.getProperty(prefix + "user"));
+        config.setPassword(properties.getProperty(prefix + "password"));
+        config.setMaximumPoolSize(Integer.parseInt(properties.getProperty(prefix + "maxPoolSize", "4")));
+        config.setReadOnly(true);
+        // Do not hold up the plugin start when the replica is down, reads fall back to the primary until it is back
+        config.setInitializationFailTimeout(-1);
+
+        final Map<ReadRoute, Long> maxLagMillis = new EnumMap<>(ReadRoute.class);
+        for (final ReadRoute route : ReadRoute.values()) {
+            maxLagMillis.put(route, Long.parseLong(properties.getProperty(prefix + route.propertyName() + ".maxLagMillis",
+                                                                          String.valueOf(route.getDefaultMaxLagMillis()))));
+        }
+        return new ReplicaRouter(primaryDataSource, new HikariDataSource(config), maxLagMillis,
+                                 Long.parseLong(properties.getProperty(prefix + "heartbeatMillis", "1000")));
+    }
+
+    public boolean isConfigured() {
+        return replica != null;
+    }
+
+    DataSource getReplicaDataSource() {
+        return replicaDataSource;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null || replica == null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "meter-replica-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::heartbeat, 0, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+            try (final Handle handle = primary.open()) {
+                handle.execute("DELETE FROM replica_heartbeat WHERE node_id = ?", nodeId);
+            } catch (final RuntimeException e) {
+                log.warn("Unable to remove the replica heartbeat of node {} :: {}", nodeId, e.getMessage());
+            }
+        }
+        if (replicaDataSource != null) {
+            replicaDataSource.close();
+        }
+    }
+
+    public void registerMetrics(final MetricRegistry metricRegistry) {
+        if (replica != null) {
+            metricRegistry.gauge("meter.replica.lagMillis", this::getLagMillis);
+        }
+    }
+
+    /**
+     * Whether {@code route} is served by the replica right now; counts the read either way.
+     */
+    boolean useReplica(final ReadRoute route) {
+        final boolean useReplica = replica != null && isFreshEnough(route);
+        (useReplica ? replicaReads : primaryReads).get(route).increment();
+        return useReplica;
+    }
+
+    /**
+     * A replica read of {@code route} was retried on the primary.
+     */
+    void fellBack(final ReadRoute route) {
+        fallbacks.get(route).increment();
+    }
+
+    /**
+     * Records that aggregation ids or charges were committed on the primary. Called once the writing handle is
+     * closed, so the replica is not trusted with them before a heartbeat stamped after the commit reaches it.
+     */
+    void pipelineWritten() {
+        if (replica != null) {
+            pipelineWrites.incrementAndGet();
+            lastPipelineWrite.accumulateAndGet(System.currentTimeMillis(), Math::max);
+        }
+    }
+
+    public ReplicaStats getStats() {
+        return new ReplicaStats().setConfigured(replica != null)
+                                 .setLagMillis(getLagMillis())
+                                 .setReplicaReads(snapshot(replicaReads))
+                                 .setPrimaryReads(snapshot(primaryReads))
+                                 .setFallbacks(snapshot(fallbacks));
+    }
+
+    private boolean isFreshEnough(final ReadRoute route) {
+        final long maxLag = maxLagMillis.getOrDefault(route, -1L);
+        final long caughtUpTo = replicaCaughtUpTo;
+        if (maxLag < 0 || caughtUpTo == 0 || System.currentTimeMillis() - caughtUpTo > maxLag) {
+            return false;
+        }
+        return !route.readsPipelineWrites() || (replicaHasOtherWrites && caughtUpTo > lastPipelineWrite.get());
+    }
+
+    private long getLagMillis() {
+        final long caughtUpTo = replicaCaughtUpTo;
+        return caughtUpTo == 0 ? -1 : System.currentTimeMillis() - caughtUpTo;
+    }
+
+    /**
+     * Stamps the heartbeat of this node on the primary and reads back how far the replica got; run by {@link #start()}.
+     */
+    void heartbeat() {
+        try {
+            final long now = System.currentTimeMillis();
+            final Map<String, Long> primaryWrites;
+            try (final Handle handle = primary.open()) {
+                final long written = pipelineWrites.get();
+                if (handle.createStatement(UPDATE_HEARTBEAT).bind("beatMillis", now).bind("pipelineWrites", written).bind("nodeId", nodeId).execute() == 0) {
+                    handle.createStatement(INSERT_HEARTBEAT).bind("nodeId", nodeId).bind("beatMillis", now).bind("pipelineWrites", written).execute();
+                }
+                primaryWrites = getPipelineWrites(handle);
+            }
+            try (final Handle handle = replica.open()) {
+                final Long beatMillis = handle.createQuery("SELECT beat_millis FROM replica_heartbeat WHERE node_id = :nodeId")
+                                              .bind("nodeId", nodeId)
+                                              .mapTo(Long.class)
+                                              .first();
+                if (beatMillis != null && beatMillis > replicaCaughtUpTo) {
+                    replicaCaughtUpTo = beatMillis;
+                }
+                replicaHasOtherWrites = hasCaughtUp(getPipelineWrites(handle), primaryWrites);
+            }
+        } catch (final RuntimeException e) {
+            // The last stamp seen ages, so routes fall back to the primary once it exceeds their lag budget
+            log.warn("Replica heartbeat failed :: {}", e.getMessage());
+        }
+    }
+
+    private static Map<String, Long> getPipelineWrites(final Handle handle) {
+        return handle.createQuery(SELECT_PIPELINE_WRITES)
+                     .map((index, r, ctx) -> Map.entry(r.getString("node_id"), r.getLong("pipeline_writes")))
+                     .list()
+                     .stream()
+                     .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    }
+
+    /**
+     * Whether the replica has every pipeline write counted on the primary. Rows of stopped nodes that are gone from
+     * the primary do not matter.
+     */
+    private static boolean hasCaughtUp(final Map<String, Long> replicaWrites, final Map<String, Long> primaryWrites) {
+        for (final Map.Entry<String, Long> entry : primaryWrites.entrySet()) {
+            if (entry.getValue() > replicaWrites.getOrDefault(entry.getKey(), 0L)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Map<String, Long> snapshot(final Map<ReadRoute, LongAdder> counters) {
+        final Map<String, Long> snapshot = new LinkedHashMap<>();
+        counters.forEach((route, counter) -> snapshot.put(route.propertyName(), counter.sum()));
+        return snapshot;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Locale;
+
+import javax.sql.DataSource;
+
+import org.killbill.billing.plugin.meter.mapper.BinaryUuids;
+import org.skife.jdbi.v2.tweak.Argument;
+
+/**
+ * The SQL the DAOs cannot write portably. Queries are otherwise plain ANSI SQL (no quoted identifiers, GREATEST,
+ * LIMIT) that MySQL, MariaDB, PostgreSQL and H2 all accept; what differs is how a timestamp is truncated to its day,
+ * how a stored UUID is bound and compared with Kill Bill's textual ids, and how rows are written in bulk.
+ */
+public enum SqlDialect {
+
+    /** MySQL and MariaDB: UUIDs are {@code BINARY(16)}, bulk writes are JDBC batches, rewritten by the driver when enabled. */
+    MYSQL("DATE(%s)", "LOWER(CONCAT_WS('-', HEX(SUBSTR(%1$s, 1, 4)), HEX(SUBSTR(%1$s, 5, 2)), HEX(SUBSTR(%1$s, 7, 2)), " +
+                      "HEX(SUBSTR(%1$s, 9, 2)), HEX(SUBSTR(%1$s, 11, 6))))", "UNHEX(REPLACE(%s, '-', ''))", false, false, "/ddl.sql"),
+    /** H2 in MySQL mode, as MySQL but for converting between a UUID and its text. */
+    H2("DATE(%s)", "CAST(CAST(%s AS UUID) AS VARCHAR)", "CASE WHEN REGEXP_LIKE(%1$s, '" + SqlDialect.UUID_PATTERN + "') " +
+                                                        "THEN CAST(CAST(%1$s AS UUID) AS BINARY(16)) END", false, false, "/ddl.sql"),
+    /** PostgreSQL: UUIDs are native, bulk writes stream through {@code COPY FROM STDIN}, charges through a staging table. */
+    POSTGRESQL("CAST(%s AS DATE)", "CAST(%s AS VARCHAR)", "CASE WHEN %1$s ~ '" + SqlDialect.UUID_PATTERN + "' THEN CAST(%1$s AS uuid) END",
+               true, true, "/ddl-postgresql.sql");
+
+    /** Tracking ids that cast to a UUID; PostgreSQL and H2 fail the whole query on other text, so it is compared as null. */
+    private static final String UUID_PATTERN = "^[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}$";
+
+    private final String dateFormat;
+    private final String uuidTextFormat;
+    private final String uuidFromTextFormat;
+    private final boolean nativeUuid;
+    private final boolean copy;
+    private final String ddlResource;
+
+    SqlDialect(final String dateFormat, final String uuidTextFormat, final String uuidFromTextFormat, final boolean nativeUuid,
+               final boolean copy, final String ddlResource) {
+        this.dateFormat = dateFormat;
+        this.uuidTextFormat = uuidTextFormat;
+        this.uuidFromTextFormat = uuidFromTextFormat;
+        this.nativeUuid = nativeUuid;
+        this.copy = copy;
+        this.ddlResource = ddlResource;
+    }
+
+    /**
+     * The UTC day of a timestamp expression, as a {@code DATE}.
+     */
+    public String toDate(final String expression) {
+        return String.format(dateFormat, expression);
+    }
+
+    /**
+     * A UUID column expression as the canonical lower-case text Kill Bill stores tracking ids in.
+     */
+    public String uuidText(final String expression) {
+        return String.format(uuidTextFormat, expression);
+    }
+
+    /**
+     * A text expression holding a UUID as Kill Bill stores it, as a value comparable with a UUID column; converting
+     * this side of a comparison rather than the column's lets the column's index be used. Text that is not a UUID
+     * matches no column value.
+     */
+    public String uuidFromText(final String expression) {
+        return String.format(uuidFromTextFormat, expression);
+    }
+
+    /**
+     * A UUID string bound to a UUID column.
+     *
+     * @throws IllegalArgumentException when the value is not a UUID
+     */
+    public Argument uuid(final String value) {
+        return BinaryUuids.argument(value, nativeUuid);
+    }
+
+    /**
+     * Whether bulk inserts and charge updates go through {@code COPY} rather than JDBC batches.
+     */
+    public boolean supportsCopy() {
+        return copy;
+    }
+
+    /**
+     * Classpath resource creating the plugin tables in this dialect.
+     */
+    public String getDdlResource() {
+        return ddlResource;
+    }
+
+    /**
+     * The dialect named by {@code name} ({@code mysql}, {@code h2} or {@code postgresql}), else the one of the database behind
+     * {@code dataSource}.
+     */
+    public static SqlDialect fromName(final String name, final DataSource dataSource) {
+        if (name == null || name.isEmpty()) {
+            return detect(dataSource);
+        }
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * PostgreSQL or H2 when the database says so, MySQL for everything else (MySQL, MariaDB).
+     */
+    public static SqlDialect detect(final DataSource dataSource) {
+        try (final Connection connection = dataSource.getConnection()) {
+            final String product = connection.getMetaData().getDatabaseProductName();
+            final String name = product == null ? "" : product.toLowerCase(Locale.ROOT);
+            if (name.contains("postgres")) {
+                return POSTGRESQL;
+            }
+            return name.equals("h2") ? H2 : MYSQL;
+        } catch (final SQLException e) {
+            throw new IllegalStateException("Unable to detect the database dialect", e);
+        }
+    }
+}
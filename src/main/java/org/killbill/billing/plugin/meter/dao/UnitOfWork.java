@@ -0,0 +1,124 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.dao;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.killbill.billing.plugin.meter.dto.AggregatedUsage;
+import org.killbill.billing.plugin.meter.dto.InvoiceTenant;
+import org.killbill.billing.plugin.meter.entity.RawUsage;
+import org.killbill.billing.plugin.meter.workset.ChargeRows;
+import org.killbill.billing.plugin.meter.workset.UsageKeys;
+import org.skife.jdbi.v2.Handle;
+
+/**
+ * {@link RawUsageDao} operations bound to one handle for the duration of a work item, e.g. aggregating one tenant or
+ * backfilling one invoice. Obtain one through {@link RawUsageDao#inUnitOfWork} or {@link RawUsageDao#inTransaction};
+ * it must not escape the callback since the handle is closed afterwards.
+ */
+public class UnitOfWork {
+
+    private final RawUsageDao rawUsageDao;
+    private final Handle handle;
+    private boolean pipelineWrites;
+
+    UnitOfWork(final RawUsageDao rawUsageDao, final Handle handle) {
+        this.rawUsageDao = rawUsageDao;
+        this.handle = handle;
+    }
+
+    public void insertRawUsage(final RawUsage rawUsage) {
+        rawUsageDao.insertRawUsage(handle, rawUsage);
+    }
+
+    public void insertRawUsages(final List<RawUsage> rawUsages) {
+        rawUsageDao.insertRawUsages(handle, rawUsages);
+    }
+
+    public Set<String> getStoredUnitTypes(final String tenantId, final String subscriptionId, final String trackingId) {
+        return rawUsageDao.getStoredUnitTypes(handle, tenantId, subscriptionId, trackingId);
+    }
+
+    public void addPreAggregatedUsage(final RawUsage rawUsage) {
+        rawUsageDao.addPreAggregatedUsage(handle, rawUsage);
+    }
+
+    public List<RawUsage> getUniqueUnAggregatedUsage() {
+        return rawUsageDao.getUniqueUnAggregatedUsage(handle);
+    }
+
+    public UsageKeys getUnaggregatedKeys() {
+        return rawUsageDao.getUnaggregatedKeys(handle);
+    }
+
+    public int fillAggregationId(final String tenantId, final String subscriptionId, final String unitType,
+                                 final UUID uuid, final UUID prev) {
+        pipelineWrites = true;
+        return rawUsageDao.fillAggregationId(handle, tenantId, subscriptionId, unitType, uuid, prev);
+    }
+
+    public int fillAggregationId(final RawUsage rawUsage, final UUID uuid, final UUID prev) {
+        pipelineWrites = true;
+        return rawUsageDao.fillAggregationId(handle, rawUsage, uuid, prev);
+    }
+
+    public List<RawUsage> getUnbilledAggregationIds() {
+        return rawUsageDao.getUnbilledAggregationIds(handle);
+    }
+
+    public List<AggregatedUsage> getUsageSumsByUnit(final String aggregationId) {
+        return rawUsageDao.getUsageSumsByUnit(handle, aggregationId);
+    }
+
+    public List<InvoiceTenant> getNonBackfilledInvoices() {
+        return rawUsageDao.getNonBackfilledInvoices(handle);
+    }
+
+    public List<RawUsage> getRawUsage(final List<String> trackingIds, final String unitType) {
+        return rawUsageDao.getRawUsage(handle, trackingIds, unitType);
+    }
+
+    public ChargeRows getChargeRows(final List<String> trackingIds, final String unitType) {
+        return rawUsageDao.getChargeRows(handle, trackingIds, unitType);
+    }
+
+    public void persistCharges(final String tenantId, final ChargeRows rows) {
+        pipelineWrites = true;
+        rawUsageDao.persistCharges(handle, tenantId, rows);
+    }
+
+    public void persistRawUsageCharges(final Iterable<RawUsage> rawUsages) {
+        pipelineWrites = true;
+        rawUsageDao.persistRawUsageCharges(handle, rawUsages);
+    }
+
+    /**
+     * Whether aggregation ids or charges were written, which replica reads must not miss, see {@link ReadRoute}.
+     */
+    boolean hasPipelineWrites() {
+        return pipelineWrites;
+    }
+
+    @FunctionalInterface
+    public interface Work<T> {
+
+        T run(UnitOfWork unitOfWork);
+    }
+}
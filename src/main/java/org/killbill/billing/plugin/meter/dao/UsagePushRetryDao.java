@@ -0,0 +1,170 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.dao;
+
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.meter.entity.UsagePushRetry;
+import org.killbill.billing.plugin.meter.mapper.UsagePushRetryMapper;
+import org.killbill.billing.plugin.meter.mapper.UtcTimestamps;
+import org.killbill.billing.plugin.meter.profiling.QueryProfiler;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.Update;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Failed usage pushes, one row per (aggregation id, stage). Updates are checked against the row version like the
+ * raw_usage writes, so two workers recording the same failure count it once.
+ */
+@Slf4j
+public class UsagePushRetryDao {
+
+    private static final String COLUMNS = "id, tenant_id, subscription_id, aggregated_id, stage, status, attempts, last_error, " +
+                                          "next_attempt_at, version";
+
+    private final DBI dbi;
+    private final QueryProfiler queryProfiler;
+
+    public UsagePushRetryDao(final DataSource dataSource, final QueryProfiler queryProfiler) {
+        this.dbi = new DBI(dataSource);
+        this.queryProfiler = queryProfiler;
+        dbi.setTimingCollector(queryProfiler);
+    }
+
+    /**
+     * Every retry and dead letter of a stage; small, since rows leave the table once their push succeeds.
+     */
+    public List<UsagePushRetry> getByStage(final String stage) {
+        try (final Handle handle = open()) {
+            return list(handle.createQuery("SELECT " + COLUMNS + " FROM usage_push_retry WHERE stage = :stage")
+                              .bind("stage", stage)
+                              .map(new UsagePushRetryMapper()));
+        } catch (final Exception e) {
+            log.error("Error :: {}", e.getMessage());
+            throw e;
+        }
+    }
+
+    public List<UsagePushRetry> getDeadLetters() {
+        try (final Handle handle = open()) {
+            return list(handle.createQuery("SELECT " + COLUMNS + " FROM usage_push_retry WHERE status = :status ORDER BY id")
+                              .bind("status", UsagePushRetry.DEAD)
+                              .map(new UsagePushRetryMapper()));
+        } catch (final Exception e) {
+            log.error("Error :: {}", e.getMessage());
+            throw e;
+        }
+    }
+
+    public void insert(final UsagePushRetry retry) {
+        final String sql = "INSERT INTO usage_push_retry (tenant_id, subscription_id, aggregated_id, stage, status, attempts, " +
+                           "last_error, next_attempt_at, version) " +
+                           "VALUES (:tenantId, :subscriptionId, :aggregationId, :stage, :status, :attempts, :lastError, :nextAttemptAt, 0)";
+        try (final Handle handle = open()) {
+            execute(handle.createStatement(sql)
+                          .bind("tenantId", retry.getTenantId())
+                          .bind("subscriptionId", retry.getSubscriptionId())
+                          .bind("aggregationId", retry.getAggregationId())
+                          .bind("stage", retry.getStage())
+                          .bind("status", retry.getStatus())
+                          .bind("attempts", retry.getAttempts())
+                          .bind("lastError", retry.getLastError())
+                          .bind("nextAttemptAt", UtcTimestamps.argument(retry.getNextAttemptAt())));
+        } catch (final Exception e) {
+            log.error("Error :: {}", e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * @return false when the row changed since it was read
+     */
+    public boolean update(final UsagePushRetry retry) {
+        final String sql = "UPDATE usage_push_retry " +
+                           "SET status = :status, attempts = :attempts, last_error = :lastError, next_attempt_at = :nextAttemptAt, " +
+                           "version = version + 1, updated_on = CURRENT_TIMESTAMP " +
+                           "WHERE id = :id AND version = :version";
+        try (final Handle handle = open()) {
+            return execute(handle.createStatement(sql)
+                                 .bind("status", retry.getStatus())
+                                 .bind("attempts", retry.getAttempts())
+                                 .bind("lastError", retry.getLastError())
+                                 .bind("nextAttemptAt", UtcTimestamps.argument(retry.getNextAttemptAt()))
+                                 .bind("id", retry.getId())
+                                 .bind("version", retry.getVersion())) == 1;
+        } catch (final Exception e) {
+            log.error("Error :: {}", e.getMessage());
+            throw e;
+        }
+    }
+
+    public void delete(final long id) {
+        try (final Handle handle = open()) {
+            execute(handle.createStatement("DELETE FROM usage_push_retry WHERE id = :id").bind("id", id));
+        } catch (final Exception e) {
+            log.error("Error :: {}", e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * Makes a dead letter due again with a fresh attempt budget.
+     *
+     * @return false when there is no dead letter with that id
+     */
+    public boolean requeue(final long id, final DateTime now) {
+        final String sql = "UPDATE usage_push_retry " +
+                           "SET status = :retry, attempts = 0, next_attempt_at = :now, version = version + 1, updated_on = CURRENT_TIMESTAMP " +
+                           "WHERE id = :id AND status = :dead";
+        try (final Handle handle = open()) {
+            return execute(handle.createStatement(sql)
+                                 .bind("retry", UsagePushRetry.RETRY)
+                                 .bind("dead", UsagePushRetry.DEAD)
+                                 .bind("now", UtcTimestamps.argument(now))
+                                 .bind("id", id)) == 1;
+        } catch (final Exception e) {
+            log.error("Error :: {}", e.getMessage());
+            throw e;
+        }
+    }
+
+    private Handle open() {
+        final long start = System.nanoTime();
+        final Handle handle = dbi.open();
+        queryProfiler.recordCheckout(System.nanoTime() - start);
+        return handle;
+    }
+
+    private <T> List<T> list(final Query<T> query) {
+        final List<T> result = query.list();
+        queryProfiler.recordRows(result.size());
+        return result;
+    }
+
+    private int execute(final Update update) {
+        final int rows = update.execute();
+        queryProfiler.recordRows(rows);
+        return rows;
+    }
+}
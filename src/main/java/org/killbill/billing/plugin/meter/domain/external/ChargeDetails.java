@@ -28,4 +28,7 @@ public class ChargeDetails {
     BigDecimal charges;
     BigDecimal tax;
     String reason;
+    Integer tier;
+    /** Estimated at ingestion, until back-fill writes the charge from the invoice. */
+    boolean provisional;
 }
@@ -25,6 +25,7 @@ import lombok.Data;
 
 @Data
 public class AggregatedUsage {
+    String unitType;
     BigDecimal sum;
     DateTime maxRecordDate;
 }
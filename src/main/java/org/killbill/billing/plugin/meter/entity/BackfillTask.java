@@ -0,0 +1,45 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.entity;
+
+import org.joda.time.DateTime;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * An invoice waiting in backfill_queue for its usage rows to be charged, or given up on as a dead letter.
+ */
+@Data
+@Accessors(chain = true)
+public class BackfillTask {
+
+    public static final String PENDING = "PENDING";
+    public static final String CLAIMED = "CLAIMED";
+    public static final String DEAD = "DEAD";
+
+    Long id;
+    String tenantId;
+    String invoiceId;
+    String status;
+    int attempts;
+    String lastError;
+    DateTime availableAt;
+    DateTime claimedAt;
+    long version;
+}
@@ -20,6 +20,9 @@ package org.killbill.billing.plugin.meter.entity;
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.util.UUID;
+
+import org.joda.time.DateTime;
+
 import lombok.Data;
 import lombok.experimental.Accessors;
 
@@ -32,11 +35,11 @@ public class RawUsage {
     String aggregationId;
     String trackingId;
     String unitType;
-    String recordDate;
+    DateTime recordDate;
     BigDecimal amount;
     BigDecimal charges;
     int tier;
     long version;
     LocalDateTime addedOn;
     LocalDateTime updatedOn;
-}
\ No newline at end of file
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.entity;
+
+import org.joda.time.DateTime;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * A rollup whose push to Kill Bill failed: waiting for its next attempt, or given up on as a dead letter.
+ */
+@Data
+@Accessors(chain = true)
+public class UsagePushRetry {
+
+    public static final String STAGE_BILL = "BILL";
+    public static final String STAGE_INVOICE = "INVOICE";
+
+    public static final String RETRY = "RETRY";
+    public static final String DEAD = "DEAD";
+
+    Long id;
+    String tenantId;
+    String subscriptionId;
+    String aggregationId;
+    String stage;
+    String status;
+    int attempts;
+    String lastError;
+    DateTime nextAttemptAt;
+    long version;
+}
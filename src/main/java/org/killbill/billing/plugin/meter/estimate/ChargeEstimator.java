@@ -0,0 +1,277 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.estimate;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.entitlement.api.Subscription;
+import org.killbill.billing.plugin.api.PluginCallContext;
+import org.killbill.billing.plugin.meter.dao.RawUsageDao;
+import org.killbill.billing.plugin.meter.entity.RawUsage;
+import org.killbill.billing.plugin.meter.resilience.ResilientKillbill;
+import org.killbill.billing.plugin.meter.tuning.MeterTuning;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.CallOrigin;
+import org.killbill.billing.util.callcontext.UserType;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import static org.killbill.billing.plugin.meter.MeterRegister.PLUGIN_NAME;
+
+/**
+ * Provisional charges for usage that the aggregate, bill, invoice and back-fill cycle has not charged yet.
+ * <p>
+ * Ingestion records where each transaction falls in the running usage of its (tenant, subscription, unit) for the
+ * current {@link EstimationPeriod}; that is a counter update, seeded from the stored usage of the period the first
+ * time a unit is seen. Charge lookups price the recorded position against the unit's {@link TierSchedule}, read from
+ * the catalog of the subscription and cached, so ingestion itself never waits on Kill Bill.
+ * <p>
+ * Counters are per node: usage ingested by other nodes after a counter was seeded is not seen, which may leave a
+ * transaction a tier low. Estimates are dropped once back-fill has written the real charge.
+ */
+@Slf4j
+public class ChargeEstimator {
+
+    private final RawUsageDao rawUsageDao;
+    private final ResilientKillbill resilientKillbill;
+    private final EstimationPeriod period;
+    private final Function<String, MeterTuning> tunings;
+    private final Map<UnitKey, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<UnitKey, CachedSchedule> schedules = new ConcurrentHashMap<>();
+    private final Map<TransactionKey, Position> positions;
+    private final ExecutorService scheduleLoader;
+    private final AtomicLong droppedWarmUps = new AtomicLong();
+
+    /**
+     * @param tunings      per tenant id, how long a unit's tier schedule is cached
+     * @param maxEstimates transactions remembered at most, the least recently recorded or read ones are dropped first
+     */
+    public ChargeEstimator(final RawUsageDao rawUsageDao, final ResilientKillbill resilientKillbill, final EstimationPeriod period,
+                           final Function<String, MeterTuning> tunings, final int maxEstimates) {
+        this.rawUsageDao = rawUsageDao;
+        this.resilientKillbill = resilientKillbill;
+        this.period = period;
+        this.tunings = tunings;
+        this.positions = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<TransactionKey, Position> eldest) {
+                return size() > maxEstimates;
+            }
+        });
+        // Warms schedules of newly seen units in the background; a full queue only means the first lookup loads it
+        this.scheduleLoader = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(1024), runnable -> {
+            final Thread thread = new Thread(runnable, "meter-estimation");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Counts a transaction into the running usage of its period, before it is stored so that seeding the counter
+     * from stored usage cannot count it twice. Records dated in an earlier period than the counter's are not
+     * estimated.
+     */
+    public void record(final RawUsage rawUsage) {
+        final UnitKey unitKey = new UnitKey(rawUsage.getTenantId(), rawUsage.getSubscriptionId(), rawUsage.getUnitType());
+        final DateTime periodStart = period.start(rawUsage.getRecordDate());
+        final Counter counter = counters.compute(unitKey, (key, current) -> current == null || current.periodStart.isBefore(periodStart)
+                                                                            ? new Counter(periodStart)
+                                                                            : current);
+        if (!counter.periodStart.isEqual(periodStart)) {
+            return;
+        }
+        final BigDecimal usedBefore = counter.add(rawUsage.getAmount(), () -> rawUsageDao.getUsageTotal(unitKey.tenantId, unitKey.subscriptionId,
+                                                                                                          unitKey.unitType, periodStart,
+                                                                                                          period.next(periodStart)));
+        positions.merge(transactionKey(rawUsage), new Position(periodStart, usedBefore, rawUsage.getAmount()), Position::merge);
+        if (!schedules.containsKey(unitKey)) {
+            try {
+                scheduleLoader.execute(() -> schedule(unitKey));
+            } catch (final RejectedExecutionException e) {
+                // The estimate itself is kept, the first lookup loads the schedule
+                final long dropped = droppedWarmUps.incrementAndGet();
+                if (dropped == 1 || dropped % 1000 == 0) {
+                    log.warn("Tier schedule warm-up queue full, {} warm-ups dropped so far", dropped);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes back a {@link #record(RawUsage) recorded} transaction that could not be stored.
+     */
+    public void forget(final RawUsage rawUsage) {
+        final Position position = positions.remove(transactionKey(rawUsage));
+        final Counter counter = counters.get(new UnitKey(rawUsage.getTenantId(), rawUsage.getSubscriptionId(), rawUsage.getUnitType()));
+        if (position != null && counter != null && counter.periodStart.isEqual(position.periodStart)) {
+            counter.add(rawUsage.getAmount().negate(), () -> BigDecimal.ZERO);
+        }
+    }
+
+    /**
+     * Provisional charge of a transaction, null when it was not recorded on this node or its unit has no tier
+     * schedule.
+     */
+    public ChargeEstimate estimate(final String tenantId, final String subscriptionId, final String unitType, final String trackingId) {
+        final Position position = positions.get(new TransactionKey(tenantId, subscriptionId, unitType, trackingId));
+        if (position == null) {
+            return null;
+        }
+        final TierSchedule schedule = schedule(new UnitKey(tenantId, subscriptionId, unitType));
+        return schedule == null ? null : schedule.estimate(position.usedBefore, position.amount);
+    }
+
+    /**
+     * Drops the estimate of a transaction whose real charge is known.
+     */
+    public void settled(final String tenantId, final String subscriptionId, final String unitType, final String trackingId) {
+        positions.remove(new TransactionKey(tenantId, subscriptionId, unitType, trackingId));
+    }
+
+    /**
+     * Schedule warm-ups turned away because the loader queue was full; their units are loaded on first lookup instead.
+     */
+    public long getDroppedWarmUps() {
+        return droppedWarmUps.get();
+    }
+
+    public void shutdown() {
+        scheduleLoader.shutdownNow();
+    }
+
+    private TierSchedule schedule(final UnitKey unitKey) {
+        final CachedSchedule cached = schedules.get(unitKey);
+        final long scheduleTtlMillis = TimeUnit.SECONDS.toMillis(tunings.apply(unitKey.tenantId).getScheduleTtlSeconds());
+        if (cached != null && System.currentTimeMillis() - cached.loadedAt < scheduleTtlMillis) {
+            return cached.schedule;
+        }
+        try {
+            final TierSchedule schedule = loadSchedule(unitKey);
+            schedules.put(unitKey, new CachedSchedule(schedule, System.currentTimeMillis()));
+            return schedule;
+        } catch (final Exception e) {
+            log.warn("Unable to load the tier schedule of {} :: {}", unitKey, e.getMessage());
+            // Keep serving the expired schedule rather than none while Kill Bill is unavailable
+            return cached == null ? null : cached.schedule;
+        }
+    }
+
+    private TierSchedule loadSchedule(final UnitKey unitKey) throws Exception {
+        final CallContext context = getCallContext(unitKey.tenantId);
+        final Subscription subscription = resilientKillbill.getSubscriptionForExternalKey(unitKey.subscriptionId, context);
+        final Account account = resilientKillbill.getAccountById(subscription.getAccountId(), context);
+        return TierSchedule.fromUsages(subscription.getLastActivePhase().getUsages(), unitKey.unitType, account.getCurrency());
+    }
+
+    private PluginCallContext getCallContext(final String tenantId) {
+        return new PluginCallContext(UUID.randomUUID(), PLUGIN_NAME,
+                                     CallOrigin.INTERNAL, UserType.ADMIN, "Estimated by " + this.getClass().getSimpleName(), "Test" + this.getClass().getSimpleName(),
+                                     DateTime.now(), DateTime.now(), null, UUID.fromString(tenantId));
+    }
+
+    private static TransactionKey transactionKey(final RawUsage rawUsage) {
+        return new TransactionKey(rawUsage.getTenantId(), rawUsage.getSubscriptionId(), rawUsage.getUnitType(), rawUsage.getTrackingId());
+    }
+
+    @Data
+    private static final class UnitKey {
+
+        private final String tenantId;
+        private final String subscriptionId;
+        private final String unitType;
+    }
+
+    @Data
+    private static final class TransactionKey {
+
+        private final String tenantId;
+        private final String subscriptionId;
+        private final String unitType;
+        private final String trackingId;
+    }
+
+    private static final class Counter {
+
+        private final DateTime periodStart;
+        private BigDecimal used;
+
+        private Counter(final DateTime periodStart) {
+            this.periodStart = periodStart;
+        }
+
+        /**
+         * @param seed usage of the period stored before this node counted any, read on first use
+         * @return usage of the period before {@code amount}
+         */
+        private synchronized BigDecimal add(final BigDecimal amount, final Supplier<BigDecimal> seed) {
+            if (used == null) {
+                used = seed.get();
+            }
+            final BigDecimal before = used;
+            used = used.add(amount);
+            return before;
+        }
+    }
+
+    private static final class Position {
+
+        private final DateTime periodStart;
+        private final BigDecimal usedBefore;
+        private final BigDecimal amount;
+
+        private Position(final DateTime periodStart, final BigDecimal usedBefore, final BigDecimal amount) {
+            this.periodStart = periodStart;
+            this.usedBefore = usedBefore;
+            this.amount = amount;
+        }
+
+        /**
+         * Several records of one transaction and unit are estimated together, as one quantity.
+         */
+        private Position merge(final Position other) {
+            return new Position(periodStart, usedBefore.min(other.usedBefore), amount.add(other.amount));
+        }
+    }
+
+    private static final class CachedSchedule {
+
+        private final TierSchedule schedule;
+        private final long loadedAt;
+
+        private CachedSchedule(final TierSchedule schedule, final long loadedAt) {
+            this.schedule = schedule;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
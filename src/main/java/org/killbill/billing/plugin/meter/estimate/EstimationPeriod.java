@@ -0,0 +1,61 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.estimate;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * The span, in UTC, over which usage of a subscription unit climbs its tiers before starting over at the first one.
+ * It should match the billing period the invoices of the catalog cover.
+ */
+public enum EstimationPeriod {
+
+    DAY {
+        @Override
+        public DateTime start(final DateTime recordDate) {
+            return recordDate.toDateTime(DateTimeZone.UTC).withTimeAtStartOfDay();
+        }
+
+        @Override
+        public DateTime next(final DateTime start) {
+            return start.plusDays(1);
+        }
+    },
+    MONTH {
+        @Override
+        public DateTime start(final DateTime recordDate) {
+            return recordDate.toDateTime(DateTimeZone.UTC).withDayOfMonth(1).withTimeAtStartOfDay();
+        }
+
+        @Override
+        public DateTime next(final DateTime start) {
+            return start.plusMonths(1);
+        }
+    };
+
+    /**
+     * Start of the period a record date falls in.
+     */
+    public abstract DateTime start(DateTime recordDate);
+
+    /**
+     * Start of the period following the one starting at {@code start}.
+     */
+    public abstract DateTime next(DateTime start);
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.estimate;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.killbill.billing.catalog.api.BillingMode;
+import org.killbill.billing.catalog.api.CatalogApiException;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.catalog.api.Tier;
+import org.killbill.billing.catalog.api.TierBlockPolicy;
+import org.killbill.billing.catalog.api.TieredBlock;
+import org.killbill.billing.catalog.api.Usage;
+
+/**
+ * The tiers one unit of a subscription climbs within a period, read from its catalog phase: the price of a block of
+ * usage in each tier and the quantity at which the tier ends. Tier numbers start at 1 like in the invoice item details
+ * that back-fill allocates.
+ */
+public final class TierSchedule {
+
+    private final String unitType;
+    private final boolean topTier;
+    private final List<Step> steps;
+
+    TierSchedule(final String unitType, final boolean topTier, final List<Step> steps) {
+        this.unitType = unitType;
+        this.topTier = topTier;
+        this.steps = steps;
+    }
+
+    /**
+     * The schedule of {@code unitType} among the in-arrear usages of a phase, priced in {@code currency}; null when no
+     * tier has a block of that unit.
+     */
+    public static TierSchedule fromUsages(final Usage[] usages, final String unitType, final Currency currency) throws CatalogApiException {
+        if (usages == null) {
+            return null;
+        }
+        for (final Usage usage : usages) {
+            if (usage.getBillingMode() != BillingMode.IN_ARREAR || usage.getTiers() == null) {
+                continue;
+            }
+            final List<Step> steps = new ArrayList<>();
+            BigDecimal upTo = BigDecimal.ZERO;
+            for (int i = 0; i < usage.getTiers().length && upTo != null; i++) {
+                final Tier tier = usage.getTiers()[i];
+                for (final TieredBlock block : tier.getTieredBlocks()) {
+                    if (!unitType.equals(block.getUnit().getName())) {
+                        continue;
+                    }
+                    // A negative max is Kill Bill's unlimited last tier
+                    upTo = block.getMax() == null || block.getMax().signum() < 0 ? null : upTo.add(block.getMax().multiply(block.getSize()));
+                    steps.add(new Step(i + 1, block.getPrice().getPrice(currency), block.getSize(), upTo));
+                }
+            }
+            if (!steps.isEmpty()) {
+                return new TierSchedule(unitType, usage.getTierBlockPolicy() == TierBlockPolicy.TOP_TIER, steps);
+            }
+        }
+        return null;
+    }
+
+    public String getUnitType() {
+        return unitType;
+    }
+
+    /**
+     * Charge and tier of {@code amount} used on top of {@code usedBefore} in the same period. With the all-tiers
+     * policy a transaction straddling tiers is charged the part in each at its price and ends in the higher one, as
+     * {@code TierAllocator} does; with the top-tier policy it is charged at the price of the tier it ends in.
+     */
+    public ChargeEstimate estimate(final BigDecimal usedBefore, final BigDecimal amount) {
+        final BigDecimal to = usedBefore.add(amount);
+        BigDecimal charges = BigDecimal.ZERO;
+        BigDecimal lower = BigDecimal.ZERO;
+        Step reached = steps.get(0);
+        for (final Step step : steps) {
+            if (!topTier) {
+                final BigDecimal overlap = min(to, step.upTo).subtract(lower.max(usedBefore));
+                if (overlap.signum() > 0) {
+                    charges = charges.add(step.charge(overlap));
+                }
+            }
+            reached = step;
+            if (step.upTo == null || to.compareTo(step.upTo) <= 0) {
+                break;
+            }
+            lower = step.upTo;
+        }
+        if (topTier) {
+            charges = reached.charge(amount);
+        }
+        return new ChargeEstimate(charges, reached.tier);
+    }
+
+    private static BigDecimal min(final BigDecimal value, final BigDecimal upTo) {
+        return upTo == null ? value : value.min(upTo);
+    }
+
+    static final class Step {
+
+        private final int tier;
+        private final BigDecimal price;
+        private final BigDecimal blockSize;
+        /** Period usage at which the tier ends, null when unbounded. */
+        private final BigDecimal upTo;
+
+        Step(final int tier, final BigDecimal price, final BigDecimal blockSize, final BigDecimal upTo) {
+            this.tier = tier;
+            this.price = price;
+            this.blockSize = blockSize;
+            this.upTo = upTo;
+        }
+
+        private BigDecimal charge(final BigDecimal quantity) {
+            return quantity.multiply(price).divide(blockSize, MathContext.DECIMAL64);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.exception;
+
+/**
+ * A Kill Bill API call that was not made or not waited for: its circuit breaker is open, its bulkhead is full, or it
+ * ran past its deadline.
+ */
+public class KillbillUnavailableException extends RuntimeException {
+
+    public enum Reason {
+        CIRCUIT_OPEN,
+        BULKHEAD_FULL,
+        TIMEOUT
+    }
+
+    private final String api;
+    private final Reason reason;
+
+    public KillbillUnavailableException(final String api, final Reason reason) {
+        super(api + " :: " + reason);
+        this.api = api;
+        this.reason = reason;
+    }
+
+    public String getApi() {
+        return api;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * Whether the call was turned away without reaching Kill Bill, i.e. trying again later is all there is to do.
+     */
+    public boolean isShed() {
+        return reason != Reason.TIMEOUT;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.history;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.killbill.billing.plugin.meter.dto.DailyUsage;
+
+import lombok.Data;
+
+/**
+ * Sums scanned rows per subscription, unit and day across segments, in unscaled longs until the result is built.
+ */
+final class HistoryAggregate {
+
+    private final Map<Key, long[]> totals = new HashMap<>();
+
+    void add(final String subscriptionId, final String unitType, final int day,
+             final long amount, final long charges, final int records) {
+        final long[] total = totals.computeIfAbsent(new Key(subscriptionId, unitType, day), key -> new long[3]);
+        total[0] += amount;
+        total[1] += charges;
+        total[2] += records;
+    }
+
+    List<DailyUsage> toDailyUsage(final String tenantId) {
+        final List<DailyUsage> result = new ArrayList<>(totals.size());
+        totals.entrySet()
+              .stream()
+              .sorted(Map.Entry.comparingByKey(Comparator.comparing(Key::getSubscriptionId)
+                                                         .thenComparing(Key::getUnitType)
+                                                         .thenComparingInt(Key::getDay)))
+              .forEach(entry -> result.add(new DailyUsage().setTenantId(tenantId)
+                                                           .setSubscriptionId(entry.getKey().getSubscriptionId())
+                                                           .setUnitType(entry.getKey().getUnitType())
+                                                           .setDay(Segment.day(entry.getKey().getDay()))
+                                                           .setAmount(Segment.decimal(entry.getValue()[0]))
+                                                           .setCharges(Segment.decimal(entry.getValue()[1]))
+                                                           .setRecords(entry.getValue()[2])));
+        return result;
+    }
+
+    @Data
+    private static final class Key {
+        private final String subscriptionId;
+        private final String unitType;
+        private final int day;
+    }
+}
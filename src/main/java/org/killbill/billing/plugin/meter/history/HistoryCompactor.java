@@ -0,0 +1,152 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.history;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.meter.dao.RawUsageDao;
+import org.killbill.billing.plugin.meter.dto.DailyUsage;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Periodically rolls charged raw_usage into {@link UsageHistory} segments, one segment per run of at most
+ * {@link #MAX_DAYS_PER_SEGMENT} days. A day is compacted once it is {@code settleDays} old. Charges that arrive later,
+ * from a backfill or a re-rating, move the charge revision of the days they belong to; a segment ending within
+ * {@code recompactDays} whose revision moved is compacted again. Days left uncovered by a segment that could not be
+ * read are compacted again too.
+ */
+@Slf4j
+public class HistoryCompactor {
+
+    static final int MAX_DAYS_PER_SEGMENT = 31;
+
+    private final RawUsageDao rawUsageDao;
+    private final UsageHistory usageHistory;
+    private final int settleDays;
+    private final int initialDays;
+    private final int recompactDays;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param settleDays  age in days before a day is compacted
+     * @param initialDays how far back the first compaction reaches
+     * @param recompactDays age in days after which a segment is no longer checked for late charges
+     */
+    public HistoryCompactor(final RawUsageDao rawUsageDao, final UsageHistory usageHistory, final int settleDays, final int initialDays,
+                            final int recompactDays) {
+        this.rawUsageDao = rawUsageDao;
+        this.usageHistory = usageHistory;
+        this.settleDays = settleDays;
+        this.initialDays = initialDays;
+        this.recompactDays = recompactDays;
+    }
+
+    public synchronized void start(final long intervalMinutes) {
+        if (scheduler != null || !usageHistory.isEnabled()) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "meter-history-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (final RuntimeException e) {
+                log.error("Error :: {}", e.getMessage());
+            }
+        }, 1, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Compacts again the recent segments with late charges and the days no segment covers, then every settled day
+     * after the last compacted one.
+     *
+     * @return the number of segments written
+     */
+    public synchronized int compact() {
+        final LocalDate today = new LocalDate(DateTimeZone.UTC);
+        final LocalDate cutoff = today.minusDays(settleDays);
+        int written = 0;
+        LocalDate covered = null;
+        for (final Segment segment : usageHistory.getSegments()) {
+            if (covered != null && segment.getFromDay().isAfter(covered)) {
+                written += compact(covered, segment.getFromDay());
+            }
+            if (!segment.getToDay().isBefore(today.minusDays(recompactDays))) {
+                final LocalDate to = segment.getToDay().plusDays(1);
+                if (chargeRevision(segment.getFromDay(), to) != segment.getChargeRevision()) {
+                    write(segment.getFromDay(), to);
+                    written++;
+                }
+            }
+            final LocalDate next = segment.getToDay().plusDays(1);
+            covered = covered == null || next.isAfter(covered) ? next : covered;
+        }
+        written += compact(covered == null ? cutoff.minusDays(initialDays) : covered, cutoff);
+        return written;
+    }
+
+    /**
+     * Writes the segments of [from, to), each of at most {@link #MAX_DAYS_PER_SEGMENT} days.
+     */
+    private int compact(final LocalDate from, final LocalDate to) {
+        int written = 0;
+        LocalDate start = from;
+        while (start.isBefore(to)) {
+            final LocalDate end = min(start.plusDays(MAX_DAYS_PER_SEGMENT), to);
+            write(start, end);
+            written++;
+            start = end;
+        }
+        return written;
+    }
+
+    private void write(final LocalDate from, final LocalDate to) {
+        // Read ahead of the rows: charges written in between move the revision again and are picked up next run
+        final long chargeRevision = chargeRevision(from, to);
+        final List<DailyUsage> rows = rawUsageDao.getDailyChargedUsage(from.toDateTimeAtStartOfDay(DateTimeZone.UTC),
+                                                                      to.toDateTimeAtStartOfDay(DateTimeZone.UTC));
+        // Written even when empty, so the covered range and with it the next starting day move forward
+        usageHistory.write(from, to.minusDays(1), chargeRevision, rows);
+        log.info("HistoryCompactor :: {} to {} :: {} rows", from, to.minusDays(1), rows.size());
+    }
+
+    private long chargeRevision(final LocalDate from, final LocalDate to) {
+        return rawUsageDao.getChargeRevision(from.toDateTimeAtStartOfDay(DateTimeZone.UTC), to.toDateTimeAtStartOfDay(DateTimeZone.UTC));
+    }
+
+    private static LocalDate min(final LocalDate first, final LocalDate second) {
+        return first.isBefore(second) ? first : second;
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.history;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
+
+/**
+ * One immutable, memory-mapped segment of daily usage covering a closed range of UTC days.
+ * <p>
+ * Layout: a 48 byte header (magic, format version, rows, first and last covered day, dictionary entries and bytes,
+ * blocks, charge revision, data bytes), the string dictionary (entries + 1 offsets, then UTF-8 bytes), the block index
+ * padded to 8 bytes (each block's first tenant and subscription as one long, then blocks + 1 data offsets), then the
+ * blocks. Rows are sorted by tenant, subscription, unit and day and stored in blocks of {@link #BATCH} rows. Within a
+ * block each column is a run of varints: tenant, subscription, unit and day as zigzag deltas from the previous row, so
+ * a repeated id or the next day takes one byte; records as is; amount and charges zigzag encoded, unscaled at
+ * {@link #SCALE}. A tenant or subscription is found by binary search over the block index.
+ */
+final class Segment {
+
+    static final int MAGIC = 0x4D555347;
+    static final int FORMAT_VERSION = 2;
+    static final int HEADER_BYTES = 48;
+    /** Decimal places kept for amounts and charges. */
+    static final int SCALE = 6;
+    static final String SUFFIX = ".seg";
+    static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /** Rows per block, decoded and filtered together; small enough for the batch arrays to stay in L1. */
+    static final int BATCH = 1024;
+
+    private static final LocalDate EPOCH = new LocalDate(1970, 1, 1);
+
+    private final Path path;
+    private final int rows;
+    private final int fromDay;
+    private final int toDay;
+    private final long chargeRevision;
+    private final String[] dictionary;
+    private final LongBuffer blockKeys;
+    private final IntBuffer blockOffsets;
+    private final ByteBuffer data;
+
+    private Segment(final Path path, final ByteBuffer buffer) throws IOException {
+        this.path = path;
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a usage history segment: " + path);
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported usage history segment format " + buffer.getInt(4) + ": " + path);
+        }
+        rows = buffer.getInt(8);
+        fromDay = buffer.getInt(12);
+        toDay = buffer.getInt(16);
+        final int entries = buffer.getInt(20);
+        final int dictionaryBytes = buffer.getInt(24);
+        final int blocks = buffer.getInt(28);
+        chargeRevision = buffer.getLong(32);
+        final int dataBytes = buffer.getInt(40);
+        if (rows < 0 || entries < 0 || dictionaryBytes < 0 || blocks != blocks(rows) || dataBytes < 0
+            || (long) dataOffset(entries, dictionaryBytes, blocks) + dataBytes != buffer.capacity()) {
+            throw new IOException("Truncated or corrupt usage history segment: " + path);
+        }
+
+        dictionary = new String[entries];
+        final int stringsOffset = HEADER_BYTES + (entries + 1) * Integer.BYTES;
+        for (int i = 0; i < entries; i++) {
+            final int start = buffer.getInt(HEADER_BYTES + i * Integer.BYTES);
+            final int end = buffer.getInt(HEADER_BYTES + (i + 1) * Integer.BYTES);
+            if (start < 0 || end < start || end > dictionaryBytes) {
+                throw new IOException("Corrupt dictionary in usage history segment: " + path);
+            }
+            final byte[] bytes = new byte[end - start];
+            buffer.duplicate().position(stringsOffset + start).get(bytes);
+            dictionary[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        final int indexOffset = indexOffset(entries, dictionaryBytes);
+        blockKeys = slice(buffer, indexOffset, blocks * Long.BYTES).asLongBuffer();
+        blockOffsets = slice(buffer, indexOffset + blocks * Long.BYTES, (blocks + 1) * Integer.BYTES).asIntBuffer();
+        for (int block = 0; block < blocks; block++) {
+            if (blockOffsets.get(block) < 0 || blockOffsets.get(block + 1) < blockOffsets.get(block)) {
+                throw new IOException("Corrupt block index in usage history segment: " + path);
+            }
+        }
+        if (blockOffsets.get(blocks) != dataBytes) {
+            throw new IOException("Corrupt block index in usage history segment: " + path);
+        }
+        data = slice(buffer, dataOffset(entries, dictionaryBytes, blocks), dataBytes);
+    }
+
+    static Segment open(final Path path) throws IOException {
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The mapping outlives the channel
+            return new Segment(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (final IndexOutOfBoundsException | IllegalArgumentException | BufferUnderflowException e) {
+            throw new IOException("Corrupt usage history segment: " + path, e);
+        }
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    int getRows() {
+        return rows;
+    }
+
+    LocalDate getFromDay() {
+        return EPOCH.plusDays(fromDay);
+    }
+
+    LocalDate getToDay() {
+        return EPOCH.plusDays(toDay);
+    }
+
+    /**
+     * Charge revision of the covered days when the segment was written, see {@code RawUsageDao#getChargeRevision}.
+     */
+    long getChargeRevision() {
+        return chargeRevision;
+    }
+
+    /**
+     * Adds the rows of a tenant (optionally one subscription and unit) within [fromDay, toDay] to the aggregate.
+     */
+    void scan(final String tenantId, final String subscriptionId, final String unitType,
+              final int fromDay, final int toDay, final HistoryAggregate aggregate) {
+        if (rows == 0 || toDay < this.fromDay || fromDay > this.toDay) {
+            return;
+        }
+        final int tenant = Arrays.binarySearch(dictionary, tenantId);
+        if (tenant < 0) {
+            return;
+        }
+        final int subscription;
+        if (subscriptionId == null) {
+            subscription = -1;
+        } else {
+            subscription = Arrays.binarySearch(dictionary, subscriptionId);
+            if (subscription < 0) {
+                return;
+            }
+        }
+        final int unit;
+        if (unitType == null) {
+            unit = -1;
+        } else {
+            unit = Arrays.binarySearch(dictionary, unitType);
+            if (unit < 0) {
+                return;
+            }
+        }
+
+        // The wanted rows start at or after the first key of the block before the first one past the low key
+        final long lowKey = key(tenant, subscription < 0 ? 0 : subscription);
+        final long highKey = key(tenant, subscription < 0 ? Integer.MAX_VALUE : subscription);
+        final int blocks = blockKeys.limit();
+        final int firstBlock = Math.max(0, lowerBound(blockKeys, 0, blocks, lowKey) - 1);
+        final int lastBlock = lowerBound(blockKeys, firstBlock, blocks, highKey + 1);
+
+        final Block block = new Block();
+        final int[] selection = new int[BATCH];
+        for (int index = firstBlock; index < lastBlock; index++) {
+            final int length = block.decode(index);
+            // Branch-free selection over the block: the index is always written, the count only moves on a match
+            int selected = 0;
+            for (int i = 0; i < length; i++) {
+                final int day = block.days[i];
+                selection[selected] = i;
+                selected += (block.tenants[i] == tenant
+                             & (subscription < 0 | block.subscriptions[i] == subscription)
+                             & (unit < 0 | block.units[i] == unit)
+                             & day >= fromDay & day <= toDay) ? 1 : 0;
+            }
+            for (int i = 0; i < selected; i++) {
+                final int row = selection[i];
+                aggregate.add(dictionary[block.subscriptions[row]], dictionary[block.units[row]], block.days[row],
+                              block.amounts[row], block.charges[row], block.records[row]);
+            }
+        }
+    }
+
+    /** Decoded columns of one block, reused from block to block. */
+    private final class Block {
+
+        private final int[] tenants = new int[BATCH];
+        private final int[] subscriptions = new int[BATCH];
+        private final int[] units = new int[BATCH];
+        private final int[] days = new int[BATCH];
+        private final int[] records = new int[BATCH];
+        private final long[] amounts = new long[BATCH];
+        private final long[] charges = new long[BATCH];
+
+        /**
+         * @return the number of rows in the block
+         */
+        int decode(final int index) {
+            final int start = blockOffsets.get(index);
+            final ByteBuffer bytes = slice(data, start, blockOffsets.get(index + 1) - start);
+            final int length = Math.min(BATCH, rows - index * BATCH);
+            decodeDeltas(bytes, tenants, length);
+            decodeDeltas(bytes, subscriptions, length);
+            decodeDeltas(bytes, units, length);
+            decodeDeltas(bytes, days, length);
+            for (int i = 0; i < length; i++) {
+                records[i] = (int) getVarint(bytes);
+            }
+            for (int i = 0; i < length; i++) {
+                amounts[i] = unzigzag(getVarint(bytes));
+            }
+            for (int i = 0; i < length; i++) {
+                charges[i] = unzigzag(getVarint(bytes));
+            }
+            return length;
+        }
+    }
+
+    static int blocks(final int rows) {
+        return (rows + BATCH - 1) / BATCH;
+    }
+
+    /** Sort key of a row's tenant and subscription ids, as kept in the block index. */
+    static long key(final int tenant, final int subscription) {
+        return ((long) tenant << 32) | subscription;
+    }
+
+    static int epochDay(final LocalDate day) {
+        return Days.daysBetween(EPOCH, day).getDays();
+    }
+
+    static String day(final int epochDay) {
+        return EPOCH.plusDays(epochDay).toString();
+    }
+
+    static BigDecimal decimal(final long unscaled) {
+        return BigDecimal.valueOf(unscaled, SCALE);
+    }
+
+    static int indexOffset(final int entries, final int dictionaryBytes) {
+        return align(HEADER_BYTES + (entries + 1) * Integer.BYTES + dictionaryBytes);
+    }
+
+    static int dataOffset(final int entries, final int dictionaryBytes, final int blocks) {
+        return indexOffset(entries, dictionaryBytes) + blocks * Long.BYTES + (blocks + 1) * Integer.BYTES;
+    }
+
+    static long zigzag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void decodeDeltas(final ByteBuffer bytes, final int[] column, final int length) {
+        int previous = 0;
+        for (int i = 0; i < length; i++) {
+            previous += (int) unzigzag(getVarint(bytes));
+            column[i] = previous;
+        }
+    }
+
+    private static long getVarint(final ByteBuffer bytes) {
+        long value = 0;
+        int shift = 0;
+        byte next;
+        do {
+            next = bytes.get();
+            value |= (long) (next & 0x7F) << shift;
+            shift += 7;
+        } while (next < 0);
+        return value;
+    }
+
+    private static ByteBuffer slice(final ByteBuffer buffer, final int offset, final int length) {
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset).limit(offset + length);
+        return duplicate.slice();
+    }
+
+    private static int align(final int offset) {
+        return (offset + Long.BYTES - 1) & -Long.BYTES;
+    }
+
+    /** First block in [from, to) whose first key is not below {@code value}. */
+    private static int lowerBound(final LongBuffer keys, final int from, final int to, final long value) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (keys.get(middle) < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.history;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.meter.dto.DailyUsage;
+
+/**
+ * Writes {@link Segment} files: rows sorted by tenant, subscription, unit and day, strings replaced by ids into one
+ * sorted dictionary, columns varint encoded per block of {@link Segment#BATCH} rows behind a block index.
+ */
+final class SegmentWriter {
+
+    private SegmentWriter() {
+    }
+
+    /**
+     * Writes the rows of [fromDay, toDay] to {@code target}, through a temporary file so readers never see a partial
+     * segment.
+     */
+    static void write(final Path target, final LocalDate fromDay, final LocalDate toDay, final long chargeRevision,
+                      final List<DailyUsage> rows) throws IOException {
+        final Map<String, Integer> ids = dictionary(rows);
+        final List<DailyUsage> sorted = new ArrayList<>(rows);
+        sorted.sort(Comparator.comparing(DailyUsage::getTenantId)
+                              .thenComparing(DailyUsage::getSubscriptionId)
+                              .thenComparing(DailyUsage::getUnitType)
+                              .thenComparing(DailyUsage::getDay));
+
+        final List<byte[]> strings = new ArrayList<>(ids.size());
+        int dictionaryBytes = 0;
+        for (final String value : ids.keySet()) {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            strings.add(bytes);
+            dictionaryBytes += bytes.length;
+        }
+
+        final int blocks = Segment.blocks(sorted.size());
+        final long[] blockKeys = new long[blocks];
+        final int[] blockOffsets = new int[blocks + 1];
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int block = 0; block < blocks; block++) {
+            final List<DailyUsage> blockRows = sorted.subList(block * Segment.BATCH, Math.min(sorted.size(), (block + 1) * Segment.BATCH));
+            blockKeys[block] = Segment.key(ids.get(blockRows.get(0).getTenantId()), ids.get(blockRows.get(0).getSubscriptionId()));
+            blockOffsets[block] = data.size();
+            writeBlock(data, ids, blockRows);
+        }
+        blockOffsets[blocks] = data.size();
+
+        final int dataOffset = Segment.dataOffset(ids.size(), dictionaryBytes, blocks);
+        final ByteBuffer buffer = ByteBuffer.allocate(dataOffset + data.size());
+        buffer.putInt(Segment.MAGIC)
+              .putInt(Segment.FORMAT_VERSION)
+              .putInt(sorted.size())
+              .putInt(Segment.epochDay(fromDay))
+              .putInt(Segment.epochDay(toDay))
+              .putInt(ids.size())
+              .putInt(dictionaryBytes)
+              .putInt(blocks)
+              .putLong(chargeRevision)
+              .putInt(data.size())
+              .putInt(0);
+        int offset = 0;
+        for (final byte[] bytes : strings) {
+            buffer.putInt(offset);
+            offset += bytes.length;
+        }
+        buffer.putInt(offset);
+        for (final byte[] bytes : strings) {
+            buffer.put(bytes);
+        }
+        buffer.position(Segment.indexOffset(ids.size(), dictionaryBytes));
+        for (final long key : blockKeys) {
+            buffer.putLong(key);
+        }
+        for (final int blockOffset : blockOffsets) {
+            buffer.putInt(blockOffset);
+        }
+        buffer.put(data.toByteArray());
+        buffer.flip();
+
+        final Path temporary = target.resolveSibling(target.getFileName() + Segment.TEMPORARY_SUFFIX);
+        try (final FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                                          StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeBlock(final ByteArrayOutputStream data, final Map<String, Integer> ids, final List<DailyUsage> rows) {
+        int previous = 0;
+        for (final DailyUsage usage : rows) {
+            previous = putDelta(data, previous, ids.get(usage.getTenantId()));
+        }
+        previous = 0;
+        for (final DailyUsage usage : rows) {
+            previous = putDelta(data, previous, ids.get(usage.getSubscriptionId()));
+        }
+        previous = 0;
+        for (final DailyUsage usage : rows) {
+            previous = putDelta(data, previous, ids.get(usage.getUnitType()));
+        }
+        previous = 0;
+        for (final DailyUsage usage : rows) {
+            previous = putDelta(data, previous, Segment.epochDay(LocalDate.parse(usage.getDay())));
+        }
+        for (final DailyUsage usage : rows) {
+            putVarint(data, Math.toIntExact(usage.getRecords()));
+        }
+        for (final DailyUsage usage : rows) {
+            putVarint(data, Segment.zigzag(unscaled(usage.getAmount())));
+        }
+        for (final DailyUsage usage : rows) {
+            putVarint(data, Segment.zigzag(unscaled(usage.getCharges())));
+        }
+    }
+
+    private static Map<String, Integer> dictionary(final List<DailyUsage> rows) {
+        // Sorted, so comparing ids orders rows the same way as comparing the strings
+        final Map<String, Integer> ids = new TreeMap<>();
+        for (final DailyUsage usage : rows) {
+            ids.put(usage.getTenantId(), 0);
+            ids.put(usage.getSubscriptionId(), 0);
+            ids.put(usage.getUnitType(), 0);
+        }
+        int id = 0;
+        for (final Map.Entry<String, Integer> entry : ids.entrySet()) {
+            entry.setValue(id++);
+        }
+        return ids;
+    }
+
+    private static long unscaled(final BigDecimal value) {
+        if (value == null) {
+            return 0;
+        }
+        return value.setScale(Segment.SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    private static int putDelta(final ByteArrayOutputStream data, final int previous, final int value) {
+        putVarint(data, Segment.zigzag((long) value - previous));
+        return value;
+    }
+
+    private static void putVarint(final ByteArrayOutputStream data, final long value) {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            data.write((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        data.write((int) remaining);
+    }
+}
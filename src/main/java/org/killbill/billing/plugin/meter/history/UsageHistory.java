@@ -0,0 +1,141 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.history;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.meter.dto.DailyUsage;
+import org.killbill.billing.plugin.meter.exception.ResourceNotFoundException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Reporting store for charged usage: a directory of immutable {@link Segment}s, each covering a closed range of UTC
+ * days. Queries scan the mapped segments and never touch raw_usage, so reporting load stays off the billing tables.
+ */
+@Slf4j
+public class UsageHistory {
+
+    private final Path directory;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param directory where segments live; null disables the store
+     */
+    public UsageHistory(final Path directory) throws IOException {
+        this.directory = directory;
+        if (directory == null) {
+            return;
+        }
+        Files.createDirectories(directory);
+        final List<Segment> loaded = new ArrayList<>();
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (final Path file : files) {
+                final String name = file.getFileName().toString();
+                if (name.endsWith(Segment.TEMPORARY_SUFFIX)) {
+                    // Left over by a compaction that did not finish
+                    Files.delete(file);
+                } else if (name.endsWith(Segment.SUFFIX)) {
+                    try {
+                        loaded.add(Segment.open(file));
+                    } catch (final IOException e) {
+                        // Its days are compacted again as a gap between the readable segments
+                        log.warn("UsageHistory :: skipping {} :: {}", file, e.getMessage());
+                    }
+                }
+            }
+        }
+        loaded.sort(Comparator.comparingInt(segment -> Segment.epochDay(segment.getFromDay())));
+        segments.addAll(loaded);
+        log.info("UsageHistory :: {} segments in {}", segments.size(), directory);
+    }
+
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Last day covered by a segment, or null when nothing was compacted yet.
+     */
+    public LocalDate getCompactedThrough() {
+        LocalDate last = null;
+        for (final Segment segment : segments) {
+            if (last == null || segment.getToDay().isAfter(last)) {
+                last = segment.getToDay();
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Daily usage of a tenant within [from, to], both inclusive, optionally narrowed to one subscription and unit.
+     */
+    public List<DailyUsage> query(final String tenantId, final String subscriptionId, final String unitType,
+                                  final LocalDate from, final LocalDate to) {
+        if (!isEnabled()) {
+            throw new ResourceNotFoundException("Usage history is not enabled");
+        }
+        final HistoryAggregate aggregate = new HistoryAggregate();
+        final int fromDay = Segment.epochDay(from);
+        final int toDay = Segment.epochDay(to);
+        for (final Segment segment : segments) {
+            segment.scan(tenantId, subscriptionId, unitType, fromDay, toDay, aggregate);
+        }
+        return aggregate.toDailyUsage(tenantId);
+    }
+
+    /**
+     * Segments ordered by their first day.
+     */
+    List<Segment> getSegments() {
+        final List<Segment> sorted = new ArrayList<>(segments);
+        sorted.sort(Comparator.comparingInt(segment -> Segment.epochDay(segment.getFromDay())));
+        return sorted;
+    }
+
+    /**
+     * Writes the segment of [fromDay, toDay], replacing the one of the same days if there is one. Queries running
+     * against the replaced segment finish on its old mapping.
+     */
+    void write(final LocalDate fromDay, final LocalDate toDay, final long chargeRevision, final List<DailyUsage> rows) {
+        final Path file = directory.resolve("usage-" + fromDay + "-" + toDay + Segment.SUFFIX);
+        try {
+            SegmentWriter.write(file, fromDay, toDay, chargeRevision, rows);
+            final Segment written = Segment.open(file);
+            for (int i = 0; i < segments.size(); i++) {
+                if (segments.get(i).getPath().equals(file)) {
+                    segments.set(i, written);
+                    return;
+                }
+            }
+            segments.add(written);
+        } catch (final IOException e) {
+            log.error("Error :: {}", e.getMessage());
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.ingest;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Decides whether a usage request may start inserting now. Requests past a limit are turned away immediately with a
+ * retry delay rather than queued on the shared connection pool, so a burst cannot starve invoicing.
+ * <p>
+ * Three limits apply: a hard cap on in-flight requests, an adaptive limit below it that grows additively while
+ * requests finish within the latency target and shrinks multiplicatively when they do not, and per-tenant quotas
+ * (in-flight requests and records per second). The state of a tenant that has been idle for a minute is dropped;
+ * by then its bucket is full again, so a returning tenant starts exactly where it would have.
+ */
+@Slf4j
+public class AdmissionController {
+
+    static final double DECREASE_FACTOR = 0.9;
+    static final long DECREASE_COOLDOWN_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    static final long TENANT_IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final int maxInFlight;
+    private final int minLimit;
+    private final long latencyTargetNanos;
+    private final Function<UUID, IngestionQuota> quotas;
+    private final Map<UUID, TenantState> tenants = new ConcurrentHashMap<>();
+    private final AtomicLong nextExpiryNanos = new AtomicLong(System.nanoTime() + TENANT_IDLE_NANOS);
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejectedSaturated = new LongAdder();
+    private final LongAdder rejectedTenantQuota = new LongAdder();
+
+    private double limit;
+    private int inFlight;
+    private long lastDecreaseNanos;
+
+    /**
+     * @param maxInFlight          hard cap on requests inserting at the same time, across tenants
+     * @param latencyTargetMillis  request latency above which the adaptive limit backs off
+     * @param quotas               per-tenant quota
+     */
+    public AdmissionController(final int maxInFlight, final long latencyTargetMillis, final Function<UUID, IngestionQuota> quotas) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.minLimit = Math.min(2, this.maxInFlight);
+        this.latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTargetMillis);
+        this.quotas = quotas;
+        this.limit = Math.max(minLimit, this.maxInFlight / 2.0);
+    }
+
+    /**
+     * Admits or rejects a request of {@code records} usage records. An admitted request must close the returned
+     * admission when it is done; a rejected one carries the delay to send back as Retry-After.
+     */
+    public Admission tryAcquire(final UUID tenantId, final int records) {
+        final IngestionQuota quota = quotaOf(tenantId);
+        final long now = System.nanoTime();
+        final long nextExpiry = nextExpiryNanos.get();
+        if (now - nextExpiry >= 0 && nextExpiryNanos.compareAndSet(nextExpiry, now + TENANT_IDLE_NANOS)) {
+            expireIdleTenants(now);
+        }
+        TenantState tenant;
+        long tenantRetryAfter;
+        do {
+            tenant = tenants.computeIfAbsent(tenantId, id -> new TenantState());
+            // An expired state was removed from the map after this thread looked it up; take the fresh one
+            tenantRetryAfter = tenant.tryAcquire(quota, records);
+        } while (tenantRetryAfter < 0);
+        if (tenantRetryAfter > 0) {
+            rejectedTenantQuota.increment();
+            return Admission.rejected(tenantRetryAfter);
+        }
+        synchronized (this) {
+            if (inFlight >= (int) limit) {
+                tenant.refund(quota, records);
+                rejectedSaturated.increment();
+                return Admission.rejected(1);
+            }
+            inFlight++;
+        }
+        admitted.increment();
+        return new Admission(this, tenant, System.nanoTime());
+    }
+
+    void release(final TenantState tenant, final long latencyNanos, final boolean failed) {
+        tenant.release();
+        synchronized (this) {
+            if (failed || latencyNanos > latencyTargetNanos) {
+                final long now = System.nanoTime();
+                // One backoff per cooldown, so a batch of slow requests admitted together counts as one signal
+                if (now - lastDecreaseNanos >= DECREASE_COOLDOWN_NANOS) {
+                    lastDecreaseNanos = now;
+                    limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+                }
+            } else if (inFlight >= limit / 2) {
+                // Grows by about one per limit's worth of fast requests, and only while the limit is actually used
+                limit = Math.min(maxInFlight, limit + 1 / limit);
+            }
+            inFlight--;
+        }
+    }
+
+    void expireIdleTenants(final long nowNanos) {
+        tenants.entrySet().removeIf(entry -> entry.getValue().expireIfIdle(nowNanos));
+    }
+
+    int getTenantCount() {
+        return tenants.size();
+    }
+
+    private IngestionQuota quotaOf(final UUID tenantId) {
+        try {
+            final IngestionQuota quota = quotas.apply(tenantId);
+            return quota == null ? IngestionQuota.UNLIMITED : quota;
+        } catch (final RuntimeException e) {
+            log.warn("AdmissionController :: tenant {} :: {}, no quota applied", tenantId, e.getMessage());
+            return IngestionQuota.UNLIMITED;
+        }
+    }
+
+    public synchronized AdmissionStats getStats() {
+        return new AdmissionStats().setLimit((int) limit)
+                                   .setMaxInFlight(maxInFlight)
+                                   .setInFlight(inFlight)
+                                   .setAdmitted(admitted.sum())
+                                   .setRejectedSaturated(rejectedSaturated.sum())
+                                   .setRejectedTenantQuota(rejectedTenantQuota.sum());
+    }
+
+    /**
+     * Outcome of {@link #tryAcquire}. Closing an admitted one releases its slots and feeds its latency to the
+     * adaptive limit; mark it {@link #failed()} first when the insert threw.
+     */
+    public static final class Admission implements AutoCloseable {
+
+        private final AdmissionController controller;
+        private final TenantState tenant;
+        private final long startNanos;
+        private final long retryAfterSeconds;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean failed;
+
+        private Admission(final AdmissionController controller, final TenantState tenant, final long startNanos) {
+            this.controller = controller;
+            this.tenant = tenant;
+            this.startNanos = startNanos;
+            this.retryAfterSeconds = 0;
+        }
+
+        private Admission(final long retryAfterSeconds) {
+            this.controller = null;
+            this.tenant = null;
+            this.startNanos = 0;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        static Admission rejected(final long retryAfterSeconds) {
+            return new Admission(Math.max(1, retryAfterSeconds));
+        }
+
+        public boolean isAdmitted() {
+            return controller != null;
+        }
+
+        public long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+
+        public void failed() {
+            failed = true;
+        }
+
+        @Override
+        public void close() {
+            if (controller != null && closed.compareAndSet(false, true)) {
+                controller.release(tenant, System.nanoTime() - startNanos, failed);
+            }
+        }
+    }
+
+    static final class TenantState {
+
+        private int inFlight;
+        private double tokens = Double.NaN;
+        private long refilledNanos;
+        private long lastUsedNanos = System.nanoTime();
+        private boolean expired;
+
+        /**
+         * @return 0 when admitted, -1 when this state has expired, otherwise the seconds until the quota allows the
+         * request
+         */
+        synchronized long tryAcquire(final IngestionQuota quota, final int records) {
+            if (expired) {
+                return -1;
+            }
+            lastUsedNanos = System.nanoTime();
+            if (quota.getMaxInFlight() > 0 && inFlight >= quota.getMaxInFlight()) {
+                return 1;
+            }
+            if (quota.getRecordsPerSecond() > 0) {
+                final long now = System.nanoTime();
+                // Bucket holds one second of records, refilled continuously
+                final double capacity = Math.max(quota.getRecordsPerSecond(), records);
+                tokens = Double.isNaN(tokens) ? capacity
+                                              : Math.min(capacity, tokens + (now - refilledNanos) / 1e9 * quota.getRecordsPerSecond());
+                refilledNanos = now;
+                if (tokens < records) {
+                    return (long) Math.ceil((records - tokens) / quota.getRecordsPerSecond());
+                }
+                tokens -= records;
+            }
+            inFlight++;
+            return 0;
+        }
+
+        synchronized void release() {
+            inFlight--;
+            lastUsedNanos = System.nanoTime();
+        }
+
+        synchronized boolean expireIfIdle(final long nowNanos) {
+            if (inFlight == 0 && nowNanos - lastUsedNanos >= TENANT_IDLE_NANOS) {
+                expired = true;
+            }
+            return expired;
+        }
+
+        /** Undoes {@link #tryAcquire} for a request turned away by the global limit. */
+        synchronized void refund(final IngestionQuota quota, final int records) {
+            inFlight--;
+            if (quota.getRecordsPerSecond() > 0) {
+                tokens += records;
+            }
+        }
+    }
+}
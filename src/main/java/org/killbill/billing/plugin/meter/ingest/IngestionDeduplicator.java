@@ -0,0 +1,230 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.ingest;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.killbill.billing.plugin.meter.entity.RawUsage;
+
+/**
+ * Tells first-time usage keys (tenant, subscription, unit, tracking id) from retried ones without asking the
+ * database for most of them.
+ * <ul>
+ *     <li>A bounded cache of the keys stored most recently answers retries of a producer that timed out: these are
+ *     {@link Verdict#SEEN} and acknowledged without a round trip.</li>
+ *     <li>A Bloom filter of every key stored since the plugin started answers first-time keys: when it has not seen a
+ *     key, the key is {@link Verdict#NEW} and is inserted without checking for it first.</li>
+ *     <li>Anything else is {@link Verdict#UNKNOWN} and checked against raw_usage.</li>
+ * </ul>
+ * Both only know what this node stored since it started. A key stored by another node, or before a restart, is
+ * taken for new and then refused by the unique key of raw_usage, after which the caller checks it like an unknown
+ * one. The filter keeps two generations of {@code expectedKeys} each, so its false positive rate stays around 1% as
+ * keys keep coming.
+ */
+public class IngestionDeduplicator {
+
+    public static final int DEFAULT_EXPECTED_KEYS = 1_000_000;
+    public static final int DEFAULT_CACHE_SIZE = 100_000;
+
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    public enum Verdict {
+        /** Stored recently, a retry. */
+        SEEN,
+        /** Never stored by this node. */
+        NEW,
+        /** Possibly stored, the database has to tell. */
+        UNKNOWN
+    }
+
+    private final int expectedKeys;
+    private final int cacheSize;
+    private final Map<String, Boolean> recent = new ConcurrentHashMap<>();
+    private final Queue<String> recentOrder = new ConcurrentLinkedQueue<>();
+    private volatile BloomFilter current;
+    private volatile BloomFilter previous;
+
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder filterNegatives = new LongAdder();
+    private final LongAdder storeChecks = new LongAdder();
+    private final LongAdder filterMisses = new LongAdder();
+
+    public IngestionDeduplicator() {
+        this(DEFAULT_EXPECTED_KEYS, DEFAULT_CACHE_SIZE);
+    }
+
+    public IngestionDeduplicator(final int expectedKeys, final int cacheSize) {
+        this.expectedKeys = expectedKeys;
+        this.cacheSize = cacheSize;
+        this.current = new BloomFilter(expectedKeys, FALSE_POSITIVE_RATE);
+        this.previous = new BloomFilter(1, FALSE_POSITIVE_RATE);
+    }
+
+    public static String key(final RawUsage rawUsage) {
+        return rawUsage.getTenantId() + '\u0001' + rawUsage.getSubscriptionId() + '\u0001' + rawUsage.getUnitType() + '\u0001'
+               + rawUsage.getTrackingId();
+    }
+
+    public Verdict check(final String key) {
+        if (recent.containsKey(key)) {
+            cacheHits.increment();
+            return Verdict.SEEN;
+        }
+        final long hash = hash(key);
+        if (!current.mightContain(hash) && !previous.mightContain(hash)) {
+            filterNegatives.increment();
+            return Verdict.NEW;
+        }
+        storeChecks.increment();
+        return Verdict.UNKNOWN;
+    }
+
+    /**
+     * Whether the key is in the recent-key cache, for usage that is not stored under its own key and so cannot be
+     * checked against the database.
+     */
+    public boolean recentlySeen(final String key) {
+        if (recent.containsKey(key)) {
+            cacheHits.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records a key known to be stored, once its transaction committed.
+     */
+    public void remember(final String key) {
+        BloomFilter filter = current;
+        if (filter.getInsertions() >= expectedKeys) {
+            filter = rotate(filter);
+        }
+        filter.put(hash(key));
+        if (recent.putIfAbsent(key, Boolean.TRUE) == null) {
+            recentOrder.add(key);
+            while (recent.size() > cacheSize) {
+                final String eldest = recentOrder.poll();
+                if (eldest == null) {
+                    break;
+                }
+                recent.remove(eldest);
+            }
+        }
+    }
+
+    /**
+     * Counts a key taken for new that the database already had.
+     */
+    public void missed() {
+        filterMisses.increment();
+    }
+
+    public DeduplicationStats getStats() {
+        return new DeduplicationStats().setCacheHits(cacheHits.sum())
+                                       .setFilterNegatives(filterNegatives.sum())
+                                       .setStoreChecks(storeChecks.sum())
+                                       .setFilterMisses(filterMisses.sum())
+                                       .setCachedKeys(recent.size())
+                                       .setFilteredKeys(current.getInsertions() + previous.getInsertions());
+    }
+
+    private synchronized BloomFilter rotate(final BloomFilter full) {
+        if (current == full) {
+            previous = full;
+            current = new BloomFilter(expectedKeys, FALSE_POSITIVE_RATE);
+        }
+        return current;
+    }
+
+    /**
+     * FNV-1a over the chars, finished with the SplitMix64 mixer so the two halves used by the filter are independent
+     * enough.
+     */
+    static long hash(final String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+
+    /**
+     * Bits set by {@code hashes} probes derived from the two 32-bit halves of one 64-bit hash.
+     */
+    static final class BloomFilter {
+
+        private final AtomicLongArray words;
+        private final long bits;
+        private final int hashes;
+        private final LongAdder insertions = new LongAdder();
+
+        BloomFilter(final int expectedKeys, final double falsePositiveRate) {
+            final long optimalBits = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            this.words = new AtomicLongArray((int) Math.max(1, (optimalBits + 63) / 64));
+            this.bits = words.length() * 64L;
+            this.hashes = Math.max(1, (int) Math.round((double) bits / Math.max(1, expectedKeys) * Math.log(2)));
+        }
+
+        boolean mightContain(final long hash) {
+            final int h1 = (int) hash;
+            final int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= hashes; i++) {
+                final long bit = index(h1, h2, i);
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void put(final long hash) {
+            final int h1 = (int) hash;
+            final int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= hashes; i++) {
+                final long bit = index(h1, h2, i);
+                final int word = (int) (bit >>> 6);
+                final long mask = 1L << bit;
+                long value;
+                while (((value = words.get(word)) & mask) == 0 && !words.compareAndSet(word, value, value | mask)) {
+                    // Lost a race on another bit of the same word, try again
+                }
+            }
+            insertions.increment();
+        }
+
+        long getInsertions() {
+            return insertions.sum();
+        }
+
+        private long index(final int h1, final int h2, final int i) {
+            int combined = h1 + i * h2;
+            if (combined < 0) {
+                combined = ~combined;
+            }
+            return combined % bits;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.ingest;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.meter.MeterConfigurationHandler;
+import org.killbill.billing.plugin.meter.dao.RawUsageDao;
+import org.killbill.billing.plugin.meter.entity.RawUsage;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Sums usage of opted-in units in memory per (tenant, subscription, unit, UTC day) and periodically adds the sums to
+ * one raw_usage row per bucket, so a high-frequency unit costs one upsert per flush instead of one insert per record.
+ * <p>
+ * Amounts are kept as unscaled longs at the column scale in {@link LongAdder}s, so concurrent producers update
+ * striped cells rather than contending on one value. Usage accepted here but not yet flushed is lost if the JVM dies,
+ * which bounds the loss window to the flush interval; {@link #stop()} flushes what is left on a clean shutdown.
+ */
+@Slf4j
+public class PreAggregator {
+
+    public static final String TRACKING_ID_PREFIX = "PREAGG-";
+    /** Scale of raw_usage.amount. */
+    static final int AMOUNT_SCALE = 6;
+
+    private final RawUsageDao rawUsageDao;
+    private final MeterConfigurationHandler configurationHandler;
+    private final Map<BucketKey, Bucket> buckets = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> flushes;
+    private long flushIntervalSeconds;
+
+    public PreAggregator(final RawUsageDao rawUsageDao, final MeterConfigurationHandler configurationHandler) {
+        this.rawUsageDao = rawUsageDao;
+        this.configurationHandler = configurationHandler;
+    }
+
+    public synchronized void start(final long flushIntervalSeconds) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "meter-pre-aggregation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        schedule(flushIntervalSeconds);
+    }
+
+    /**
+     * Changes the flush interval of a started aggregator, counting the new interval from now.
+     */
+    public synchronized void setFlushInterval(final long flushIntervalSeconds) {
+        if (scheduler == null || flushIntervalSeconds == this.flushIntervalSeconds) {
+            return;
+        }
+        flushes.cancel(false);
+        schedule(flushIntervalSeconds);
+    }
+
+    private void schedule(final long flushIntervalSeconds) {
+        this.flushIntervalSeconds = flushIntervalSeconds;
+        flushes = scheduler.scheduleWithFixedDelay(this::flushQuietly, flushIntervalSeconds, flushIntervalSeconds, TimeUnit.SECONDS);
+        log.info("PreAggregator :: flushing every {}s", flushIntervalSeconds);
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
+        scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        scheduler = null;
+        flush();
+    }
+
+    /**
+     * Whether the record can go into a bucket: its unit is pre-aggregated for the tenant, its amount has no more
+     * decimals than the column keeps, and it is not older than yesterday (such buckets are already evicted).
+     */
+    public boolean accepts(final UUID tenantId, final RawUsage rawUsage) {
+        if (!configurationHandler.getPreAggregatedUnits(tenantId).contains(rawUsage.getUnitType())) {
+            return false;
+        }
+        return !dayOf(rawUsage).isBefore(today().minusDays(1)) && unscaledAmount(rawUsage) != null;
+    }
+
+    /**
+     * Adds the record to its bucket. Returns false, leaving the record to the caller, when it is not
+     * {@link #accepts accepted}.
+     */
+    public boolean offer(final UUID tenantId, final RawUsage rawUsage) {
+        if (!accepts(tenantId, rawUsage)) {
+            return false;
+        }
+        final BucketKey key = new BucketKey(rawUsage.getTenantId(), rawUsage.getSubscriptionId(), rawUsage.getUnitType(), dayOf(rawUsage));
+        buckets.computeIfAbsent(key, k -> new Bucket()).add(unscaledAmount(rawUsage), rawUsage.getRecordDate().getMillis());
+        return true;
+    }
+
+    /**
+     * Drains every bucket and adds the drained sums in one transaction. If the write fails the sums are put back, so
+     * they go out with the next flush.
+     */
+    public void flush() {
+        final List<Drained> drained = new ArrayList<>();
+        for (final Map.Entry<BucketKey, Bucket> entry : buckets.entrySet()) {
+            final Drained bucketDrain = entry.getValue().drain(entry.getKey());
+            if (bucketDrain != null) {
+                drained.add(bucketDrain);
+            }
+        }
+        if (drained.isEmpty()) {
+            evictOldBuckets();
+            return;
+        }
+        try {
+            rawUsageDao.inTransaction(unitOfWork -> {
+                for (final Drained bucketDrain : drained) {
+                    unitOfWork.addPreAggregatedUsage(bucketDrain.toRawUsage());
+                }
+                return null;
+            });
+            log.info("PreAggregator :: flushed {} buckets", drained.size());
+        } catch (final RuntimeException e) {
+            log.error("Error :: {}", e.getMessage());
+            drained.forEach(Drained::restore);
+            throw e;
+        }
+        // Only after a successful write, since a failed one puts its sums back into the drained buckets
+        evictOldBuckets();
+    }
+
+    public int getBucketCount() {
+        return buckets.size();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (final RuntimeException e) {
+            // Already logged and put back; the next run retries
+        }
+    }
+
+    /**
+     * Offers stop taking a day once it is older than yesterday, so empty buckets a day past that can no longer
+     * receive amounts and are safe to drop.
+     */
+    private void evictOldBuckets() {
+        final LocalDate cutoff = today().minusDays(2);
+        for (final BucketKey key : buckets.keySet()) {
+            if (key.getDay().isBefore(cutoff)) {
+                buckets.computeIfPresent(key, (k, bucket) -> bucket.isEmpty() ? null : bucket);
+            }
+        }
+    }
+
+    private static LocalDate dayOf(final RawUsage rawUsage) {
+        return rawUsage.getRecordDate().withZone(DateTimeZone.UTC).toLocalDate();
+    }
+
+    private static Long unscaledAmount(final RawUsage rawUsage) {
+        if (rawUsage.getAmount() == null) {
+            return null;
+        }
+        try {
+            return rawUsage.getAmount().setScale(AMOUNT_SCALE).unscaledValue().longValueExact();
+        } catch (final ArithmeticException e) {
+            return null;
+        }
+    }
+
+    private static LocalDate today() {
+        return new LocalDate(DateTimeZone.UTC);
+    }
+
+    @Data
+    static final class BucketKey {
+        private final String tenantId;
+        private final String subscriptionId;
+        private final String unitType;
+        private final LocalDate day;
+    }
+
+    static final class Bucket {
+        private final LongAdder amount = new LongAdder();
+        private final LongAdder records = new LongAdder();
+        private final AtomicLong maxRecordMillis = new AtomicLong(Long.MIN_VALUE);
+
+        void add(final long unscaledAmount, final long recordMillis) {
+            amount.add(unscaledAmount);
+            records.increment();
+            if (recordMillis > maxRecordMillis.get()) {
+                maxRecordMillis.accumulateAndGet(recordMillis, Math::max);
+            }
+        }
+
+        // sumThenReset swaps each cell to zero atomically, so concurrent adds land either in this drain or the next
+        Drained drain(final BucketKey key) {
+            final long drainedRecords = records.sumThenReset();
+            if (drainedRecords == 0) {
+                return null;
+            }
+            return new Drained(key, this, amount.sumThenReset(), drainedRecords, maxRecordMillis.get());
+        }
+
+        boolean isEmpty() {
+            return records.sum() == 0;
+        }
+    }
+
+    @Data
+    static final class Drained {
+        private final BucketKey key;
+        private final Bucket bucket;
+        private final long unscaledAmount;
+        private final long records;
+        private final long maxRecordMillis;
+
+        RawUsage toRawUsage() {
+            return new RawUsage().setTenantId(key.getTenantId())
+                                 .setSubscriptionId(key.getSubscriptionId())
+                                 .setUnitType(key.getUnitType())
+                                 .setTrackingId(TRACKING_ID_PREFIX + key.getDay())
+                                 .setRecordDate(new DateTime(maxRecordMillis, DateTimeZone.UTC))
+                                 .setAmount(BigDecimal.valueOf(unscaledAmount, AMOUNT_SCALE));
+        }
+
+        void restore() {
+            bucket.amount.add(unscaledAmount);
+            bucket.records.add(records);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.ingest;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import org.killbill.billing.plugin.meter.domain.external.ConsumerSubscriptionUsageRecord;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.joda.JodaModule;
+
+/**
+ * Binary encodings of the ingestion payload, for producers for which JSON is too costly. Both keep the JSON field
+ * names, so the same {@link ConsumerSubscriptionUsageRecord} is read: Smile back-references repeated names and
+ * short strings, and CBOR is the IETF standard alternative. Record dates travel as epoch milliseconds (ISO strings
+ * are still accepted) and amounts as native decimals, so no precision is lost to a double. Payloads which cannot be
+ * read fail with an {@link IOException}, which the ingestion endpoint answers with a 400.
+ */
+public final class UsageRecordCodec {
+
+    public static final String SMILE = "application/x-jackson-smile";
+    public static final String CBOR = "application/cbor";
+
+    private static final ObjectMapper SMILE_MAPPER = configure(new ObjectMapper(new SmileFactory()));
+    private static final ObjectMapper CBOR_MAPPER = configure(new ObjectMapper(new CBORFactory()));
+
+    private UsageRecordCodec() {
+    }
+
+    public static ConsumerSubscriptionUsageRecord decode(final String contentType, final byte[] body) throws IOException {
+        final ObjectMapper mapper = mapper(contentType);
+        if (mapper == null) {
+            throw new IllegalArgumentException("Unsupported content type " + contentType);
+        }
+        final ConsumerSubscriptionUsageRecord record = mapper.readValue(body, ConsumerSubscriptionUsageRecord.class);
+        // Well-formed but without usage, which would otherwise only fail while counting the records to admit
+        if (record == null || record.getUnitUsageRecords() == null
+            || record.getUnitUsageRecords().stream().anyMatch(unit -> unit == null || unit.getUsageRecords() == null)) {
+            throw new IOException("Payload without unitUsageRecords");
+        }
+        return record;
+    }
+
+    public static byte[] encode(final String contentType, final ConsumerSubscriptionUsageRecord record) throws IOException {
+        final ObjectMapper mapper = mapper(contentType);
+        if (mapper == null) {
+            throw new IllegalArgumentException("Unsupported content type " + contentType);
+        }
+        return mapper.writeValueAsBytes(record);
+    }
+
+    private static ObjectMapper mapper(final String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        // Ignore parameters such as "; charset=..."
+        final int separator = contentType.indexOf(';');
+        final String mediaType = (separator < 0 ? contentType : contentType.substring(0, separator)).trim().toLowerCase(Locale.ROOT);
+        if (SMILE.equals(mediaType)) {
+            return SMILE_MAPPER;
+        }
+        if (CBOR.equals(mediaType)) {
+            return CBOR_MAPPER;
+        }
+        return null;
+    }
+
+    private static ObjectMapper configure(final ObjectMapper mapper) {
+        return mapper.registerModule(new JodaModule())
+                     .enable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+                     .enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS)
+                     .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.job;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * One submitted run of a pipeline endpoint, collecting the progress its stages report.
+ */
+class Job implements JobProgress {
+
+    static final int MAX_ERRORS = 10;
+
+    private final String id;
+    private final String type;
+    private final DateTime submittedAt = now();
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+
+    private String state = JobStatus.QUEUED;
+    private int coalesced;
+    private DateTime startedAt;
+    private DateTime finishedAt;
+    private String error;
+    private Object result;
+
+    Job(final String id, final String type) {
+        this.id = id;
+        this.type = type;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getType() {
+        return type;
+    }
+
+    synchronized boolean isFinished() {
+        return finishedAt != null;
+    }
+
+    synchronized void coalesce() {
+        coalesced++;
+    }
+
+    synchronized void start() {
+        state = JobStatus.RUNNING;
+        startedAt = now();
+    }
+
+    synchronized void succeed(final Object jobResult) {
+        state = JobStatus.SUCCEEDED;
+        result = jobResult;
+        finishedAt = now();
+    }
+
+    synchronized void fail(final Throwable e) {
+        state = JobStatus.FAILED;
+        error = String.valueOf(e.getMessage());
+        finishedAt = now();
+    }
+
+    @Override
+    public synchronized void started(final String name, final int items) {
+        stages.put(name, new Stage(name, items));
+    }
+
+    @Override
+    public void succeeded(final String name, final int items) {
+        stage(name).succeeded.add(items);
+    }
+
+    @Override
+    public void skipped(final String name, final int items) {
+        stage(name).skipped.add(items);
+    }
+
+    @Override
+    public void failed(final String name, final int items, final Throwable e) {
+        final Stage stage = stage(name);
+        stage.failed.add(items);
+        stage.error(e);
+    }
+
+    @Override
+    public void finished(final String name) {
+        stage(name).finish();
+    }
+
+    synchronized JobStatus getStatus() {
+        final List<StageStatus> stageStatuses = new ArrayList<>(stages.size());
+        for (final Stage stage : stages.values()) {
+            stageStatuses.add(stage.getStatus());
+        }
+        return new JobStatus().setId(id)
+                              .setType(type)
+                              .setState(state)
+                              .setCoalesced(coalesced)
+                              .setSubmittedAt(submittedAt)
+                              .setStartedAt(startedAt)
+                              .setFinishedAt(finishedAt)
+                              .setStages(stageStatuses)
+                              .setError(error)
+                              .setResult(result);
+    }
+
+    private synchronized Stage stage(final String name) {
+        // Tolerate stages that report without announcing themselves first
+        return stages.computeIfAbsent(name, n -> new Stage(n, 0));
+    }
+
+    private static DateTime now() {
+        return new DateTime(DateTimeZone.UTC);
+    }
+
+    private static final class Stage {
+
+        private final String name;
+        private final int items;
+        private final DateTime startedAt = now();
+        private final long startNanos = System.nanoTime();
+        private final LongAdder succeeded = new LongAdder();
+        private final LongAdder skipped = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final Deque<String> errors = new ArrayDeque<>();
+        private volatile DateTime finishedAt;
+        private volatile long elapsedNanos = -1;
+
+        private Stage(final String name, final int items) {
+            this.name = name;
+            this.items = items;
+        }
+
+        private synchronized void error(final Throwable e) {
+            if (errors.size() == MAX_ERRORS) {
+                errors.removeFirst();
+            }
+            errors.addLast(String.valueOf(e.getMessage()));
+        }
+
+        private void finish() {
+            elapsedNanos = System.nanoTime() - startNanos;
+            finishedAt = now();
+        }
+
+        private synchronized StageStatus getStatus() {
+            final long elapsed = elapsedNanos < 0 ? System.nanoTime() - startNanos : elapsedNanos;
+            final long processed = succeeded.sum() + skipped.sum() + failed.sum();
+            return new StageStatus().setName(name)
+                                    .setItems(items)
+                                    .setSucceeded(succeeded.sum())
+                                    .setSkipped(skipped.sum())
+                                    .setFailed(failed.sum())
+                                    .setStartedAt(startedAt)
+                                    .setFinishedAt(finishedAt)
+                                    .setElapsedMillis(TimeUnit.NANOSECONDS.toMillis(elapsed))
+                                    .setItemsPerSecond(elapsed == 0 ? 0 : processed * 1e9 / elapsed)
+                                    .setErrors(new ArrayList<>(errors));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.job;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.killbill.billing.plugin.meter.exception.ResourceNotFoundException;
+import org.killbill.billing.plugin.meter.tuning.Pools;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs the pipeline endpoints in the background so the HTTP request returns a job id right away instead of holding a
+ * servlet thread for the whole cycle. A submission matching a job that is already queued or running (same stage, or
+ * same parameters for re-rating) is coalesced into that job rather than run twice. The most recent jobs are kept for
+ * status polling.
+ */
+@Slf4j
+public class JobManager {
+
+    static final int RETAINED_JOBS = 100;
+
+    private final ThreadPoolExecutor executor;
+    // Guarded by this
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+    private final Map<String, Job> activeByKey = new HashMap<>();
+
+    /**
+     * @param workers jobs of different types running at the same time
+     */
+    public JobManager(final int workers) {
+        this.executor = new ThreadPoolExecutor(Math.max(1, workers), Math.max(1, workers), 0, TimeUnit.MILLISECONDS,
+                                               new LinkedBlockingQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, "meter-job");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Changes how many jobs run at the same time; running jobs are not interrupted when it shrinks.
+     */
+    public void setWorkers(final int workers) {
+        Pools.resize(executor, Math.max(1, workers));
+    }
+
+    /**
+     * @return the new job, or the queued or running job of the same type the submission was coalesced into
+     */
+    public JobStatus submit(final String type, final Consumer<JobProgress> work) {
+        return submitForResult(type, type, progress -> {
+            work.accept(progress);
+            return null;
+        });
+    }
+
+    /**
+     * Submits a job whose return value is published in its status once it succeeded.
+     *
+     * @param key submissions with the same key are coalesced, e.g. the type plus the job parameters
+     * @return the new job, or the queued or running job with the same key the submission was coalesced into
+     */
+    public synchronized JobStatus submitForResult(final String type, final String key, final Function<JobProgress, ?> work) {
+        final Job active = activeByKey.get(key);
+        if (active != null) {
+            active.coalesce();
+            log.info("JobManager :: {} already submitted as {}", type, active.getId());
+            return active.getStatus();
+        }
+        final Job job = new Job(UUID.randomUUID().toString(), type);
+        jobs.put(job.getId(), job);
+        activeByKey.put(key, job);
+        evictFinished();
+        executor.execute(() -> run(job, key, work));
+        return job.getStatus();
+    }
+
+    public synchronized JobStatus getStatus(final String jobId) {
+        final Job job = jobs.get(jobId);
+        if (job == null) {
+            throw new ResourceNotFoundException("Job not found");
+        }
+        return job.getStatus();
+    }
+
+    /**
+     * Retained jobs, most recent first.
+     */
+    public synchronized List<JobStatus> getJobs() {
+        final List<JobStatus> statuses = new ArrayList<>(jobs.size());
+        for (final Job job : jobs.values()) {
+            statuses.add(0, job.getStatus());
+        }
+        return statuses;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void run(final Job job, final String key, final Function<JobProgress, ?> work) {
+        job.start();
+        try {
+            job.succeed(work.apply(job));
+        } catch (final RuntimeException e) {
+            log.error("Error :: job {} {} :: {}", job.getType(), job.getId(), e.getMessage());
+            job.fail(e);
+        } finally {
+            synchronized (this) {
+                activeByKey.remove(key, job);
+            }
+        }
+    }
+
+    private void evictFinished() {
+        final Iterator<Job> iterator = jobs.values().iterator();
+        while (jobs.size() > RETAINED_JOBS && iterator.hasNext()) {
+            if (iterator.next().isFinished()) {
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.job;
+
+/**
+ * Receives the progress of the pipeline stages a job runs. Stages report from the billing worker threads, so
+ * implementations must be thread safe. Every method does nothing by default, see {@link #NONE}.
+ */
+public interface JobProgress {
+
+    /** For stages run outside of a job. */
+    JobProgress NONE = new JobProgress() {};
+
+    /** A stage starts working through {@code items} work items. */
+    default void started(final String stage, final int items) {
+    }
+
+    default void succeeded(final String stage, final int items) {
+    }
+
+    /** Items left for a later run, e.g. waiting for their next retry or shed while Kill Bill is unavailable. */
+    default void skipped(final String stage, final int items) {
+    }
+
+    default void failed(final String stage, final int items, final Throwable error) {
+    }
+
+    default void finished(final String stage) {
+    }
+}
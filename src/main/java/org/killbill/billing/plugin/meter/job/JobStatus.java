@@ -0,0 +1,48 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.job;
+
+import java.util.List;
+
+import org.joda.time.DateTime;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+@Data
+@Accessors(chain = true)
+public class JobStatus {
+
+    public static final String QUEUED = "QUEUED";
+    public static final String RUNNING = "RUNNING";
+    public static final String SUCCEEDED = "SUCCEEDED";
+    public static final String FAILED = "FAILED";
+
+    String id;
+    String type;
+    String state;
+    /** Submissions of the same type merged into this job while it was queued or running. */
+    int coalesced;
+    DateTime submittedAt;
+    DateTime startedAt;
+    DateTime finishedAt;
+    List<StageStatus> stages;
+    String error;
+    /** What the job returned, e.g. a re-rating report; null for the pipeline stages. */
+    Object result;
+}
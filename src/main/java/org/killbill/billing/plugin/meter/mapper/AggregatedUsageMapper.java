@@ -0,0 +1,52 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.mapper;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.killbill.billing.plugin.meter.dto.AggregatedUsage;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Maps the per unit sums of a rollup, see {@code RawUsageDao#getUsageSumsByUnit}.
+ */
+@Slf4j
+public class AggregatedUsageMapper implements ResultSetMapper<AggregatedUsage> {
+
+    public static final String TOTAL_AMOUNT = "total_amount";
+    public static final String MAX_RECORD_DATE = "max_record_date";
+    public static final String UNIT_TYPE = "unit_type";
+
+    @Override
+    public AggregatedUsage map(final int index, final ResultSet r, final StatementContext ctx) throws SQLException {
+        final AggregatedUsage aggregatedUsage=new AggregatedUsage();
+        try {
+            aggregatedUsage.setUnitType(r.getString(UNIT_TYPE));
+            aggregatedUsage.setSum(r.getBigDecimal(TOTAL_AMOUNT));
+            aggregatedUsage.setMaxRecordDate(UtcTimestamps.read(r, MAX_RECORD_DATE));
+        } catch (final SQLException e) {
+            log.error("Error :: {}",e.getMessage());
+            throw e;
+        }
+        return aggregatedUsage;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.mapper;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.killbill.billing.plugin.meter.entity.BackfillTask;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+public class BackfillTaskMapper implements ResultSetMapper<BackfillTask> {
+
+    @Override
+    public BackfillTask map(final int index, final ResultSet r, final StatementContext ctx) throws SQLException {
+        try {
+            return new BackfillTask().setId(r.getLong("id"))
+                                     .setTenantId(r.getString("tenant_id"))
+                                     .setInvoiceId(r.getString("invoice_id"))
+                                     .setStatus(r.getString("status"))
+                                     .setAttempts(r.getInt("attempts"))
+                                     .setLastError(r.getString("last_error"))
+                                     .setAvailableAt(UtcTimestamps.read(r, "available_at"))
+                                     .setClaimedAt(UtcTimestamps.read(r, "claimed_at"))
+                                     .setVersion(r.getLong("version"));
+        } catch (final SQLException e) {
+            log.error("Error :: {}",e.getMessage());
+            throw e;
+        }
+    }
+}
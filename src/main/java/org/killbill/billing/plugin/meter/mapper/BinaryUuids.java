@@ -0,0 +1,106 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.mapper;
+
+import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.UUID;
+
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.Argument;
+
+/**
+ * Tenant and aggregation ids are stored as 16-byte UUIDs: {@code BINARY(16)} on MySQL and H2, the native {@code uuid}
+ * type on PostgreSQL. Outside the DAOs they stay strings in their canonical form.
+ */
+public final class BinaryUuids {
+
+    private BinaryUuids() {
+    }
+
+    /**
+     * The canonical string of a UUID column, whichever of the two types the driver returns.
+     */
+    public static String read(final ResultSet r, final String column) throws SQLException {
+        final Object value = r.getObject(column);
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof byte[]) {
+            final ByteBuffer bytes = ByteBuffer.wrap((byte[]) value);
+            return new UUID(bytes.getLong(), bytes.getLong()).toString();
+        }
+        return value.toString();
+    }
+
+    public static byte[] toBytes(final UUID uuid) {
+        return ByteBuffer.allocate(16)
+                         .putLong(uuid.getMostSignificantBits())
+                         .putLong(uuid.getLeastSignificantBits())
+                         .array();
+    }
+
+    /**
+     * Whether the string is a UUID, which ids coming from Kill Bill (tracking ids of other sources) need not be.
+     */
+    public static boolean isUuid(final String value) {
+        try {
+            return value != null && UUID.fromString(value).toString().equalsIgnoreCase(value);
+        } catch (final IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param nativeType bind a {@link UUID} object for a native {@code uuid} column rather than its 16 bytes
+     * @throws IllegalArgumentException when the value is not a UUID
+     */
+    public static Argument argument(final String value, final boolean nativeType) {
+        return new UuidArgument(value == null ? null : UUID.fromString(value), nativeType);
+    }
+
+    public static final class UuidArgument implements Argument {
+
+        private final UUID uuid;
+        private final boolean nativeType;
+
+        private UuidArgument(final UUID uuid, final boolean nativeType) {
+            this.uuid = uuid;
+            this.nativeType = nativeType;
+        }
+
+        @Override
+        public void apply(final int position, final PreparedStatement statement, final StatementContext ctx) throws SQLException {
+            if (uuid == null) {
+                statement.setNull(position, nativeType ? Types.OTHER : Types.BINARY);
+            } else if (nativeType) {
+                statement.setObject(position, uuid, Types.OTHER);
+            } else {
+                statement.setBytes(position, toBytes(uuid));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(uuid);
+        }
+    }
+}
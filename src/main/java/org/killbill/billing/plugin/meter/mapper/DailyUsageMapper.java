@@ -0,0 +1,54 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.mapper;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.killbill.billing.plugin.meter.dto.DailyUsage;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+public class DailyUsageMapper implements ResultSetMapper<DailyUsage> {
+
+    public static final String USAGE_DAY = "usage_day";
+    public static final String TOTAL_AMOUNT = "total_amount";
+    public static final String TOTAL_CHARGES = "total_charges";
+    public static final String RECORDS = "records";
+
+    @Override
+    public DailyUsage map(final int index, final ResultSet r, final StatementContext ctx) throws SQLException {
+        try {
+            return new DailyUsage().setTenantId(BinaryUuids.read(r, "tenant_id"))
+                                   .setSubscriptionId(r.getString("subscription_id"))
+                                   .setUnitType(r.getString("unit_type"))
+                                   // DATE() of a UTC wall-clock DATETIME is already the UTC day; reading it as text keeps
+                                   // the JVM zone out of it
+                                   .setDay(r.getString(USAGE_DAY))
+                                   .setAmount(r.getBigDecimal(TOTAL_AMOUNT))
+                                   .setCharges(r.getBigDecimal(TOTAL_CHARGES))
+                                   .setRecords(r.getLong(RECORDS));
+        } catch (final SQLException e) {
+            log.error("Error :: {}",e.getMessage());
+            throw e;
+        }
+    }
+}
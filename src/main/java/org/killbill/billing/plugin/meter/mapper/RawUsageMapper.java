@@ -22,6 +22,8 @@ public class RawUsageMapper implements ResultSetMapper<RawUsage> {
     public static final String AMOUNT = "amount";
 
     public static final String CHARGES = "charges";
+    public static final String VERSION = "version";
+    public static final String TIER = "tier";
 
     private static final String TRACKING_ID = "tracking_id";
 
@@ -30,12 +32,12 @@ public class RawUsageMapper implements ResultSetMapper<RawUsage> {
         final RawUsage rawUsage = new RawUsage();
         try {
             r.findColumn(TENANT_ID);
-            rawUsage.setTenantId(r.getString(TENANT_ID));
+            rawUsage.setTenantId(BinaryUuids.read(r, TENANT_ID));
         } catch (final SQLException ignored) {}
 
         try {
             r.findColumn(RECORD_DATE);
-            rawUsage.setRecordDate(r.getString(RECORD_DATE));
+            rawUsage.setRecordDate(UtcTimestamps.read(r, RECORD_DATE));
         } catch (final SQLException ignored) {}
 
 
@@ -52,7 +54,7 @@ public class RawUsageMapper implements ResultSetMapper<RawUsage> {
 
         try {
             r.findColumn(AGGREGATED_ID);
-            rawUsage.setAggregationId(r.getString(AGGREGATED_ID));
+            rawUsage.setAggregationId(BinaryUuids.read(r, AGGREGATED_ID));
         } catch (final SQLException ignored) {}
 
         try {
@@ -72,7 +74,17 @@ public class RawUsageMapper implements ResultSetMapper<RawUsage> {
 
         try {
             r.findColumn(CHARGES);
-            rawUsage.setCharges(new BigDecimal(r.getString(CHARGES)));
+            rawUsage.setCharges(r.getBigDecimal(CHARGES));
+        } catch (final SQLException ignored) {}
+
+        try {
+            r.findColumn(VERSION);
+            rawUsage.setVersion(r.getLong(VERSION));
+        } catch (final SQLException ignored) {}
+
+        try {
+            r.findColumn(TIER);
+            rawUsage.setTier(r.getInt(TIER));
         } catch (final SQLException ignored) {}
 
         return rawUsage;
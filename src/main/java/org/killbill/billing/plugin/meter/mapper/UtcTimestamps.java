@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.mapper;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.Argument;
+
+/**
+ * Record dates are stored as UTC wall-clock {@code DATETIME}s. Binding and reading always go through an explicit UTC
+ * calendar so neither the JVM nor the session time zone can shift them.
+ */
+public final class UtcTimestamps {
+
+    private static final ThreadLocal<Calendar> UTC_CALENDAR = ThreadLocal.withInitial(() -> Calendar.getInstance(TimeZone.getTimeZone("UTC")));
+
+    private UtcTimestamps() {
+    }
+
+    public static DateTime read(final ResultSet r, final String column) throws SQLException {
+        final Timestamp timestamp = r.getTimestamp(column, UTC_CALENDAR.get());
+        return timestamp == null ? null : new DateTime(timestamp.getTime(), DateTimeZone.UTC);
+    }
+
+    public static Argument argument(final DateTime dateTime) {
+        return new UtcTimestampArgument(dateTime);
+    }
+
+    public static final class UtcTimestampArgument implements Argument {
+
+        private final DateTime dateTime;
+
+        private UtcTimestampArgument(final DateTime dateTime) {
+            this.dateTime = dateTime;
+        }
+
+        @Override
+        public void apply(final int position, final PreparedStatement statement, final StatementContext ctx) throws SQLException {
+            if (dateTime == null) {
+                statement.setNull(position, Types.TIMESTAMP);
+            } else {
+                statement.setTimestamp(position, new Timestamp(dateTime.getMillis()), UTC_CALENDAR.get());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(dateTime);
+        }
+    }
+}
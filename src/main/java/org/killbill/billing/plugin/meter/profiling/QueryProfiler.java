@@ -0,0 +1,200 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.profiling;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.TimingCollector;
+import org.skife.jdbi.v2.tweak.Argument;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * JDBI {@link TimingCollector} keeping per-statement latency totals, connection checkout times and a bounded
+ * ring buffer of the slowest recent statements. Statements are keyed by their normalized SQL (literals and
+ * IN lists collapsed, whether bound positionally, through numbered named parameters or inlined as literals),
+ * and bind values are only recorded by type so nothing tenant specific leaks out.
+ */
+@Slf4j
+public class QueryProfiler implements TimingCollector {
+
+    public static final long DEFAULT_SLOW_THRESHOLD_MILLIS = 200;
+    public static final int DEFAULT_SLOW_LOG_SIZE = 256;
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(\\.\\d+)?\\b");
+    // IN list elements once literals are gone: bare or negated ?, or a named parameter such as :aggregationId3
+    private static final String IN_ELEMENT = "(?:-?\\?|:\\w+)";
+    private static final Pattern IN_LIST = Pattern.compile("(?i)\\bIN\\s*\\(\\s*" + IN_ELEMENT + "(\\s*,\\s*" + IN_ELEMENT + ")*\\s*\\)");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern NAMED_PARAM = Pattern.compile("(?<!:):(\\w+)");
+
+    private final long slowThresholdNanos;
+    private final ConcurrentMap<String, StatementStats> statements = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<SlowQuery> slowQueries;
+    private final AtomicLong slowQuerySequence = new AtomicLong();
+    private final LongAdder checkouts = new LongAdder();
+    private final LongAdder checkoutNanos = new LongAdder();
+    private final AtomicLong maxCheckoutNanos = new AtomicLong();
+    private final ThreadLocal<Sample> lastSample = new ThreadLocal<>();
+    private volatile long since = System.currentTimeMillis();
+
+    public QueryProfiler() {
+        this(DEFAULT_SLOW_THRESHOLD_MILLIS, DEFAULT_SLOW_LOG_SIZE);
+    }
+
+    public QueryProfiler(final long slowThresholdMillis, final int slowLogSize) {
+        this.slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowThresholdMillis);
+        this.slowQueries = new AtomicReferenceArray<>(slowLogSize);
+    }
+
+    @Override
+    public void collect(final long elapsedTime, final StatementContext ctx) {
+        final String rawSql = ctx.getRawSql();
+        record(elapsedTime, rawSql, () -> bindShape(rawSql, ctx));
+    }
+
+    /**
+     * Records a statement run on the raw connection, outside of JDBI, e.g. a PostgreSQL {@code COPY}.
+     */
+    public void collect(final long elapsedTime, final String rawSql) {
+        record(elapsedTime, rawSql, () -> "");
+    }
+
+    private void record(final long elapsedTime, final String rawSql, final Supplier<String> bindShape) {
+        try {
+            final String sql = normalize(rawSql);
+            final StatementStats stats = statements.computeIfAbsent(sql, key -> new StatementStats(key, bindShape.get()));
+            stats.record(elapsedTime);
+
+            SlowQuery slowQuery = null;
+            if (elapsedTime >= slowThresholdNanos) {
+                slowQuery = new SlowQuery().setTimestamp(System.currentTimeMillis())
+                                           .setSql(sql)
+                                           .setBindShape(bindShape.get())
+                                           .setElapsedMicros(TimeUnit.NANOSECONDS.toMicros(elapsedTime));
+                final long slot = slowQuerySequence.getAndIncrement() % slowQueries.length();
+                slowQueries.set((int) slot, slowQuery);
+                log.warn("Slow query :: {} ms :: {}", TimeUnit.NANOSECONDS.toMillis(elapsedTime), slowQuery.getSql());
+            }
+            lastSample.set(new Sample(stats, slowQuery));
+        } catch (final RuntimeException e) {
+            // Never let profiling break the statement itself
+            log.error("Error :: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Attribute the rows returned or affected to the statement this thread executed last.
+     */
+    public void recordRows(final long rows) {
+        final Sample sample = lastSample.get();
+        if (sample == null) {
+            return;
+        }
+        lastSample.remove();
+        sample.stats.recordRows(rows);
+        if (sample.slowQuery != null) {
+            sample.slowQuery.setRows(rows);
+        }
+    }
+
+    public void recordCheckout(final long elapsedNanos) {
+        checkouts.increment();
+        checkoutNanos.add(elapsedNanos);
+        maxCheckoutNanos.accumulateAndGet(elapsedNanos, Math::max);
+    }
+
+    public QueryProfile snapshot() {
+        final List<StatementStats.Snapshot> statementSnapshots = statements.values().stream()
+                                                                           .map(StatementStats::snapshot)
+                                                                           .sorted(Comparator.comparingLong(StatementStats.Snapshot::getTotalMillis).reversed())
+                                                                           .collect(Collectors.toList());
+        final List<SlowQuery> slow = new ArrayList<>();
+        for (int i = 0; i < slowQueries.length(); i++) {
+            final SlowQuery slowQuery = slowQueries.get(i);
+            if (slowQuery != null) {
+                slow.add(slowQuery);
+            }
+        }
+        slow.sort(Comparator.comparingLong(SlowQuery::getTimestamp).reversed());
+
+        return new QueryProfile().setSince(since)
+                                 .setSlowThresholdMillis(TimeUnit.NANOSECONDS.toMillis(slowThresholdNanos))
+                                 .setCheckouts(checkouts.sum())
+                                 .setCheckoutTotalMillis(TimeUnit.NANOSECONDS.toMillis(checkoutNanos.sum()))
+                                 .setCheckoutMaxMicros(TimeUnit.NANOSECONDS.toMicros(maxCheckoutNanos.get()))
+                                 .setStatements(statementSnapshots)
+                                 .setSlowQueries(slow);
+    }
+
+    public void reset() {
+        statements.clear();
+        for (int i = 0; i < slowQueries.length(); i++) {
+            slowQueries.set(i, null);
+        }
+        checkouts.reset();
+        checkoutNanos.reset();
+        maxCheckoutNanos.set(0);
+        since = System.currentTimeMillis();
+    }
+
+    static String normalize(final String rawSql) {
+        String sql = STRING_LITERAL.matcher(rawSql).replaceAll("?");
+        sql = NUMBER_LITERAL.matcher(sql).replaceAll("?");
+        sql = IN_LIST.matcher(sql).replaceAll("IN (?...)");
+        sql = WHITESPACE.matcher(sql).replaceAll(" ");
+        return sql.trim();
+    }
+
+    private static String bindShape(final String rawSql, final StatementContext ctx) {
+        final StringJoiner shape = new StringJoiner(", ");
+        final Matcher matcher = NAMED_PARAM.matcher(STRING_LITERAL.matcher(rawSql).replaceAll("?"));
+        while (matcher.find()) {
+            final String name = matcher.group(1);
+            final Argument argument = ctx.getBinding().forName(name);
+            shape.add(name + ":" + (argument == null ? "unbound" : argument.getClass().getSimpleName().replace("Argument", "")));
+        }
+        return shape.toString();
+    }
+
+    private static final class Sample {
+
+        private final StatementStats stats;
+        private final SlowQuery slowQuery;
+
+        private Sample(final StatementStats stats, final SlowQuery slowQuery) {
+            this.stats = stats;
+            this.slowQuery = slowQuery;
+        }
+    }
+}
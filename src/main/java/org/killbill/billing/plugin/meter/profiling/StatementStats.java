@@ -0,0 +1,77 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.profiling;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * Running totals for one normalized statement. Updated lock-free from the JDBI timing callback.
+ */
+public class StatementStats {
+
+    private final String sql;
+    private final String bindShape;
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    StatementStats(final String sql, final String bindShape) {
+        this.sql = sql;
+        this.bindShape = bindShape;
+    }
+
+    void record(final long elapsedNanos) {
+        executions.increment();
+        totalNanos.add(elapsedNanos);
+        maxNanos.accumulateAndGet(elapsedNanos, Math::max);
+    }
+
+    void recordRows(final long count) {
+        rows.add(count);
+    }
+
+    Snapshot snapshot() {
+        final long count = executions.sum();
+        final long total = totalNanos.sum();
+        return new Snapshot().setSql(sql)
+                             .setBindShape(bindShape)
+                             .setExecutions(count)
+                             .setTotalMillis(TimeUnit.NANOSECONDS.toMillis(total))
+                             .setAvgMicros(count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(total / count))
+                             .setMaxMicros(TimeUnit.NANOSECONDS.toMicros(maxNanos.get()))
+                             .setRows(rows.sum());
+    }
+
+    @Data
+    @Accessors(chain = true)
+    public static class Snapshot {
+        String sql;
+        String bindShape;
+        long executions;
+        long totalMillis;
+        long avgMicros;
+        long maxMicros;
+        long rows;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.rerate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+
+import org.joda.time.DateTime;
+import org.jooq.tools.StringUtils;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceApiException;
+import org.killbill.billing.plugin.api.PluginCallContext;
+import org.killbill.billing.plugin.meter.dao.RawUsageDao;
+import org.killbill.billing.plugin.meter.dao.UnitOfWork;
+import org.killbill.billing.plugin.meter.dto.InvoiceTenant;
+import org.killbill.billing.plugin.meter.dto.TierDetails;
+import org.killbill.billing.plugin.meter.exception.VersionConflictException;
+import org.killbill.billing.plugin.meter.job.JobProgress;
+import org.killbill.billing.plugin.meter.resilience.ResilientKillbill;
+import org.killbill.billing.plugin.meter.service.InvoiceTiers;
+import org.killbill.billing.plugin.meter.service.TierAllocator;
+import org.killbill.billing.plugin.meter.workset.ChargeRows;
+import org.killbill.billing.util.callcontext.CallOrigin;
+import org.killbill.billing.util.callcontext.UserType;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import lombok.extern.slf4j.Slf4j;
+
+import static org.killbill.billing.plugin.meter.MeterRegister.PLUGIN_NAME;
+
+/**
+ * Recomputes the charges and tiers of already charged usage from the current tier details of its invoices, e.g. after
+ * a tier price was corrected and the invoice regenerated.
+ * <p>
+ * Matching invoices are listed a page at a time and every invoice of a page is a fork/join task, so at most a page of
+ * invoices, and the rows of the items being rated, are held at once. Each invoice is rated and written in one
+ * transaction, in batches and only for the rows that changed, with the same version compare-and-set as the backfill.
+ * A dry run reports the differences without writing them.
+ */
+@Slf4j
+public class RerateEngine {
+
+    static final String STAGE = "rerate";
+    static final int MAX_DIFFS = 100;
+    static final int MAX_FAILURES = 100;
+    static final int MAX_ATTEMPTS = 3;
+
+    private final RawUsageDao rawUsageDao;
+    private final ResilientKillbill resilientKillbill;
+    // Replaced when the parallelism changes; a re-rate keeps the pool it started on
+    private volatile ForkJoinPool pool;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * @param parallelism invoices re-rated at the same time
+     */
+    public RerateEngine(final RawUsageDao rawUsageDao, final ResilientKillbill resilientKillbill, final int parallelism) {
+        this.rawUsageDao = rawUsageDao;
+        this.resilientKillbill = resilientKillbill;
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+        objectMapper.registerModule(new JavaTimeModule());
+    }
+
+    /**
+     * Re-rates on a new pool of the given parallelism from the next re-rate on. The previous pool is left to finish
+     * the re-rates running on it; its idle workers exit on their own.
+     */
+    public synchronized void setParallelism(final int parallelism) {
+        if (pool.getParallelism() != Math.max(1, parallelism)) {
+            pool = new ForkJoinPool(Math.max(1, parallelism));
+        }
+    }
+
+    public RerateReport rerate(final RerateRequest request, final JobProgress progress) {
+        if (StringUtils.isBlank(request.getTenantId())) {
+            throw new IllegalArgumentException("tenantId is required");
+        }
+        final List<String> subscriptionIds = request.getSubscriptionIds() == null ? Collections.emptyList() : request.getSubscriptionIds();
+        final Tally tally = new Tally(request.isDryRun());
+        final ForkJoinPool pool = this.pool;
+        final int pageSize = pool.getParallelism() * 8;
+        progress.started(STAGE, 0);
+        try {
+            String after = null;
+            List<InvoiceTenant> page;
+            do {
+                page = rawUsageDao.getChargedInvoices(request.getTenantId(), subscriptionIds, request.getFrom(), request.getTo(), after, pageSize);
+                final List<InvoiceTask> tasks = page.stream()
+                                                    .map(invoice -> new InvoiceTask(invoice, request.isDryRun(), tally, progress))
+                                                    .collect(Collectors.toList());
+                pool.invoke(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        invokeAll(tasks);
+                    }
+                });
+                if (!page.isEmpty()) {
+                    after = page.get(page.size() - 1).getInvoiceId();
+                }
+            } while (page.size() == pageSize);
+        } finally {
+            progress.finished(STAGE);
+        }
+        final RerateReport report = tally.report();
+        log.info("RerateEngine :: tenant {} :: {} invoices, {} of {} rows changed, delta {}{}", request.getTenantId(), report.getInvoices(),
+                 report.getChangedRows(), report.getRows(), report.getDelta(), request.isDryRun() ? " (dry run)" : "");
+        return report;
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private final class InvoiceTask extends RecursiveAction {
+
+        private final InvoiceTenant invoiceTenant;
+        private final boolean dryRun;
+        private final Tally tally;
+        private final JobProgress progress;
+
+        private InvoiceTask(final InvoiceTenant invoiceTenant, final boolean dryRun, final Tally tally, final JobProgress progress) {
+            this.invoiceTenant = invoiceTenant;
+            this.dryRun = dryRun;
+            this.tally = tally;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                tally.add(rerateInvoice(invoiceTenant, dryRun));
+                progress.succeeded(STAGE, 1);
+            } catch (final Exception e) {
+                log.error("Error :: rerate :: invoice {} :: {}", invoiceTenant.getInvoiceId(), e.getMessage());
+                tally.failed(invoiceTenant.getInvoiceId(), e);
+                progress.failed(STAGE, 1, e);
+            }
+        }
+    }
+
+    private InvoiceTally rerateInvoice(final InvoiceTenant invoiceTenant, final boolean dryRun) throws InvoiceApiException {
+        final Invoice invoice = resilientKillbill.getInvoice(UUID.fromString(invoiceTenant.getInvoiceId()), getCallContext(invoiceTenant.getTenantId()));
+        if (invoice.getTrackingIds() == null || invoice.getTrackingIds().isEmpty()) {
+            return new InvoiceTally(invoiceTenant.getInvoiceId());
+        }
+        final Map<String, List<TierDetails>> itemsByUnit = InvoiceTiers.byUnit(objectMapper, invoice);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (dryRun) {
+                    return rawUsageDao.inUnitOfWork(unitOfWork -> rateInvoice(unitOfWork, invoiceTenant.getTenantId(), invoice, itemsByUnit, false));
+                }
+                return rawUsageDao.inTransaction(unitOfWork -> rateInvoice(unitOfWork, invoiceTenant.getTenantId(), invoice, itemsByUnit, true));
+            } catch (final VersionConflictException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                log.warn("rerate :: invoice {} :: attempt {} :: {}, retrying", invoice.getId(), attempt, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Rates the rows of each unit with the tiers of all the items billing it, in one allocation as the backfill does,
+     * so that every row is counted once however many items of the unit the invoice has.
+     */
+    private InvoiceTally rateInvoice(final UnitOfWork unitOfWork, final String tenantId, final Invoice invoice,
+                                     final Map<String, List<TierDetails>> itemsByUnit, final boolean write) {
+        final InvoiceTally invoiceTally = new InvoiceTally(invoice.getId().toString());
+        for (final Map.Entry<String, List<TierDetails>> unitItems : itemsByUnit.entrySet()) {
+            final ChargeRows rows = unitOfWork.getChargeRows(invoice.getTrackingIds(), unitItems.getKey());
+            rows.clearCharges();
+            TierAllocator.allocate(InvoiceTiers.tiers(unitItems.getValue()), rows);
+            invoiceTally.add(unitItems.getValue().size(), rows);
+            if (write) {
+                unitOfWork.persistCharges(tenantId, rows);
+            }
+        }
+        return invoiceTally;
+    }
+
+    private PluginCallContext getCallContext(final String tenantId) {
+        return new PluginCallContext(UUID.randomUUID(), PLUGIN_NAME,
+                                     CallOrigin.INTERNAL, UserType.ADMIN, "Re-rated from " + this.getClass().getSimpleName(), "Test" + this.getClass().getSimpleName(),
+                                     DateTime.now(), DateTime.now(), null, UUID.fromString(tenantId));
+    }
+
+    /**
+     * Differences found in one invoice, merged into the run's {@link Tally} once the invoice is done so that a retried
+     * attempt is not counted twice.
+     */
+    private static final class InvoiceTally {
+
+        private final String invoiceId;
+        private final List<RerateDiff> diffs = new ArrayList<>();
+        private long items;
+        private long rows;
+        private long changedRows;
+        private BigDecimal chargesBefore = BigDecimal.ZERO;
+        private BigDecimal chargesAfter = BigDecimal.ZERO;
+
+        private InvoiceTally(final String invoiceId) {
+            this.invoiceId = invoiceId;
+        }
+
+        private void add(final int unitItems, final ChargeRows chargeRows) {
+            items += unitItems;
+            rows += chargeRows.size();
+            for (int row = 0; row < chargeRows.size(); row++) {
+                final BigDecimal before = chargeRows.previousCharges(row);
+                final BigDecimal after = chargeRows.charges(row);
+                chargesBefore = before == null ? chargesBefore : chargesBefore.add(before);
+                chargesAfter = after == null ? chargesAfter : chargesAfter.add(after);
+                if (chargeRows.isChanged(row)) {
+                    changedRows++;
+                    if (diffs.size() < MAX_DIFFS) {
+                        diffs.add(new RerateDiff().setInvoiceId(invoiceId)
+                                                  .setRawUsageId(chargeRows.id(row))
+                                                  .setTierBefore(chargeRows.previousTier(row))
+                                                  .setTierAfter(chargeRows.tier(row))
+                                                  .setChargesBefore(before)
+                                                  .setChargesAfter(after));
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Tally {
+
+        private final boolean dryRun;
+        private final List<RerateDiff> diffs = new ArrayList<>();
+        private final Map<String, String> failedInvoices = new LinkedHashMap<>();
+        private long invoices;
+        private long items;
+        private long rows;
+        private long changedRows;
+        private BigDecimal chargesBefore = BigDecimal.ZERO;
+        private BigDecimal chargesAfter = BigDecimal.ZERO;
+
+        private Tally(final boolean dryRun) {
+            this.dryRun = dryRun;
+        }
+
+        private synchronized void add(final InvoiceTally invoiceTally) {
+            invoices++;
+            items += invoiceTally.items;
+            rows += invoiceTally.rows;
+            changedRows += invoiceTally.changedRows;
+            chargesBefore = chargesBefore.add(invoiceTally.chargesBefore);
+            chargesAfter = chargesAfter.add(invoiceTally.chargesAfter);
+            for (final RerateDiff diff : invoiceTally.diffs) {
+                if (diffs.size() == MAX_DIFFS) {
+                    break;
+                }
+                diffs.add(diff);
+            }
+        }
+
+        private synchronized void failed(final String invoiceId, final Exception e) {
+            if (failedInvoices.size() < MAX_FAILURES) {
+                failedInvoices.put(invoiceId, String.valueOf(e.getMessage()));
+            }
+        }
+
+        private synchronized RerateReport report() {
+            return new RerateReport().setDryRun(dryRun)
+                                     .setInvoices(invoices)
+                                     .setInvoiceItems(items)
+                                     .setRows(rows)
+                                     .setChangedRows(changedRows)
+                                     .setChargesBefore(chargesBefore)
+                                     .setChargesAfter(chargesAfter)
+                                     .setDelta(chargesAfter.subtract(chargesBefore))
+                                     .setDiffs(new ArrayList<>(diffs))
+                                     .setFailedInvoices(new LinkedHashMap<>(failedInvoices));
+        }
+    }
+}
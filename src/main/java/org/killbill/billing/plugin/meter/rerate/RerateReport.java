@@ -0,0 +1,43 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.rerate;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+@Data
+@Accessors(chain = true)
+public class RerateReport {
+    boolean dryRun;
+    long invoices;
+    long invoiceItems;
+    long rows;
+    /** Rows whose charges or tier differ, written unless this is a dry run. */
+    long changedRows;
+    BigDecimal chargesBefore;
+    BigDecimal chargesAfter;
+    BigDecimal delta;
+    /** The first changed rows, as a sample. */
+    List<RerateDiff> diffs;
+    /** Invoice id to error of the invoices that could not be re-rated. */
+    Map<String, String> failedInvoices;
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.rerate;
+
+import java.util.List;
+
+import org.joda.time.DateTime;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * Which charged usage to re-rate. Filters select invoices; an invoice is always re-rated as a whole since its tiers
+ * span all of its usage.
+ */
+@Data
+@Accessors(chain = true)
+public class RerateRequest {
+    String tenantId;
+    /** All subscriptions of the tenant when empty. */
+    List<String> subscriptionIds;
+    /** Usage recorded at or after, unbounded when null. */
+    DateTime from;
+    /** Usage recorded before, unbounded when null. */
+    DateTime to;
+    /** Only report the differences; set to false to write them. */
+    boolean dryRun = true;
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.resilience;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.killbill.billing.BillingExceptionBase;
+import org.killbill.billing.plugin.meter.exception.KillbillUnavailableException;
+import org.killbill.billing.plugin.meter.exception.KillbillUnavailableException.Reason;
+
+/**
+ * Guards one Kill Bill API: calls run on the API's own threads, at most {@code maxConcurrent} at a time (the bulkhead,
+ * so a stuck subsystem only ties up its own threads), are waited for at most the deadline, and pass through a {@link CircuitBreaker} that sheds
+ * calls while the API is failing or slow.
+ * <p>
+ * Business errors Kill Bill answers with ({@link BillingExceptionBase}, e.g. an unknown external key) are passed on
+ * but do not count against the breaker, since the API itself is healthy.
+ */
+public class ApiGuard {
+
+    private final String name;
+    private final ResiliencePolicy policy;
+    private final CircuitBreaker circuitBreaker;
+    private final Semaphore permits;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder rejectedOpen = new LongAdder();
+    private final LongAdder rejectedFull = new LongAdder();
+
+    public ApiGuard(final String name, final ResiliencePolicy policy) {
+        this.name = name;
+        this.policy = policy;
+        this.circuitBreaker = new CircuitBreaker(policy);
+        this.permits = new Semaphore(policy.getMaxConcurrent());
+        final AtomicInteger threads = new AtomicInteger();
+        // The permits are the bulkhead. No queue and no thread cap, so a permitted call starts at once, even while the
+        // thread of the previous one is still on its way back to the pool.
+        this.executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, "meter-killbill-" + name + "-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public <T> T call(final Callable<T> callable) throws Exception {
+        if (!circuitBreaker.tryAcquire()) {
+            rejectedOpen.increment();
+            throw new KillbillUnavailableException(name, Reason.CIRCUIT_OPEN);
+        }
+        if (!permits.tryAcquire()) {
+            circuitBreaker.release();
+            rejectedFull.increment();
+            throw new KillbillUnavailableException(name, Reason.BULKHEAD_FULL);
+        }
+        final Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                active.incrementAndGet();
+                try {
+                    return callable.call();
+                } finally {
+                    active.decrementAndGet();
+                    permits.release();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            // Shut down
+            permits.release();
+            circuitBreaker.release();
+            throw new KillbillUnavailableException(name, Reason.BULKHEAD_FULL);
+        }
+        calls.increment();
+        final long start = System.nanoTime();
+        try {
+            final T result = future.get(policy.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+            circuitBreaker.record(System.nanoTime() - start, false);
+            return result;
+        } catch (final TimeoutException e) {
+            // Not interrupted: a Kill Bill call cut short mid-transaction may leave its work half done. It keeps its
+            // bulkhead permit until it returns on its own.
+            future.cancel(false);
+            timeouts.increment();
+            circuitBreaker.record(System.nanoTime() - start, true);
+            throw new KillbillUnavailableException(name, Reason.TIMEOUT);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            final boolean failure = !(cause instanceof BillingExceptionBase);
+            if (failure) {
+                failures.increment();
+            }
+            circuitBreaker.record(System.nanoTime() - start, failure);
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        } catch (final InterruptedException e) {
+            future.cancel(false);
+            circuitBreaker.record(System.nanoTime() - start, false);
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public CircuitBreaker.State getState() {
+        return circuitBreaker.getState();
+    }
+
+    public ApiGuardStats getStats() {
+        return new ApiGuardStats().setName(name)
+                                  .setState(circuitBreaker.getState().name())
+                                  .setMaxConcurrent(policy.getMaxConcurrent())
+                                  .setActive(active.get())
+                                  .setCalls(calls.sum())
+                                  .setFailures(failures.sum())
+                                  .setTimeouts(timeouts.sum())
+                                  .setRejectedOpen(rejectedOpen.sum())
+                                  .setRejectedFull(rejectedFull.sum())
+                                  .setFailureRate(circuitBreaker.getFailureRate())
+                                  .setSlowCallRate(circuitBreaker.getSlowCallRate());
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.resilience;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Count-based circuit breaker. Closed, it keeps the outcome of the last {@code windowSize} calls and opens when the
+ * share of failed or slow calls crosses its threshold. Open, it rejects every call until the open period is over,
+ * then lets {@code halfOpenCalls} trial calls through: if all of them succeed in time it closes, otherwise it opens
+ * again.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final ResiliencePolicy policy;
+    private final long slowCallNanos;
+    private final boolean[] failed;
+    private final boolean[] slow;
+
+    private State state = State.CLOSED;
+    private int next;
+    private int calls;
+    private int failures;
+    private int slowCalls;
+    private long openUntilNanos;
+    private int trialsStarted;
+    private int trialsSucceeded;
+
+    public CircuitBreaker(final ResiliencePolicy policy) {
+        this.policy = policy;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(policy.getSlowCallMillis());
+        this.failed = new boolean[policy.getWindowSize()];
+        this.slow = new boolean[policy.getWindowSize()];
+    }
+
+    /**
+     * Whether a call may go ahead. A permitted call must be followed by {@link #record} or {@link #release}.
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openUntilNanos < 0) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            trialsStarted = 0;
+            trialsSucceeded = 0;
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialsStarted >= policy.getHalfOpenCalls()) {
+                return false;
+            }
+            trialsStarted++;
+        }
+        return true;
+    }
+
+    /**
+     * Gives back a permit whose call never ran, e.g. because the bulkhead was full.
+     */
+    public synchronized void release() {
+        if (state == State.HALF_OPEN && trialsStarted > 0) {
+            trialsStarted--;
+        }
+    }
+
+    public synchronized void record(final long durationNanos, final boolean failure) {
+        final boolean slowCall = durationNanos > slowCallNanos;
+        if (state == State.HALF_OPEN) {
+            if (failure || slowCall) {
+                open();
+            } else if (++trialsSucceeded >= policy.getHalfOpenCalls()) {
+                close();
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            // Started before the breaker opened
+            return;
+        }
+        if (calls == failed.length) {
+            failures -= failed[next] ? 1 : 0;
+            slowCalls -= slow[next] ? 1 : 0;
+        } else {
+            calls++;
+        }
+        failed[next] = failure;
+        slow[next] = slowCall;
+        failures += failure ? 1 : 0;
+        slowCalls += slowCall ? 1 : 0;
+        next = (next + 1) % failed.length;
+        if (calls >= policy.getMinimumCalls()
+            && (failures >= policy.getFailureRateThreshold() * calls || slowCalls >= policy.getSlowCallRateThreshold() * calls)) {
+            open();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized double getFailureRate() {
+        return calls == 0 ? 0 : (double) failures / calls;
+    }
+
+    public synchronized double getSlowCallRate() {
+        return calls == 0 ? 0 : (double) slowCalls / calls;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(policy.getOpenMillis());
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        next = 0;
+        calls = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+}
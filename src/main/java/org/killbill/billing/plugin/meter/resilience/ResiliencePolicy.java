@@ -0,0 +1,62 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.resilience;
+
+import java.util.Properties;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * Limits of one guarded Kill Bill API: its bulkhead size, its deadline and when its circuit breaker opens.
+ */
+@Data
+@Accessors(chain = true)
+public class ResiliencePolicy {
+
+    /** Calls running at the same time; further calls are rejected rather than queued. */
+    int maxConcurrent = 8;
+    long timeoutMillis = 10_000;
+    /** Calls slower than this count as slow even if they succeed. */
+    long slowCallMillis = 5_000;
+    /** Most recent calls the error and slow rates are computed over. */
+    int windowSize = 20;
+    /** Calls in the window before the rates are acted on. */
+    int minimumCalls = 10;
+    double failureRateThreshold = 0.5;
+    double slowCallRateThreshold = 0.8;
+    long openMillis = 30_000;
+    /** Trial calls let through once the open period is over; all must succeed to close again. */
+    int halfOpenCalls = 3;
+
+    /**
+     * Reads {@code <prefix><api>.<field>} overrides, e.g. {@code ...resilience.invoice.generate.timeoutMillis}.
+     */
+    public static ResiliencePolicy fromProperties(final Properties properties, final String prefix, final ResiliencePolicy defaults) {
+        final String base = prefix + ".";
+        return new ResiliencePolicy().setMaxConcurrent(Integer.parseInt(properties.getProperty(base + "maxConcurrent", String.valueOf(defaults.maxConcurrent))))
+                                     .setTimeoutMillis(Long.parseLong(properties.getProperty(base + "timeoutMillis", String.valueOf(defaults.timeoutMillis))))
+                                     .setSlowCallMillis(Long.parseLong(properties.getProperty(base + "slowCallMillis", String.valueOf(defaults.slowCallMillis))))
+                                     .setWindowSize(Integer.parseInt(properties.getProperty(base + "windowSize", String.valueOf(defaults.windowSize))))
+                                     .setMinimumCalls(Integer.parseInt(properties.getProperty(base + "minimumCalls", String.valueOf(defaults.minimumCalls))))
+                                     .setFailureRateThreshold(Double.parseDouble(properties.getProperty(base + "failureRateThreshold", String.valueOf(defaults.failureRateThreshold))))
+                                     .setSlowCallRateThreshold(Double.parseDouble(properties.getProperty(base + "slowCallRateThreshold", String.valueOf(defaults.slowCallRateThreshold))))
+                                     .setOpenMillis(Long.parseLong(properties.getProperty(base + "openMillis", String.valueOf(defaults.openMillis))))
+                                     .setHalfOpenCalls(Integer.parseInt(properties.getProperty(base + "halfOpenCalls", String.valueOf(defaults.halfOpenCalls))));
+    }
+}
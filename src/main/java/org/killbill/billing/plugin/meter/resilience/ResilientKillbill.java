@@ -0,0 +1,161 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.resilience;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.joda.time.LocalDate;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountApiException;
+import org.killbill.billing.entitlement.api.Subscription;
+import org.killbill.billing.entitlement.api.SubscriptionApiException;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceApiException;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.usage.api.SubscriptionUsageRecord;
+import org.killbill.billing.usage.api.UsageApiException;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.commons.metrics.api.MetricRegistry;
+
+/**
+ * The Kill Bill calls of the billing pipeline, each behind its own {@link ApiGuard}, so a slow invoice generation
+ * cannot hold up subscription lookups or usage pushes and a failing subsystem is shed instead of waited on.
+ */
+public class ResilientKillbill {
+
+    public static final String SUBSCRIPTION = "subscription";
+    public static final String ACCOUNT = "account";
+    public static final String USAGE = "usage";
+    public static final String INVOICE_GET = "invoice.get";
+    public static final String INVOICE_GENERATE = "invoice.generate";
+
+    private final OSGIKillbillAPI killbillAPI;
+    private final ApiGuard subscriptionGuard;
+    private final ApiGuard accountGuard;
+    private final ApiGuard usageGuard;
+    private final ApiGuard invoiceGetGuard;
+    private final ApiGuard invoiceGenerateGuard;
+
+    /**
+     * @param properties per-API overrides under {@code propertyPrefix}, see {@link ResiliencePolicy#fromProperties}
+     */
+    public ResilientKillbill(final OSGIKillbillAPI killbillAPI, final Properties properties, final String propertyPrefix) {
+        this.killbillAPI = killbillAPI;
+        this.subscriptionGuard = new ApiGuard(SUBSCRIPTION, ResiliencePolicy.fromProperties(properties, propertyPrefix + SUBSCRIPTION,
+                                                                                           new ResiliencePolicy().setTimeoutMillis(5_000).setSlowCallMillis(2_000)));
+        this.accountGuard = new ApiGuard(ACCOUNT, ResiliencePolicy.fromProperties(properties, propertyPrefix + ACCOUNT,
+                                                                                 new ResiliencePolicy().setTimeoutMillis(5_000).setSlowCallMillis(2_000)));
+        this.usageGuard = new ApiGuard(USAGE, ResiliencePolicy.fromProperties(properties, propertyPrefix + USAGE, new ResiliencePolicy()));
+        this.invoiceGetGuard = new ApiGuard(INVOICE_GET, ResiliencePolicy.fromProperties(properties, propertyPrefix + INVOICE_GET, new ResiliencePolicy()));
+        // Invoice generation is the heavy call; fewer threads and a longer deadline
+        this.invoiceGenerateGuard = new ApiGuard(INVOICE_GENERATE, ResiliencePolicy.fromProperties(properties, propertyPrefix + INVOICE_GENERATE,
+                                                                                                  new ResiliencePolicy().setMaxConcurrent(4)
+                                                                                                                        .setTimeoutMillis(60_000)
+                                                                                                                        .setSlowCallMillis(30_000)));
+    }
+
+    /**
+     * Guards with default limits, for callers without plugin configuration.
+     */
+    public ResilientKillbill(final OSGIKillbillAPI killbillAPI) {
+        this(killbillAPI, new Properties(), "");
+    }
+
+    public Subscription getSubscriptionForExternalKey(final String externalKey, final CallContext context) throws SubscriptionApiException {
+        try {
+            return subscriptionGuard.call(() -> killbillAPI.getSubscriptionApi().getSubscriptionForExternalKey(externalKey, false, context));
+        } catch (final SubscriptionApiException | RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Account getAccountById(final UUID accountId, final CallContext context) throws AccountApiException {
+        try {
+            return accountGuard.call(() -> killbillAPI.getAccountUserApi().getAccountById(accountId, context));
+        } catch (final AccountApiException | RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void recordRolledUpUsage(final SubscriptionUsageRecord record, final CallContext context) throws UsageApiException {
+        try {
+            usageGuard.call(() -> {
+                killbillAPI.getUsageUserApi().recordRolledUpUsage(record, context);
+                return null;
+            });
+        } catch (final UsageApiException | RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Invoice getInvoice(final UUID invoiceId, final CallContext context) throws InvoiceApiException {
+        try {
+            return invoiceGetGuard.call(() -> killbillAPI.getInvoiceUserApi().getInvoice(invoiceId, context));
+        } catch (final InvoiceApiException | RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Invoice triggerInvoiceGeneration(final UUID accountId, final LocalDate targetDate, final CallContext context) throws InvoiceApiException {
+        try {
+            return invoiceGenerateGuard.call(() -> killbillAPI.getInvoiceUserApi().triggerInvoiceGeneration(accountId, targetDate, List.of(), context));
+        } catch (final InvoiceApiException | RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public OSGIKillbillAPI getKillbillAPI() {
+        return killbillAPI;
+    }
+
+    public List<ApiGuardStats> getStats() {
+        return guards().stream().map(ApiGuard::getStats).collect(Collectors.toList());
+    }
+
+    /**
+     * Publishes each breaker's state (0 closed, 1 open, 2 half open) and bulkhead occupancy as gauges.
+     */
+    public void registerMetrics(final MetricRegistry metricRegistry) {
+        for (final ApiGuard guard : guards()) {
+            final String prefix = "meter.killbill." + guard.getName();
+            metricRegistry.gauge(prefix + ".circuit.state", () -> guard.getState().ordinal());
+            metricRegistry.gauge(prefix + ".bulkhead.active", () -> guard.getStats().getActive());
+        }
+    }
+
+    public void shutdown() {
+        guards().forEach(ApiGuard::shutdown);
+    }
+
+    private List<ApiGuard> guards() {
+        return List.of(subscriptionGuard, accountGuard, usageGuard, invoiceGetGuard, invoiceGenerateGuard);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.service;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outcome counters of the optimistic concurrency checks, so contention between workers shows up without log diving.
+ */
+public class ConcurrencyStats {
+
+    private final LongAdder aggregationClaimsLost = new LongAdder();
+    private final LongAdder chargeConflicts = new LongAdder();
+    private final LongAdder conflictingRows = new LongAdder();
+    private final LongAdder chargeRetries = new LongAdder();
+    private final LongAdder chargeRetriesExhausted = new LongAdder();
+    private final LongAdder alreadyCharged = new LongAdder();
+
+    void aggregationClaimLost() {
+        aggregationClaimsLost.increment();
+    }
+
+    void chargeConflict(final int rows) {
+        chargeConflicts.increment();
+        conflictingRows.add(rows);
+    }
+
+    void chargeRetry() {
+        chargeRetries.increment();
+    }
+
+    void chargeRetriesExhausted() {
+        chargeRetriesExhausted.increment();
+    }
+
+    void alreadyCharged() {
+        alreadyCharged.increment();
+    }
+
+    /** (tenant, subscription, unit) claims that found their rows already aggregated by another worker. */
+    public long getAggregationClaimsLost() {
+        return aggregationClaimsLost.sum();
+    }
+
+    /** Charge writes rejected because a row version moved. */
+    public long getChargeConflicts() {
+        return chargeConflicts.sum();
+    }
+
+    public long getConflictingRows() {
+        return conflictingRows.sum();
+    }
+
+    public long getChargeRetries() {
+        return chargeRetries.sum();
+    }
+
+    public long getChargeRetriesExhausted() {
+        return chargeRetriesExhausted.sum();
+    }
+
+    /** Invoice items skipped because another worker charged them first. */
+    public long getAlreadyCharged() {
+        return alreadyCharged.sum();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.LocalDate;
+import org.jooq.tools.StringUtils;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.plugin.meter.dto.TierDetail;
+import org.killbill.billing.plugin.meter.dto.TierDetails;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The tier details of an invoice's usage items, grouped by unit. An invoice can bill a unit in several items, e.g. one
+ * per period it catches up on, and all of them are charged from the same rows: their tiers have to be allocated in a
+ * single pass over those rows, items in start date order, or each item would charge the rows again from the start.
+ */
+public final class InvoiceTiers {
+
+    private InvoiceTiers() {
+    }
+
+    /**
+     * The parsed details of every usage item of the invoice, per unit in order of first appearance. Items without
+     * details or tiers are left out.
+     */
+    public static Map<String, List<TierDetails>> byUnit(final ObjectMapper objectMapper, final Invoice invoice) {
+        final List<InvoiceItem> items = new ArrayList<>(invoice.getInvoiceItems());
+        items.sort(Comparator.comparing(InvoiceItem::getStartDate, Comparator.nullsLast(Comparator.<LocalDate>naturalOrder())));
+        final Map<String, List<TierDetails>> byUnit = new LinkedHashMap<>();
+        for (final InvoiceItem item : items) {
+            final TierDetails tierDetails = parse(objectMapper, item.getItemDetails());
+            if (tierDetails == null || tierDetails.getTierDetails() == null || tierDetails.getTierDetails().isEmpty()) {
+                continue;
+            }
+            byUnit.computeIfAbsent(tierDetails.getTierDetails().get(0).getTierUnit(), unit -> new ArrayList<>())
+                  .add(tierDetails);
+        }
+        return byUnit;
+    }
+
+    /**
+     * The tiers of the items of one unit, one item after the other.
+     */
+    public static List<TierDetail> tiers(final List<TierDetails> items) {
+        final List<TierDetail> tiers = new ArrayList<>();
+        for (final TierDetails item : items) {
+            tiers.addAll(item.getTierDetails());
+        }
+        return tiers;
+    }
+
+    private static TierDetails parse(final ObjectMapper objectMapper, final String itemDetails) {
+        if (StringUtils.isBlank(itemDetails)) {
+            return null;
+        }
+        try {
+            return objectMapper.readValue(itemDetails, TierDetails.class);
+        } catch (final JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
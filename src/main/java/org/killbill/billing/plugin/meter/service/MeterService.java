@@ -19,25 +19,33 @@ package org.killbill.billing.plugin.meter.service;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import javax.inject.Singleton;
 
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.joda.time.LocalDate;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
-import org.jooq.tools.StringUtils;
+import org.killbill.billing.ErrorCode;
 import org.killbill.billing.entitlement.api.Subscription;
+import org.killbill.billing.entitlement.api.SubscriptionApiException;
 import org.killbill.billing.invoice.api.Invoice;
 import org.killbill.billing.invoice.api.InvoiceApiException;
-import org.killbill.billing.invoice.api.InvoiceItem;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.plugin.api.PluginCallContext;
 import org.killbill.billing.plugin.meter.dao.RawUsageDao;
+import org.killbill.billing.plugin.meter.dao.UnitOfWork;
 import org.killbill.billing.plugin.meter.domain.external.ChargeDetails;
 import org.killbill.billing.plugin.meter.domain.external.ChargeEvent;
 import org.killbill.billing.plugin.meter.domain.external.ConsumerSubscriptionUsageRecord;
@@ -45,18 +53,32 @@ import org.killbill.billing.plugin.meter.domain.external.ConsumerUnitUsageRecord
 import org.killbill.billing.plugin.meter.domain.external.ConsumerUsageRecord;
 import org.killbill.billing.plugin.meter.dto.AggregatedUsage;
 import org.killbill.billing.plugin.meter.dto.InvoiceTenant;
-import org.killbill.billing.plugin.meter.dto.TierDetail;
 import org.killbill.billing.plugin.meter.dto.TierDetails;
 import org.killbill.billing.plugin.meter.entity.RawUsage;
+import org.killbill.billing.plugin.meter.entity.UsagePushRetry;
+import org.killbill.billing.plugin.meter.estimate.ChargeEstimate;
+import org.killbill.billing.plugin.meter.estimate.ChargeEstimator;
+import org.killbill.billing.plugin.meter.exception.DuplicateUsageException;
+import org.killbill.billing.plugin.meter.exception.KillbillUnavailableException;
 import org.killbill.billing.plugin.meter.exception.RequestTooEarly;
+import org.killbill.billing.plugin.meter.exception.ResourceNotFoundException;
+import org.killbill.billing.plugin.meter.exception.VersionConflictException;
+import org.killbill.billing.plugin.meter.ingest.DeduplicationStats;
+import org.killbill.billing.plugin.meter.ingest.IngestionDeduplicator;
+import org.killbill.billing.plugin.meter.ingest.PreAggregator;
+import org.killbill.billing.plugin.meter.job.JobProgress;
+import org.killbill.billing.plugin.meter.resilience.ApiGuardStats;
+import org.killbill.billing.plugin.meter.resilience.ResilientKillbill;
+import org.killbill.billing.plugin.meter.workset.ChargeRows;
+import org.killbill.billing.plugin.meter.workset.UsageKeys;
 import org.killbill.billing.usage.api.SubscriptionUsageRecord;
+import org.killbill.billing.usage.api.UsageApiException;
 import org.killbill.billing.usage.api.UnitUsageRecord;
 import org.killbill.billing.usage.api.UsageRecord;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.billing.util.callcontext.CallOrigin;
 import org.killbill.billing.util.callcontext.UserType;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import lombok.extern.slf4j.Slf4j;
@@ -70,19 +92,59 @@ public class MeterService {
     public static final String TIER_CHANGE_EVENT = "TIER_CHANGE";
     public static final String CHARGE = "CHARGE";
     public static final double TAX_RATE = 0.18;
+    static final int MAX_CHARGE_ATTEMPTS = 3;
     private final RawUsageDao rawUsageDao;
+    private final PreAggregator preAggregator;
+    private final ChargeEstimator chargeEstimator;
+    private final IngestionDeduplicator deduplicator;
+    private final TenantFairScheduler scheduler;
+    private final UsagePushRetries usagePushRetries;
+    private final ConcurrencyStats concurrencyStats = new ConcurrencyStats();
 
     protected OSGIKillbillAPI killbillAPI;
+    private final ResilientKillbill resilientKillbill;
 
     private final ObjectMapper objectMapper;
 
-    public MeterService(final RawUsageDao rawUsageDao, final OSGIKillbillAPI killbillAPI) {this.rawUsageDao = rawUsageDao;
-        this.killbillAPI = killbillAPI;
+    public MeterService(final RawUsageDao rawUsageDao, final OSGIKillbillAPI killbillAPI) {
+        this(rawUsageDao, new ResilientKillbill(killbillAPI), null, new TenantFairScheduler(tenantId -> TenantShare.DEFAULT, 1),
+             UsagePushRetries.disabled());
+    }
+
+    public MeterService(final RawUsageDao rawUsageDao, final ResilientKillbill resilientKillbill, final PreAggregator preAggregator,
+                        final TenantFairScheduler scheduler, final UsagePushRetries usagePushRetries) {
+        this(rawUsageDao, resilientKillbill, preAggregator, scheduler, usagePushRetries, null, new IngestionDeduplicator());
+    }
+
+    /**
+     * @param chargeEstimator answers charge lookups of usage not charged yet with provisional charges, none when null
+     * @param deduplicator    tells retried usage requests from new ones before they reach the database
+     */
+    public MeterService(final RawUsageDao rawUsageDao, final ResilientKillbill resilientKillbill, final PreAggregator preAggregator,
+                        final TenantFairScheduler scheduler, final UsagePushRetries usagePushRetries,
+                        final ChargeEstimator chargeEstimator, final IngestionDeduplicator deduplicator) {
+        this.rawUsageDao = rawUsageDao;
+        this.preAggregator = preAggregator;
+        this.chargeEstimator = chargeEstimator;
+        this.deduplicator = deduplicator;
+        this.scheduler = scheduler;
+        this.usagePushRetries = usagePushRetries;
+        this.resilientKillbill = resilientKillbill;
+        this.killbillAPI = resilientKillbill.getKillbillAPI();
         this.objectMapper = new ObjectMapper();
         objectMapper.registerModule(new JavaTimeModule());
     }
 
-    public void addRawUsage(final ConsumerSubscriptionUsageRecord request) {
+    /**
+     * Stores a usage request once: usage already stored under the same (tenant, subscription, unit, tracking id), as
+     * when a producer retries after a timeout, is acknowledged without being stored again.
+     *
+     * @return false when the whole request had been stored already
+     */
+    public boolean addRawUsage(final ConsumerSubscriptionUsageRecord request) {
+        // The records of a unit are stored as one row, the one its tracking id looks up
+        final Map<String, RawUsage> rawUsagesByUnit = new LinkedHashMap<>();
+        final List<RawUsage> preAggregated = new ArrayList<>();
         for(final ConsumerUnitUsageRecord consumerUnitUsageRecord: request.getUnitUsageRecords()){
             for(final ConsumerUsageRecord consumerUsageRecord: consumerUnitUsageRecord.getUsageRecords()){
                 final RawUsage rawUsage= new RawUsage()
@@ -90,44 +152,243 @@ public class MeterService {
                                                  .setTrackingId(request.getTrackingId())
                                                  .setTenantId(String.valueOf(request.getTenantId()))
                                                  .setUnitType(consumerUnitUsageRecord.getUnitType())
-                                                 .setRecordDate(convertToISOFormat(consumerUsageRecord.getRecordDate()))
+                                                 .setRecordDate(consumerUsageRecord.getRecordDate().toDateTime(DateTimeZone.UTC))
                                                  .setAmount(consumerUsageRecord.getAmount());
+                if (preAggregator != null && preAggregator.accepts(request.getTenantId(), rawUsage)) {
+                    preAggregated.add(rawUsage);
+                } else {
+                    rawUsagesByUnit.merge(rawUsage.getUnitType(), rawUsage, MeterService::mergeRecords);
+                }
+            }
+        }
+
+        final List<RawUsage> candidates = new ArrayList<>();
+        boolean checkStore = false;
+        for (final RawUsage rawUsage : rawUsagesByUnit.values()) {
+            final IngestionDeduplicator.Verdict verdict = deduplicator.check(IngestionDeduplicator.key(rawUsage));
+            if (verdict != IngestionDeduplicator.Verdict.SEEN) {
+                candidates.add(rawUsage);
+                checkStore |= verdict == IngestionDeduplicator.Verdict.UNKNOWN;
+            }
+        }
+        List<RawUsage> stored;
+        try {
+            stored = storeNew(candidates, checkStore);
+        } catch (final DuplicateUsageException e) {
+            // Taken for new but stored by another node, before a restart or by a concurrent retry
+            deduplicator.missed();
+            stored = storeNew(candidates, true);
+        }
+        candidates.forEach(rawUsage -> deduplicator.remember(IngestionDeduplicator.key(rawUsage)));
+
+        // Opted-in units are summed in memory once the rest of the request is committed, so a failed request leaves
+        // nothing behind for its retry to double count. Not being stored under their own tracking id, their retries are
+        // only recognized while the recent-key cache holds them.
+        final List<RawUsage> offered = preAggregated.stream()
+                                                    .filter(rawUsage -> !deduplicator.recentlySeen(IngestionDeduplicator.key(rawUsage)))
+                                                    .collect(Collectors.toList());
+        for(final RawUsage rawUsage: offered){
+            if(!preAggregator.offer(request.getTenantId(), rawUsage)){
                 rawUsageDao.insertRawUsage(rawUsage);
             }
         }
+        offered.forEach(rawUsage -> deduplicator.remember(IngestionDeduplicator.key(rawUsage)));
+
+        return !stored.isEmpty() || !offered.isEmpty() || (rawUsagesByUnit.isEmpty() && preAggregated.isEmpty());
+    }
+
+    /**
+     * Inserts the usage that is not stored yet, in one transaction.
+     *
+     * @param checkStore whether some of the usage may be stored already and has to be looked up first
+     * @return the usage inserted
+     */
+    private List<RawUsage> storeNew(final List<RawUsage> candidates, final boolean checkStore) {
+        if (candidates.isEmpty()) {
+            return candidates;
+        }
+        final List<RawUsage> recorded = new ArrayList<>();
+        try {
+            // One connection and one commit for the whole request, which is also stored all or nothing
+            return rawUsageDao.inTransaction(unitOfWork -> {
+                List<RawUsage> rawUsages = candidates;
+                if (checkStore) {
+                    // All usage of a request shares its tenant, subscription and tracking id
+                    final RawUsage first = candidates.get(0);
+                    final Set<String> storedUnits = unitOfWork.getStoredUnitTypes(first.getTenantId(), first.getSubscriptionId(),
+                                                                                  first.getTrackingId());
+                    rawUsages = candidates.stream()
+                                          .filter(rawUsage -> !storedUnits.contains(rawUsage.getUnitType()))
+                                          .collect(Collectors.toList());
+                }
+                if (chargeEstimator != null) {
+                    for (final RawUsage rawUsage : rawUsages) {
+                        chargeEstimator.record(rawUsage);
+                        recorded.add(rawUsage);
+                    }
+                }
+                unitOfWork.insertRawUsages(rawUsages);
+                return rawUsages;
+            });
+        } catch (final RuntimeException e) {
+            if (chargeEstimator != null) {
+                recorded.forEach(chargeEstimator::forget);
+            }
+            throw e;
+        }
     }
 
-    public static String convertToISOFormat(DateTime dateTime) {
-        DateTimeFormatter dateTimeFormatter = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss.SSS");
-        return dateTime.toString(dateTimeFormatter);
+    private static RawUsage mergeRecords(final RawUsage usage, final RawUsage other) {
+        return usage.setAmount(usage.getAmount().add(other.getAmount()))
+                    .setRecordDate(usage.getRecordDate().isAfter(other.getRecordDate()) ? usage.getRecordDate() : other.getRecordDate());
     }
+
     public void aggregateUsages() {
-        final List<RawUsage> uniqueUsages = rawUsageDao.getUniqueUnAggregatedUsage();
-        log.info("MeterService :: raw usage {}",uniqueUsages.size());
-        for(final RawUsage rawUsage:uniqueUsages){
-            final UUID uuid=UUID.randomUUID();
-            final UUID prev=UUID.randomUUID();
-            log.info("aggregateUsages uuid :: {} {}",uuid,prev);
-            rawUsageDao.fillAggregationId(rawUsage, uuid,prev);
+        aggregateUsages(JobProgress.NONE);
+    }
+
+    public void aggregateUsages(final JobProgress progress) {
+        final UsageKeys keys = rawUsageDao.getUnaggregatedKeys();
+        log.info("MeterService :: raw usage {}",keys.size());
+        progress.started("aggregate", keys.size());
+        // Each tenant is aggregated as one work item on a single connection
+        final UsageKeys.TenantGroups tenants = keys.groupByTenant();
+        // All units of a subscription share its aggregation ids, so billing pushes them as one rollup. Subscription
+        // ids are only unique within a tenant: ids are assigned again when the tenant changes.
+        final AggregationIds ids = new AggregationIds(keys.subscriptionCount());
+        try {
+            for(int tenant = 0; tenant < tenants.tenantCount(); tenant++){
+                final int items = tenants.end(tenant) - tenants.start(tenant);
+                try {
+                    aggregateTenant(keys, tenants, tenant, ids);
+                } catch (final RuntimeException e) {
+                    progress.failed("aggregate", items, e);
+                    throw e;
+                }
+                progress.succeeded("aggregate", items);
+            }
+        } finally {
+            progress.finished("aggregate");
+        }
+    }
+
+    private void aggregateTenant(final UsageKeys keys, final UsageKeys.TenantGroups tenants, final int tenant, final AggregationIds ids) {
+        rawUsageDao.inTransaction(unitOfWork -> {
+            for(int position = tenants.start(tenant); position < tenants.end(tenant); position++){
+                final int row = tenants.row(position);
+                final int subscription = keys.subscriptionCode(row);
+                final UUID uuid=ids.current(tenant, subscription);
+                final UUID prev=ids.previous(subscription);
+                log.info("aggregateUsages uuid :: {} {}",uuid,prev);
+                if(unitOfWork.fillAggregationId(keys.tenantId(row), keys.subscriptionId(row), keys.unitType(row), uuid,prev) == 0){
+                    concurrencyStats.aggregationClaimLost();
+                    log.info("aggregateUsages :: {} {} {} already claimed",keys.tenantId(row),keys.subscriptionId(row),keys.unitType(row));
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * The (today, earlier days) aggregation id pair of every subscription code, drawn once per tenant.
+     */
+    private static final class AggregationIds {
+
+        private final UUID[] current;
+        private final UUID[] previous;
+        private final int[] tenantOf;
+
+        private AggregationIds(final int subscriptions) {
+            current = new UUID[subscriptions];
+            previous = new UUID[subscriptions];
+            tenantOf = new int[subscriptions];
+            Arrays.fill(tenantOf, -1);
+        }
+
+        private UUID current(final int tenant, final int subscription) {
+            if (tenantOf[subscription] != tenant) {
+                tenantOf[subscription] = tenant;
+                current[subscription] = UUID.randomUUID();
+                previous[subscription] = UUID.randomUUID();
+            }
+            return current[subscription];
+        }
+
+        private UUID previous(final int subscription) {
+            return previous[subscription];
         }
     }
 
     public void bill() {
+        bill(JobProgress.NONE);
+    }
+
+    public void bill(final JobProgress progress) {
         final List<RawUsage> uniqueSubsId = rawUsageDao.getUnbilledAggregationIds();
         log.info("bill {}",uniqueSubsId);
-        uniqueSubsId.forEach(this::pushUsage);
+        pushRollups("bill", UsagePushRetry.STAGE_BILL, uniqueSubsId, this::pushUsage, progress);
+    }
+
+    /**
+     * Runs one push per rollup through the tenant-fair scheduler, recording failures for retry. Rollups waiting for
+     * their next retry, or shed while Kill Bill is unavailable, are left for a later run.
+     */
+    private void pushRollups(final String stage, final String retryStage, final List<RawUsage> rollups,
+                             final RollupPush push, final JobProgress progress) {
+        final UsagePushRetries.Pass pass = usagePushRetries.begin(retryStage);
+        final List<RawUsage> due = due(pass, rollups);
+        progress.started(stage, rollups.size());
+        progress.skipped(stage, rollups.size() - due.size());
+        try {
+            scheduler.run(stage, due, RawUsage::getTenantId, rollup -> {
+                try {
+                    push.push(rollup);
+                    pass.succeeded(rollup);
+                    progress.succeeded(stage, 1);
+                } catch (final KillbillUnavailableException e) {
+                    if (e.isShed()) {
+                        // Kill Bill was not called; the rollup is simply picked up by a later run
+                        log.warn("{} :: {}", rollup.getAggregationId(), e.getMessage());
+                        progress.skipped(stage, 1);
+                    } else {
+                        pass.failed(rollup, e);
+                        progress.failed(stage, 1, e);
+                    }
+                } catch (final Exception e) {
+                    pass.failed(rollup, e);
+                    progress.failed(stage, 1, e);
+                }
+            });
+        } finally {
+            progress.finished(stage);
+        }
     }
 
-    private void pushUsage(final RawUsage subscriptionUsage) {
+    @FunctionalInterface
+    private interface RollupPush {
+
+        void push(RawUsage rollup) throws Exception;
+    }
+
+    private List<RawUsage> due(final UsagePushRetries.Pass pass, final List<RawUsage> rollups) {
+        final List<RawUsage> due = rollups.stream().filter(pass::isDue).collect(Collectors.toList());
+        if (due.size() < rollups.size()) {
+            log.info("Skipping {} rollups waiting for their next retry", rollups.size() - due.size());
+        }
+        return due;
+    }
+
+    private void pushUsage(final RawUsage subscriptionUsage) throws SubscriptionApiException, UsageApiException {
+        final CallContext callContext = getCallContext(subscriptionUsage.getTenantId());
+        final Subscription subscription = resilientKillbill.getSubscriptionForExternalKey(subscriptionUsage.getSubscriptionId(), callContext);
+        final SubscriptionUsageRecord subscriptionUsageRecord = createSubscriptionUsageRecord(subscriptionUsage, subscription.getId());
         try {
-            final CallContext callContext = getCallContext(subscriptionUsage.getTenantId());
-            final Subscription subscription = killbillAPI.getSubscriptionApi()
-                           .getSubscriptionForExternalKey(subscriptionUsage.getSubscriptionId(),
-                                                          false, callContext);
-            final SubscriptionUsageRecord subscriptionUsageRecord = createSubscriptionUsageRecord(subscriptionUsage, subscription.getId());
-            killbillAPI.getUsageUserApi().recordRolledUpUsage(subscriptionUsageRecord, callContext);
-        } catch (final Exception e) {
-            log.error("PushUsage :: {} :: {}",e.getClass(),e.getMessage());
+            resilientKillbill.recordRolledUpUsage(subscriptionUsageRecord, callContext);
+        } catch (final UsageApiException e) {
+            if (e.getCode() != ErrorCode.USAGE_RECORD_TRACKING_ID_ALREADY_EXISTS.getCode()) {
+                throw e;
+            }
+            // Pushed by an earlier run; the rollup stays unbilled until its invoice is backfilled
         }
         log.info("consumeKafkaMessages :: usage recorded");
     }
@@ -143,137 +404,228 @@ public class MeterService {
     }
 
     private List<UnitUsageRecord> mapUsageRecord(final RawUsage subscriptionUsage) {
-        final AggregatedUsage aggregatedUsage  =rawUsageDao.getUsageSum(subscriptionUsage);
-        return List.of(new UnitUsageRecord(subscriptionUsage.getUnitType(),List.of(new UsageRecord(aggregatedUsage.getMaxRecordDate(),aggregatedUsage.getSum()))));
+        final List<AggregatedUsage> unitUsages = rawUsageDao.getUsageSumsByUnit(subscriptionUsage.getAggregationId());
+        final List<UnitUsageRecord> unitUsageRecords = new ArrayList<>(unitUsages.size());
+        for(final AggregatedUsage aggregatedUsage: unitUsages){
+            unitUsageRecords.add(new UnitUsageRecord(aggregatedUsage.getUnitType(),List.of(new UsageRecord(aggregatedUsage.getMaxRecordDate(),aggregatedUsage.getSum()))));
+        }
+        return unitUsageRecords;
     }
 
     public void backFill() {
+        backFill(JobProgress.NONE);
+    }
+
+    public void backFill(final JobProgress progress) {
         final List<InvoiceTenant> invoiceList = rawUsageDao.getNonBackfilledInvoices();
         log.info("InvoiceTenant List :: {}",invoiceList);
-        for(final InvoiceTenant invoiceTenant:invoiceList){
-            try {
-                final Invoice invoice = killbillAPI.getInvoiceUserApi().getInvoice(UUID.fromString(invoiceTenant.getInvoiceId()),getCallContext(invoiceTenant.getTenantId()));
-                for (final InvoiceItem invoiceItem :invoice.getInvoiceItems()){
-                    backFillCharges(invoice.getTrackingIds(),invoiceItem.getItemDetails(),invoiceTenant.getTenantId());
+        progress.started("backFill", invoiceList.size());
+        try {
+            scheduler.run("backFill", invoiceList, InvoiceTenant::getTenantId, invoiceTenant -> {
+                try {
+                    if (backFillInvoice(invoiceTenant.getTenantId(), invoiceTenant.getInvoiceId())) {
+                        progress.succeeded("backFill", 1);
+                    } else {
+                        progress.failed("backFill", 1, new IllegalStateException("Invoice " + invoiceTenant.getInvoiceId() + " kept changing concurrently"));
+                    }
+                } catch (final RuntimeException e) {
+                    progress.failed("backFill", 1, e);
+                    throw e;
                 }
-            } catch (InvoiceApiException e) {
-                throw new RuntimeException(e);
-            }
+            });
+        } finally {
+            progress.finished("backFill");
         }
     }
 
-    private void backFillCharges(final List<String> trackingIds, final String itemDetails,final String tenant) {
-        if(StringUtils.isBlank(itemDetails)){
-            return;
-        }
-        final TierDetails tierDetails;
+    /**
+     * Charges the usage rows of one invoice, e.g. as soon as Kill Bill reports the invoice as created.
+     *
+     * @return false when the rows kept being changed concurrently and the charges could not be written
+     */
+    public boolean backFillInvoice(final String tenantId, final String invoiceId) {
         try {
-            tierDetails = objectMapper.readValue(itemDetails, TierDetails.class);
-        } catch (JsonProcessingException e) {
+            final Invoice invoice = resilientKillbill.getInvoice(UUID.fromString(invoiceId), getCallContext(tenantId));
+            return backFillInvoice(invoice, tenantId);
+        } catch (final InvoiceApiException e) {
             throw new RuntimeException(e);
         }
-        if(tierDetails.getTierDetails().size()==0){
-            return;
+    }
+
+    private boolean backFillInvoice(final Invoice invoice, final String tenantId) {
+        if (invoice.getTrackingIds() == null || invoice.getTrackingIds().isEmpty()) {
+            // No usage on this invoice
+            return true;
         }
-        final String tierUnit = tierDetails.getTierDetails().get(0).getTierUnit();
-        final List<RawUsage> rawUsages = rawUsageDao.getRawUsage(trackingIds,tierUnit);
-        int index=0;
-        for(final TierDetail tierDetail: tierDetails.getTierDetails()){
-            BigDecimal quantity = tierDetail.getQuantity();
-            final BigDecimal tierPrice = tierDetail.getTierPrice();
-            final BigDecimal tierBlockSize = tierDetail.getTierBlockSize();
-            while (quantity.compareTo(BigDecimal.ZERO)>0){
-                final RawUsage rawUsage = rawUsages.get(index);
-                final BigDecimal amount = rawUsage.getAmount();
-                rawUsage.setTier(tierDetail.getTier());
-                if(amount.compareTo(quantity) <= 0){
-                    quantity = quantity.subtract(amount);
-                    final BigDecimal charges = Optional.ofNullable(rawUsage.getCharges()).orElse(BigDecimal.ZERO).add(
-                            amount.multiply(tierPrice).divide(tierBlockSize));
-                    rawUsage.setCharges(charges);
-                    index++;
-                } else {
-                    rawUsage.setAmount(amount.subtract(quantity));
-                    final BigDecimal charges = Optional.ofNullable(rawUsage.getCharges()).orElse(BigDecimal.ZERO).add(
-                            quantity.multiply(tierPrice).divide(tierBlockSize));
-                    rawUsage.setCharges(charges);
-                    quantity = BigDecimal.ZERO;
+        final Map<String, List<TierDetails>> itemsByUnit = InvoiceTiers.byUnit(objectMapper, invoice);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                // All items of an invoice are charged against the same snapshot and committed together
+                rawUsageDao.inTransaction(unitOfWork -> {
+                    for (final Map.Entry<String, List<TierDetails>> unitItems : itemsByUnit.entrySet()) {
+                        backFillCharges(unitOfWork, invoice.getTrackingIds(), unitItems.getKey(), unitItems.getValue(), tenantId);
+                    }
+                    return null;
+                });
+                return true;
+            } catch (final VersionConflictException e) {
+                concurrencyStats.chargeConflict(e.getConflictingIds().size());
+                if (attempt >= MAX_CHARGE_ATTEMPTS) {
+                    concurrencyStats.chargeRetriesExhausted();
+                    log.error("backFill :: invoice {} :: giving up after {} attempts :: {}", invoice.getId(), attempt, e.getMessage());
+                    return false;
                 }
+                concurrencyStats.chargeRetry();
+                log.warn("backFill :: invoice {} :: attempt {} :: {}, retrying", invoice.getId(), attempt, e.getMessage());
             }
         }
-        publishCharges(rawUsages,tenant);
     }
 
-    private void publishCharges(final Iterable<RawUsage> rawUsages, final String tenant) {
-        rawUsageDao.persistRawUsageCharges(rawUsages);
+    /**
+     * Charges the rows of one unit with the tiers of all the invoice items billing it, in one allocation: the rows are
+     * read once, so an item cannot skip or overwrite the charges another item of the same unit wrote.
+     */
+    private void backFillCharges(final UnitOfWork unitOfWork, final List<String> trackingIds, final String tierUnit,
+                                 final List<TierDetails> items, final String tenant) {
+        final ChargeRows rows = unitOfWork.getChargeRows(trackingIds,tierUnit);
+        if(rows.allCharged()){
+            // Charged by a concurrent worker since the invoice was listed
+            concurrencyStats.alreadyCharged();
+            return;
+        }
+        rows.clearCharges();
+        TierAllocator.allocate(InvoiceTiers.tiers(items), rows);
+        publishCharges(unitOfWork,rows,tenant);
+    }
+
+    private void publishCharges(final UnitOfWork unitOfWork, final ChargeRows rows, final String tenant) {
+        unitOfWork.persistCharges(tenant, rows);
     }
 
     public void invoice() {
+        invoice(JobProgress.NONE);
+    }
+
+    public void invoice(final JobProgress progress) {
         final List<RawUsage> uniqueSubsId = rawUsageDao.getUnbilledAggregationIds();
-        for (final RawUsage rawUsage:uniqueSubsId){
-            try {
-                final CallContext context=getCallContext(rawUsage.getTenantId());
-                final Subscription sub = killbillAPI.getSubscriptionApi().getSubscriptionForExternalKey(rawUsage.getSubscriptionId(), false, context);
-                final Invoice invoice=killbillAPI.getInvoiceUserApi().triggerInvoiceGeneration(sub.getAccountId(), getTargetDate(rawUsage), List.of(), context);
-                log.info("InvoiceTenant {}",invoice);
-            } catch (final Exception e) {
-                log.error("Invoice Error :: {} :: {}", e.getClass(), e.getMessage());
+        pushRollups("invoice", UsagePushRetry.STAGE_INVOICE, uniqueSubsId, this::invoice, progress);
+    }
+
+    private void invoice(final RawUsage rawUsage) throws SubscriptionApiException, InvoiceApiException {
+        final CallContext context=getCallContext(rawUsage.getTenantId());
+        final Subscription sub = resilientKillbill.getSubscriptionForExternalKey(rawUsage.getSubscriptionId(), context);
+        try {
+            final Invoice invoice=resilientKillbill.triggerInvoiceGeneration(sub.getAccountId(), getTargetDate(rawUsage), context);
+            log.info("InvoiceTenant {}",invoice);
+        } catch (final InvoiceApiException e) {
+            if (e.getCode() != ErrorCode.INVOICE_NOTHING_TO_DO.getCode()) {
+                throw e;
             }
         }
     }
 
     private LocalDate getTargetDate(final RawUsage rawUsage) {
-        return rawUsageDao.getUsageSum(rawUsage).getMaxRecordDate().plusMonths(1).toLocalDate();
+        // A month past the latest usage of the rollup, whichever unit it is in
+        final DateTime maxRecordDate = rawUsageDao.getUsageSumsByUnit(rawUsage.getAggregationId())
+                                                  .stream()
+                                                  .map(AggregatedUsage::getMaxRecordDate)
+                                                  .max(Comparator.naturalOrder())
+                                                  .orElseThrow(() -> new IllegalStateException("No usage under aggregation id " + rawUsage.getAggregationId()));
+        return maxRecordDate.plusMonths(1).toLocalDate();
+    }
+
+    /**
+     * Runs the whole pipeline once and returns the wall time of each stage in milliseconds, in stage order.
+     */
+    public Map<String, Long> chargeUsage() {
+        return chargeUsage(JobProgress.NONE);
     }
 
-    public void chargeUsage() {
-        List<Long> performance = new ArrayList<>();
+    public Map<String, Long> chargeUsage(final JobProgress progress) {
+        final Map<String, Long> performance = new LinkedHashMap<>();
         long start = System.nanoTime();
         try {
-            aggregateUsages();
+            aggregateUsages(progress);
         }catch (final Exception e){
             log.error("chargeUsage :: aggregateUsages :: {}",e.getMessage());
         }
-        performance.add(System.nanoTime()-start);
+        performance.put("aggregate", TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start));
         start = System.nanoTime();
         try {
-            bill();
+            bill(progress);
         }catch (final Exception e){
             log.error("chargeUsage :: bill :: {}",e.getMessage());
         }
-        performance.add(System.nanoTime()-start);
+        performance.put("bill", TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start));
         start = System.nanoTime();
         try {
-            invoice();
+            invoice(progress);
         }catch (final Exception e){
             log.error("chargeUsage :: invoice :: {}",e.getMessage());
         }
-        performance.add(System.nanoTime()-start);
+        performance.put("invoice", TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start));
         start = System.nanoTime();
         try {
-            backFill();
+            backFill(progress);
         }catch (final Exception e){
             log.error("chargeUsage :: backFill :: {}",e.getMessage());
         }
-        performance.add(System.nanoTime()-start);
+        performance.put("backFill", TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start));
         log.info("Performance :: {}",performance);
+        return performance;
     }
 
     public ChargeDetails getCharges(final String tenantId, final String subscriptionId, final String unit, final String trackingId) {
         final RawUsage rawUsage= rawUsageDao.getRawUsage(tenantId,subscriptionId,unit,trackingId);
-        if(Objects.isNull(rawUsage.getCharges())){
-            throw new RequestTooEarly("Transaction Not Charged Yet");
-        }
-        final BigDecimal charge = Optional.ofNullable(rawUsage.getCharges()).orElse(BigDecimal.ZERO);
-        return new ChargeDetails().setCharges(charge).setTax(charge.multiply(BigDecimal.valueOf(TAX_RATE)));
+        return chargeDetails(rawUsage, unit);
     }
 
     public ChargeDetails getChargesForPG(final String tenantId, final String subscriptionId, final String unit, final String trackingId) {
         final RawUsage rawUsage= rawUsageDao.getRawUsage(tenantId,List.of(subscriptionId.concat("_VOLUME"),subscriptionId.concat("_COUNT")),unit,trackingId);
+        return chargeDetails(rawUsage, unit);
+    }
+
+    /**
+     * The charge back-fill wrote, else the provisional one estimated at ingestion when there is one.
+     */
+    private ChargeDetails chargeDetails(final RawUsage rawUsage, final String unit) {
         if(Objects.isNull(rawUsage.getCharges())){
-            throw new RequestTooEarly("Transaction Not Charged Yet");
+            final ChargeEstimate estimate = chargeEstimator == null ? null : chargeEstimator.estimate(rawUsage.getTenantId(), rawUsage.getSubscriptionId(),
+                                                                                                        unit, rawUsage.getTrackingId());
+            if (estimate == null) {
+                throw new RequestTooEarly("Transaction Not Charged Yet");
+            }
+            return new ChargeDetails().setCharges(estimate.getCharges())
+                                      .setTax(estimate.getCharges().multiply(BigDecimal.valueOf(TAX_RATE)))
+                                      .setTier(estimate.getTier())
+                                      .setProvisional(true);
+        }
+        if (chargeEstimator != null) {
+            chargeEstimator.settled(rawUsage.getTenantId(), rawUsage.getSubscriptionId(), unit, rawUsage.getTrackingId());
         }
         final BigDecimal charge = Optional.ofNullable(rawUsage.getCharges()).orElse(BigDecimal.ZERO);
-        return new ChargeDetails().setCharges(charge).setTax(charge.multiply(BigDecimal.valueOf(TAX_RATE)));
+        return new ChargeDetails().setCharges(charge).setTax(charge.multiply(BigDecimal.valueOf(TAX_RATE))).setTier(rawUsage.getTier());
+    }
+
+    public List<UsagePushRetry> getDeadLetters() {
+        return usagePushRetries.getDeadLetters();
+    }
+
+    public void requeueDeadLetter(final long id) {
+        if (!usagePushRetries.requeue(id)) {
+            throw new ResourceNotFoundException("Dead letter not found");
+        }
+    }
+
+    public List<ApiGuardStats> getKillbillApiStats() {
+        return resilientKillbill.getStats();
+    }
+
+    public ConcurrencyStats getConcurrencyStats() {
+        return concurrencyStats;
+    }
+
+    public DeduplicationStats getDeduplicationStats() {
+        return deduplicator.getStats();
     }
 }
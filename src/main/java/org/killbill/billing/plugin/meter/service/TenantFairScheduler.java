@@ -0,0 +1,249 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.killbill.billing.plugin.meter.tuning.Pools;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs one stage's work items (subscriptions to bill or invoice, invoices to backfill) interleaved across tenants
+ * with weighted fair queueing, instead of in database order where one large tenant holds up everyone behind it.
+ * <p>
+ * Every tenant gets its own queue. The n-th item of a tenant with weight w is tagged n / w and workers always take the
+ * smallest tag among tenants below their concurrency limit, so a tenant with k items is done after roughly
+ * k / w * (sum of active weights) dispatches no matter how many items other tenants have queued.
+ */
+@Slf4j
+public class TenantFairScheduler {
+
+    private final Function<String, TenantShare> shares;
+    private volatile int workers;
+    // Guarded by this, created once more than one worker is asked for
+    private ThreadPoolExecutor executor;
+
+    /**
+     * @param shares  weight and concurrency limit per tenant id
+     * @param workers worker threads shared by all stages; with one worker items run in the calling thread, still in
+     *                fair order
+     */
+    public TenantFairScheduler(final Function<String, TenantShare> shares, final int workers) {
+        this.shares = shares;
+        this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * Changes the number of workers from the next run on; runs in progress keep the workers they started with.
+     */
+    public void setWorkers(final int workers) {
+        this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * Runs the task on every item and returns once all of them finished. A failing item is logged and counted; it
+     * does not stop the others.
+     *
+     * @return the number of items whose task threw
+     */
+    public <T> int run(final String stage, final List<T> items, final Function<T, String> tenantOf, final Consumer<T> task) {
+        if (items.isEmpty()) {
+            return 0;
+        }
+        final int workers = this.workers;
+        final ExecutorService executor = executor(workers);
+        final Round<T> round = new Round<>(items, tenantOf);
+        log.info("TenantFairScheduler :: {} :: {} items over {} tenants", stage, items.size(), round.tenantCount());
+        final Callable<Void> worker = () -> {
+            for (Slot<T> slot = round.next(); slot != null; slot = round.next()) {
+                try {
+                    task.accept(slot.item);
+                } catch (final RuntimeException e) {
+                    round.failures.incrementAndGet();
+                    log.error("Error :: {} :: tenant {} :: {}", stage, slot.queue.tenantId, e.getMessage());
+                } finally {
+                    round.done(slot.queue);
+                }
+            }
+            return null;
+        };
+        if (executor == null) {
+            call(worker);
+        } else {
+            final List<Callable<Void>> callables = new ArrayList<>();
+            for (int i = 0; i < Math.min(workers, items.size()); i++) {
+                callables.add(worker);
+            }
+            try {
+                for (final Future<Void> future : executor.invokeAll(callables)) {
+                    future.get();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while running " + stage, e);
+            } catch (final ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return round.failures.get();
+    }
+
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private synchronized ExecutorService executor(final int workers) {
+        if (workers == 1) {
+            return null;
+        }
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                final Thread thread = new Thread(runnable, "meter-billing-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else if (executor.getCorePoolSize() != workers) {
+            Pools.resize(executor, workers);
+        }
+        return executor;
+    }
+
+    private static void call(final Callable<Void> callable) {
+        try {
+            callable.call();
+        } catch (final RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final class Round<T> {
+
+        private final Map<String, TenantQueue<T>> queues = new LinkedHashMap<>();
+        private final Queue<TenantQueue<T>> ready = new PriorityQueue<>(Comparator.comparingDouble(queue -> queue.nextTag));
+        private final AtomicInteger failures = new AtomicInteger();
+        private int pending;
+
+        Round(final List<T> items, final Function<T, String> tenantOf) {
+            for (final T item : items) {
+                queues.computeIfAbsent(tenantOf.apply(item), tenantId -> new TenantQueue<>(tenantId, shareOf(tenantId))).items.add(item);
+            }
+            pending = items.size();
+            for (final TenantQueue<T> queue : queues.values()) {
+                queue.queued = true;
+                ready.add(queue);
+            }
+        }
+
+        int tenantCount() {
+            return queues.size();
+        }
+
+        synchronized Slot<T> next() throws InterruptedException {
+            while (true) {
+                if (pending == 0) {
+                    return null;
+                }
+                final TenantQueue<T> queue = ready.poll();
+                if (queue == null) {
+                    // Everything left belongs to tenants at their concurrency limit
+                    wait();
+                    continue;
+                }
+                queue.queued = false;
+                final T item = queue.items.poll();
+                pending--;
+                queue.inFlight++;
+                queue.nextTag += 1 / queue.weight;
+                requeue(queue);
+                return new Slot<>(queue, item);
+            }
+        }
+
+        synchronized void done(final TenantQueue<T> queue) {
+            queue.inFlight--;
+            requeue(queue);
+            notifyAll();
+        }
+
+        private void requeue(final TenantQueue<T> queue) {
+            if (!queue.queued && !queue.items.isEmpty() && queue.inFlight < queue.maxConcurrency) {
+                queue.queued = true;
+                ready.add(queue);
+            }
+        }
+    }
+
+    private TenantShare shareOf(final String tenantId) {
+        try {
+            final TenantShare share = shares.apply(tenantId);
+            return share == null ? TenantShare.DEFAULT : share;
+        } catch (final RuntimeException e) {
+            log.warn("TenantFairScheduler :: tenant {} :: {}, using default share", tenantId, e.getMessage());
+            return TenantShare.DEFAULT;
+        }
+    }
+
+    private static final class TenantQueue<T> {
+        private final String tenantId;
+        private final double weight;
+        private final int maxConcurrency;
+        private final Queue<T> items = new ArrayDeque<>();
+        private double nextTag;
+        private int inFlight;
+        private boolean queued;
+
+        TenantQueue(final String tenantId, final TenantShare share) {
+            this.tenantId = tenantId;
+            this.weight = share.getWeight() > 0 ? share.getWeight() : TenantShare.DEFAULT.getWeight();
+            this.maxConcurrency = Math.max(1, share.getMaxConcurrency());
+            this.nextTag = 1 / weight;
+        }
+    }
+
+    private static final class Slot<T> {
+        private final TenantQueue<T> queue;
+        private final T item;
+
+        Slot(final TenantQueue<T> queue, final T item) {
+            this.queue = queue;
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.service;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Optional;
+
+import org.killbill.billing.plugin.meter.dto.TierDetail;
+import org.killbill.billing.plugin.meter.entity.RawUsage;
+import org.killbill.billing.plugin.meter.workset.ChargeRows;
+
+/**
+ * Spreads the tier quantities of an invoice item over the raw usages it was computed from, in the order given.
+ * A usage straddling two tiers keeps the tier it ends in and accumulates the charges of both.
+ */
+public final class TierAllocator {
+
+    private TierAllocator() {
+    }
+
+    public static List<RawUsage> allocate(final List<TierDetail> tierDetails, final List<RawUsage> rawUsages) {
+        int index=0;
+        for(final TierDetail tierDetail: tierDetails){
+            BigDecimal quantity = tierDetail.getQuantity();
+            final BigDecimal tierPrice = tierDetail.getTierPrice();
+            final BigDecimal tierBlockSize = tierDetail.getTierBlockSize();
+            while (quantity.compareTo(BigDecimal.ZERO)>0){
+                final RawUsage rawUsage = rawUsages.get(index);
+                final BigDecimal amount = rawUsage.getAmount();
+                rawUsage.setTier(tierDetail.getTier());
+                if(amount.compareTo(quantity) <= 0){
+                    quantity = quantity.subtract(amount);
+                    final BigDecimal charges = Optional.ofNullable(rawUsage.getCharges()).orElse(BigDecimal.ZERO).add(
+                            amount.multiply(tierPrice).divide(tierBlockSize));
+                    rawUsage.setCharges(charges);
+                    index++;
+                } else {
+                    rawUsage.setAmount(amount.subtract(quantity));
+                    final BigDecimal charges = Optional.ofNullable(rawUsage.getCharges()).orElse(BigDecimal.ZERO).add(
+                            quantity.multiply(tierPrice).divide(tierBlockSize));
+                    rawUsage.setCharges(charges);
+                    quantity = BigDecimal.ZERO;
+                }
+            }
+        }
+        return rawUsages;
+    }
+
+    /**
+     * Same allocation over columnar rows: quantities and amounts are compared as longs in millionths, only the charges
+     * are computed as decimals. Tier quantities are sums of usage amounts, so they have no more than six decimals.
+     */
+    public static ChargeRows allocate(final List<TierDetail> tierDetails, final ChargeRows rows) {
+        int index=0;
+        for(final TierDetail tierDetail: tierDetails){
+            long quantity = ChargeRows.toMicros(tierDetail.getQuantity());
+            final BigDecimal tierPrice = tierDetail.getTierPrice();
+            final BigDecimal tierBlockSize = tierDetail.getTierBlockSize();
+            while (quantity > 0){
+                if (index >= rows.size()) {
+                    throw new IndexOutOfBoundsException("Tier " + tierDetail.getTier() + " exceeds the usage of " + rows.size() + " rows");
+                }
+                final long amount = rows.amountMicros(index);
+                rows.setTier(index, tierDetail.getTier());
+                if(amount <= quantity){
+                    quantity -= amount;
+                    rows.addCharges(index, ChargeRows.fromMicros(amount).multiply(tierPrice).divide(tierBlockSize));
+                    index++;
+                } else {
+                    rows.setAmountMicros(index, amount - quantity);
+                    rows.addCharges(index, ChargeRows.fromMicros(quantity).multiply(tierPrice).divide(tierBlockSize));
+                    quantity = 0;
+                }
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.dao.UsagePushRetryDao;
+import org.killbill.billing.plugin.meter.entity.RawUsage;
+import org.killbill.billing.plugin.meter.entity.UsagePushRetry;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Retry bookkeeping for rollups whose push to Kill Bill failed. A failure is recorded with its reason and the rollup
+ * is skipped until its next attempt is due, backing off exponentially; after {@code maxAttempts} it becomes a dead
+ * letter that only an admin requeue brings back.
+ */
+@Slf4j
+public class UsagePushRetries {
+
+    static final int MAX_ERROR_LENGTH = 1024;
+
+    private final UsagePushRetryDao usagePushRetryDao;
+    private final int maxAttempts;
+    private final long initialBackoffSeconds;
+    private final long maxBackoffSeconds;
+
+    public UsagePushRetries(final UsagePushRetryDao usagePushRetryDao, final int maxAttempts,
+                            final long initialBackoffSeconds, final long maxBackoffSeconds) {
+        this.usagePushRetryDao = usagePushRetryDao;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffSeconds = initialBackoffSeconds;
+        this.maxBackoffSeconds = maxBackoffSeconds;
+    }
+
+    /**
+     * Failures are only logged and every rollup is retried on every run, as before retries were tracked.
+     */
+    public static UsagePushRetries disabled() {
+        return new UsagePushRetries(null, 0, 0, 0);
+    }
+
+    /**
+     * Starts one run of a stage against the current retry state.
+     */
+    public Pass begin(final String stage) {
+        final Map<String, UsagePushRetry> retries = usagePushRetryDao == null
+                                                    ? Map.of()
+                                                    : usagePushRetryDao.getByStage(stage)
+                                                                       .stream()
+                                                                       .collect(Collectors.toMap(UsagePushRetry::getAggregationId, Function.identity()));
+        return new Pass(stage, retries, DateTime.now(DateTimeZone.UTC));
+    }
+
+    public List<UsagePushRetry> getDeadLetters() {
+        return usagePushRetryDao == null ? List.of() : usagePushRetryDao.getDeadLetters();
+    }
+
+    public boolean requeue(final long id) {
+        return usagePushRetryDao != null && usagePushRetryDao.requeue(id, DateTime.now(DateTimeZone.UTC));
+    }
+
+    long backoffSeconds(final int attempts) {
+        final int doublings = Math.min(Math.max(attempts - 1, 0), 30);
+        return Math.min(maxBackoffSeconds, initialBackoffSeconds << doublings);
+    }
+
+    public final class Pass {
+
+        private final String stage;
+        private final Map<String, UsagePushRetry> retries;
+        private final DateTime now;
+
+        private Pass(final String stage, final Map<String, UsagePushRetry> retries, final DateTime now) {
+            this.stage = stage;
+            this.retries = retries;
+            this.now = now;
+        }
+
+        /**
+         * Whether the rollup should be pushed in this run: never failed, or failed and its next attempt is due.
+         */
+        public boolean isDue(final RawUsage rollup) {
+            final UsagePushRetry retry = retries.get(rollup.getAggregationId());
+            return retry == null || (UsagePushRetry.RETRY.equals(retry.getStatus()) && !retry.getNextAttemptAt().isAfter(now));
+        }
+
+        public void succeeded(final RawUsage rollup) {
+            final UsagePushRetry retry = retries.get(rollup.getAggregationId());
+            if (retry != null) {
+                usagePushRetryDao.delete(retry.getId());
+            }
+        }
+
+        public void failed(final RawUsage rollup, final Exception failure) {
+            final String error = failure.getClass().getSimpleName() + ": " + failure.getMessage();
+            if (usagePushRetryDao == null) {
+                log.error("{} :: {} :: {}", stage, rollup.getAggregationId(), error);
+                return;
+            }
+            final UsagePushRetry previous = retries.get(rollup.getAggregationId());
+            final int attempts = previous == null ? 1 : previous.getAttempts() + 1;
+            final boolean dead = attempts >= maxAttempts;
+            final UsagePushRetry retry = (previous == null ? new UsagePushRetry() : previous)
+                    .setTenantId(rollup.getTenantId())
+                    .setSubscriptionId(rollup.getSubscriptionId())
+                    .setAggregationId(rollup.getAggregationId())
+                    .setStage(stage)
+                    .setStatus(dead ? UsagePushRetry.DEAD : UsagePushRetry.RETRY)
+                    .setAttempts(attempts)
+                    .setLastError(error.length() > MAX_ERROR_LENGTH ? error.substring(0, MAX_ERROR_LENGTH) : error)
+                    .setNextAttemptAt(now.plusSeconds((int) backoffSeconds(attempts)));
+            log.error("{} :: {} :: attempt {} :: {}{}", stage, rollup.getAggregationId(), attempts, error, dead ? " :: dead letter" : "");
+            try {
+                if (previous == null) {
+                    usagePushRetryDao.insert(retry);
+                } else if (!usagePushRetryDao.update(retry)) {
+                    log.warn("{} :: {} :: retry state changed concurrently", stage, rollup.getAggregationId());
+                }
+            } catch (final UnableToExecuteStatementException e) {
+                // Another worker recorded the first failure of the same rollup
+                log.warn("{} :: {} :: {}", stage, rollup.getAggregationId(), e.getMessage());
+            }
+        }
+    }
+}
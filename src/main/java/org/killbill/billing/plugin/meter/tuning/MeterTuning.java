@@ -0,0 +1,114 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.tuning;
+
+import java.util.Properties;
+
+import org.killbill.billing.plugin.meter.MeterConfigurationHandler;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * Throughput settings of the pipeline, validated as a whole so that a bad value is rejected before anything runs with
+ * it.
+ * <p>
+ * Batch sizes and the schedule cache TTL apply to one tenant's work and may be overridden in the tenant's plugin
+ * config. Worker counts and the flush interval size executors shared by all tenants, and the fetch size applies to
+ * pipeline scans that read every tenant's rows at once; these are only taken from the plugin-wide tuning, which can be
+ * replaced at runtime, see {@link MeterConfigurationHandler#updatePluginTuning}.
+ */
+@Data
+@Accessors(chain = true)
+public class MeterTuning {
+
+    public static final MeterTuning DEFAULT = new MeterTuning(1000, 1000, 1000, 900, 4, 2, 4, 10);
+
+    /** Rows per JDBC batch when inserting usage; PostgreSQL streams them in one {@code COPY} instead. */
+    private final int insertBatchSize;
+    /** Rows per JDBC batch when writing charges. */
+    private final int chargeBatchSize;
+    /** Rows the driver fetches per round trip on the pipeline scans, plugin-wide only. */
+    private final int fetchSize;
+    /** Seconds a subscription unit's tier schedule is cached for estimates. */
+    private final long scheduleTtlSeconds;
+    /** Billing worker threads shared by all tenants. */
+    private final int schedulingWorkers;
+    /** Pipeline jobs running at the same time. */
+    private final int jobWorkers;
+    /** Invoices re-rated at the same time. */
+    private final int rerateParallelism;
+    /** Seconds between flushes of pre-aggregated usage. */
+    private final long preAggregationFlushSeconds;
+
+    /**
+     * Applies every setting present in the properties over this tuning.
+     *
+     * @throws IllegalArgumentException naming the first setting that is not a number or out of its range
+     */
+    public MeterTuning withPluginProperties(final Properties properties) {
+        return new MeterTuning(intValue(properties, MeterConfigurationHandler.TUNING_INSERT_BATCH_SIZE, insertBatchSize, 1, 100_000),
+                               intValue(properties, MeterConfigurationHandler.TUNING_CHARGE_BATCH_SIZE, chargeBatchSize, 1, 100_000),
+                               intValue(properties, MeterConfigurationHandler.TUNING_FETCH_SIZE, fetchSize, 0, 100_000),
+                               longValue(properties, MeterConfigurationHandler.ESTIMATION_SCHEDULE_TTL_SECONDS, scheduleTtlSeconds, 0, 86_400),
+                               intValue(properties, MeterConfigurationHandler.SCHEDULING_WORKERS, schedulingWorkers, 1, 256),
+                               intValue(properties, MeterConfigurationHandler.JOBS_WORKERS, jobWorkers, 1, 64),
+                               intValue(properties, MeterConfigurationHandler.RERATE_PARALLELISM, rerateParallelism, 1, 256),
+                               longValue(properties, MeterConfigurationHandler.PRE_AGGREGATION_FLUSH_SECONDS, preAggregationFlushSeconds, 1, 3600));
+    }
+
+    /**
+     * Applies the tenant-scoped settings present in a tenant's properties over this tuning; the shared executor sizes
+     * and the fetch size are kept.
+     *
+     * @throws IllegalArgumentException naming the first setting that is not a number or out of its range, or the fetch
+     *                                  size, which a tenant cannot set
+     */
+    public MeterTuning withTenantProperties(final Properties properties) {
+        final String tenantFetchSize = properties.getProperty(MeterConfigurationHandler.TUNING_FETCH_SIZE);
+        if (tenantFetchSize != null && !tenantFetchSize.isBlank()) {
+            throw new IllegalArgumentException(MeterConfigurationHandler.TUNING_FETCH_SIZE + " is plugin-wide only");
+        }
+        return new MeterTuning(intValue(properties, MeterConfigurationHandler.TUNING_INSERT_BATCH_SIZE, insertBatchSize, 1, 100_000),
+                               intValue(properties, MeterConfigurationHandler.TUNING_CHARGE_BATCH_SIZE, chargeBatchSize, 1, 100_000),
+                               fetchSize,
+                               longValue(properties, MeterConfigurationHandler.ESTIMATION_SCHEDULE_TTL_SECONDS, scheduleTtlSeconds, 0, 86_400),
+                               schedulingWorkers, jobWorkers, rerateParallelism, preAggregationFlushSeconds);
+    }
+
+    private static int intValue(final Properties properties, final String key, final int current, final int min, final int max) {
+        return (int) longValue(properties, key, current, min, max);
+    }
+
+    private static long longValue(final Properties properties, final String key, final long current, final long min, final long max) {
+        final String value = properties.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return current;
+        }
+        final long parsed;
+        try {
+            parsed = Long.parseLong(value.trim());
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException(key + " is not a number: " + value);
+        }
+        if (parsed < min || parsed > max) {
+            throw new IllegalArgumentException(key + " must be between " + min + " and " + max + ", was " + parsed);
+        }
+        return parsed;
+    }
+}
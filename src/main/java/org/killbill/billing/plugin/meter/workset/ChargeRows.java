@@ -0,0 +1,163 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.workset;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * The raw usage rows of one invoice item while their charges are computed, as primitive columns: id, version, the
+ * amount in millionths (raw_usage.amount has six decimals, so it is exact in a long) and the charges and tier to
+ * write. Only the charges stay objects, since they are computed with arbitrary precision. The charges and tier read
+ * are kept when they are cleared for recomputation, so only rows whose result differs are written back.
+ */
+public final class ChargeRows {
+
+    public static final int AMOUNT_SCALE = 6;
+
+    private long[] id;
+    private long[] version;
+    private long[] amount;
+    private BigDecimal[] charges;
+    private int[] tier;
+    private BigDecimal[] previousCharges;
+    private int[] previousTier;
+    private int size;
+    private int charged;
+
+    public ChargeRows() {
+        this(64);
+    }
+
+    public ChargeRows(final int capacity) {
+        final int initial = Math.max(1, capacity);
+        id = new long[initial];
+        version = new long[initial];
+        amount = new long[initial];
+        charges = new BigDecimal[initial];
+        tier = new int[initial];
+    }
+
+    public void add(final long rowId, final long rowVersion, final BigDecimal rowAmount, final BigDecimal rowCharges) {
+        add(rowId, rowVersion, rowAmount, rowCharges, 0);
+    }
+
+    public void add(final long rowId, final long rowVersion, final BigDecimal rowAmount, final BigDecimal rowCharges, final int rowTier) {
+        if (size == id.length) {
+            final int capacity = size * 2;
+            id = Arrays.copyOf(id, capacity);
+            version = Arrays.copyOf(version, capacity);
+            amount = Arrays.copyOf(amount, capacity);
+            charges = Arrays.copyOf(charges, capacity);
+            tier = Arrays.copyOf(tier, capacity);
+        }
+        id[size] = rowId;
+        version[size] = rowVersion;
+        amount[size] = toMicros(rowAmount);
+        charges[size] = rowCharges;
+        tier[size] = rowTier;
+        if (rowCharges != null) {
+            charged++;
+        }
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Whether every row already had charges when it was read. */
+    public boolean allCharged() {
+        return size > 0 && charged == size;
+    }
+
+    /**
+     * Clears the charges for recomputation, keeping the charges and tier read as the previous ones.
+     */
+    public void clearCharges() {
+        previousCharges = charges;
+        previousTier = tier;
+        charges = new BigDecimal[previousCharges.length];
+        tier = Arrays.copyOf(previousTier, previousTier.length);
+        charged = 0;
+    }
+
+    /** Charges the row had when it was read. */
+    public BigDecimal previousCharges(final int row) {
+        return previousCharges == null ? charges[row] : previousCharges[row];
+    }
+
+    public int previousTier(final int row) {
+        return previousTier == null ? tier[row] : previousTier[row];
+    }
+
+    /** Whether the row's charges or tier differ from what was read, i.e. it needs to be written. */
+    public boolean isChanged(final int row) {
+        final BigDecimal before = previousCharges(row);
+        final BigDecimal after = charges[row];
+        if (before == null || after == null) {
+            return before != after;
+        }
+        return before.compareTo(after) != 0 || previousTier(row) != tier[row];
+    }
+
+    public long id(final int row) {
+        return id[row];
+    }
+
+    public long version(final int row) {
+        return version[row];
+    }
+
+    /** Amount not yet allocated to a tier, in millionths. */
+    public long amountMicros(final int row) {
+        return amount[row];
+    }
+
+    public void setAmountMicros(final int row, final long micros) {
+        amount[row] = micros;
+    }
+
+    public BigDecimal charges(final int row) {
+        return charges[row];
+    }
+
+    public void addCharges(final int row, final BigDecimal added) {
+        charges[row] = charges[row] == null ? added : charges[row].add(added);
+    }
+
+    public int tier(final int row) {
+        return tier[row];
+    }
+
+    public void setTier(final int row, final int rowTier) {
+        tier[row] = rowTier;
+    }
+
+    public static long toMicros(final BigDecimal value) {
+        return value.movePointRight(AMOUNT_SCALE).longValueExact();
+    }
+
+    public static BigDecimal fromMicros(final long micros) {
+        return BigDecimal.valueOf(micros, AMOUNT_SCALE);
+    }
+}
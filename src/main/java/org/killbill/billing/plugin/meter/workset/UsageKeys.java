@@ -0,0 +1,123 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.workset;
+
+import java.util.Arrays;
+
+/**
+ * The (tenant, subscription, unit) keys of not yet aggregated usage, dictionary encoded into int columns. A large
+ * cycle can have millions of keys; held as {@code RawUsage} objects each would carry its own copies of the strings.
+ */
+public final class UsageKeys {
+
+    private final Dictionary tenants = new Dictionary();
+    private final Dictionary subscriptions = new Dictionary();
+    private final Dictionary units = new Dictionary();
+    private int[] tenant = new int[64];
+    private int[] subscription = new int[64];
+    private int[] unit = new int[64];
+    private int size;
+
+    public void add(final String tenantId, final String subscriptionId, final String unitType) {
+        if (size == tenant.length) {
+            tenant = Arrays.copyOf(tenant, size * 2);
+            subscription = Arrays.copyOf(subscription, size * 2);
+            unit = Arrays.copyOf(unit, size * 2);
+        }
+        tenant[size] = tenants.encode(tenantId);
+        subscription[size] = subscriptions.encode(subscriptionId);
+        unit[size] = units.encode(unitType);
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String tenantId(final int row) {
+        return tenants.decode(tenant[row]);
+    }
+
+    public String subscriptionId(final int row) {
+        return subscriptions.decode(subscription[row]);
+    }
+
+    public String unitType(final int row) {
+        return units.decode(unit[row]);
+    }
+
+    /** Dense code of the row's subscription id, below {@link #subscriptionCount()}. */
+    public int subscriptionCode(final int row) {
+        return subscription[row];
+    }
+
+    public int tenantCount() {
+        return tenants.size();
+    }
+
+    public int subscriptionCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Row indices grouped by tenant with a counting sort: the rows of the tenant with code {@code t}, tenants in
+     * first-seen order, are {@code rows[offsets[t]]} to {@code rows[offsets[t + 1] - 1]}, in their original order.
+     */
+    public TenantGroups groupByTenant() {
+        final int[] offsets = new int[tenants.size() + 1];
+        for (int row = 0; row < size; row++) {
+            offsets[tenant[row] + 1]++;
+        }
+        for (int t = 0; t < tenants.size(); t++) {
+            offsets[t + 1] += offsets[t];
+        }
+        final int[] next = Arrays.copyOf(offsets, tenants.size());
+        final int[] rows = new int[size];
+        for (int row = 0; row < size; row++) {
+            rows[next[tenant[row]]++] = row;
+        }
+        return new TenantGroups(rows, offsets);
+    }
+
+    public static final class TenantGroups {
+
+        private final int[] rows;
+        private final int[] offsets;
+
+        private TenantGroups(final int[] rows, final int[] offsets) {
+            this.rows = rows;
+            this.offsets = offsets;
+        }
+
+        public int tenantCount() {
+            return offsets.length - 1;
+        }
+
+        public int start(final int tenant) {
+            return offsets[tenant];
+        }
+
+        public int end(final int tenant) {
+            return offsets[tenant + 1];
+        }
+
+        public int row(final int position) {
+            return rows[position];
+        }
+    }
+}
@@ -0,0 +1,72 @@
+-- PostgreSQL flavour of ddl.sql, same tables and indexes
+
+-- Subscription ids and unit types of raw_usage, replaced there by their integer surrogate
+create table raw_usage_key (
+  id serial not null
+, kind smallint not null
+, key_value varchar(255) not null
+, primary key(id)
+);
+create unique index raw_usage_key_kind_value on raw_usage_key(kind, key_value);
+
+create table raw_usage (
+  id bigserial not null
+, tenant_id uuid not null
+, subscription_key int not null
+, aggregated_id uuid default null
+, tracking_id varchar(128) not null
+, unit_key int not null
+, record_date timestamp(3) not null
+, amount numeric(18, 6) not null
+, charges numeric(24, 12) default null
+, tier int default null
+, version bigint not null default 0
+, added_on timestamp default current_timestamp
+, updated_on timestamp default current_timestamp
+, primary key(id)
+);
+create index raw_usage_aggregated_id on raw_usage(aggregated_id);
+create unique index raw_usage_tracking_key on raw_usage(tenant_id, subscription_key, unit_key, tracking_id);
+create index raw_usage_tracking_id on raw_usage(tenant_id, tracking_id);
+
+create table backfill_queue (
+  id bigserial not null
+, tenant_id varchar(36) not null
+, invoice_id varchar(36) not null
+, status varchar(16) not null
+, attempts int not null default 0
+, last_error varchar(1024) default null
+, available_at timestamp(3) not null
+, claimed_at timestamp(3) default null
+, version bigint not null default 0
+, added_on timestamp default current_timestamp
+, updated_on timestamp default current_timestamp
+, primary key(id)
+);
+create unique index backfill_queue_invoice_id on backfill_queue(invoice_id);
+create index backfill_queue_status_available_at on backfill_queue(status, available_at);
+
+create table usage_push_retry (
+  id bigserial not null
+, tenant_id varchar(36) not null
+, subscription_id varchar(255) not null
+, aggregated_id varchar(36) not null
+, stage varchar(16) not null
+, status varchar(16) not null
+, attempts int not null default 0
+, last_error varchar(1024) default null
+, next_attempt_at timestamp(3) not null
+, version bigint not null default 0
+, added_on timestamp default current_timestamp
+, updated_on timestamp default current_timestamp
+, primary key(id)
+);
+create unique index usage_push_retry_aggregated_id_stage on usage_push_retry(aggregated_id, stage);
+create index usage_push_retry_status on usage_push_retry(status, stage);
+
+create table replica_heartbeat (
+  node_id varchar(36) not null
+, beat_millis bigint not null
+, pipeline_writes bigint not null default 0
+, primary key(node_id)
+);
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.plugin.meter.tuning.MeterTuning;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.Mockito.mock;
+
+public class TestMeterConfigurationHandler {
+
+    private final Map<UUID, Properties> tenantProperties = new HashMap<>();
+    private final List<MeterTuning> notified = new ArrayList<>();
+    private MeterConfigurationHandler configurationHandler;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        tenantProperties.clear();
+        notified.clear();
+        configurationHandler = new MeterConfigurationHandler("test", MeterRegister.PLUGIN_NAME, mock(OSGIKillbillAPI.class)) {
+            @Override
+            public Properties getConfigurable(final UUID kbTenantId) {
+                return tenantProperties.get(kbTenantId);
+            }
+        };
+        configurationHandler.initTuning(properties(MeterConfigurationHandler.TUNING_INSERT_BATCH_SIZE, "500",
+                                                   MeterConfigurationHandler.JOBS_WORKERS, "3"));
+        configurationHandler.addTuningListener(notified::add);
+    }
+
+    @Test(groups = "fast")
+    public void testTenantWithoutConfigGetsPluginTuning() {
+        final MeterTuning plugin = configurationHandler.getPluginTuning();
+        Assert.assertEquals(plugin.getInsertBatchSize(), 500);
+        Assert.assertEquals(plugin.getJobWorkers(), 3);
+
+        Assert.assertSame(configurationHandler.getTuning(UUID.randomUUID()), plugin);
+        Assert.assertSame(configurationHandler.getTuning((String) null), plugin);
+    }
+
+    @Test(groups = "fast")
+    public void testTenantConfigOverridesPluginTuning() {
+        final UUID tenantId = UUID.randomUUID();
+        tenantProperties.put(tenantId, properties(MeterConfigurationHandler.TUNING_CHARGE_BATCH_SIZE, "100",
+                                                  MeterConfigurationHandler.JOBS_WORKERS, "10"));
+
+        final MeterTuning tuning = configurationHandler.getTuning(tenantId.toString());
+
+        Assert.assertEquals(tuning.getInsertBatchSize(), 500);
+        Assert.assertEquals(tuning.getChargeBatchSize(), 100);
+        // Shared executors are sized plugin-wide only
+        Assert.assertEquals(tuning.getJobWorkers(), 3);
+        Assert.assertSame(configurationHandler.getTuning(tenantId), tuning);
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidTenantConfigFallsBackToPluginTuning() {
+        final UUID tenantId = UUID.randomUUID();
+        tenantProperties.put(tenantId, properties(MeterConfigurationHandler.TUNING_CHARGE_BATCH_SIZE, "100",
+                                                  MeterConfigurationHandler.TUNING_INSERT_BATCH_SIZE, "lots"));
+
+        Assert.assertSame(configurationHandler.getTuning(tenantId), configurationHandler.getPluginTuning());
+    }
+
+    @Test(groups = "fast")
+    public void testTenantFetchSizeIsIgnoredWithTheRestOfItsConfig() {
+        final UUID tenantId = UUID.randomUUID();
+        tenantProperties.put(tenantId, properties(MeterConfigurationHandler.TUNING_CHARGE_BATCH_SIZE, "100",
+                                                  MeterConfigurationHandler.TUNING_FETCH_SIZE, "50"));
+
+        // Scans read all tenants, their fetch size is plugin-wide
+        Assert.assertSame(configurationHandler.getTuning(tenantId), configurationHandler.getPluginTuning());
+    }
+
+    @Test(groups = "fast")
+    public void testTenantTuningIsResolvedAgainAfterAChange() {
+        final UUID tenantId = UUID.randomUUID();
+        tenantProperties.put(tenantId, properties(MeterConfigurationHandler.TUNING_CHARGE_BATCH_SIZE, "100"));
+        Assert.assertEquals(configurationHandler.getTuning(tenantId).getFetchSize(), 1000);
+
+        configurationHandler.updatePluginTuning(properties(MeterConfigurationHandler.TUNING_FETCH_SIZE, "50"));
+        Assert.assertEquals(configurationHandler.getTuning(tenantId).getFetchSize(), 50);
+        Assert.assertEquals(configurationHandler.getTuning(tenantId).getChargeBatchSize(), 100);
+
+        tenantProperties.put(tenantId, properties(MeterConfigurationHandler.TUNING_CHARGE_BATCH_SIZE, "300"));
+        Assert.assertEquals(configurationHandler.getTuning(tenantId).getChargeBatchSize(), 300);
+    }
+
+    @Test(groups = "fast")
+    public void testPluginTuningUpdateNotifiesListeners() {
+        final MeterTuning tuning = configurationHandler.updatePluginTuning(properties(MeterConfigurationHandler.SCHEDULING_WORKERS, "8"));
+
+        Assert.assertEquals(tuning.getSchedulingWorkers(), 8);
+        // Earlier settings are kept
+        Assert.assertEquals(tuning.getInsertBatchSize(), 500);
+        Assert.assertSame(configurationHandler.getPluginTuning(), tuning);
+        Assert.assertEquals(notified, List.of(tuning));
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidPluginTuningUpdateChangesNothing() {
+        final MeterTuning before = configurationHandler.getPluginTuning();
+        final Properties invalid = properties(MeterConfigurationHandler.SCHEDULING_WORKERS, "8",
+                                              MeterConfigurationHandler.RERATE_PARALLELISM, "0");
+
+        final IllegalArgumentException e = Assert.expectThrows(IllegalArgumentException.class,
+                                                               () -> configurationHandler.updatePluginTuning(invalid));
+        Assert.assertTrue(e.getMessage().startsWith(MeterConfigurationHandler.RERATE_PARALLELISM), e.getMessage());
+
+        Assert.assertSame(configurationHandler.getPluginTuning(), before);
+        Assert.assertTrue(notified.isEmpty());
+    }
+
+    private static Properties properties(final String... keyValues) {
+        final Properties properties = new Properties();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            properties.setProperty(keyValues[i], keyValues[i + 1]);
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.backfill;
+
+import org.killbill.billing.plugin.meter.dao.BackfillQueueDao;
+import org.killbill.billing.plugin.meter.entity.BackfillTask;
+import org.killbill.billing.plugin.meter.exception.ResourceNotFoundException;
+import org.killbill.billing.plugin.meter.service.MeterService;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TestBackfillWorker {
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private BackfillQueueDao backfillQueueDao;
+    private MeterService meterService;
+    private BackfillWorker worker;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        backfillQueueDao = mock(BackfillQueueDao.class);
+        meterService = mock(MeterService.class);
+        worker = new BackfillWorker(backfillQueueDao, meterService, null, 60, MAX_ATTEMPTS);
+    }
+
+    @Test(groups = "fast")
+    public void testCompletesChargedInvoice() {
+        final BackfillTask task = task(1);
+        when(meterService.backFillInvoice("tenant", "invoice")).thenReturn(true);
+
+        worker.process(task);
+
+        verify(backfillQueueDao).complete(task);
+        verify(backfillQueueDao, never()).release(any(), any(), any());
+    }
+
+    @Test(groups = "fast")
+    public void testReleasesFailedInvoiceWithItsError() {
+        final BackfillTask task = task(1);
+        when(meterService.backFillInvoice("tenant", "invoice")).thenThrow(new IllegalStateException("Kill Bill unavailable"));
+
+        worker.process(task);
+
+        verify(backfillQueueDao).release(eq(task), any(), eq("IllegalStateException: Kill Bill unavailable"));
+        verify(backfillQueueDao, never()).bury(any(), any());
+    }
+
+    @Test(groups = "fast")
+    public void testBuriesInvoiceOnItsLastAttempt() {
+        final BackfillTask task = task(MAX_ATTEMPTS);
+        when(meterService.backFillInvoice("tenant", "invoice")).thenReturn(false);
+
+        worker.process(task);
+
+        verify(backfillQueueDao).bury(task, "Charge conflicts persisted");
+        verify(backfillQueueDao, never()).release(any(), any(), any());
+    }
+
+    @Test(groups = "fast")
+    public void testBuriesClaimAbandonedOnItsLastAttempt() {
+        final BackfillTask task = task(MAX_ATTEMPTS + 1);
+
+        worker.process(task);
+
+        verify(backfillQueueDao).bury(eq(task), startsWith("Claim abandoned"));
+        verify(meterService, never()).backFillInvoice(any(), any());
+    }
+
+    @Test(groups = "fast")
+    public void testRequeueOfUnknownDeadLetter() {
+        when(backfillQueueDao.requeue(anyLong(), any())).thenReturn(false);
+
+        Assert.expectThrows(ResourceNotFoundException.class, () -> worker.requeue(7));
+    }
+
+    @Test(groups = "fast")
+    public void testBackoffDoublesUpToTheCap() {
+        Assert.assertEquals(BackfillWorker.backoffSeconds(1), BackfillWorker.INITIAL_BACKOFF_SECONDS);
+        Assert.assertEquals(BackfillWorker.backoffSeconds(3), 4 * BackfillWorker.INITIAL_BACKOFF_SECONDS);
+        Assert.assertEquals(BackfillWorker.backoffSeconds(40), BackfillWorker.MAX_BACKOFF_SECONDS);
+    }
+
+    private static BackfillTask task(final int attempts) {
+        return new BackfillTask().setId(1L)
+                                 .setTenantId("tenant")
+                                 .setInvoiceId("invoice")
+                                 .setStatus(BackfillTask.CLAIMED)
+                                 .setAttempts(attempts)
+                                 .setVersion(attempts);
+    }
+}
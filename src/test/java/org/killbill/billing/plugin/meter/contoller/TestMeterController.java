@@ -0,0 +1,69 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.contoller;
+
+import java.nio.charset.StandardCharsets;
+
+import org.jooby.MediaType;
+import org.jooby.Mutant;
+import org.jooby.Request;
+import org.jooby.Result;
+import org.jooby.Status;
+import org.killbill.billing.plugin.meter.MeterConfigurationHandler;
+import org.killbill.billing.plugin.meter.backfill.BackfillWorker;
+import org.killbill.billing.plugin.meter.dao.ReplicaRouter;
+import org.killbill.billing.plugin.meter.history.UsageHistory;
+import org.killbill.billing.plugin.meter.ingest.AdmissionController;
+import org.killbill.billing.plugin.meter.ingest.UsageRecordCodec;
+import org.killbill.billing.plugin.meter.job.JobManager;
+import org.killbill.billing.plugin.meter.profiling.QueryProfiler;
+import org.killbill.billing.plugin.meter.rerate.RerateEngine;
+import org.killbill.billing.plugin.meter.service.MeterService;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+public class TestMeterController {
+
+    @Test(groups = "fast")
+    public void testMalformedBinaryPayloadIsBadRequest() throws Exception {
+        final MeterService meterService = mock(MeterService.class);
+        final AdmissionController admissionController = mock(AdmissionController.class);
+        final MeterController controller = new MeterController(meterService, mock(QueryProfiler.class), admissionController,
+                                                                mock(UsageHistory.class), mock(ReplicaRouter.class), mock(JobManager.class),
+                                                                mock(RerateEngine.class), mock(MeterConfigurationHandler.class),
+                                                                mock(BackfillWorker.class));
+
+        for (final String contentType : new String[]{UsageRecordCodec.SMILE, UsageRecordCodec.CBOR}) {
+            final Mutant body = mock(Mutant.class);
+            // JSON text cut short, neither a Smile header nor a complete CBOR item
+            when(body.to(byte[].class)).thenReturn("{\"tenantId\":".getBytes(StandardCharsets.UTF_8));
+            final Request request = mock(Request.class);
+            when(request.type()).thenReturn(MediaType.valueOf(contentType));
+            when(request.body()).thenReturn(body);
+
+            final Result result = controller.addRawUsage(request);
+
+            Assert.assertEquals(result.status().orElse(null), Status.BAD_REQUEST, contentType);
+        }
+        verifyNoInteractions(admissionController, meterService);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.dao;
+
+import java.sql.SQLException;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.killbill.billing.plugin.meter.dao.KeyDictionary.Kind;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.Update;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TestKeyDictionary {
+
+    /** Ids the next selects return in turn, null for a value not stored. */
+    private final Deque<Integer> selected = new LinkedList<>();
+    private DBI dbi;
+    private Handle handle;
+    private Update insert;
+    private KeyDictionary keyDictionary;
+
+    @BeforeMethod(groups = "fast")
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        selected.clear();
+        final Query<Map<String, Object>> query = mock(Query.class);
+        final Query<Integer> ids = mock(Query.class);
+        when(query.bind(anyString(), anyInt())).thenReturn(query);
+        when(query.bind(anyString(), anyString())).thenReturn(query);
+        when(query.mapTo(Integer.class)).thenReturn(ids);
+        when(ids.first()).thenAnswer(invocation -> selected.poll());
+        insert = mock(Update.class);
+        when(insert.bind(anyString(), anyInt())).thenReturn(insert);
+        when(insert.bind(anyString(), anyString())).thenReturn(insert);
+        handle = mock(Handle.class);
+        when(handle.createQuery(anyString())).thenReturn(query);
+        when(handle.createStatement(anyString())).thenReturn(insert);
+        dbi = mock(DBI.class);
+        when(dbi.open()).thenReturn(handle);
+        keyDictionary = new KeyDictionary(dbi);
+    }
+
+    @Test(groups = "fast")
+    public void testFindCachesStoredValues() {
+        selected.add(3);
+
+        Assert.assertEquals(keyDictionary.find(handle, Kind.UNIT, "api"), Integer.valueOf(3));
+        Assert.assertEquals(keyDictionary.find(handle, Kind.UNIT, "api"), Integer.valueOf(3));
+        verify(handle, times(1)).createQuery(anyString());
+    }
+
+    @Test(groups = "fast")
+    public void testFindDoesNotCacheMissingValues() {
+        Assert.assertNull(keyDictionary.find(handle, Kind.UNIT, "api"));
+        selected.add(3);
+
+        Assert.assertEquals(keyDictionary.find(handle, Kind.UNIT, "api"), Integer.valueOf(3));
+        verify(handle, never()).createStatement(anyString());
+    }
+
+    @Test(groups = "fast")
+    public void testKindsAreCachedSeparately() {
+        selected.add(1);
+        selected.add(2);
+
+        Assert.assertEquals(keyDictionary.find(handle, Kind.SUBSCRIPTION, "value"), Integer.valueOf(1));
+        Assert.assertEquals(keyDictionary.find(handle, Kind.UNIT, "value"), Integer.valueOf(2));
+        Assert.assertEquals(keyDictionary.find(handle, Kind.SUBSCRIPTION, "value"), Integer.valueOf(1));
+    }
+
+    @Test(groups = "fast")
+    public void testResolveStoredValueIsNotAdded() {
+        selected.add(5);
+
+        Assert.assertEquals(keyDictionary.resolve(Kind.SUBSCRIPTION, "subscription"), 5);
+        verify(handle, never()).createStatement(anyString());
+    }
+
+    @Test(groups = "fast")
+    public void testResolveAddsNewValueOnce() {
+        selected.add(null);
+        selected.add(7);
+
+        Assert.assertEquals(keyDictionary.resolve(Kind.SUBSCRIPTION, "subscription"), 7);
+        Assert.assertEquals(keyDictionary.resolve(Kind.SUBSCRIPTION, "subscription"), 7);
+        Assert.assertEquals(keyDictionary.find(handle, Kind.SUBSCRIPTION, "subscription"), Integer.valueOf(7));
+        verify(insert, times(1)).execute();
+        verify(insert).bind("value", "subscription");
+        verify(dbi, times(1)).open();
+    }
+
+    @Test(groups = "fast")
+    public void testResolveValueAddedInTheMeantime() {
+        selected.add(null);
+        selected.add(9);
+        when(insert.execute()).thenThrow(new UnableToExecuteStatementException(new SQLException("Duplicate entry", "23000"), null));
+
+        Assert.assertEquals(keyDictionary.resolve(Kind.UNIT, "api"), 9);
+    }
+
+    @Test(groups = "fast")
+    public void testResolveRethrowsOtherFailures() {
+        selected.add(null);
+        when(insert.execute()).thenThrow(new UnableToExecuteStatementException(new SQLException("Table doesn't exist", "42S02"), null));
+
+        Assert.expectThrows(UnableToExecuteStatementException.class, () -> keyDictionary.resolve(Kind.UNIT, "api"));
+        selected.add(4);
+        Assert.assertEquals(keyDictionary.find(handle, Kind.UNIT, "api"), Integer.valueOf(4));
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.dao;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.Update;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TestReplicaRouter {
+
+    /** Pipeline write counts per node, as published with the heartbeats on the primary and as replicated so far. */
+    private final Map<String, Long> primaryWrites = new HashMap<>();
+    private final Map<String, Long> replicaWrites = new HashMap<>();
+    /** The last heartbeat stamped on the primary. */
+    private long stamped;
+    /** The heartbeat the replica has, null when it caught up with the last stamp. */
+    private Long replicaBeat;
+    private DBI primary;
+    private DBI replica;
+
+    @BeforeMethod(groups = "fast")
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        primaryWrites.clear();
+        replicaWrites.clear();
+        stamped = 0;
+        replicaBeat = null;
+
+        final Update update = mock(Update.class);
+        when(update.bind(anyString(), anyLong())).thenAnswer(invocation -> {
+            if ("beatMillis".equals(invocation.getArgument(0))) {
+                stamped = invocation.getArgument(1);
+            }
+            return update;
+        });
+        when(update.bind(anyString(), anyString())).thenReturn(update);
+        when(update.execute()).thenReturn(1);
+        final Query<Map<String, Object>> primaryWritesQuery = pipelineWrites(primaryWrites);
+        final Handle primaryHandle = mock(Handle.class);
+        when(primaryHandle.createStatement(anyString())).thenReturn(update);
+        when(primaryHandle.createQuery(startsWith("SELECT node_id"))).thenReturn(primaryWritesQuery);
+        primary = mock(DBI.class);
+        when(primary.open()).thenReturn(primaryHandle);
+
+        final Query<Map<String, Object>> beatQuery = mock(Query.class);
+        final Query<Long> beat = mock(Query.class);
+        when(beatQuery.bind(eq("nodeId"), anyString())).thenReturn(beatQuery);
+        when(beatQuery.mapTo(Long.class)).thenReturn(beat);
+        when(beat.first()).thenAnswer(invocation -> replicaBeat == null ? stamped : replicaBeat);
+        final Query<Map<String, Object>> replicaWritesQuery = pipelineWrites(replicaWrites);
+        final Handle replicaHandle = mock(Handle.class);
+        when(replicaHandle.createQuery(startsWith("SELECT beat_millis"))).thenReturn(beatQuery);
+        when(replicaHandle.createQuery(startsWith("SELECT node_id"))).thenReturn(replicaWritesQuery);
+        replica = mock(DBI.class);
+        when(replica.open()).thenReturn(replicaHandle);
+    }
+
+    @Test(groups = "fast")
+    public void testEveryReadGoesToThePrimaryBeforeTheFirstHeartbeat() {
+        final ReplicaRouter router = router(60_000);
+
+        for (final ReadRoute route : ReadRoute.values()) {
+            Assert.assertFalse(router.useReplica(route), route.name());
+        }
+        Assert.assertEquals(router.getStats().getLagMillis(), -1);
+    }
+
+    @Test(groups = "fast")
+    public void testReplicaBehindTheWritesOfThisNode() throws InterruptedException {
+        final ReplicaRouter router = router(60_000);
+        router.heartbeat();
+        Assert.assertTrue(router.useReplica(ReadRoute.SCAN));
+        Assert.assertTrue(router.useReplica(ReadRoute.LOOKUP));
+
+        router.pipelineWritten();
+
+        // Within the lag budget, but the replica has not seen a heartbeat stamped after the write yet
+        Assert.assertFalse(router.useReplica(ReadRoute.SCAN));
+        Assert.assertFalse(router.useReplica(ReadRoute.LOOKUP));
+        Assert.assertTrue(router.useReplica(ReadRoute.REPORT));
+
+        replicaBeat = stamped;
+        Thread.sleep(2);
+        router.heartbeat();
+        Assert.assertFalse(router.useReplica(ReadRoute.SCAN));
+
+        replicaBeat = null;
+        router.heartbeat();
+        Assert.assertTrue(router.useReplica(ReadRoute.SCAN));
+        Assert.assertTrue(router.useReplica(ReadRoute.LOOKUP));
+
+        final ReplicaStats stats = router.getStats();
+        Assert.assertEquals((long) stats.getPrimaryReads().get("scan"), 2);
+        Assert.assertEquals((long) stats.getReplicaReads().get("scan"), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testReplicaBehindTheWritesOfAnotherNode() {
+        final ReplicaRouter router = router(60_000);
+        primaryWrites.put("other-node", 5L);
+        replicaWrites.put("other-node", 4L);
+        router.heartbeat();
+
+        Assert.assertFalse(router.useReplica(ReadRoute.SCAN));
+        Assert.assertFalse(router.useReplica(ReadRoute.LOOKUP));
+        Assert.assertTrue(router.useReplica(ReadRoute.REPORT));
+
+        replicaWrites.put("other-node", 5L);
+        // A node that stopped is gone from the primary but may linger on the replica
+        replicaWrites.put("stopped-node", 9L);
+        router.heartbeat();
+
+        Assert.assertTrue(router.useReplica(ReadRoute.SCAN));
+        Assert.assertTrue(router.useReplica(ReadRoute.LOOKUP));
+    }
+
+    @Test(groups = "fast")
+    public void testStaleHeartbeatFallsBackToThePrimary() {
+        final ReplicaRouter router = router(1_000);
+        replicaBeat = System.currentTimeMillis() - 10_000;
+        router.heartbeat();
+
+        for (final ReadRoute route : ReadRoute.values()) {
+            Assert.assertFalse(router.useReplica(route), route.name());
+        }
+        Assert.assertTrue(router.getStats().getLagMillis() >= 10_000);
+
+        replicaBeat = null;
+        router.heartbeat();
+        Assert.assertTrue(router.useReplica(ReadRoute.SCAN));
+    }
+
+    @Test(groups = "fast")
+    public void testFailingHeartbeatsLetTheLastStampAge() throws InterruptedException {
+        final ReplicaRouter router = router(50);
+        router.heartbeat();
+        Assert.assertTrue(router.useReplica(ReadRoute.REPORT));
+
+        when(replica.open()).thenThrow(new IllegalStateException("Replica unreachable"));
+        Thread.sleep(80);
+        router.heartbeat();
+
+        for (final ReadRoute route : ReadRoute.values()) {
+            Assert.assertFalse(router.useReplica(route), route.name());
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testNegativeBudgetKeepsTheRouteOnThePrimary() {
+        final Map<ReadRoute, Long> maxLagMillis = new EnumMap<>(ReadRoute.class);
+        maxLagMillis.put(ReadRoute.SCAN, -1L);
+        maxLagMillis.put(ReadRoute.REPORT, 60_000L);
+        final ReplicaRouter router = new ReplicaRouter(primary, null, replica, maxLagMillis, 1_000);
+        router.heartbeat();
+
+        Assert.assertFalse(router.useReplica(ReadRoute.SCAN));
+        // No budget configured at all
+        Assert.assertFalse(router.useReplica(ReadRoute.LOOKUP));
+        Assert.assertTrue(router.useReplica(ReadRoute.REPORT));
+    }
+
+    private ReplicaRouter router(final long maxLagMillis) {
+        final Map<ReadRoute, Long> budgets = new EnumMap<>(ReadRoute.class);
+        for (final ReadRoute route : ReadRoute.values()) {
+            budgets.put(route, maxLagMillis);
+        }
+        return new ReplicaRouter(primary, null, replica, budgets, 1_000);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Query<Map<String, Object>> pipelineWrites(final Map<String, Long> writes) {
+        final Query<Map<String, Object>> query = mock(Query.class);
+        final Query mapped = mock(Query.class);
+        when(query.map(any(ResultSetMapper.class))).thenReturn(mapped);
+        when(mapped.list()).thenAnswer(invocation -> List.copyOf(writes.entrySet()));
+        return query;
+    }
+}
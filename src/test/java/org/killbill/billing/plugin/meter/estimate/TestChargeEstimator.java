@@ -0,0 +1,208 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.estimate;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.catalog.api.BillingMode;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.catalog.api.InternationalPrice;
+import org.killbill.billing.catalog.api.PlanPhase;
+import org.killbill.billing.catalog.api.Tier;
+import org.killbill.billing.catalog.api.TierBlockPolicy;
+import org.killbill.billing.catalog.api.TieredBlock;
+import org.killbill.billing.catalog.api.Unit;
+import org.killbill.billing.catalog.api.Usage;
+import org.killbill.billing.entitlement.api.Subscription;
+import org.killbill.billing.plugin.meter.dao.RawUsageDao;
+import org.killbill.billing.plugin.meter.entity.RawUsage;
+import org.killbill.billing.plugin.meter.resilience.ResilientKillbill;
+import org.killbill.billing.plugin.meter.tuning.MeterTuning;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TestChargeEstimator {
+
+    private static final String TENANT_ID = UUID.randomUUID().toString();
+    private static final String SUBSCRIPTION_ID = "subscription";
+
+    private RawUsageDao rawUsageDao;
+    private ResilientKillbill resilientKillbill;
+    private ChargeEstimator chargeEstimator;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        rawUsageDao = mock(RawUsageDao.class);
+        // 50 stored before this node counted any
+        when(rawUsageDao.getUsageTotal(any(), any(), any(), any(), any())).thenReturn(new BigDecimal("50"));
+
+        // 1 per unit up to 100, then 2 per unit
+        final Tier[] tiers = {tier("100", "1"), tier("-1", "2")};
+        final Usage usage = mock(Usage.class);
+        when(usage.getBillingMode()).thenReturn(BillingMode.IN_ARREAR);
+        when(usage.getTierBlockPolicy()).thenReturn(TierBlockPolicy.ALL_TIERS);
+        when(usage.getTiers()).thenReturn(tiers);
+        final PlanPhase phase = mock(PlanPhase.class);
+        when(phase.getUsages()).thenReturn(new Usage[]{usage});
+        final UUID accountId = UUID.randomUUID();
+        final Subscription subscription = mock(Subscription.class);
+        when(subscription.getAccountId()).thenReturn(accountId);
+        when(subscription.getLastActivePhase()).thenReturn(phase);
+        final Account account = mock(Account.class);
+        when(account.getCurrency()).thenReturn(Currency.USD);
+        resilientKillbill = mock(ResilientKillbill.class);
+        when(resilientKillbill.getSubscriptionForExternalKey(eq(SUBSCRIPTION_ID), any())).thenReturn(subscription);
+        when(resilientKillbill.getAccountById(eq(accountId), any())).thenReturn(account);
+
+        chargeEstimator = estimator(MeterTuning.DEFAULT);
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() {
+        chargeEstimator.shutdown();
+    }
+
+    @Test(groups = "fast")
+    public void testEstimateFromSeededPosition() {
+        final DateTime now = DateTime.now(DateTimeZone.UTC);
+        chargeEstimator.record(rawUsage("first", "api", now, "40"));
+        chargeEstimator.record(rawUsage("second", "api", now, "20"));
+
+        assertEstimate(chargeEstimator.estimate(TENANT_ID, SUBSCRIPTION_ID, "api", "first"), "40", 1);
+        // 10 at 1 and 10 at 2 after the 90 counted so far
+        assertEstimate(chargeEstimator.estimate(TENANT_ID, SUBSCRIPTION_ID, "api", "second"), "30", 2);
+        verify(rawUsageDao, times(1)).getUsageTotal(any(), any(), any(), any(), any());
+    }
+
+    @Test(groups = "fast")
+    public void testRecordsOfOneTransactionAreEstimatedTogether() {
+        final DateTime now = DateTime.now(DateTimeZone.UTC);
+        chargeEstimator.record(rawUsage("transaction", "api", now, "40"));
+        chargeEstimator.record(rawUsage("transaction", "api", now, "20"));
+
+        assertEstimate(chargeEstimator.estimate(TENANT_ID, SUBSCRIPTION_ID, "api", "transaction"), "70", 2);
+    }
+
+    @Test(groups = "fast")
+    public void testForgetTakesBackTheAmount() {
+        final DateTime now = DateTime.now(DateTimeZone.UTC);
+        final RawUsage failed = rawUsage("failed", "api", now, "40");
+        chargeEstimator.record(failed);
+        chargeEstimator.forget(failed);
+        chargeEstimator.record(rawUsage("stored", "api", now, "20"));
+
+        Assert.assertNull(chargeEstimator.estimate(TENANT_ID, SUBSCRIPTION_ID, "api", "failed"));
+        assertEstimate(chargeEstimator.estimate(TENANT_ID, SUBSCRIPTION_ID, "api", "stored"), "20", 1);
+    }
+
+    @Test(groups = "fast")
+    public void testEarlierPeriodIsNotEstimated() {
+        final DateTime now = DateTime.now(DateTimeZone.UTC);
+        chargeEstimator.record(rawUsage("current", "api", now, "10"));
+        chargeEstimator.record(rawUsage("late", "api", now.minusMonths(1), "10"));
+
+        Assert.assertNotNull(chargeEstimator.estimate(TENANT_ID, SUBSCRIPTION_ID, "api", "current"));
+        Assert.assertNull(chargeEstimator.estimate(TENANT_ID, SUBSCRIPTION_ID, "api", "late"));
+    }
+
+    @Test(groups = "fast")
+    public void testSettledDropsTheEstimate() {
+        chargeEstimator.record(rawUsage("transaction", "api", DateTime.now(DateTimeZone.UTC), "10"));
+
+        chargeEstimator.settled(TENANT_ID, SUBSCRIPTION_ID, "api", "transaction");
+
+        Assert.assertNull(chargeEstimator.estimate(TENANT_ID, SUBSCRIPTION_ID, "api", "transaction"));
+    }
+
+    @Test(groups = "fast")
+    public void testUnitWithoutScheduleIsNotEstimated() {
+        chargeEstimator.record(rawUsage("transaction", "sms", DateTime.now(DateTimeZone.UTC), "10"));
+
+        Assert.assertNull(chargeEstimator.estimate(TENANT_ID, SUBSCRIPTION_ID, "sms", "transaction"));
+    }
+
+    @Test(groups = "fast")
+    public void testDroppedWarmUpIsCountedAndLoadedOnLookup() {
+        chargeEstimator.shutdown();
+
+        chargeEstimator.record(rawUsage("transaction", "api", DateTime.now(DateTimeZone.UTC), "10"));
+
+        Assert.assertEquals(chargeEstimator.getDroppedWarmUps(), 1);
+        assertEstimate(chargeEstimator.estimate(TENANT_ID, SUBSCRIPTION_ID, "api", "transaction"), "10", 1);
+    }
+
+    @Test(groups = "fast")
+    public void testExpiredScheduleIsKeptWhileKillbillIsUnavailable() throws Exception {
+        chargeEstimator.shutdown();
+        // Expires at once, every lookup reloads it
+        chargeEstimator = estimator(new MeterTuning(1000, 1000, 1000, 0, 4, 2, 4, 10));
+        chargeEstimator.record(rawUsage("transaction", "api", DateTime.now(DateTimeZone.UTC), "10"));
+        assertEstimate(chargeEstimator.estimate(TENANT_ID, SUBSCRIPTION_ID, "api", "transaction"), "10", 1);
+
+        when(resilientKillbill.getSubscriptionForExternalKey(eq(SUBSCRIPTION_ID), any())).thenThrow(new IllegalStateException("Kill Bill unavailable"));
+
+        assertEstimate(chargeEstimator.estimate(TENANT_ID, SUBSCRIPTION_ID, "api", "transaction"), "10", 1);
+    }
+
+    private ChargeEstimator estimator(final MeterTuning tuning) {
+        return new ChargeEstimator(rawUsageDao, resilientKillbill, EstimationPeriod.MONTH, tenantId -> tuning, 100);
+    }
+
+    private static void assertEstimate(final ChargeEstimate estimate, final String charges, final int tier) {
+        Assert.assertNotNull(estimate);
+        Assert.assertEquals(estimate.getCharges().compareTo(new BigDecimal(charges)), 0, "charges " + estimate.getCharges());
+        Assert.assertEquals(estimate.getTier(), tier);
+    }
+
+    private static RawUsage rawUsage(final String trackingId, final String unitType, final DateTime recordDate, final String amount) {
+        return new RawUsage().setTenantId(TENANT_ID)
+                             .setSubscriptionId(SUBSCRIPTION_ID)
+                             .setTrackingId(trackingId)
+                             .setUnitType(unitType)
+                             .setRecordDate(recordDate)
+                             .setAmount(new BigDecimal(amount));
+    }
+
+    private static Tier tier(final String max, final String price) throws Exception {
+        final Unit unit = mock(Unit.class);
+        when(unit.getName()).thenReturn("api");
+        final InternationalPrice internationalPrice = mock(InternationalPrice.class);
+        when(internationalPrice.getPrice(Currency.USD)).thenReturn(new BigDecimal(price));
+        final TieredBlock block = mock(TieredBlock.class);
+        when(block.getUnit()).thenReturn(unit);
+        when(block.getMax()).thenReturn(new BigDecimal(max));
+        when(block.getSize()).thenReturn(BigDecimal.ONE);
+        when(block.getPrice()).thenReturn(internationalPrice);
+        final Tier tier = mock(Tier.class);
+        when(tier.getTieredBlocks()).thenReturn(new TieredBlock[]{block});
+        return tier;
+    }
+}
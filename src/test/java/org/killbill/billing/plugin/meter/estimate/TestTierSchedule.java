@@ -0,0 +1,133 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.estimate;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import org.killbill.billing.catalog.api.BillingMode;
+import org.killbill.billing.catalog.api.CatalogApiException;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.catalog.api.InternationalPrice;
+import org.killbill.billing.catalog.api.Tier;
+import org.killbill.billing.catalog.api.TierBlockPolicy;
+import org.killbill.billing.catalog.api.TieredBlock;
+import org.killbill.billing.catalog.api.Unit;
+import org.killbill.billing.catalog.api.Usage;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TestTierSchedule {
+
+    // 1 per unit up to 100, 2 per block of 10 up to 300, then 0.1 per unit
+    private static final List<TierSchedule.Step> STEPS = List.of(new TierSchedule.Step(1, new BigDecimal("1"), BigDecimal.ONE, new BigDecimal("100")),
+                                                                 new TierSchedule.Step(2, new BigDecimal("2"), BigDecimal.TEN, new BigDecimal("300")),
+                                                                 new TierSchedule.Step(3, new BigDecimal("0.1"), BigDecimal.ONE, null));
+
+    @Test(groups = "fast")
+    public void testWithinOneTier() {
+        final TierSchedule schedule = new TierSchedule("api", false, STEPS);
+
+        assertEstimate(schedule.estimate(new BigDecimal("10"), new BigDecimal("20")), "20", 1);
+        assertEstimate(schedule.estimate(BigDecimal.ZERO, new BigDecimal("100")), "100", 1);
+    }
+
+    @Test(groups = "fast")
+    public void testAllTiersChargesEachPartAtItsPrice() {
+        final TierSchedule schedule = new TierSchedule("api", false, STEPS);
+
+        // 10 at 1 and 10 at 2 per block of 10
+        assertEstimate(schedule.estimate(new BigDecimal("90"), new BigDecimal("20")), "12", 2);
+        // 10 at 1, 200 at 2 per block of 10 and 40 at 0.1
+        assertEstimate(schedule.estimate(new BigDecimal("90"), new BigDecimal("250")), "54", 3);
+    }
+
+    @Test(groups = "fast")
+    public void testUnboundedLastTier() {
+        final TierSchedule schedule = new TierSchedule("api", false, STEPS);
+
+        assertEstimate(schedule.estimate(new BigDecimal("1000000"), new BigDecimal("50")), "5", 3);
+    }
+
+    @Test(groups = "fast")
+    public void testTopTierChargesAllAtTheReachedTier() {
+        final TierSchedule schedule = new TierSchedule("api", true, STEPS);
+
+        assertEstimate(schedule.estimate(new BigDecimal("90"), new BigDecimal("20")), "4", 2);
+        assertEstimate(schedule.estimate(new BigDecimal("90"), new BigDecimal("250")), "25", 3);
+    }
+
+    @Test(groups = "fast")
+    public void testFromUsagesReadsTheUnitsBlocks() throws CatalogApiException {
+        final Usage inAdvance = usage(BillingMode.IN_ADVANCE, TierBlockPolicy.ALL_TIERS, tier(block("api", "100", "1", "5")));
+        final Usage inArrear = usage(BillingMode.IN_ARREAR, TierBlockPolicy.ALL_TIERS,
+                                     tier(block("sms", "10", "1", "3"), block("api", "100", "1", "1")),
+                                     tier(block("api", "-1", "10", "2")));
+
+        final TierSchedule schedule = TierSchedule.fromUsages(new Usage[]{inAdvance, inArrear}, "api", Currency.USD);
+
+        Assert.assertNotNull(schedule);
+        Assert.assertEquals(schedule.getUnitType(), "api");
+        assertEstimate(schedule.estimate(new BigDecimal("90"), new BigDecimal("20")), "12", 2);
+        // A negative max is unlimited
+        assertEstimate(schedule.estimate(new BigDecimal("1000000"), new BigDecimal("10")), "2", 2);
+    }
+
+    @Test(groups = "fast")
+    public void testFromUsagesWithoutTheUnit() throws CatalogApiException {
+        final Usage usage = usage(BillingMode.IN_ARREAR, TierBlockPolicy.TOP_TIER, tier(block("sms", "10", "1", "3")));
+
+        Assert.assertNull(TierSchedule.fromUsages(new Usage[]{usage}, "api", Currency.USD));
+        Assert.assertNull(TierSchedule.fromUsages(null, "api", Currency.USD));
+    }
+
+    private static void assertEstimate(final ChargeEstimate estimate, final String charges, final int tier) {
+        Assert.assertEquals(estimate.getCharges().compareTo(new BigDecimal(charges)), 0, "charges " + estimate.getCharges());
+        Assert.assertEquals(estimate.getTier(), tier);
+    }
+
+    private static Usage usage(final BillingMode billingMode, final TierBlockPolicy policy, final Tier... tiers) {
+        final Usage usage = mock(Usage.class);
+        when(usage.getBillingMode()).thenReturn(billingMode);
+        when(usage.getTierBlockPolicy()).thenReturn(policy);
+        when(usage.getTiers()).thenReturn(tiers);
+        return usage;
+    }
+
+    private static Tier tier(final TieredBlock... blocks) {
+        final Tier tier = mock(Tier.class);
+        when(tier.getTieredBlocks()).thenReturn(blocks);
+        return tier;
+    }
+
+    private static TieredBlock block(final String unitType, final String max, final String size, final String price) throws CatalogApiException {
+        final Unit unit = mock(Unit.class);
+        when(unit.getName()).thenReturn(unitType);
+        final InternationalPrice internationalPrice = mock(InternationalPrice.class);
+        when(internationalPrice.getPrice(Currency.USD)).thenReturn(new BigDecimal(price));
+        final TieredBlock block = mock(TieredBlock.class);
+        when(block.getUnit()).thenReturn(unit);
+        when(block.getMax()).thenReturn(new BigDecimal(max));
+        when(block.getSize()).thenReturn(new BigDecimal(size));
+        when(block.getPrice()).thenReturn(internationalPrice);
+        return block;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.history;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.meter.dao.RawUsageDao;
+import org.killbill.billing.plugin.meter.dto.DailyUsage;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TestHistoryCompactor {
+
+    private static final int SETTLE_DAYS = 3;
+
+    private final LocalDate cutoff = new LocalDate(DateTimeZone.UTC).minusDays(SETTLE_DAYS);
+    private Path directory;
+    private RawUsageDao rawUsageDao;
+    private long chargeRevision;
+    private BigDecimal charges;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("usage-history");
+        chargeRevision = 1;
+        charges = BigDecimal.ONE;
+        rawUsageDao = mock(RawUsageDao.class);
+        when(rawUsageDao.getChargeRevision(any(), any())).thenAnswer(invocation -> chargeRevision);
+        when(rawUsageDao.getDailyChargedUsage(any(), any())).thenAnswer(invocation -> usage(invocation.getArgument(0)));
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws IOException {
+        try (final Stream<Path> files = Files.walk(directory)) {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testCompactsSettledDaysOnce() throws IOException {
+        final UsageHistory history = new UsageHistory(directory);
+        final HistoryCompactor compactor = new HistoryCompactor(rawUsageDao, history, SETTLE_DAYS, 40, 62);
+
+        Assert.assertEquals(compactor.compact(), 2);
+        Assert.assertEquals(history.getSegments().get(0).getFromDay(), cutoff.minusDays(40));
+        Assert.assertEquals(history.getCompactedThrough(), cutoff.minusDays(1));
+        Assert.assertEquals(compactor.compact(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testCompactsRecentSegmentsAgainForLateCharges() throws IOException {
+        final UsageHistory history = new UsageHistory(directory);
+        final HistoryCompactor compactor = new HistoryCompactor(rawUsageDao, history, SETTLE_DAYS, 40, 10);
+        compactor.compact();
+
+        chargeRevision = 2;
+        charges = BigDecimal.TEN;
+
+        // Only the segment ending within the last 10 days is checked
+        Assert.assertEquals(compactor.compact(), 1);
+        final List<Segment> segments = history.getSegments();
+        Assert.assertEquals(segments.get(0).getChargeRevision(), 1L);
+        Assert.assertEquals(segments.get(1).getChargeRevision(), 2L);
+        Assert.assertEquals(history.query("tenant", null, null, cutoff.minusDays(9), cutoff.minusDays(9)).get(0).getCharges(),
+                            new BigDecimal("10.000000"));
+        Assert.assertEquals(compactor.compact(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testCompactsDaysOfAnUnreadableSegmentAgain() throws IOException {
+        new HistoryCompactor(rawUsageDao, new UsageHistory(directory), SETTLE_DAYS, 70, 62).compact();
+        final Path middle = directory.resolve("usage-" + cutoff.minusDays(39) + "-" + cutoff.minusDays(9) + Segment.SUFFIX);
+        Files.write(middle, new byte[]{1, 2, 3});
+
+        final UsageHistory history = new UsageHistory(directory);
+        Assert.assertEquals(history.getSegments().size(), 2);
+
+        Assert.assertEquals(new HistoryCompactor(rawUsageDao, history, SETTLE_DAYS, 70, 62).compact(), 1);
+        Assert.assertEquals(history.getSegments().size(), 3);
+        Assert.assertEquals(history.query("tenant", null, null, cutoff.minusDays(39), cutoff.minusDays(39)).size(), 1);
+    }
+
+    private List<DailyUsage> usage(final DateTime from) {
+        return List.of(new DailyUsage().setTenantId("tenant")
+                                       .setSubscriptionId("subscription")
+                                       .setUnitType("unit")
+                                       .setDay(from.toLocalDate().toString())
+                                       .setAmount(BigDecimal.ONE)
+                                       .setCharges(charges)
+                                       .setRecords(1));
+    }
+}
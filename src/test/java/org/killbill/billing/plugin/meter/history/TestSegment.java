@@ -0,0 +1,193 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.history;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.meter.dto.DailyUsage;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestSegment {
+
+    private static final LocalDate FROM = new LocalDate(2024, 1, 1);
+    private static final LocalDate TO = new LocalDate(2024, 1, 31);
+
+    private Path directory;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("usage-history");
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws IOException {
+        try (final Stream<Path> files = Files.walk(directory)) {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testRoundTripAcrossBlocks() throws IOException {
+        final List<DailyUsage> rows = rows();
+        final Path file = directory.resolve("usage" + Segment.SUFFIX);
+        SegmentWriter.write(file, FROM, TO, 42, rows);
+
+        final Segment segment = Segment.open(file);
+        Assert.assertEquals(segment.getRows(), rows.size());
+        Assert.assertTrue(Segment.blocks(rows.size()) > 2);
+        Assert.assertEquals(segment.getFromDay(), FROM);
+        Assert.assertEquals(segment.getToDay(), TO);
+        Assert.assertEquals(segment.getChargeRevision(), 42L);
+        // Ids and days take a byte or two per row instead of 36 bytes of fixed-width columns
+        Assert.assertTrue(Files.size(file) < rows.size() * 16L, "segment of " + Files.size(file) + " bytes");
+
+        for (final String tenantId : new String[]{"tenant-0", "tenant-1", "tenant-2"}) {
+            assertScan(segment, rows, tenantId, null, null, FROM, TO);
+            assertScan(segment, rows, tenantId, "subscription-13", null, FROM, TO);
+            assertScan(segment, rows, tenantId, "subscription-7", "unit-b", FROM.plusDays(3), FROM.plusDays(9));
+            assertScan(segment, rows, tenantId, null, "unit-a", TO, TO);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testScanMissesUnknownValuesAndDays() throws IOException {
+        final List<DailyUsage> rows = rows();
+        final Path file = directory.resolve("usage" + Segment.SUFFIX);
+        SegmentWriter.write(file, FROM, TO, 0, rows);
+        final Segment segment = Segment.open(file);
+
+        Assert.assertTrue(scan(segment, "tenant-9", null, null, FROM, TO).isEmpty());
+        Assert.assertTrue(scan(segment, "tenant-0", "subscription-99", null, FROM, TO).isEmpty());
+        Assert.assertTrue(scan(segment, "tenant-0", null, "unit-z", FROM, TO).isEmpty());
+        Assert.assertTrue(scan(segment, "tenant-0", null, null, TO.plusDays(1), TO.plusDays(5)).isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testRoundTripOfEmptySegment() throws IOException {
+        final Path file = directory.resolve("usage" + Segment.SUFFIX);
+        SegmentWriter.write(file, FROM, TO, 0, new ArrayList<>());
+
+        final Segment segment = Segment.open(file);
+        Assert.assertEquals(segment.getRows(), 0);
+        Assert.assertEquals(segment.getToDay(), TO);
+        Assert.assertTrue(scan(segment, "tenant-0", null, null, FROM, TO).isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testKeepsSignAndScale() throws IOException {
+        final List<DailyUsage> rows = new ArrayList<>();
+        rows.add(usage("tenant-0", "subscription-0", "unit-a", FROM, "-1.5", null, 1));
+        rows.add(usage("tenant-0", "subscription-0", "unit-a", FROM.plusDays(1), "123456789.1234567", "0.000001", Integer.MAX_VALUE));
+        final Path file = directory.resolve("usage" + Segment.SUFFIX);
+        SegmentWriter.write(file, FROM, TO, 0, rows);
+
+        final List<DailyUsage> scanned = scan(Segment.open(file), "tenant-0", null, null, FROM, TO);
+        Assert.assertEquals(scanned.get(0).getAmount(), new BigDecimal("-1.500000"));
+        Assert.assertEquals(scanned.get(0).getCharges(), new BigDecimal("0.000000"));
+        Assert.assertEquals(scanned.get(1).getAmount(), new BigDecimal("123456789.123457"));
+        Assert.assertEquals(scanned.get(1).getCharges(), new BigDecimal("0.000001"));
+        Assert.assertEquals(scanned.get(1).getRecords(), (long) Integer.MAX_VALUE);
+    }
+
+    @Test(groups = "fast")
+    public void testRejectsTruncatedSegment() throws IOException {
+        final Path file = directory.resolve("usage" + Segment.SUFFIX);
+        SegmentWriter.write(file, FROM, TO, 0, rows());
+        final byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length / 2));
+
+        Assert.expectThrows(IOException.class, () -> Segment.open(file));
+    }
+
+    @Test(groups = "fast")
+    public void testRejectsOtherFiles() throws IOException {
+        final Path file = directory.resolve("usage" + Segment.SUFFIX);
+        Files.write(file, new byte[]{1, 2, 3});
+
+        Assert.expectThrows(IOException.class, () -> Segment.open(file));
+    }
+
+    private static void assertScan(final Segment segment, final List<DailyUsage> rows, final String tenantId, final String subscriptionId,
+                                   final String unitType, final LocalDate from, final LocalDate to) {
+        final List<DailyUsage> expected = rows.stream()
+                                              .filter(row -> row.getTenantId().equals(tenantId))
+                                              .filter(row -> subscriptionId == null || row.getSubscriptionId().equals(subscriptionId))
+                                              .filter(row -> unitType == null || row.getUnitType().equals(unitType))
+                                              .filter(row -> !LocalDate.parse(row.getDay()).isBefore(from) && !LocalDate.parse(row.getDay()).isAfter(to))
+                                              .sorted(Comparator.comparing(DailyUsage::getSubscriptionId)
+                                                                .thenComparing(DailyUsage::getUnitType)
+                                                                .thenComparing(DailyUsage::getDay))
+                                              .collect(Collectors.toList());
+        Assert.assertFalse(expected.isEmpty());
+        Assert.assertEquals(scan(segment, tenantId, subscriptionId, unitType, from, to), expected);
+    }
+
+    private static List<DailyUsage> scan(final Segment segment, final String tenantId, final String subscriptionId, final String unitType,
+                                         final LocalDate from, final LocalDate to) {
+        final HistoryAggregate aggregate = new HistoryAggregate();
+        segment.scan(tenantId, subscriptionId, unitType, Segment.epochDay(from), Segment.epochDay(to), aggregate);
+        return aggregate.toDailyUsage(tenantId);
+    }
+
+    private static List<DailyUsage> rows() {
+        // Shuffled, so the writer has to sort them
+        final Random random = new Random(7);
+        final List<DailyUsage> rows = new ArrayList<>();
+        for (int tenant = 0; tenant < 3; tenant++) {
+            for (int subscription = 0; subscription < 20; subscription++) {
+                for (final String unit : new String[]{"unit-a", "unit-b"}) {
+                    for (LocalDate day = FROM; !day.isAfter(TO); day = day.plusDays(1)) {
+                        final BigDecimal amount = BigDecimal.valueOf(random.nextInt(2_000_000) - 1_000_000, 6);
+                        rows.add(usage("tenant-" + tenant, "subscription-" + subscription, unit, day,
+                                       amount.toPlainString(), amount.abs().add(BigDecimal.ONE).toPlainString(), 1 + random.nextInt(500)));
+                    }
+                }
+            }
+        }
+        Collections.shuffle(rows, random);
+        return rows;
+    }
+
+    private static DailyUsage usage(final String tenantId, final String subscriptionId, final String unitType, final LocalDate day,
+                                    final String amount, final String charges, final long records) {
+        return new DailyUsage().setTenantId(tenantId)
+                               .setSubscriptionId(subscriptionId)
+                               .setUnitType(unitType)
+                               .setDay(day.toString())
+                               .setAmount(new BigDecimal(amount))
+                               .setCharges(charges == null ? null : new BigDecimal(charges))
+                               .setRecords(records);
+    }
+}
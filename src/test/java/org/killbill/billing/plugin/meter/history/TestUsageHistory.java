@@ -0,0 +1,104 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.history;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.meter.dto.DailyUsage;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestUsageHistory {
+
+    private static final LocalDate JANUARY = new LocalDate(2024, 1, 1);
+    private static final LocalDate FEBRUARY = new LocalDate(2024, 2, 1);
+
+    private Path directory;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("usage-history");
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws IOException {
+        try (final Stream<Path> files = Files.walk(directory)) {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testQueriesAcrossSegments() throws IOException {
+        final UsageHistory history = new UsageHistory(directory);
+        history.write(JANUARY, FEBRUARY.minusDays(1), 1, List.of(usage(JANUARY.plusDays(30), "2")));
+        history.write(FEBRUARY, FEBRUARY.plusDays(27), 1, List.of(usage(FEBRUARY, "3")));
+
+        final List<DailyUsage> usage = new UsageHistory(directory).query("tenant", null, null, JANUARY, FEBRUARY.plusDays(27));
+
+        Assert.assertEquals(usage.size(), 2);
+        Assert.assertEquals(usage.get(0).getDay(), "2024-01-31");
+        Assert.assertEquals(usage.get(1).getCharges(), new BigDecimal("3.000000"));
+        Assert.assertEquals(history.getCompactedThrough(), FEBRUARY.plusDays(27));
+    }
+
+    @Test(groups = "fast")
+    public void testWriteReplacesTheSegmentOfTheSameDays() throws IOException {
+        final UsageHistory history = new UsageHistory(directory);
+        history.write(JANUARY, FEBRUARY.minusDays(1), 1, List.of(usage(JANUARY, "2")));
+        history.write(JANUARY, FEBRUARY.minusDays(1), 2, List.of(usage(JANUARY, "5")));
+
+        Assert.assertEquals(history.getSegments().size(), 1);
+        Assert.assertEquals(history.getSegments().get(0).getChargeRevision(), 2L);
+        Assert.assertEquals(history.query("tenant", null, null, JANUARY, JANUARY).get(0).getCharges(), new BigDecimal("5.000000"));
+    }
+
+    @Test(groups = "fast")
+    public void testSkipsUnreadableSegments() throws IOException {
+        new UsageHistory(directory).write(FEBRUARY, FEBRUARY.plusDays(27), 1, List.of(usage(FEBRUARY, "3")));
+        Files.write(directory.resolve("usage-2024-01-01-2024-01-31" + Segment.SUFFIX), new byte[]{1, 2, 3});
+        Files.write(directory.resolve("usage-2024-03-01-2024-03-31" + Segment.SUFFIX + Segment.TEMPORARY_SUFFIX), new byte[]{1, 2, 3});
+
+        final UsageHistory history = new UsageHistory(directory);
+
+        Assert.assertEquals(history.getSegments().size(), 1);
+        Assert.assertEquals(history.query("tenant", null, null, JANUARY, FEBRUARY.plusDays(27)).size(), 1);
+        Assert.assertFalse(Files.exists(directory.resolve("usage-2024-03-01-2024-03-31" + Segment.SUFFIX + Segment.TEMPORARY_SUFFIX)));
+    }
+
+    private static DailyUsage usage(final LocalDate day, final String charges) {
+        return new DailyUsage().setTenantId("tenant")
+                               .setSubscriptionId("subscription")
+                               .setUnitType("unit")
+                               .setDay(day.toString())
+                               .setAmount(BigDecimal.ONE)
+                               .setCharges(new BigDecimal(charges))
+                               .setRecords(1);
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.ingest;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.killbill.billing.plugin.meter.ingest.AdmissionController.Admission;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestAdmissionController {
+
+    private static final UUID TENANT_A = UUID.randomUUID();
+    private static final UUID TENANT_B = UUID.randomUUID();
+
+    private final Map<UUID, IngestionQuota> quotas = new HashMap<>();
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        quotas.clear();
+    }
+
+    @Test(groups = "fast")
+    public void testRejectsBeyondTheLimitUntilARequestFinishes() {
+        final AdmissionController controller = new AdmissionController(2, 1000, quotas::get);
+
+        final Admission first = controller.tryAcquire(TENANT_A, 1);
+        final Admission second = controller.tryAcquire(TENANT_B, 1);
+        final Admission third = controller.tryAcquire(TENANT_A, 1);
+        Assert.assertTrue(first.isAdmitted());
+        Assert.assertTrue(second.isAdmitted());
+        Assert.assertFalse(third.isAdmitted());
+        Assert.assertEquals(third.getRetryAfterSeconds(), 1L);
+
+        first.close();
+        Assert.assertTrue(controller.tryAcquire(TENANT_A, 1).isAdmitted());
+        Assert.assertEquals(controller.getStats().getRejectedSaturated(), 1L);
+        Assert.assertEquals(controller.getStats().getAdmitted(), 3L);
+    }
+
+    @Test(groups = "fast")
+    public void testClosingTwiceReleasesOnce() {
+        final AdmissionController controller = new AdmissionController(2, 1000, quotas::get);
+
+        final Admission admission = controller.tryAcquire(TENANT_A, 1);
+        controller.tryAcquire(TENANT_A, 1);
+        admission.close();
+        admission.close();
+
+        Assert.assertEquals(controller.getStats().getInFlight(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testTenantInFlightQuota() {
+        quotas.put(TENANT_A, new IngestionQuota(1, 0));
+        final AdmissionController controller = new AdmissionController(16, 1000, quotas::get);
+
+        final Admission admission = controller.tryAcquire(TENANT_A, 1);
+        Assert.assertTrue(admission.isAdmitted());
+        Assert.assertFalse(controller.tryAcquire(TENANT_A, 1).isAdmitted());
+        Assert.assertTrue(controller.tryAcquire(TENANT_B, 1).isAdmitted());
+
+        admission.close();
+        Assert.assertTrue(controller.tryAcquire(TENANT_A, 1).isAdmitted());
+        Assert.assertEquals(controller.getStats().getRejectedTenantQuota(), 1L);
+    }
+
+    @Test(groups = "fast")
+    public void testTenantRecordsQuota() {
+        quotas.put(TENANT_A, new IngestionQuota(0, 10));
+        final AdmissionController controller = new AdmissionController(16, 1000, quotas::get);
+
+        controller.tryAcquire(TENANT_A, 10).close();
+        final Admission rejected = controller.tryAcquire(TENANT_A, 5);
+
+        Assert.assertFalse(rejected.isAdmitted());
+        Assert.assertEquals(rejected.getRetryAfterSeconds(), 1L);
+        // A request larger than one second of records is still admitted once the bucket is full
+        Assert.assertTrue(new AdmissionController(16, 1000, quotas::get).tryAcquire(TENANT_A, 50).isAdmitted());
+    }
+
+    @Test(groups = "fast")
+    public void testGlobalRejectionRefundsTheTenantQuota() {
+        quotas.put(TENANT_B, new IngestionQuota(1, 0));
+        final AdmissionController controller = new AdmissionController(1, 1000, quotas::get);
+
+        final Admission admission = controller.tryAcquire(TENANT_A, 1);
+        Assert.assertFalse(controller.tryAcquire(TENANT_B, 1).isAdmitted());
+        admission.close();
+
+        Assert.assertTrue(controller.tryAcquire(TENANT_B, 1).isAdmitted());
+    }
+
+    @Test(groups = "fast")
+    public void testLimitBacksOffOnFailure() {
+        final AdmissionController controller = new AdmissionController(10, 1000, quotas::get);
+        Assert.assertEquals(controller.getStats().getLimit(), 5);
+
+        final Admission failed = controller.tryAcquire(TENANT_A, 1);
+        failed.failed();
+        failed.close();
+        Assert.assertEquals(controller.getStats().getLimit(), 4);
+
+        // A failure within the cooldown does not back off again
+        final Admission failedAgain = controller.tryAcquire(TENANT_A, 1);
+        failedAgain.failed();
+        failedAgain.close();
+        Assert.assertEquals(controller.getStats().getLimit(), 4);
+
+    }
+
+    @Test(groups = "fast")
+    public void testLimitGrowsAsFarAsItIsUsed() {
+        final AdmissionController controller = new AdmissionController(10, 1000, quotas::get);
+
+        // With two requests held, a third finishing keeps growing the limit until 3 < limit / 2
+        final Admission held1 = controller.tryAcquire(TENANT_A, 1);
+        final Admission held2 = controller.tryAcquire(TENANT_A, 1);
+        for (int i = 0; i < 200; i++) {
+            controller.tryAcquire(TENANT_B, 1).close();
+        }
+        Assert.assertEquals(controller.getStats().getLimit(), 6);
+
+        final AdmissionController capped = new AdmissionController(4, 1000, quotas::get);
+        capped.tryAcquire(TENANT_A, 1);
+        for (int i = 0; i < 200; i++) {
+            capped.tryAcquire(TENANT_B, 1).close();
+        }
+        Assert.assertEquals(capped.getStats().getLimit(), 4);
+
+        held1.close();
+        held2.close();
+    }
+
+    @Test(groups = "fast")
+    public void testLimitDoesNotGrowWhileUnused() {
+        final AdmissionController controller = new AdmissionController(10, 1000, quotas::get);
+
+        for (int i = 0; i < 200; i++) {
+            controller.tryAcquire(TENANT_A, 1).close();
+        }
+
+        Assert.assertEquals(controller.getStats().getLimit(), 5);
+    }
+
+    @Test(groups = "fast")
+    public void testIdleTenantsExpire() {
+        quotas.put(TENANT_A, new IngestionQuota(1, 0));
+        final AdmissionController controller = new AdmissionController(16, 1000, quotas::get);
+
+        controller.tryAcquire(TENANT_A, 1).close();
+        final Admission held = controller.tryAcquire(TENANT_B, 1);
+        Assert.assertEquals(controller.getTenantCount(), 2);
+
+        controller.expireIdleTenants(System.nanoTime());
+        Assert.assertEquals(controller.getTenantCount(), 2);
+
+        // A tenant with a request in flight is kept however long it has been running
+        controller.expireIdleTenants(System.nanoTime() + AdmissionController.TENANT_IDLE_NANOS);
+        Assert.assertEquals(controller.getTenantCount(), 1);
+
+        held.close();
+        Assert.assertTrue(controller.tryAcquire(TENANT_A, 1).isAdmitted());
+        Assert.assertFalse(controller.tryAcquire(TENANT_A, 1).isAdmitted());
+    }
+
+    @Test(groups = "fast")
+    public void testFailingQuotaLookupAppliesNoQuota() {
+        final AdmissionController controller = new AdmissionController(16, 1000, tenantId -> {
+            throw new IllegalStateException("Tenant config unavailable");
+        });
+
+        Assert.assertTrue(controller.tryAcquire(TENANT_A, 1).isAdmitted());
+        Assert.assertTrue(controller.tryAcquire(TENANT_A, 1).isAdmitted());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.ingest;
+
+import org.killbill.billing.plugin.meter.entity.RawUsage;
+import org.killbill.billing.plugin.meter.ingest.IngestionDeduplicator.Verdict;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestIngestionDeduplicator {
+
+    @Test(groups = "fast")
+    public void testStoredKeyIsSeen() {
+        final IngestionDeduplicator deduplicator = new IngestionDeduplicator(100, 10);
+
+        Assert.assertEquals(deduplicator.check("key"), Verdict.NEW);
+        deduplicator.remember("key");
+        Assert.assertEquals(deduplicator.check("key"), Verdict.SEEN);
+        Assert.assertTrue(deduplicator.recentlySeen("key"));
+        Assert.assertFalse(deduplicator.recentlySeen("other"));
+
+        final DeduplicationStats stats = deduplicator.getStats();
+        Assert.assertEquals(stats.getFilterNegatives(), 1);
+        Assert.assertEquals(stats.getCacheHits(), 2);
+        Assert.assertEquals(stats.getStoreChecks(), 0);
+        Assert.assertEquals(stats.getCachedKeys(), 1);
+        Assert.assertEquals(stats.getFilteredKeys(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testKeyEvictedFromCacheIsCheckedAgainstStore() {
+        final IngestionDeduplicator deduplicator = new IngestionDeduplicator(100, 2);
+        deduplicator.remember("first");
+        deduplicator.remember("second");
+        deduplicator.remember("third");
+
+        Assert.assertFalse(deduplicator.recentlySeen("first"));
+        Assert.assertEquals(deduplicator.check("first"), Verdict.UNKNOWN);
+        Assert.assertEquals(deduplicator.check("third"), Verdict.SEEN);
+        Assert.assertEquals(deduplicator.getStats().getCachedKeys(), 2);
+        Assert.assertEquals(deduplicator.getStats().getStoreChecks(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testRememberingTwiceKeepsOneCacheEntry() {
+        final IngestionDeduplicator deduplicator = new IngestionDeduplicator(100, 2);
+        deduplicator.remember("first");
+        deduplicator.remember("second");
+        deduplicator.remember("second");
+
+        Assert.assertTrue(deduplicator.recentlySeen("first"));
+        Assert.assertEquals(deduplicator.getStats().getCachedKeys(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testFilterKeepsTwoGenerations() {
+        final IngestionDeduplicator deduplicator = new IngestionDeduplicator(10, 0);
+        for (int i = 0; i < 11; i++) {
+            deduplicator.remember("key-" + i);
+        }
+        // The first generation is full and now the previous one
+        Assert.assertEquals(deduplicator.check("key-0"), Verdict.UNKNOWN);
+        Assert.assertEquals(deduplicator.getStats().getFilteredKeys(), 11);
+
+        for (int i = 11; i < 21; i++) {
+            deduplicator.remember("key-" + i);
+        }
+        // Dropped with its generation
+        Assert.assertEquals(deduplicator.check("key-0"), Verdict.NEW);
+        Assert.assertEquals(deduplicator.check("key-20"), Verdict.UNKNOWN);
+        Assert.assertEquals(deduplicator.getStats().getFilteredKeys(), 11);
+        Assert.assertEquals(deduplicator.getStats().getCachedKeys(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testFalsePositiveRate() {
+        final int keys = 100_000;
+        final IngestionDeduplicator deduplicator = new IngestionDeduplicator(keys, 0);
+        for (int i = 0; i < keys; i++) {
+            deduplicator.remember("stored-" + i);
+        }
+
+        int unknown = 0;
+        for (int i = 0; i < keys; i++) {
+            if (deduplicator.check("fresh-" + i) != Verdict.NEW) {
+                unknown++;
+            }
+        }
+        Assert.assertTrue(unknown < keys * 0.02, unknown + " false positives");
+        for (int i = 0; i < keys; i++) {
+            Assert.assertEquals(deduplicator.check("stored-" + i), Verdict.UNKNOWN);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testMissedIsCounted() {
+        final IngestionDeduplicator deduplicator = new IngestionDeduplicator();
+        deduplicator.missed();
+        deduplicator.missed();
+
+        Assert.assertEquals(deduplicator.getStats().getFilterMisses(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testKeySeparatesFields() {
+        final RawUsage rawUsage = new RawUsage().setTenantId("tenant").setSubscriptionId("subscription").setUnitType("api").setTrackingId("ab");
+        final RawUsage shifted = new RawUsage().setTenantId("tenant").setSubscriptionId("subscription").setUnitType("apia").setTrackingId("b");
+
+        Assert.assertEquals(IngestionDeduplicator.key(rawUsage), IngestionDeduplicator.key(new RawUsage().setTenantId("tenant")
+                                                                                                         .setSubscriptionId("subscription")
+                                                                                                         .setUnitType("api")
+                                                                                                         .setTrackingId("ab")));
+        Assert.assertNotEquals(IngestionDeduplicator.key(rawUsage), IngestionDeduplicator.key(shifted));
+        Assert.assertNotEquals(IngestionDeduplicator.key(rawUsage), IngestionDeduplicator.key(rawUsage.setTrackingId("ac")));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.ingest;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.MeterConfigurationHandler;
+import org.killbill.billing.plugin.meter.dao.RawUsageDao;
+import org.killbill.billing.plugin.meter.dao.UnitOfWork;
+import org.killbill.billing.plugin.meter.entity.RawUsage;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TestPreAggregator {
+
+    private static final UUID TENANT_ID = UUID.randomUUID();
+
+    private final List<RawUsage> flushed = new ArrayList<>();
+    private RawUsageDao rawUsageDao;
+    private PreAggregator preAggregator;
+    private boolean failWrites;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        flushed.clear();
+        failWrites = false;
+        final UnitOfWork unitOfWork = mock(UnitOfWork.class);
+        doAnswer(invocation -> flushed.add(invocation.getArgument(0))).when(unitOfWork).addPreAggregatedUsage(any());
+        rawUsageDao = mock(RawUsageDao.class);
+        when(rawUsageDao.inTransaction(any())).thenAnswer(invocation -> {
+            if (failWrites) {
+                throw new IllegalStateException("Database unavailable");
+            }
+            return ((UnitOfWork.Work<?>) invocation.getArgument(0)).run(unitOfWork);
+        });
+        final MeterConfigurationHandler configurationHandler = mock(MeterConfigurationHandler.class);
+        when(configurationHandler.getPreAggregatedUnits(TENANT_ID)).thenReturn(Set.of("api_calls"));
+        preAggregator = new PreAggregator(rawUsageDao, configurationHandler);
+    }
+
+    @Test(groups = "fast")
+    public void testSumsPerBucketAreFlushedAsOneRowEach() {
+        final DateTime startOfToday = new DateTime(DateTimeZone.UTC).withTimeAtStartOfDay();
+        Assert.assertTrue(preAggregator.offer(TENANT_ID, usage("sub-1", "1.5", startOfToday.plusMinutes(1))));
+        Assert.assertTrue(preAggregator.offer(TENANT_ID, usage("sub-1", "2.25", startOfToday.plusMinutes(3))));
+        Assert.assertTrue(preAggregator.offer(TENANT_ID, usage("sub-1", "0.000001", startOfToday.plusMinutes(2))));
+        Assert.assertTrue(preAggregator.offer(TENANT_ID, usage("sub-2", "7", startOfToday.plusMinutes(1))));
+        Assert.assertEquals(preAggregator.getBucketCount(), 2);
+
+        preAggregator.flush();
+
+        Assert.assertEquals(flushed.size(), 2);
+        flushed.sort(Comparator.comparing(RawUsage::getSubscriptionId));
+        final RawUsage first = flushed.get(0);
+        Assert.assertEquals(first.getAmount(), new BigDecimal("3.750001"));
+        Assert.assertEquals(first.getRecordDate(), startOfToday.plusMinutes(3));
+        Assert.assertEquals(first.getTrackingId(), PreAggregator.TRACKING_ID_PREFIX + startOfToday.toLocalDate());
+        Assert.assertEquals(flushed.get(1).getAmount(), new BigDecimal("7.000000"));
+
+        // Drained buckets have nothing left to flush
+        flushed.clear();
+        preAggregator.flush();
+        Assert.assertTrue(flushed.isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testRecordsItCannotTakeAreLeftToTheCaller() {
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        Assert.assertFalse(preAggregator.offer(TENANT_ID, usage("sub-1", "1", now).setUnitType("storage")));
+        Assert.assertFalse(preAggregator.offer(UUID.randomUUID(), usage("sub-1", "1", now)));
+        Assert.assertFalse(preAggregator.offer(TENANT_ID, usage("sub-1", "0.0000001", now)));
+        Assert.assertFalse(preAggregator.offer(TENANT_ID, usage("sub-1", "1", now.minusDays(2))));
+        Assert.assertTrue(preAggregator.offer(TENANT_ID, usage("sub-1", "1", now.minusDays(1))));
+        Assert.assertEquals(preAggregator.getBucketCount(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testFailedFlushPutsTheSumsBack() {
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        preAggregator.offer(TENANT_ID, usage("sub-1", "2", now));
+
+        failWrites = true;
+        Assert.assertThrows(IllegalStateException.class, preAggregator::flush);
+        preAggregator.offer(TENANT_ID, usage("sub-1", "3", now));
+
+        failWrites = false;
+        preAggregator.flush();
+        Assert.assertEquals(flushed.size(), 1);
+        Assert.assertEquals(flushed.get(0).getAmount(), new BigDecimal("5.000000"));
+    }
+
+    private static RawUsage usage(final String subscriptionId, final String amount, final DateTime recordDate) {
+        return new RawUsage().setTenantId(TENANT_ID.toString())
+                             .setSubscriptionId(subscriptionId)
+                             .setUnitType("api_calls")
+                             .setTrackingId("trk-" + UUID.randomUUID())
+                             .setAmount(new BigDecimal(amount))
+                             .setRecordDate(recordDate);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.ingest;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.domain.external.ConsumerSubscriptionUsageRecord;
+import org.killbill.billing.plugin.meter.domain.external.ConsumerUnitUsageRecord;
+import org.killbill.billing.plugin.meter.domain.external.ConsumerUsageRecord;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+public class TestUsageRecordCodec {
+
+    private static final UUID TENANT_ID = UUID.randomUUID();
+    // More significant digits than a double holds
+    private static final BigDecimal AMOUNT = new BigDecimal("123456789012.000001");
+    private static final DateTime RECORD_DATE = new DateTime(2024, 3, 1, 10, 15, 30, DateTimeZone.UTC);
+
+    private static final ObjectMapper SMILE_WRITER = new ObjectMapper(new SmileFactory());
+    private static final ObjectMapper CBOR_WRITER = new ObjectMapper(new CBORFactory());
+
+    @Test(groups = "fast")
+    public void testSmileRoundTripKeepsDecimals() throws IOException {
+        assertRoundTrip(UsageRecordCodec.SMILE, SMILE_WRITER);
+    }
+
+    @Test(groups = "fast")
+    public void testCborRoundTripKeepsDecimals() throws IOException {
+        assertRoundTrip(UsageRecordCodec.CBOR, CBOR_WRITER);
+    }
+
+    @Test(groups = "fast")
+    public void testEpochAndIsoRecordDates() throws IOException {
+        for (final ObjectMapper writer : List.of(SMILE_WRITER, CBOR_WRITER)) {
+            final String contentType = writer == SMILE_WRITER ? UsageRecordCodec.SMILE : UsageRecordCodec.CBOR;
+
+            final ConsumerSubscriptionUsageRecord epoch = UsageRecordCodec.decode(contentType, writer.writeValueAsBytes(payload(RECORD_DATE.getMillis())));
+            final ConsumerSubscriptionUsageRecord iso = UsageRecordCodec.decode(contentType, writer.writeValueAsBytes(payload("2024-03-01T15:45:30.000+05:30")));
+
+            Assert.assertEquals(usage(epoch).getRecordDate().getMillis(), RECORD_DATE.getMillis(), contentType);
+            Assert.assertEquals(usage(iso).getRecordDate().getMillis(), RECORD_DATE.getMillis(), contentType);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testParametersOfTheContentTypeAreIgnored() throws IOException {
+        final byte[] body = SMILE_WRITER.writeValueAsBytes(payload(RECORD_DATE.getMillis()));
+
+        final ConsumerSubscriptionUsageRecord record = UsageRecordCodec.decode("Application/X-Jackson-Smile; charset=binary", body);
+
+        Assert.assertEquals(record.getTenantId(), TENANT_ID);
+    }
+
+    @Test(groups = "fast")
+    public void testMalformedPayloadsAreReadErrors() throws IOException {
+        final byte[] valid = UsageRecordCodec.encode(UsageRecordCodec.CBOR, record());
+        final byte[] truncated = Arrays.copyOf(valid, valid.length / 2);
+        final byte[] json = "{\"tenantId\":\"not smile\"}".getBytes(StandardCharsets.UTF_8);
+        final Map<String, Object> wrongShape = new LinkedHashMap<>();
+        wrongShape.put("tenantId", TENANT_ID.toString());
+        wrongShape.put("unitUsageRecords", "api");
+        final Map<String, Object> noUsage = new LinkedHashMap<>();
+        noUsage.put("tenantId", TENANT_ID.toString());
+
+        // The ingestion endpoint answers an IOException with a 400, anything else would be a 500
+        Assert.expectThrows(IOException.class, () -> UsageRecordCodec.decode(UsageRecordCodec.CBOR, truncated));
+        Assert.expectThrows(IOException.class, () -> UsageRecordCodec.decode(UsageRecordCodec.SMILE, json));
+        Assert.expectThrows(IOException.class, () -> UsageRecordCodec.decode(UsageRecordCodec.SMILE, new byte[0]));
+        Assert.expectThrows(IOException.class, () -> UsageRecordCodec.decode(UsageRecordCodec.CBOR, CBOR_WRITER.writeValueAsBytes(wrongShape)));
+        Assert.expectThrows(IOException.class, () -> UsageRecordCodec.decode(UsageRecordCodec.SMILE, SMILE_WRITER.writeValueAsBytes(noUsage)));
+    }
+
+    @Test(groups = "fast")
+    public void testUnsupportedContentType() {
+        Assert.expectThrows(IllegalArgumentException.class, () -> UsageRecordCodec.decode("application/json", new byte[0]));
+    }
+
+    private static void assertRoundTrip(final String contentType, final ObjectMapper reader) throws IOException {
+        final byte[] body = UsageRecordCodec.encode(contentType, record());
+
+        // Dates travel as epoch milliseconds and amounts as native decimals
+        final JsonNode tree = reader.readTree(body).at("/unitUsageRecords/0/usageRecords/0");
+        Assert.assertTrue(tree.get("recordDate").isIntegralNumber(), tree.toString());
+        Assert.assertTrue(tree.get("amount").isBigDecimal(), tree.toString());
+
+        final ConsumerSubscriptionUsageRecord decoded = UsageRecordCodec.decode(contentType, body);
+        Assert.assertEquals(decoded.getTenantId(), TENANT_ID);
+        Assert.assertEquals(decoded.getTrackingId(), "tracking-1");
+        Assert.assertEquals(decoded.getUnitUsageRecords().get(0).getUnitType(), "api");
+        final ConsumerUsageRecord usage = usage(decoded);
+        Assert.assertEquals(usage.getRecordDate().getMillis(), RECORD_DATE.getMillis());
+        Assert.assertEquals(usage.getAmount().toPlainString(), AMOUNT.toPlainString());
+        Assert.assertEquals(usage.getAmount().scale(), 6);
+    }
+
+    private static ConsumerSubscriptionUsageRecord record() {
+        final ConsumerUsageRecord usage = new ConsumerUsageRecord();
+        usage.setRecordDate(RECORD_DATE);
+        usage.setAmount(AMOUNT);
+        final ConsumerUnitUsageRecord unit = new ConsumerUnitUsageRecord();
+        unit.setUnitType("api");
+        unit.setUsageRecords(List.of(usage));
+        return new ConsumerSubscriptionUsageRecord("subscription-1", "tracking-1", TENANT_ID, List.of(unit));
+    }
+
+    private static Map<String, Object> payload(final Object recordDate) {
+        final Map<String, Object> usage = new LinkedHashMap<>();
+        usage.put("recordDate", recordDate);
+        usage.put("amount", AMOUNT);
+        final Map<String, Object> unit = new LinkedHashMap<>();
+        unit.put("unitType", "api");
+        unit.put("usageRecords", List.of(usage));
+        final Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("subscriptionId", "subscription-1");
+        payload.put("trackingId", "tracking-1");
+        payload.put("tenantId", TENANT_ID.toString());
+        payload.put("unitUsageRecords", List.of(unit));
+        return payload;
+    }
+
+    private static ConsumerUsageRecord usage(final ConsumerSubscriptionUsageRecord record) {
+        return record.getUnitUsageRecords().get(0).getUsageRecords().get(0);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.job;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.plugin.meter.exception.ResourceNotFoundException;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+public class TestJobManager {
+
+    private JobManager jobManager;
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() {
+        if (jobManager != null) {
+            jobManager.shutdown();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testSubmissionsWithTheSameKeyAreCoalesced() throws InterruptedException {
+        jobManager = new JobManager(2);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final JobStatus first = jobManager.submitForResult("rerate", "rerate:tenant-a", progress -> await(release));
+        final JobStatus again = jobManager.submitForResult("rerate", "rerate:tenant-a", progress -> "never run");
+        final JobStatus other = jobManager.submitForResult("rerate", "rerate:tenant-b", progress -> "tenant-b");
+
+        Assert.assertEquals(again.getId(), first.getId());
+        Assert.assertEquals(again.getCoalesced(), 1);
+        Assert.assertNotEquals(other.getId(), first.getId());
+
+        release.countDown();
+        Assert.assertEquals(awaitFinished(first.getId()).getState(), JobStatus.SUCCEEDED);
+        Assert.assertEquals(awaitFinished(other.getId()).getResult(), "tenant-b");
+
+        // Once finished, the key is free again
+        final JobStatus later = jobManager.submitForResult("rerate", "rerate:tenant-a", progress -> "rerun");
+        Assert.assertNotEquals(later.getId(), first.getId());
+        Assert.assertEquals(awaitFinished(later.getId()).getResult(), "rerun");
+    }
+
+    @Test(groups = "fast")
+    public void testOldestFinishedJobsAreEvicted() throws InterruptedException {
+        jobManager = new JobManager(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final JobStatus running = jobManager.submit("aggregate", progress -> await(release));
+
+        final String[] ids = new String[JobManager.RETAINED_JOBS + 1];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = jobManager.submitForResult("rerate", "rerate:" + i, progress -> null).getId();
+            awaitFinished(ids[i]);
+        }
+
+        final List<JobStatus> jobs = jobManager.getJobs();
+        Assert.assertEquals(jobs.size(), JobManager.RETAINED_JOBS);
+        Assert.assertEquals(jobs.get(0).getId(), ids[ids.length - 1]);
+        // The job still running is kept even though it is the oldest, the two oldest finished ones make room
+        Assert.assertEquals(jobManager.getStatus(running.getId()).getState(), JobStatus.RUNNING);
+        Assert.expectThrows(ResourceNotFoundException.class, () -> jobManager.getStatus(ids[0]));
+        Assert.expectThrows(ResourceNotFoundException.class, () -> jobManager.getStatus(ids[1]));
+        Assert.assertEquals(jobManager.getStatus(ids[2]).getState(), JobStatus.SUCCEEDED);
+
+        release.countDown();
+        awaitFinished(running.getId());
+    }
+
+    @Test(groups = "fast")
+    public void testFailedJobKeepsItsProgress() throws InterruptedException {
+        jobManager = new JobManager(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        // A single worker, so the job waits behind the first one
+        final JobStatus blocking = jobManager.submit("aggregate", progress -> await(unblock));
+        final JobStatus failing = jobManager.submit("invoice", progress -> {
+            progress.started("invoice", 3);
+            progress.succeeded("invoice", 1);
+            progress.failed("invoice", 2, new IllegalStateException("Kill Bill said no"));
+            started.countDown();
+            await(release);
+            throw new IllegalStateException("Stage aborted");
+        });
+        Assert.assertEquals(failing.getState(), JobStatus.QUEUED);
+        Assert.assertNull(failing.getStartedAt());
+
+        unblock.countDown();
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        final JobStatus running = jobManager.getStatus(failing.getId());
+        Assert.assertEquals(running.getState(), JobStatus.RUNNING);
+        Assert.assertNotNull(running.getStartedAt());
+        Assert.assertNull(running.getFinishedAt());
+        Assert.assertEquals(running.getStages().get(0).getSucceeded(), 1);
+        Assert.assertNull(running.getStages().get(0).getFinishedAt());
+        Assert.assertEquals(jobManager.getStatus(blocking.getId()).getState(), JobStatus.SUCCEEDED);
+
+        release.countDown();
+        final JobStatus failed = awaitFinished(failing.getId());
+        Assert.assertEquals(failed.getState(), JobStatus.FAILED);
+        Assert.assertEquals(failed.getError(), "Stage aborted");
+        Assert.assertNotNull(failed.getFinishedAt());
+        Assert.assertNull(failed.getResult());
+        final StageStatus stage = failed.getStages().get(0);
+        Assert.assertEquals(stage.getName(), "invoice");
+        Assert.assertEquals(stage.getItems(), 3);
+        Assert.assertEquals(stage.getSucceeded(), 1);
+        Assert.assertEquals(stage.getFailed(), 2);
+        Assert.assertEquals(stage.getErrors(), List.of("Kill Bill said no"));
+
+        // The failure neither takes the worker down nor keeps the type busy
+        final JobStatus next = jobManager.submit("invoice", progress -> {});
+        Assert.assertNotEquals(next.getId(), failing.getId());
+        Assert.assertEquals(awaitFinished(next.getId()).getState(), JobStatus.SUCCEEDED);
+    }
+
+    @Test(groups = "fast")
+    public void testUnknownJob() {
+        jobManager = new JobManager(1);
+        Assert.expectThrows(ResourceNotFoundException.class, () -> jobManager.getStatus("unknown"));
+    }
+
+    private JobStatus awaitFinished(final String jobId) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        JobStatus status = jobManager.getStatus(jobId);
+        while (status.getFinishedAt() == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+            status = jobManager.getStatus(jobId);
+        }
+        Assert.assertNotNull(status.getFinishedAt(), "Job " + jobId + " did not finish");
+        return status;
+    }
+
+    private static Object await(final CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+}
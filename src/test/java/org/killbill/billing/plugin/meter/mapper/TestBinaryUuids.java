@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.mapper;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TestBinaryUuids {
+
+    private static final UUID ID = UUID.fromString("0123e4f5-6789-4abc-8def-fedcba987654");
+    private static final byte[] BYTES = {0x01, 0x23, (byte) 0xe4, (byte) 0xf5, 0x67, (byte) 0x89, 0x4a, (byte) 0xbc,
+                                         (byte) 0x8d, (byte) 0xef, (byte) 0xfe, (byte) 0xdc, (byte) 0xba, (byte) 0x98, 0x76, 0x54};
+
+    @Test(groups = "fast")
+    public void testToBytesIsBigEndian() {
+        Assert.assertEquals(BinaryUuids.toBytes(ID), BYTES);
+    }
+
+    @Test(groups = "fast")
+    public void testReadEitherColumnType() throws SQLException {
+        final ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.getObject("binary_id")).thenReturn(BYTES);
+        when(resultSet.getObject("native_id")).thenReturn(ID);
+
+        Assert.assertEquals(BinaryUuids.read(resultSet, "binary_id"), ID.toString());
+        Assert.assertEquals(BinaryUuids.read(resultSet, "native_id"), ID.toString());
+        Assert.assertNull(BinaryUuids.read(resultSet, "null_id"));
+    }
+
+    @Test(groups = "fast")
+    public void testIsUuid() {
+        Assert.assertTrue(BinaryUuids.isUuid(ID.toString()));
+        Assert.assertTrue(BinaryUuids.isUuid(ID.toString().toUpperCase()));
+        // Parsed by UUID.fromString, but not the text Kill Bill would have
+        Assert.assertFalse(BinaryUuids.isUuid("1-2-3-4-5"));
+        Assert.assertFalse(BinaryUuids.isUuid("external-usage-1"));
+        Assert.assertFalse(BinaryUuids.isUuid(null));
+    }
+
+    @Test(groups = "fast")
+    public void testBinaryArgumentBindsBytes() throws SQLException {
+        final PreparedStatement statement = mock(PreparedStatement.class);
+        final List<Object> bound = new ArrayList<>();
+        doAnswer(invocation -> bound.add(invocation.getArgument(1))).when(statement).setBytes(anyInt(), any());
+
+        BinaryUuids.argument(ID.toString(), false).apply(2, statement, null);
+        BinaryUuids.argument(null, false).apply(3, statement, null);
+
+        Assert.assertEquals(bound.size(), 1);
+        Assert.assertEquals(bound.get(0), BYTES);
+        verify(statement).setNull(3, Types.BINARY);
+    }
+
+    @Test(groups = "fast")
+    public void testNativeArgumentBindsUuid() throws SQLException {
+        final PreparedStatement statement = mock(PreparedStatement.class);
+
+        BinaryUuids.argument(ID.toString(), true).apply(2, statement, null);
+        BinaryUuids.argument(null, true).apply(3, statement, null);
+
+        verify(statement).setObject(2, ID, Types.OTHER);
+        verify(statement).setNull(3, Types.OTHER);
+    }
+
+    @Test(groups = "fast")
+    public void testArgumentRejectsOtherText() {
+        Assert.expectThrows(IllegalArgumentException.class, () -> BinaryUuids.argument("external-usage-1", false));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.profiling;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestQueryProfiler {
+
+    @Test(groups = "fast")
+    public void testPositionalInListsShareOneKey() {
+        Assert.assertEquals(QueryProfiler.normalize("SELECT * FROM raw_usage WHERE tenant_id = ? AND id IN (?, ?,?)"),
+                            QueryProfiler.normalize("SELECT * FROM raw_usage WHERE tenant_id = ? AND id IN (?)"));
+        Assert.assertEquals(QueryProfiler.normalize("SELECT * FROM raw_usage WHERE id IN (?, ?,?)"),
+                            "SELECT * FROM raw_usage WHERE id IN (?...)");
+    }
+
+    @Test(groups = "fast")
+    public void testNamedInListsShareOneKey() {
+        final String three = "DELETE FROM raw_usage WHERE aggregated_id IN (:aggregationId0, :aggregationId1, :aggregationId2)";
+        final String one = "DELETE FROM raw_usage WHERE aggregated_id IN (:aggregationId0)";
+
+        Assert.assertEquals(QueryProfiler.normalize(three), "DELETE FROM raw_usage WHERE aggregated_id IN (?...)");
+        Assert.assertEquals(QueryProfiler.normalize(one), QueryProfiler.normalize(three));
+    }
+
+    @Test(groups = "fast")
+    public void testInlinedNumericInListsShareOneKey() {
+        final String many = "SELECT id, version FROM raw_usage WHERE id IN (101,102,-7,  1040)";
+        final String single = "SELECT id, version FROM raw_usage WHERE id IN (5)";
+
+        Assert.assertEquals(QueryProfiler.normalize(many), "SELECT id, version FROM raw_usage WHERE id IN (?...)");
+        Assert.assertEquals(QueryProfiler.normalize(single), QueryProfiler.normalize(many));
+    }
+
+    @Test(groups = "fast")
+    public void testLiteralsAndWhitespaceAreCollapsed() {
+        Assert.assertEquals(QueryProfiler.normalize("  UPDATE raw_usage\n   SET state = 'it''s billed', amount = 12.5\n WHERE record_id = 42 "),
+                            "UPDATE raw_usage SET state = ?, amount = ? WHERE record_id = ?");
+    }
+
+    @Test(groups = "fast")
+    public void testNamedParametersOutsideInListsAreKept() {
+        Assert.assertEquals(QueryProfiler.normalize("SELECT * FROM raw_usage WHERE tenant_id = :tenantId AND record_date < :to"),
+                            "SELECT * FROM raw_usage WHERE tenant_id = :tenantId AND record_date < :to");
+    }
+
+    @Test(groups = "fast")
+    public void testInSubqueryIsNotCollapsed() {
+        Assert.assertEquals(QueryProfiler.normalize("SELECT * FROM raw_usage WHERE tracking_id IN (\n SELECT tracking_id FROM charged WHERE invoice_id = :invoiceId)"),
+                            "SELECT * FROM raw_usage WHERE tracking_id IN ( SELECT tracking_id FROM charged WHERE invoice_id = :invoiceId)");
+    }
+}
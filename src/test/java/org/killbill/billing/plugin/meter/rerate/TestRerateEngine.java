@@ -0,0 +1,168 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.rerate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.joda.time.LocalDate;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceApiException;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.plugin.meter.dao.RawUsageDao;
+import org.killbill.billing.plugin.meter.dao.UnitOfWork;
+import org.killbill.billing.plugin.meter.dto.InvoiceTenant;
+import org.killbill.billing.plugin.meter.dto.TierDetail;
+import org.killbill.billing.plugin.meter.dto.TierDetails;
+import org.killbill.billing.plugin.meter.job.JobProgress;
+import org.killbill.billing.plugin.meter.resilience.ResilientKillbill;
+import org.killbill.billing.plugin.meter.workset.ChargeRows;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TestRerateEngine {
+
+    private static final String TENANT_ID = UUID.randomUUID().toString();
+    private static final UUID INVOICE_ID = UUID.randomUUID();
+    private static final List<String> TRACKING_IDS = List.of("tracking-1");
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final List<ChargeRows> persisted = new ArrayList<>();
+    private RawUsageDao rawUsageDao;
+    private RerateEngine rerateEngine;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws InvoiceApiException, JsonProcessingException {
+        persisted.clear();
+        // The rows as charged under the previous schedule: 20 at 1 per unit, then 20 at 2
+        final UnitOfWork unitOfWork = mock(UnitOfWork.class);
+        when(unitOfWork.getChargeRows(TRACKING_IDS, "transactions")).thenAnswer(invocation -> {
+            final ChargeRows rows = new ChargeRows();
+            rows.add(101, 1, BigDecimal.TEN, BigDecimal.valueOf(10), 1);
+            rows.add(102, 1, BigDecimal.TEN, BigDecimal.valueOf(10), 1);
+            rows.add(103, 1, BigDecimal.TEN, BigDecimal.valueOf(20), 2);
+            return rows;
+        });
+        doAnswer(invocation -> persisted.add(invocation.getArgument(1))).when(unitOfWork).persistCharges(eq(TENANT_ID), any());
+
+        rawUsageDao = mock(RawUsageDao.class);
+        final InvoiceTenant invoiceTenant = new InvoiceTenant();
+        invoiceTenant.setInvoiceId(INVOICE_ID.toString());
+        invoiceTenant.setTenantId(TENANT_ID);
+        when(rawUsageDao.getChargedInvoices(eq(TENANT_ID), any(), any(), any(), any(), anyInt())).thenReturn(List.of(invoiceTenant));
+        when(rawUsageDao.inUnitOfWork(any())).thenAnswer(invocation -> invocation.<UnitOfWork.Work<?>>getArgument(0).run(unitOfWork));
+        when(rawUsageDao.inTransaction(any())).thenAnswer(invocation -> invocation.<UnitOfWork.Work<?>>getArgument(0).run(unitOfWork));
+
+        // The regenerated invoice: 15 at 1 per unit, then 15 at 3
+        final InvoiceItem item = mock(InvoiceItem.class);
+        when(item.getStartDate()).thenReturn(new LocalDate(2024, 1, 1));
+        when(item.getItemDetails()).thenReturn(details(tier(1, 15, 1), tier(2, 15, 3)));
+        final Invoice invoice = mock(Invoice.class);
+        when(invoice.getId()).thenReturn(INVOICE_ID);
+        when(invoice.getTrackingIds()).thenReturn(TRACKING_IDS);
+        when(invoice.getInvoiceItems()).thenReturn(List.of(item));
+        final ResilientKillbill resilientKillbill = mock(ResilientKillbill.class);
+        when(resilientKillbill.getInvoice(eq(INVOICE_ID), any())).thenReturn(invoice);
+
+        rerateEngine = new RerateEngine(rawUsageDao, resilientKillbill, 1);
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() {
+        rerateEngine.shutdown();
+    }
+
+    @Test(groups = "fast")
+    public void testDryRunReportsTheChangedRows() {
+        final RerateReport report = rerateEngine.rerate(new RerateRequest().setTenantId(TENANT_ID), JobProgress.NONE);
+
+        Assert.assertTrue(report.isDryRun());
+        assertReport(report);
+        verify(rawUsageDao, never()).inTransaction(any());
+        Assert.assertTrue(persisted.isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testRerateWritesTheNewCharges() {
+        final RerateReport report = rerateEngine.rerate(new RerateRequest().setTenantId(TENANT_ID).setDryRun(false), JobProgress.NONE);
+
+        Assert.assertFalse(report.isDryRun());
+        assertReport(report);
+        Assert.assertEquals(persisted.size(), 1);
+        final ChargeRows rows = persisted.get(0);
+        Assert.assertEquals(rows.charges(1).compareTo(BigDecimal.valueOf(20)), 0);
+        Assert.assertEquals(rows.charges(2).compareTo(BigDecimal.valueOf(30)), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testTenantIsRequired() {
+        Assert.expectThrows(IllegalArgumentException.class, () -> rerateEngine.rerate(new RerateRequest(), JobProgress.NONE));
+    }
+
+    private static void assertReport(final RerateReport report) {
+        Assert.assertEquals(report.getInvoices(), 1);
+        Assert.assertEquals(report.getInvoiceItems(), 1);
+        Assert.assertEquals(report.getRows(), 3);
+        // The first row stays in tier 1 at 10
+        Assert.assertEquals(report.getChangedRows(), 2);
+        Assert.assertEquals(report.getChargesBefore().compareTo(BigDecimal.valueOf(40)), 0, report.getChargesBefore().toPlainString());
+        Assert.assertEquals(report.getChargesAfter().compareTo(BigDecimal.valueOf(60)), 0, report.getChargesAfter().toPlainString());
+        Assert.assertEquals(report.getDelta().compareTo(BigDecimal.valueOf(20)), 0, report.getDelta().toPlainString());
+        Assert.assertTrue(report.getFailedInvoices().isEmpty(), report.getFailedInvoices().toString());
+
+        Assert.assertEquals(report.getDiffs().size(), 2);
+        // 5 left in tier 1 at 1 and 5 in tier 2 at 3
+        assertDiff(report.getDiffs().get(0), 102, 1, 2, 10, 20);
+        // Same tier, at 3 instead of 2
+        assertDiff(report.getDiffs().get(1), 103, 2, 2, 20, 30);
+    }
+
+    private static void assertDiff(final RerateDiff diff, final long rawUsageId, final int tierBefore, final int tierAfter,
+                                   final long chargesBefore, final long chargesAfter) {
+        Assert.assertEquals(diff.getInvoiceId(), INVOICE_ID.toString());
+        Assert.assertEquals(diff.getRawUsageId(), rawUsageId);
+        Assert.assertEquals(diff.getTierBefore(), tierBefore, "row " + rawUsageId);
+        Assert.assertEquals(diff.getTierAfter(), tierAfter, "row " + rawUsageId);
+        Assert.assertEquals(diff.getChargesBefore().compareTo(BigDecimal.valueOf(chargesBefore)), 0, "row " + rawUsageId);
+        Assert.assertEquals(diff.getChargesAfter().compareTo(BigDecimal.valueOf(chargesAfter)), 0, "row " + rawUsageId);
+    }
+
+    private String details(final TierDetail... tiers) throws JsonProcessingException {
+        return objectMapper.writeValueAsString(new TierDetails(List.of(tiers), null));
+    }
+
+    private static TierDetail tier(final int tier, final long quantity, final long price) {
+        return new TierDetail(tier, "transactions", BigDecimal.valueOf(price), BigDecimal.ONE, BigDecimal.valueOf(quantity), null);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.resilience;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.killbill.billing.ErrorCode;
+import org.killbill.billing.invoice.api.InvoiceApiException;
+import org.killbill.billing.plugin.meter.exception.KillbillUnavailableException;
+import org.killbill.billing.plugin.meter.exception.KillbillUnavailableException.Reason;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestApiGuard {
+
+    private CountDownLatch release;
+    private ApiGuard apiGuard;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        release = new CountDownLatch(1);
+        apiGuard = new ApiGuard("test", new ResiliencePolicy().setMaxConcurrent(1)
+                                                              .setTimeoutMillis(100)
+                                                              .setWindowSize(2)
+                                                              .setMinimumCalls(2)
+                                                              .setFailureRateThreshold(0.5)
+                                                              .setOpenMillis(60_000));
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() {
+        release.countDown();
+        apiGuard.shutdown();
+    }
+
+    @Test(groups = "fast")
+    public void testReturnsResult() throws Exception {
+        Assert.assertEquals(apiGuard.call(() -> "ok"), "ok");
+
+        Assert.assertEquals(apiGuard.getStats().getCalls(), 1);
+        Assert.assertEquals(apiGuard.getStats().getFailures(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testBackToBackCallsFitOnePermit() throws Exception {
+        for (int i = 0; i < 500; i++) {
+            Assert.assertEquals(apiGuard.call(() -> "ok"), "ok");
+        }
+
+        Assert.assertEquals(apiGuard.getStats().getRejectedFull(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testTimedOutCallIsNotInterrupted() throws Exception {
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        final KillbillUnavailableException e = Assert.expectThrows(KillbillUnavailableException.class, () -> apiGuard.call(() -> {
+            try {
+                release.await();
+            } catch (final InterruptedException ignored) {
+                interrupted.set(true);
+            }
+            finished.countDown();
+            return null;
+        }));
+        Assert.assertEquals(e.getReason(), Reason.TIMEOUT);
+        Assert.assertEquals(apiGuard.getStats().getTimeouts(), 1);
+
+        // The timed out call still holds the only thread
+        final KillbillUnavailableException full = Assert.expectThrows(KillbillUnavailableException.class, () -> apiGuard.call(() -> "ok"));
+        Assert.assertEquals(full.getReason(), Reason.BULKHEAD_FULL);
+
+        release.countDown();
+        Assert.assertTrue(finished.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse(interrupted.get());
+    }
+
+    @Test(groups = "fast")
+    public void testBusinessErrorsDoNotOpenTheBreaker() {
+        for (int i = 0; i < 2; i++) {
+            Assert.expectThrows(InvoiceApiException.class, () -> apiGuard.call(() -> {
+                throw new InvoiceApiException(ErrorCode.INVOICE_NOTHING_TO_DO, "account", "2024-01-01");
+            }));
+        }
+
+        Assert.assertEquals(apiGuard.getState(), CircuitBreaker.State.CLOSED);
+        Assert.assertEquals(apiGuard.getStats().getFailures(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testFailuresOpenTheBreaker() {
+        for (int i = 0; i < 2; i++) {
+            Assert.expectThrows(IllegalStateException.class, () -> apiGuard.call(() -> {
+                throw new IllegalStateException("Kill Bill unavailable");
+            }));
+        }
+        Assert.assertEquals(apiGuard.getState(), CircuitBreaker.State.OPEN);
+
+        final KillbillUnavailableException e = Assert.expectThrows(KillbillUnavailableException.class, () -> apiGuard.call(() -> "ok"));
+
+        Assert.assertEquals(e.getReason(), Reason.CIRCUIT_OPEN);
+        Assert.assertTrue(e.isShed());
+        Assert.assertEquals(apiGuard.getStats().getRejectedOpen(), 1);
+        Assert.assertEquals(apiGuard.getStats().getFailures(), 2);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.resilience;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestCircuitBreaker {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(200);
+
+    @Test(groups = "fast")
+    public void testOpensOnFailureRate() {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(policy(60_000));
+
+        circuitBreaker.record(FAST, false);
+        circuitBreaker.record(FAST, false);
+        circuitBreaker.record(FAST, true);
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+        Assert.assertEquals(circuitBreaker.getFailureRate(), 1.0 / 3);
+
+        circuitBreaker.record(FAST, true);
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+        Assert.assertFalse(circuitBreaker.tryAcquire());
+    }
+
+    @Test(groups = "fast")
+    public void testOpensOnSlowCallRate() {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(policy(60_000));
+
+        for (int i = 0; i < 3; i++) {
+            circuitBreaker.record(SLOW, false);
+        }
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+
+        circuitBreaker.record(SLOW, false);
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+    }
+
+    @Test(groups = "fast")
+    public void testWaitsForMinimumCalls() {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(policy(60_000));
+
+        for (int i = 0; i < 3; i++) {
+            circuitBreaker.record(FAST, true);
+        }
+
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+        Assert.assertTrue(circuitBreaker.tryAcquire());
+    }
+
+    @Test(groups = "fast")
+    public void testWindowForgetsOldestCalls() {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(policy(60_000));
+        circuitBreaker.record(FAST, true);
+
+        for (int i = 0; i < 4; i++) {
+            circuitBreaker.record(FAST, false);
+        }
+
+        Assert.assertEquals(circuitBreaker.getFailureRate(), 0.0);
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+    }
+
+    @Test(groups = "fast")
+    public void testClosesAfterSuccessfulTrials() {
+        final CircuitBreaker circuitBreaker = open(policy(0));
+
+        Assert.assertTrue(circuitBreaker.tryAcquire());
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.HALF_OPEN);
+        Assert.assertTrue(circuitBreaker.tryAcquire());
+        // Only halfOpenCalls trials at a time
+        Assert.assertFalse(circuitBreaker.tryAcquire());
+
+        circuitBreaker.record(FAST, false);
+        circuitBreaker.record(FAST, false);
+
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+        Assert.assertEquals(circuitBreaker.getFailureRate(), 0.0);
+    }
+
+    @Test(groups = "fast")
+    public void testReopensOnFailedTrial() {
+        final CircuitBreaker circuitBreaker = open(policy(60_000));
+        circuitBreaker.record(FAST, false);
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+
+        final CircuitBreaker trial = open(policy(0));
+        Assert.assertTrue(trial.tryAcquire());
+        trial.record(SLOW, false);
+
+        Assert.assertEquals(trial.getState(), CircuitBreaker.State.OPEN);
+    }
+
+    @Test(groups = "fast")
+    public void testReleaseGivesBackTrialPermit() {
+        final CircuitBreaker circuitBreaker = open(policy(0));
+        Assert.assertTrue(circuitBreaker.tryAcquire());
+        Assert.assertTrue(circuitBreaker.tryAcquire());
+        Assert.assertFalse(circuitBreaker.tryAcquire());
+
+        circuitBreaker.release();
+
+        Assert.assertTrue(circuitBreaker.tryAcquire());
+    }
+
+    private static CircuitBreaker open(final ResiliencePolicy policy) {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(policy);
+        for (int i = 0; i < policy.getMinimumCalls(); i++) {
+            circuitBreaker.record(FAST, true);
+        }
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+        return circuitBreaker;
+    }
+
+    private static ResiliencePolicy policy(final long openMillis) {
+        return new ResiliencePolicy().setSlowCallMillis(100)
+                                     .setWindowSize(4)
+                                     .setMinimumCalls(4)
+                                     .setFailureRateThreshold(0.5)
+                                     .setSlowCallRateThreshold(1.0)
+                                     .setOpenMillis(openMillis)
+                                     .setHalfOpenCalls(2);
+    }
+}
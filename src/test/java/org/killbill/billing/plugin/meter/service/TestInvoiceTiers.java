@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.service;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.joda.time.LocalDate;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.plugin.meter.dto.TierDetail;
+import org.killbill.billing.plugin.meter.dto.TierDetails;
+import org.killbill.billing.plugin.meter.workset.ChargeRows;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TestInvoiceTiers {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test(groups = "fast")
+    public void testItemsOfOneUnitAreAllocatedInOnePass() throws JsonProcessingException {
+        // Two periods of the same unit, listed out of order, and one item without usage
+        final Invoice invoice = invoice(item(new LocalDate(2024, 2, 1), details("transactions", 30, 2)),
+                                        item(new LocalDate(2024, 1, 1), details("transactions", 20, 1)),
+                                        item(new LocalDate(2024, 1, 1), null));
+
+        final Map<String, List<TierDetails>> byUnit = InvoiceTiers.byUnit(objectMapper, invoice);
+        Assert.assertEquals(byUnit.keySet(), Set.of("transactions"));
+        final List<TierDetail> tiers = InvoiceTiers.tiers(byUnit.get("transactions"));
+        Assert.assertEquals(tiers.size(), 2);
+        Assert.assertEquals(tiers.get(0).getQuantity(), BigDecimal.valueOf(20));
+        Assert.assertEquals(tiers.get(1).getQuantity(), BigDecimal.valueOf(30));
+
+        // Five rows of 10 in record date order: January's item charges the first two at 1, February's the other three at 2
+        final ChargeRows rows = new ChargeRows(5);
+        for (int i = 0; i < 5; i++) {
+            rows.add(i, 0, BigDecimal.TEN, null);
+        }
+        TierAllocator.allocate(tiers, rows);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(rows.charges(i).compareTo(BigDecimal.valueOf(i < 2 ? 10 : 20)), 0, "row " + i);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testUnitsAreKeptApart() throws JsonProcessingException {
+        final Invoice invoice = invoice(item(new LocalDate(2024, 1, 1), details("transactions", 20, 1)),
+                                        item(new LocalDate(2024, 1, 1), details("refunds", 5, 1)));
+
+        final Map<String, List<TierDetails>> byUnit = InvoiceTiers.byUnit(objectMapper, invoice);
+        Assert.assertEquals(byUnit.size(), 2);
+        Assert.assertEquals(byUnit.get("transactions").size(), 1);
+        Assert.assertEquals(byUnit.get("refunds").size(), 1);
+    }
+
+    private String details(final String unit, final long quantity, final long price) throws JsonProcessingException {
+        final TierDetail tier = new TierDetail(1, unit, BigDecimal.valueOf(price), BigDecimal.ONE, BigDecimal.valueOf(quantity), null);
+        return objectMapper.writeValueAsString(new TierDetails(List.of(tier), null));
+    }
+
+    private static InvoiceItem item(final LocalDate startDate, final String itemDetails) {
+        final InvoiceItem item = mock(InvoiceItem.class);
+        when(item.getStartDate()).thenReturn(startDate);
+        when(item.getItemDetails()).thenReturn(itemDetails);
+        return item;
+    }
+
+    private static Invoice invoice(final InvoiceItem... items) {
+        final Invoice invoice = mock(Invoice.class);
+        when(invoice.getInvoiceItems()).thenReturn(List.of(items));
+        return invoice;
+    }
+}
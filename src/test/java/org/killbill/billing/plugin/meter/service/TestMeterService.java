@@ -0,0 +1,120 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.service;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.dao.RawUsageDao;
+import org.killbill.billing.plugin.meter.dao.UnitOfWork;
+import org.killbill.billing.plugin.meter.domain.external.ConsumerSubscriptionUsageRecord;
+import org.killbill.billing.plugin.meter.domain.external.ConsumerUnitUsageRecord;
+import org.killbill.billing.plugin.meter.domain.external.ConsumerUsageRecord;
+import org.killbill.billing.plugin.meter.exception.DuplicateUsageException;
+import org.killbill.billing.plugin.meter.ingest.IngestionDeduplicator;
+import org.killbill.billing.plugin.meter.resilience.ResilientKillbill;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TestMeterService {
+
+    private static final UUID TENANT_ID = UUID.randomUUID();
+
+    private final AtomicInteger inserts = new AtomicInteger();
+    private UnitOfWork unitOfWork;
+    private IngestionDeduplicator deduplicator;
+    private MeterService meterService;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        inserts.set(0);
+        unitOfWork = mock(UnitOfWork.class);
+        final RawUsageDao rawUsageDao = mock(RawUsageDao.class);
+        when(rawUsageDao.inTransaction(any())).thenAnswer(invocation -> invocation.<UnitOfWork.Work<?>>getArgument(0).run(unitOfWork));
+        deduplicator = new IngestionDeduplicator(100, 10);
+        // Estimation off, as by default
+        meterService = new MeterService(rawUsageDao, mock(ResilientKillbill.class), null, mock(TenantFairScheduler.class),
+                                        UsagePushRetries.disabled(), null, deduplicator);
+    }
+
+    @Test(groups = "fast")
+    public void testUsageStoredByAnotherNodeIsAcknowledged() {
+        // Taken for new by this node, refused by the unique key
+        doAnswer(invocation -> {
+            if (inserts.incrementAndGet() == 1) {
+                throw new DuplicateUsageException(new IllegalStateException("Duplicate entry"));
+            }
+            return null;
+        }).when(unitOfWork).insertRawUsages(any());
+        when(unitOfWork.getStoredUnitTypes(any(), any(), any())).thenReturn(Set.of("api"));
+
+        Assert.assertFalse(meterService.addRawUsage(request("tracking")));
+
+        verify(unitOfWork, times(1)).getStoredUnitTypes(TENANT_ID.toString(), "subscription", "tracking");
+        Assert.assertEquals(inserts.get(), 2);
+        Assert.assertEquals(deduplicator.getStats().getFilterMisses(), 1);
+        // Its retries are answered from the recent-key cache
+        Assert.assertFalse(meterService.addRawUsage(request("tracking")));
+        Assert.assertEquals(inserts.get(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testNewUsageIsInsertedWithoutLookup() {
+        doAnswer(invocation -> inserts.addAndGet(invocation.<List<?>>getArgument(0).size())).when(unitOfWork).insertRawUsages(any());
+
+        Assert.assertTrue(meterService.addRawUsage(request("tracking")));
+
+        Assert.assertEquals(inserts.get(), 1);
+        verify(unitOfWork, never()).getStoredUnitTypes(any(), any(), any());
+    }
+
+    @Test(groups = "fast")
+    public void testStoreFailureIsRethrown() {
+        doAnswer(invocation -> {
+            throw new IllegalStateException("Connection refused");
+        }).when(unitOfWork).insertRawUsages(any());
+
+        final IllegalStateException e = Assert.expectThrows(IllegalStateException.class, () -> meterService.addRawUsage(request("tracking")));
+        Assert.assertEquals(e.getMessage(), "Connection refused");
+        Assert.assertEquals(deduplicator.getStats().getFilterMisses(), 0);
+    }
+
+    private static ConsumerSubscriptionUsageRecord request(final String trackingId) {
+        final ConsumerUsageRecord usageRecord = new ConsumerUsageRecord();
+        usageRecord.setRecordDate(DateTime.now(DateTimeZone.UTC));
+        usageRecord.setAmount(BigDecimal.TEN);
+        final ConsumerUnitUsageRecord unitUsageRecord = new ConsumerUnitUsageRecord();
+        unitUsageRecord.setUnitType("api");
+        unitUsageRecord.setUsageRecords(List.of(usageRecord));
+        return new ConsumerSubscriptionUsageRecord("subscription", trackingId, TENANT_ID, List.of(unitUsageRecord));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestTenantFairScheduler {
+
+    @Test(groups = "fast")
+    public void testSmallTenantIsNotQueuedBehindLargeOne() {
+        final TenantFairScheduler scheduler = new TenantFairScheduler(tenantId -> TenantShare.DEFAULT, 1);
+        final List<String> items = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            items.add("large-" + i);
+        }
+        items.add("small-0");
+        items.add("small-1");
+
+        final List<String> order = new ArrayList<>();
+        Assert.assertEquals(scheduler.run("test", items, TestTenantFairScheduler::tenantOf, order::add), 0);
+
+        Assert.assertEquals(order.size(), items.size());
+        // Equal weights alternate, so the small tenant is done within the first four dispatches
+        Assert.assertTrue(order.indexOf("small-1") < 4, order.toString());
+        // Items of one tenant keep their order
+        Assert.assertTrue(order.indexOf("large-0") < order.indexOf("large-1"));
+    }
+
+    @Test(groups = "fast")
+    public void testDispatchesFollowTheWeights() {
+        final TenantFairScheduler scheduler = new TenantFairScheduler(tenantId -> "heavy".equals(tenantId) ? new TenantShare(3, 2)
+                                                                                                       : new TenantShare(1, 2), 1);
+        final List<String> items = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            items.add("light-" + i);
+            items.add("heavy-" + i);
+        }
+
+        final List<String> order = new ArrayList<>();
+        scheduler.run("test", items, TestTenantFairScheduler::tenantOf, order::add);
+
+        final long heavyFirst = order.subList(0, 8).stream().filter(item -> item.startsWith("heavy")).count();
+        Assert.assertEquals(heavyFirst, 6, order.toString());
+    }
+
+    @Test(groups = "fast")
+    public void testFailingItemDoesNotStopTheStage() {
+        final TenantFairScheduler scheduler = new TenantFairScheduler(tenantId -> TenantShare.DEFAULT, 1);
+        final List<String> done = new ArrayList<>();
+
+        final int failures = scheduler.run("test", List.of("a-0", "a-1", "b-0"), TestTenantFairScheduler::tenantOf, item -> {
+            if ("a-0".equals(item)) {
+                throw new IllegalStateException("Kill Bill said no");
+            }
+            done.add(item);
+        });
+
+        Assert.assertEquals(failures, 1);
+        Assert.assertEquals(done.size(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrencyLimitPerTenant() {
+        final TenantFairScheduler scheduler = new TenantFairScheduler(tenantId -> "narrow".equals(tenantId) ? new TenantShare(1, 1)
+                                                                                                        : new TenantShare(1, 2), 4);
+        final List<String> items = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            items.add("narrow-" + i);
+            items.add("wide-" + i);
+        }
+        final Map<String, AtomicInteger> running = new ConcurrentHashMap<>();
+        final Map<String, Integer> peaks = new ConcurrentHashMap<>();
+        final List<String> done = Collections.synchronizedList(new ArrayList<>());
+        try {
+            scheduler.run("test", items, TestTenantFairScheduler::tenantOf, item -> {
+                final String tenant = tenantOf(item);
+                final int now = running.computeIfAbsent(tenant, t -> new AtomicInteger()).incrementAndGet();
+                peaks.merge(tenant, now, Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.get(tenant).decrementAndGet();
+                }
+                done.add(item);
+            });
+        } finally {
+            scheduler.shutdown();
+        }
+
+        Assert.assertEquals(done.size(), items.size());
+        Assert.assertEquals((int) peaks.get("narrow"), 1);
+        Assert.assertTrue(peaks.get("wide") <= 2, peaks.toString());
+    }
+
+    @Test(groups = "fast")
+    public void testUnreadableShareFallsBackToDefault() {
+        final TenantFairScheduler scheduler = new TenantFairScheduler(tenantId -> {
+            throw new IllegalStateException("No tenant configuration");
+        }, 1);
+        final List<String> done = new ArrayList<>();
+
+        Assert.assertEquals(scheduler.run("test", List.of("a-0", "b-0"), TestTenantFairScheduler::tenantOf, done::add), 0);
+        Assert.assertEquals(done.size(), 2);
+    }
+
+    private static String tenantOf(final String item) {
+        return item.substring(0, item.indexOf('-'));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.service;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import org.killbill.billing.plugin.meter.dto.TierDetail;
+import org.killbill.billing.plugin.meter.entity.RawUsage;
+import org.killbill.billing.plugin.meter.workset.ChargeRows;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestTierAllocator {
+
+    // 15 at 1 per unit, then 15 at 10 per block of 5
+    private static final List<TierDetail> TIERS = List.of(tier(1, 15, 1, 1), tier(2, 15, 10, 5));
+
+    @Test(groups = "fast")
+    public void testRowStraddlingTwoTiersKeepsTheLastOne() {
+        final ChargeRows rows = rows(10, 10, 10);
+
+        TierAllocator.allocate(TIERS, rows);
+
+        assertRow(rows, 0, 1, 10);
+        // 5 in tier 1 at 1, 5 in tier 2 at 2
+        assertRow(rows, 1, 2, 15);
+        assertRow(rows, 2, 2, 20);
+    }
+
+    @Test(groups = "fast")
+    public void testRawUsagesAreAllocatedLikeChargeRows() {
+        final List<RawUsage> rawUsages = List.of(rawUsage(10), rawUsage(10), rawUsage(10));
+
+        TierAllocator.allocate(TIERS, rawUsages);
+
+        final ChargeRows rows = TierAllocator.allocate(TIERS, rows(10, 10, 10));
+        for (int i = 0; i < rawUsages.size(); i++) {
+            Assert.assertEquals(rawUsages.get(i).getTier(), rows.tier(i), "row " + i);
+            Assert.assertEquals(rawUsages.get(i).getCharges().compareTo(rows.charges(i)), 0, "row " + i);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testUsageBeyondTheTiersIsLeftUncharged() {
+        final ChargeRows rows = rows(10, 10, 10, 10);
+
+        TierAllocator.allocate(TIERS, rows);
+
+        Assert.assertNull(rows.charges(3));
+    }
+
+    @Test(groups = "fast")
+    public void testTiersBeyondTheUsageAreRejected() {
+        final ChargeRows rows = rows(10, 10);
+
+        Assert.expectThrows(IndexOutOfBoundsException.class, () -> TierAllocator.allocate(TIERS, rows));
+    }
+
+    @Test(groups = "fast")
+    public void testRecomputingSameTiersChangesNothing() {
+        final ChargeRows charged = TierAllocator.allocate(TIERS, rows(10, 10, 10));
+        final ChargeRows rows = new ChargeRows();
+        for (int i = 0; i < charged.size(); i++) {
+            rows.add(i, 1, BigDecimal.TEN, charged.charges(i), charged.tier(i));
+        }
+
+        rows.clearCharges();
+        TierAllocator.allocate(TIERS, rows);
+
+        for (int i = 0; i < rows.size(); i++) {
+            Assert.assertFalse(rows.isChanged(i), "row " + i);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testFractionalAmounts() {
+        final ChargeRows rows = rows("0.25", "0.75");
+
+        TierAllocator.allocate(List.of(tier(1, "1", 4, 1)), rows);
+
+        assertRow(rows, 0, 1, 1);
+        assertRow(rows, 1, 1, 3);
+    }
+
+    private static void assertRow(final ChargeRows rows, final int row, final int tier, final long charges) {
+        Assert.assertEquals(rows.tier(row), tier, "row " + row);
+        Assert.assertEquals(rows.charges(row).compareTo(BigDecimal.valueOf(charges)), 0, "row " + row + " charges " + rows.charges(row));
+    }
+
+    private static ChargeRows rows(final long... amounts) {
+        final ChargeRows rows = new ChargeRows();
+        for (int i = 0; i < amounts.length; i++) {
+            rows.add(i, 0, BigDecimal.valueOf(amounts[i]), null);
+        }
+        return rows;
+    }
+
+    private static ChargeRows rows(final String... amounts) {
+        final ChargeRows rows = new ChargeRows();
+        for (int i = 0; i < amounts.length; i++) {
+            rows.add(i, 0, new BigDecimal(amounts[i]), null);
+        }
+        return rows;
+    }
+
+    private static RawUsage rawUsage(final long amount) {
+        return new RawUsage().setAmount(BigDecimal.valueOf(amount));
+    }
+
+    private static TierDetail tier(final int tier, final long quantity, final long price, final long blockSize) {
+        return tier(tier, String.valueOf(quantity), price, blockSize);
+    }
+
+    private static TierDetail tier(final int tier, final String quantity, final long price, final long blockSize) {
+        return new TierDetail(tier, "transactions", BigDecimal.valueOf(price), BigDecimal.valueOf(blockSize), new BigDecimal(quantity), null);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.dao.UsagePushRetryDao;
+import org.killbill.billing.plugin.meter.entity.RawUsage;
+import org.killbill.billing.plugin.meter.entity.UsagePushRetry;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TestUsagePushRetries {
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final List<UsagePushRetry> inserted = new ArrayList<>();
+    private final List<UsagePushRetry> updated = new ArrayList<>();
+    private UsagePushRetryDao usagePushRetryDao;
+    private UsagePushRetries usagePushRetries;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        inserted.clear();
+        updated.clear();
+        usagePushRetryDao = mock(UsagePushRetryDao.class);
+        when(usagePushRetryDao.getByStage(UsagePushRetry.STAGE_BILL)).thenReturn(List.of());
+        doAnswer(invocation -> inserted.add(invocation.getArgument(0))).when(usagePushRetryDao).insert(any());
+        when(usagePushRetryDao.update(any())).thenAnswer(invocation -> updated.add(invocation.getArgument(0)));
+        usagePushRetries = new UsagePushRetries(usagePushRetryDao, MAX_ATTEMPTS, 60, 3600);
+    }
+
+    @Test(groups = "fast")
+    public void testFirstFailureIsRecordedForRetry() {
+        final UsagePushRetries.Pass pass = usagePushRetries.begin(UsagePushRetry.STAGE_BILL);
+        final RawUsage rollup = rollup("aggregation");
+        Assert.assertTrue(pass.isDue(rollup));
+
+        pass.failed(rollup, new IllegalStateException("Kill Bill unavailable"));
+
+        Assert.assertEquals(inserted.size(), 1);
+        final UsagePushRetry retry = inserted.get(0);
+        Assert.assertEquals(retry.getAggregationId(), "aggregation");
+        Assert.assertEquals(retry.getStage(), UsagePushRetry.STAGE_BILL);
+        Assert.assertEquals(retry.getStatus(), UsagePushRetry.RETRY);
+        Assert.assertEquals(retry.getAttempts(), 1);
+        Assert.assertEquals(retry.getLastError(), "IllegalStateException: Kill Bill unavailable");
+        Assert.assertTrue(retry.getNextAttemptAt().isAfterNow());
+    }
+
+    @Test(groups = "fast")
+    public void testRollupIsSkippedUntilItsNextAttempt() {
+        final DateTime now = DateTime.now(DateTimeZone.UTC);
+        when(usagePushRetryDao.getByStage(UsagePushRetry.STAGE_BILL)).thenReturn(List.of(retry("waiting", 1, now.plusMinutes(5)),
+                                                                                         retry("due", 1, now.minusMinutes(5))));
+
+        final UsagePushRetries.Pass pass = usagePushRetries.begin(UsagePushRetry.STAGE_BILL);
+
+        Assert.assertFalse(pass.isDue(rollup("waiting")));
+        Assert.assertTrue(pass.isDue(rollup("due")));
+    }
+
+    @Test(groups = "fast")
+    public void testLastAttemptBecomesDeadLetter() {
+        final DateTime past = DateTime.now(DateTimeZone.UTC).minusMinutes(5);
+        when(usagePushRetryDao.getByStage(UsagePushRetry.STAGE_BILL)).thenReturn(List.of(retry("aggregation", MAX_ATTEMPTS - 1, past)));
+        final UsagePushRetries.Pass pass = usagePushRetries.begin(UsagePushRetry.STAGE_BILL);
+
+        pass.failed(rollup("aggregation"), new IllegalStateException("Kill Bill unavailable"));
+
+        Assert.assertEquals(updated.size(), 1);
+        Assert.assertEquals(updated.get(0).getStatus(), UsagePushRetry.DEAD);
+        Assert.assertEquals(updated.get(0).getAttempts(), MAX_ATTEMPTS);
+        Assert.assertTrue(inserted.isEmpty());
+        Assert.assertFalse(usagePushRetries.begin(UsagePushRetry.STAGE_BILL).isDue(rollup("aggregation")));
+    }
+
+    @Test(groups = "fast")
+    public void testSuccessClearsRetry() {
+        final DateTime past = DateTime.now(DateTimeZone.UTC).minusMinutes(5);
+        when(usagePushRetryDao.getByStage(UsagePushRetry.STAGE_BILL)).thenReturn(List.of(retry("aggregation", 1, past)));
+        final UsagePushRetries.Pass pass = usagePushRetries.begin(UsagePushRetry.STAGE_BILL);
+
+        pass.succeeded(rollup("aggregation"));
+        pass.succeeded(rollup("never-failed"));
+
+        verify(usagePushRetryDao).delete(7L);
+    }
+
+    @Test(groups = "fast")
+    public void testLongErrorIsTruncated() {
+        final UsagePushRetries.Pass pass = usagePushRetries.begin(UsagePushRetry.STAGE_BILL);
+
+        pass.failed(rollup("aggregation"), new IllegalStateException("x".repeat(2 * UsagePushRetries.MAX_ERROR_LENGTH)));
+
+        Assert.assertEquals(inserted.get(0).getLastError().length(), UsagePushRetries.MAX_ERROR_LENGTH);
+    }
+
+    @Test(groups = "fast")
+    public void testDisabledRetriesEveryRollup() {
+        final UsagePushRetries.Pass pass = UsagePushRetries.disabled().begin(UsagePushRetry.STAGE_BILL);
+        final RawUsage rollup = rollup("aggregation");
+
+        pass.failed(rollup, new IllegalStateException("Kill Bill unavailable"));
+
+        Assert.assertTrue(pass.isDue(rollup));
+        Assert.assertTrue(UsagePushRetries.disabled().getDeadLetters().isEmpty());
+        Assert.assertFalse(UsagePushRetries.disabled().requeue(7));
+        verify(usagePushRetryDao, never()).requeue(anyLong(), any());
+    }
+
+    @Test(groups = "fast")
+    public void testBackoffDoublesUpToTheCap() {
+        Assert.assertEquals(usagePushRetries.backoffSeconds(1), 60);
+        Assert.assertEquals(usagePushRetries.backoffSeconds(3), 240);
+        Assert.assertEquals(usagePushRetries.backoffSeconds(40), 3600);
+    }
+
+    private static RawUsage rollup(final String aggregationId) {
+        return new RawUsage().setTenantId("tenant")
+                             .setSubscriptionId("subscription")
+                             .setAggregationId(aggregationId);
+    }
+
+    private static UsagePushRetry retry(final String aggregationId, final int attempts, final DateTime nextAttemptAt) {
+        return new UsagePushRetry().setId(7L)
+                                   .setTenantId("tenant")
+                                   .setSubscriptionId("subscription")
+                                   .setAggregationId(aggregationId)
+                                   .setStage(UsagePushRetry.STAGE_BILL)
+                                   .setStatus(UsagePushRetry.RETRY)
+                                   .setAttempts(attempts)
+                                   .setNextAttemptAt(nextAttemptAt);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2020-2024 Equinix, Inc
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.tuning;
+
+import java.util.Properties;
+
+import org.killbill.billing.plugin.meter.MeterConfigurationHandler;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestMeterTuning {
+
+    @Test(groups = "fast")
+    public void testPluginPropertiesOverrideEverySetting() {
+        final Properties properties = new Properties();
+        properties.setProperty(MeterConfigurationHandler.TUNING_INSERT_BATCH_SIZE, "500");
+        properties.setProperty(MeterConfigurationHandler.TUNING_CHARGE_BATCH_SIZE, "200");
+        properties.setProperty(MeterConfigurationHandler.TUNING_FETCH_SIZE, "0");
+        properties.setProperty(MeterConfigurationHandler.ESTIMATION_SCHEDULE_TTL_SECONDS, "60");
+        properties.setProperty(MeterConfigurationHandler.SCHEDULING_WORKERS, "8");
+        properties.setProperty(MeterConfigurationHandler.JOBS_WORKERS, "3");
+        properties.setProperty(MeterConfigurationHandler.RERATE_PARALLELISM, "16");
+        properties.setProperty(MeterConfigurationHandler.PRE_AGGREGATION_FLUSH_SECONDS, " 30 ");
+
+        final MeterTuning tuning = MeterTuning.DEFAULT.withPluginProperties(properties);
+
+        Assert.assertEquals(tuning, new MeterTuning(500, 200, 0, 60, 8, 3, 16, 30));
+    }
+
+    @Test(groups = "fast")
+    public void testMissingOrBlankSettingsAreKept() {
+        final Properties properties = new Properties();
+        properties.setProperty(MeterConfigurationHandler.TUNING_INSERT_BATCH_SIZE, " ");
+
+        Assert.assertEquals(MeterTuning.DEFAULT.withPluginProperties(properties), MeterTuning.DEFAULT);
+        Assert.assertEquals(MeterTuning.DEFAULT.withTenantProperties(new Properties()), MeterTuning.DEFAULT);
+    }
+
+    @Test(groups = "fast")
+    public void testTenantPropertiesKeepSharedExecutorSizes() {
+        final MeterTuning plugin = new MeterTuning(1000, 1000, 1000, 900, 8, 3, 16, 30);
+        final Properties properties = new Properties();
+        properties.setProperty(MeterConfigurationHandler.TUNING_CHARGE_BATCH_SIZE, "100");
+        properties.setProperty(MeterConfigurationHandler.SCHEDULING_WORKERS, "64");
+        properties.setProperty(MeterConfigurationHandler.JOBS_WORKERS, "64");
+        properties.setProperty(MeterConfigurationHandler.RERATE_PARALLELISM, "64");
+        properties.setProperty(MeterConfigurationHandler.PRE_AGGREGATION_FLUSH_SECONDS, "1");
+
+        final MeterTuning tuning = plugin.withTenantProperties(properties);
+
+        Assert.assertEquals(tuning, new MeterTuning(1000, 100, 1000, 900, 8, 3, 16, 30));
+    }
+
+    @Test(groups = "fast")
+    public void testTenantCannotSetFetchSize() {
+        final Properties properties = new Properties();
+        properties.setProperty(MeterConfigurationHandler.TUNING_FETCH_SIZE, "50");
+
+        final IllegalArgumentException e = Assert.expectThrows(IllegalArgumentException.class,
+                                                               () -> MeterTuning.DEFAULT.withTenantProperties(properties));
+        Assert.assertEquals(e.getMessage(), MeterConfigurationHandler.TUNING_FETCH_SIZE + " is plugin-wide only");
+
+        properties.setProperty(MeterConfigurationHandler.TUNING_FETCH_SIZE, " ");
+        Assert.assertEquals(MeterTuning.DEFAULT.withTenantProperties(properties), MeterTuning.DEFAULT);
+    }
+
+    @Test(groups = "fast")
+    public void testOutOfRangeSettingIsRejected() {
+        assertRejected(MeterConfigurationHandler.TUNING_INSERT_BATCH_SIZE, "0", "must be between 1 and 100000, was 0");
+        assertRejected(MeterConfigurationHandler.TUNING_FETCH_SIZE, "-1", "must be between 0 and 100000, was -1");
+        assertRejected(MeterConfigurationHandler.ESTIMATION_SCHEDULE_TTL_SECONDS, "86401", "must be between 0 and 86400, was 86401");
+        assertRejected(MeterConfigurationHandler.JOBS_WORKERS, "65", "must be between 1 and 64, was 65");
+        assertRejected(MeterConfigurationHandler.PRE_AGGREGATION_FLUSH_SECONDS, "0", "must be between 1 and 3600, was 0");
+    }
+
+    @Test(groups = "fast")
+    public void testSettingThatIsNotANumberIsRejected() {
+        assertRejected(MeterConfigurationHandler.TUNING_CHARGE_BATCH_SIZE, "1k", "is not a number: 1k");
+        // Would overflow an int if it was not range checked as a long first
+        assertRejected(MeterConfigurationHandler.SCHEDULING_WORKERS, "4294967297", "must be between 1 and 256, was 4294967297");
+    }
+
+    private static void assertRejected(final String key, final String value, final String message) {
+        final Properties properties = new Properties();
+        properties.setProperty(key, value);
+        final IllegalArgumentException e = Assert.expectThrows(IllegalArgumentException.class,
+                                                               () -> MeterTuning.DEFAULT.withPluginProperties(properties));
+        Assert.assertEquals(e.getMessage(), key + " " + message);
+    }
+}